@@ -531,6 +531,12 @@ static vector<string> GetArgumentArray() {
   if (globals->options->watchfs) {
     result.push_back("--watchfs");
   }
+  if (globals->options->compact_skyframe_graph) {
+    result.push_back("--experimental_compact_skyframe_graph");
+  }
+  if (globals->options->log_structured_action_cache) {
+    result.push_back("--experimental_log_structured_action_cache");
+  }
   if (globals->options->fatal_event_bus_exceptions) {
     result.push_back("--fatal_event_bus_exceptions");
   } else {
@@ -83,6 +83,8 @@ StartupOptions::StartupOptions(const string &product_name,
       oom_more_eagerly_threshold(100),
       write_command_log(true),
       watchfs(false),
+      compact_skyframe_graph(false),
+      log_structured_action_cache(false),
       allow_configurable_attributes(false),
       fatal_event_bus_exceptions(false),
       command_port(0),
@@ -128,6 +130,8 @@ StartupOptions::StartupOptions(const string &product_name,
   RegisterNullaryStartupFlag("block_for_lock");
   RegisterNullaryStartupFlag("client_debug");
   RegisterNullaryStartupFlag("deep_execroot");
+  RegisterNullaryStartupFlag("experimental_compact_skyframe_graph");
+  RegisterNullaryStartupFlag("experimental_log_structured_action_cache");
   RegisterNullaryStartupFlag("experimental_oom_more_eagerly");
   RegisterNullaryStartupFlag("fatal_event_bus_exceptions");
   RegisterNullaryStartupFlag("host_jvm_debug");
@@ -330,6 +334,20 @@ blaze_exit_code::ExitCode StartupOptions::ProcessArg(
   } else if (GetNullaryOption(arg, "--nowatchfs")) {
     watchfs = false;
     option_sources["watchfs"] = rcfile;
+  } else if (GetNullaryOption(arg, "--experimental_compact_skyframe_graph")) {
+    compact_skyframe_graph = true;
+    option_sources["experimental_compact_skyframe_graph"] = rcfile;
+  } else if (GetNullaryOption(arg, "--noexperimental_compact_skyframe_graph")) {
+    compact_skyframe_graph = false;
+    option_sources["experimental_compact_skyframe_graph"] = rcfile;
+  } else if (GetNullaryOption(arg,
+                              "--experimental_log_structured_action_cache")) {
+    log_structured_action_cache = true;
+    option_sources["experimental_log_structured_action_cache"] = rcfile;
+  } else if (GetNullaryOption(arg,
+                              "--noexperimental_log_structured_action_cache")) {
+    log_structured_action_cache = false;
+    option_sources["experimental_log_structured_action_cache"] = rcfile;
   } else if (GetNullaryOption(arg, "--client_debug")) {
     client_debug = true;
     option_sources["client_debug"] = rcfile;
@@ -250,6 +250,13 @@ class StartupOptions {
   // If true, Blaze will listen to OS-level file change notifications.
   bool watchfs;
 
+  // If true, the server stores Skyframe graph edges as compact integer ids.
+  bool compact_skyframe_graph;
+
+  // If true, the action cache is an append-only log with a memory-mapped
+  // index.
+  bool log_structured_action_cache;
+
   // Temporary experimental flag that permits configurable attribute syntax
   // in BUILD files. This will be removed when configurable attributes is
   // a more stable feature.
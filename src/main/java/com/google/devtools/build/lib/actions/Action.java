@@ -185,6 +185,15 @@ public interface Action extends ActionExecutionMetadata, Describable {
 
   boolean canRemoveAfterExecution();
 
+  /**
+   * Returns true if the action only reads its inputs from the spawns it executes, whose runners
+   * fetch the inputs they need through the {@link ActionInputPrefetcher}. Otherwise, inputs that are
+   * not available locally are fetched before the action executes.
+   */
+  default boolean readsInputsOnlyThroughSpawns() {
+    return false;
+  }
+
   /**
    * Called by {@link com.google.devtools.build.lib.analysis.extra.ExtraAction} at execution time to
    * extract information from this action into a protocol buffer to be used by extra_action rules.
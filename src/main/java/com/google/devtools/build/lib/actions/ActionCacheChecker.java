@@ -126,12 +126,12 @@ public class ActionCacheChecker {
    * Checks whether one of existing output paths is already used as a key.
    * If yes, returns it - otherwise uses first output file as a key
    */
-  private ActionCache.Entry getCacheEntry(Action action) {
+  private ActionCache.Entry getCacheEntry(Action action) throws InterruptedException {
     if (!cacheConfig.enabled()) {
       return null; // ignore existing cache when disabled.
     }
     for (Artifact output : action.getOutputs()) {
-      ActionCache.Entry entry = actionCache.get(output.getExecPathString());
+      ActionCache.Entry entry = getCacheEntry(output.getExecPathString());
       if (entry != null) {
         return entry;
       }
@@ -139,6 +139,15 @@ public class ActionCacheChecker {
     return null;
   }
 
+  @Nullable
+  private ActionCache.Entry getCacheEntry(String key) throws InterruptedException {
+    ActionCache.Entry entry = actionCache.get(key);
+    if (entry == null && Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+    return entry;
+  }
+
   private void removeCacheEntry(Action action) {
     for (Artifact output : action.getOutputs()) {
       actionCache.remove(output.getExecPathString());
@@ -237,7 +246,8 @@ public class ActionCacheChecker {
       Iterable<Artifact> resolvedCacheArtifacts,
       Map<String, String> clientEnv,
       EventHandler handler,
-      MetadataHandler metadataHandler) {
+      MetadataHandler metadataHandler)
+      throws InterruptedException {
     // TODO(bazel-team): (2010) For RunfilesAction/SymlinkAction and similar actions that
     // produce only symlinks we should not check whether inputs are valid at all - all that matters
     // that inputs and outputs are still exist (and new inputs have not appeared). All other checks
@@ -460,14 +470,15 @@ public class ActionCacheChecker {
    * actions, it consults with the aggregated middleman digest computed here.
    */
   protected void checkMiddlemanAction(
-      Action action, EventHandler handler, MetadataHandler metadataHandler) {
+      Action action, EventHandler handler, MetadataHandler metadataHandler)
+      throws InterruptedException {
     if (!cacheConfig.enabled()) {
       // Action cache is disabled, don't generate digests.
       return;
     }
     Artifact middleman = action.getPrimaryOutput();
     String cacheKey = middleman.getExecPathString();
-    ActionCache.Entry entry = actionCache.get(cacheKey);
+    ActionCache.Entry entry = getCacheEntry(cacheKey);
     boolean changed = false;
     if (entry != null) {
       if (entry.isCorrupted()) {
@@ -13,20 +13,26 @@
 // limitations under the License.
 package com.google.devtools.build.lib.actions;
 
+import java.io.IOException;
+
 /** Prefetches files to local disk. */
 public interface ActionInputPrefetcher {
   public static final ActionInputPrefetcher NONE =
       new ActionInputPrefetcher() {
         @Override
-        public void prefetchFiles(Iterable<? extends ActionInput> input) {
+        public void prefetchFiles(
+            Iterable<? extends ActionInput> input, MetadataProvider metadataProvider) {
           // Do nothing.
         }
       };
 
   /**
-   * Initiates best-effort prefetching of all given inputs. This should not block.
+   * Fetches all given inputs whose contents are not available locally, e.g. because their {@link
+   * com.google.devtools.build.lib.actions.cache.Metadata#isRemote metadata} says they only exist
+   * in a remote cache. Blocks until all of them can be read from the local file system.
    *
    * <p>For any path not under this prefetcher's control, the call should be a no-op.
    */
-  void prefetchFiles(Iterable<? extends ActionInput> input);
+  void prefetchFiles(Iterable<? extends ActionInput> input, MetadataProvider metadataProvider)
+      throws IOException, InterruptedException;
 }
@@ -164,11 +164,13 @@ public class ActionLookupValue implements SkyValue {
    * Action#canRemoveAfterExecution()} is true for {@code action}, then remove this action from this
    * object's index as a memory-saving measure. The {@code artifact -> index} mapping remains
    * intact, so this action's execution value can still be addressed by its inputs.
+   *
+   * <p>Returns whether the action was removed.
    */
   @ThreadSafe
-  public void actionEvaluated(int actionIndex, Action action) {
+  public boolean actionEvaluated(int actionIndex, Action action) {
     if (!action.canRemoveAfterExecution()) {
-      return;
+      return false;
     }
     if (actions instanceof ArrayList) {
       // This method may concurrently mutate an ArrayList, which is unsafe on its face. However,
@@ -179,7 +181,9 @@ public class ActionLookupValue implements SkyValue {
       ActionAnalysisMetadata oldAction = actionArrayList.set(actionIndex, null);
       Preconditions.checkState(
           action.equals(oldAction), "Not same: %s %s %s %s", action, oldAction, this, actionIndex);
+      return true;
     }
+    return false;
   }
 
   /**
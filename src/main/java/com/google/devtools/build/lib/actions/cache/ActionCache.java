@@ -52,7 +52,8 @@ public interface ActionCache {
 
   /**
    * Returns the corresponding cache entry for the specified key, if any, or
-   * null if not found.
+   * null if not found. Also returns null, with the interrupt status of the thread
+   * set, if the thread was interrupted while the entry was read.
    */
   ActionCache.Entry get(String key);
 
@@ -0,0 +1,1066 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.actions.cache.Protos.ActionCacheStatistics;
+import com.google.devtools.build.lib.actions.cache.Protos.ActionCacheStatistics.MissReason;
+import com.google.devtools.build.lib.clock.Clock;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.profiler.AutoProfiler;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.UnixGlob;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+
+/**
+ * An implementation of the ActionCache interface that appends entries to a log file, and finds the
+ * latest entry for a key through an open-addressing hash table in a memory-mapped index file. Keys
+ * and file names are stored as {@link PersistentStringIndexer} ids, and entries are encoded as in
+ * {@link CompactPersistentActionCache}.
+ *
+ * <p>Unlike {@link CompactPersistentActionCache}, entries are not loaded into memory when the cache
+ * is opened, and {@link #save} only forces what was appended since the previous save to disk
+ * instead of rewriting a journal. Entries that were replaced or removed stay in the log until it is
+ * compacted, which happens in the background once they make up most of it.
+ *
+ * <p>Only entries written before the last {@link #save} are guaranteed to survive a crash. Index
+ * slots that point past the saved part of the log after a crash are cleared when the cache is
+ * opened, and records carry their key and a checksum, so that torn records are recognized and
+ * ignored.
+ *
+ * <p>Records are read and written with positional I/O without holding the lock of the cache, which
+ * only guards the index and the allocation of space at the end of the log.
+ */
+@ThreadSafe
+public class LogStructuredActionCache implements ActionCache {
+  private static final int VERSION = 2;
+
+  private static final int LOG_MAGIC = 0x41434c47;
+  private static final int INDEX_MAGIC = 0x41434958;
+
+  // The log starts with a header of (magic, version, log id), followed by records of (key, payload
+  // length or REMOVED, checksum, payload).
+  private static final int LOG_HEADER_SIZE = 16;
+  private static final int RECORD_HEADER_SIZE = 12;
+  private static final int REMOVED = -1;
+
+  // The index starts with a header whose fields are at the offsets below, followed by slots of
+  // (key + 1, or 0 for a free slot; size of the latest record for the key, or REMOVED; offset of
+  // the latest record for the key).
+  private static final int MAGIC_OFFSET = 0;
+  private static final int VERSION_OFFSET = 4;
+  private static final int LOG_ID_OFFSET = 8;
+  private static final int CAPACITY_OFFSET = 16;
+  private static final int USED_SLOTS_OFFSET = 20;
+  private static final int INDEXER_SIZE_OFFSET = 24;
+  private static final int LOG_LENGTH_OFFSET = 32;
+  private static final int LIVE_BYTES_OFFSET = 40;
+  private static final int INDEX_HEADER_SIZE = 48;
+  private static final int SLOT_SIZE = 16;
+
+  private static final int INITIAL_CAPACITY = 1 << 12;
+  private static final long MIN_LOG_LENGTH_FOR_COMPACTION = 16L << 20;
+
+  private static final Logger logger = Logger.getLogger(LogStructuredActionCache.class.getName());
+
+  private final Path cacheRoot;
+  private final PersistentStringIndexer indexer;
+  private final ExecutorService compactionExecutor =
+      Executors.newSingleThreadExecutor(
+          new ThreadFactoryBuilder()
+              .setNameFormat("action-cache-compaction")
+              .setDaemon(true)
+              .build());
+
+  // The following fields are guarded by this.
+  private FileChannel log;
+  private long logId;
+  private long logLength;
+  private MappedByteBuffer index;
+  private int capacity;
+  private int usedSlots;
+  /** Total size of the records that are the latest for their key. */
+  private long liveBytes;
+  /** Incremented whenever the files are replaced, to invalidate snapshots taken for compaction. */
+  private int generation;
+  private boolean compacting;
+  /** Set while compaction swaps the files, during which appends wait. */
+  private boolean swapping;
+  /** Offsets of the records that are being written, and are not in the index yet. */
+  private final TreeSet<Long> pendingWrites = new TreeSet<>();
+  /** Number of saves that are forcing an index to disk without holding the lock. */
+  private int indexForces;
+  /** Indexes that were replaced while a save forced them, to be unmapped once it is done. */
+  private final List<MappedByteBuffer> retiredIndexes = new ArrayList<>();
+
+  private final AtomicInteger hits = new AtomicInteger();
+  private final Map<MissReason, AtomicInteger> misses = new EnumMap<>(MissReason.class);
+
+  public LogStructuredActionCache(Path cacheRoot, Clock clock) throws IOException {
+    this.cacheRoot = cacheRoot;
+    try {
+      indexer = PersistentStringIndexer.newPersistentStringIndexer(indexerFile(cacheRoot), clock);
+    } catch (IOException e) {
+      renameCorruptedFiles(cacheRoot);
+      throw new IOException("Failed to load filename index data", e);
+    }
+
+    try {
+      open();
+    } catch (IOException e) {
+      renameCorruptedFiles(cacheRoot);
+      throw new IOException("Failed to load action cache data", e);
+    }
+
+    for (MissReason reason : MissReason.values()) {
+      if (reason == MissReason.UNRECOGNIZED) {
+        // The presence of this enum value is a protobuf artifact and confuses our metrics
+        // externalization code below. Just skip it.
+        continue;
+      }
+      misses.put(reason, new AtomicInteger(0));
+    }
+  }
+
+  /**
+   * Rename corrupted files so they could be analyzed later. This would also ensure that next
+   * initialization attempt will create empty cache.
+   */
+  private static void renameCorruptedFiles(Path cacheRoot) {
+    try {
+      for (Path path :
+          UnixGlob.forPath(cacheRoot).addPattern("action_log*_v" + VERSION + ".*").glob()) {
+        path.renameTo(path.getParentDirectory().getChild(path.getBaseName() + ".bad"));
+      }
+      for (Path path :
+          UnixGlob.forPath(cacheRoot).addPattern("filename_index_log_v" + VERSION + ".*").glob()) {
+        path.renameTo(path.getParentDirectory().getChild(path.getBaseName() + ".bad"));
+      }
+    } catch (IOException e) {
+      // do nothing
+    }
+  }
+
+  public static Path logFile(Path cacheRoot) {
+    return cacheRoot.getChild("action_log_v" + VERSION + ".blaze");
+  }
+
+  public static Path indexFile(Path cacheRoot) {
+    return cacheRoot.getChild("action_log_index_v" + VERSION + ".blaze");
+  }
+
+  private static Path indexerFile(Path cacheRoot) {
+    return cacheRoot.getChild("filename_index_log_v" + VERSION + ".blaze");
+  }
+
+  private static Path tempFile(Path path) {
+    return path.getParentDirectory().getChild(path.getBaseName() + ".tmp");
+  }
+
+  private synchronized void open() throws IOException {
+    Path logPath = logFile(cacheRoot);
+    Path indexPath = indexFile(cacheRoot);
+    if (!logPath.exists() || !indexPath.exists()) {
+      create();
+      return;
+    }
+    log = openChannel(logPath);
+    ByteBuffer logHeader = readFully(log, 0, LOG_HEADER_SIZE);
+    if (logHeader.getInt() != LOG_MAGIC || logHeader.getInt() != VERSION) {
+      throw new IOException("Bad action log header");
+    }
+    logId = logHeader.getLong();
+
+    try (FileChannel indexChannel = openChannel(indexPath)) {
+      index = indexChannel.map(MapMode.READ_WRITE, 0, indexChannel.size());
+    }
+    if (index.capacity() < INDEX_HEADER_SIZE
+        || index.getInt(MAGIC_OFFSET) != INDEX_MAGIC
+        || index.getInt(VERSION_OFFSET) != VERSION) {
+      throw new IOException("Bad action log index header");
+    }
+    if (index.getLong(LOG_ID_OFFSET) != logId) {
+      throw new IOException("Action log index does not belong to the action log");
+    }
+    capacity = index.getInt(CAPACITY_OFFSET);
+    if (Integer.bitCount(capacity) != 1 || index.capacity() != indexSize(capacity)) {
+      throw new IOException("Bad action log index size for capacity " + capacity);
+    }
+    // File names that the log refers to but that were not saved make their entries corrupted, and
+    // must not be assigned to other file names.
+    indexer.reserveIndices(index.getInt(INDEXER_SIZE_OFFSET));
+    logLength = index.getLong(LOG_LENGTH_OFFSET);
+    if (logLength < LOG_HEADER_SIZE || logLength > log.size()) {
+      throw new IOException("Bad action log length " + logLength);
+    }
+    // These are only used as estimates, so they need not be exact after a crash.
+    usedSlots = index.getInt(USED_SLOTS_OFFSET);
+    liveBytes = index.getLong(LIVE_BYTES_OFFSET);
+    clearUnsavedSlots();
+  }
+
+  /**
+   * Marks the keys whose latest record was appended after the last save as removed. The index is
+   * mapped, so after a crash it may point past the saved part of the log, where the records of this
+   * run are appended again. Those slots would otherwise hide the new records from {@link
+   * #putRecord}, which keeps the latest one by offset.
+   */
+  private void clearUnsavedSlots() {
+    for (int slot = 0; slot < capacity; slot++) {
+      int position = slotPosition(slot);
+      if (index.getInt(position) != 0 && index.getLong(position + 8) >= logLength) {
+        int size = index.getInt(position + 4);
+        if (size != REMOVED) {
+          liveBytes -= size;
+        }
+        index.putInt(position + 4, REMOVED);
+        index.putLong(position + 8, 0);
+      }
+    }
+  }
+
+  /** Replaces the log and index with empty ones. */
+  private void create() throws IOException {
+    Path logPath = logFile(cacheRoot);
+    logPath.delete();
+    log = openChannel(logPath);
+    logId = ThreadLocalRandom.current().nextLong();
+    writeLogHeader(log, logId);
+    logLength = LOG_HEADER_SIZE;
+    liveBytes = 0;
+
+    Path indexPath = indexFile(cacheRoot);
+    indexPath.delete();
+    replaceIndex(createIndex(indexPath, INITIAL_CAPACITY, logId));
+    capacity = INITIAL_CAPACITY;
+    usedSlots = 0;
+    log.force(false);
+    writeIndexHeader(index, usedSlots, /*indexerSize=*/ 0, logLength, liveBytes);
+    index.force();
+  }
+
+  private static FileChannel openChannel(Path path) throws IOException {
+    return FileChannel.open(
+        path.getPathFile().toPath(),
+        StandardOpenOption.CREATE,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Reopens the log if {@code channel} is still the log and was closed, which happens to a {@link
+   * FileChannel} when a thread that uses it is interrupted.
+   */
+  private synchronized void reopenIfClosed(FileChannel channel) throws IOException {
+    if (log == channel && !log.isOpen()) {
+      log = openChannel(logFile(cacheRoot));
+    }
+  }
+
+  private static void writeLogHeader(FileChannel channel, long logId) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+    header.putInt(LOG_MAGIC).putInt(VERSION).putLong(logId).flip();
+    writeFully(channel, 0, header);
+  }
+
+  private static long indexSize(int capacity) {
+    return INDEX_HEADER_SIZE + (long) capacity * SLOT_SIZE;
+  }
+
+  private static MappedByteBuffer createIndex(Path path, int capacity, long logId)
+      throws IOException {
+    if (indexSize(capacity) > Integer.MAX_VALUE) {
+      throw new IOException("Action log index too large for capacity " + capacity);
+    }
+    try (FileChannel channel = openChannel(path)) {
+      channel.truncate(0);
+      // Mapping past the end of the file extends it with zeros, which marks all slots as free.
+      MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 0, indexSize(capacity));
+      buffer.putInt(MAGIC_OFFSET, INDEX_MAGIC);
+      buffer.putInt(VERSION_OFFSET, VERSION);
+      buffer.putLong(LOG_ID_OFFSET, logId);
+      buffer.putInt(CAPACITY_OFFSET, capacity);
+      return buffer;
+    }
+  }
+
+  /**
+   * Writes the index header, making the first {@code savedLogLength} bytes of the log current once
+   * the index is forced to disk. The log must have been forced to disk before.
+   */
+  private static void writeIndexHeader(
+      ByteBuffer index, int usedSlots, int indexerSize, long savedLogLength, long liveBytes) {
+    index.putInt(USED_SLOTS_OFFSET, usedSlots);
+    index.putInt(INDEXER_SIZE_OFFSET, indexerSize);
+    index.putLong(LOG_LENGTH_OFFSET, savedLogLength);
+    index.putLong(LIVE_BYTES_OFFSET, liveBytes);
+  }
+
+  private static int slotPosition(int slot) {
+    return INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+  }
+
+  /**
+   * Returns the slot of {@code key} in {@code index}, or the free slot where it belongs if it has
+   * none, or -1 if the index is full.
+   */
+  private static int findSlot(ByteBuffer index, int capacity, int key) {
+    int mask = capacity - 1;
+    int hash = key * 0x9E3779B9;
+    int slot = (hash ^ (hash >>> 16)) & mask;
+    for (int i = 0; i < capacity; i++) {
+      int slotKey = index.getInt(slotPosition(slot));
+      if (slotKey == 0 || slotKey == key + 1) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  /** Rehashes the index into a new file, growing it if it is more than half full. */
+  private void resize() throws IOException {
+    int liveSlots = 0;
+    for (int slot = 0; slot < capacity; slot++) {
+      if (getSlot(slot) != null) {
+        liveSlots++;
+      }
+    }
+    int newCapacity = INITIAL_CAPACITY;
+    while (newCapacity < 2 * (liveSlots + 1)) {
+      newCapacity *= 2;
+    }
+    Path indexPath = indexFile(cacheRoot);
+    Path tempPath = tempFile(indexPath);
+    MappedByteBuffer newIndex = createIndex(tempPath, newCapacity, logId);
+    for (int slot = 0; slot < capacity; slot++) {
+      long[] record = getSlot(slot);
+      if (record != null) {
+        int key = (int) record[0];
+        putSlot(newIndex, findSlot(newIndex, newCapacity, key), key, record[1], (int) record[2]);
+      }
+    }
+    newIndex.putInt(INDEXER_SIZE_OFFSET, index.getInt(INDEXER_SIZE_OFFSET));
+    newIndex.putLong(LOG_LENGTH_OFFSET, index.getLong(LOG_LENGTH_OFFSET));
+    newIndex.putLong(LIVE_BYTES_OFFSET, index.getLong(LIVE_BYTES_OFFSET));
+    newIndex.putInt(USED_SLOTS_OFFSET, liveSlots);
+    tempPath.renameTo(indexPath);
+    replaceIndex(newIndex);
+    capacity = newCapacity;
+    usedSlots = liveSlots;
+  }
+
+  /**
+   * Makes {@code newIndex} the index and unmaps the previous one, or defers that until no save is
+   * forcing it to disk anymore. Every other access to the index holds the lock.
+   */
+  private void replaceIndex(MappedByteBuffer newIndex) {
+    MappedByteBuffer oldIndex = index;
+    index = newIndex;
+    if (oldIndex == null) {
+      return;
+    }
+    if (indexForces > 0) {
+      retiredIndexes.add(oldIndex);
+    } else {
+      unmap(oldIndex);
+    }
+  }
+
+  /**
+   * Releases the mapping of {@code buffer} right away instead of when it is garbage collected, so
+   * that replaced indexes do not pile up in the address space. The buffer must not be used after.
+   */
+  private static void unmap(MappedByteBuffer buffer) {
+    try {
+      // Java 9 and later.
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      unsafeClass
+          .getMethod("invokeCleaner", ByteBuffer.class)
+          .invoke(theUnsafe.get(null), buffer);
+      return;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // Fall through.
+    }
+    try {
+      // Java 8.
+      Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      Object cleaner = cleanerMethod.invoke(buffer);
+      if (cleaner != null) {
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+      }
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // The mapping is released when the buffer is garbage collected.
+    }
+  }
+
+  /**
+   * Returns the key, record offset and record size of {@code slot}, or null if it has no record.
+   */
+  @Nullable
+  private long[] getSlot(int slot) {
+    int position = slotPosition(slot);
+    int keyPlusOne = index.getInt(position);
+    int size = index.getInt(position + 4);
+    return keyPlusOne == 0 || size == REMOVED
+        ? null
+        : new long[] {keyPlusOne - 1, index.getLong(position + 8), size};
+  }
+
+  private static void putSlot(ByteBuffer index, int slot, int key, long offset, int size) {
+    int position = slotPosition(slot);
+    index.putInt(position, key + 1);
+    index.putInt(position + 4, size);
+    index.putLong(position + 8, offset);
+  }
+
+  /** A record of the log. */
+  private static final class Record {
+    private final int key;
+    @Nullable private final byte[] payload;
+
+    private Record(int key, @Nullable byte[] payload) {
+      this.key = key;
+      this.payload = payload;
+    }
+  }
+
+  private static int checksum(int key, int length, @Nullable byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(ByteBuffer.allocate(8).putInt(key).putInt(length).array());
+    if (payload != null) {
+      crc.update(payload);
+    }
+    return (int) crc.getValue();
+  }
+
+  /** Returns the bytes of a record for {@code key}. A null {@code payload} removes the key. */
+  private static ByteBuffer encodeRecord(int key, @Nullable byte[] payload) {
+    int length = payload == null ? REMOVED : payload.length;
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + Math.max(length, 0));
+    record.putInt(key).putInt(length).putInt(checksum(key, length, payload));
+    if (payload != null) {
+      record.put(payload);
+    }
+    record.flip();
+    return record;
+  }
+
+  /**
+   * Reads the record of {@code size} bytes at {@code offset}, or returns null if there is no valid
+   * record that ends before {@code limit} there.
+   */
+  @Nullable
+  private static Record readRecord(FileChannel channel, long offset, int size, long limit)
+      throws IOException {
+    if (offset < LOG_HEADER_SIZE || size < RECORD_HEADER_SIZE || offset + size > limit) {
+      return null;
+    }
+    ByteBuffer record = readFully(channel, offset, size);
+    int key = record.getInt();
+    int length = record.getInt();
+    int checksum = record.getInt();
+    if (length != (length == REMOVED ? REMOVED : size - RECORD_HEADER_SIZE)) {
+      return null;
+    }
+    byte[] payload =
+        length == REMOVED
+            ? null
+            : Arrays.copyOfRange(record.array(), RECORD_HEADER_SIZE, RECORD_HEADER_SIZE + length);
+    return checksum(key, length, payload) == checksum ? new Record(key, payload) : null;
+  }
+
+  private static ByteBuffer readFully(FileChannel channel, long position, int length)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of action log");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static void writeFully(FileChannel channel, long position, ByteBuffer buffer)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, position + buffer.position());
+    }
+  }
+
+  /**
+   * Returns the payload of the latest record for {@code key}, or null if there is none. The lock is
+   * only held to look the record up in the index, and the record is read outside of it.
+   */
+  @Nullable
+  private byte[] read(int key) throws IOException {
+    while (true) {
+      FileChannel channel;
+      long[] record;
+      long limit;
+      synchronized (this) {
+        int slot = findSlot(index, capacity, key);
+        record = slot < 0 ? null : getSlot(slot);
+        if (record == null) {
+          return null;
+        }
+        channel = log;
+        limit = logLength;
+      }
+      Record result;
+      try {
+        result = readRecord(channel, record[1], (int) record[2], limit);
+      } catch (ClosedChannelException e) {
+        // The log was replaced by compaction, or closed because a thread was interrupted.
+        reopenIfClosed(channel);
+        if (Thread.currentThread().isInterrupted()) {
+          throw e;
+        }
+        continue;
+      }
+      // The record may have been torn by a crash.
+      return result != null && result.key == key ? result.payload : null;
+    }
+  }
+
+  /**
+   * Appends a record for {@code key} to the log and makes it the latest one. A null {@code payload}
+   * removes the key.
+   *
+   * <p>The lock is only held to allocate the space of the record at the end of the log, and to put
+   * the record into the index once it is written. The index never points at a record that is still
+   * being written.
+   */
+  private void append(int key, @Nullable byte[] payload) throws IOException {
+    ByteBuffer record = encodeRecord(key, payload);
+    int size = record.limit();
+    while (true) {
+      FileChannel channel;
+      long offset;
+      int writeGeneration;
+      synchronized (this) {
+        while (swapping) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while the action log was compacted");
+          }
+        }
+        if (payload == null) {
+          int slot = findSlot(index, capacity, key);
+          if (slot < 0 || getSlot(slot) == null) {
+            return;
+          }
+        }
+        channel = log;
+        offset = logLength;
+        logLength += size;
+        writeGeneration = generation;
+        pendingWrites.add(offset);
+      }
+      boolean written = false;
+      try {
+        writeFully(channel, offset, record.duplicate());
+        written = true;
+      } catch (ClosedChannelException e) {
+        // The log was replaced by compaction, or closed because a thread was interrupted.
+        reopenIfClosed(channel);
+        if (Thread.currentThread().isInterrupted()) {
+          throw e;
+        }
+      } finally {
+        if (!written) {
+          synchronized (this) {
+            endWrite(offset, writeGeneration);
+          }
+        }
+      }
+      if (written) {
+        synchronized (this) {
+          if (endWrite(offset, writeGeneration)) {
+            putRecord(key, offset, payload == null ? REMOVED : size);
+            return;
+          }
+        }
+      }
+      // The log was replaced while the record was written, so the record is appended again.
+    }
+  }
+
+  /**
+   * Marks the write of the record at {@code offset} as done, and returns whether the log is still
+   * the one that the record was written to.
+   */
+  private boolean endWrite(long offset, int writeGeneration) {
+    if (generation != writeGeneration) {
+      return false;
+    }
+    pendingWrites.remove(offset);
+    if (pendingWrites.isEmpty()) {
+      notifyAll();
+    }
+    return true;
+  }
+
+  /**
+   * Makes the record at {@code offset} the latest one for {@code key}, unless a record that was
+   * appended after it already is.
+   */
+  private void putRecord(int key, long offset, int size) throws IOException {
+    int slot = findSlot(index, capacity, key);
+    if (slot < 0) {
+      resize();
+      slot = findSlot(index, capacity, key);
+    }
+    int position = slotPosition(slot);
+    if (index.getInt(position) == 0) {
+      usedSlots++;
+    } else {
+      if (index.getLong(position + 8) > offset) {
+        return;
+      }
+      int previousSize = index.getInt(position + 4);
+      if (previousSize != REMOVED) {
+        liveBytes -= previousSize;
+      }
+    }
+    putSlot(index, slot, key, offset, size);
+    if (size != REMOVED) {
+      liveBytes += size;
+    }
+    if (usedSlots * 2 > capacity) {
+      resize();
+    }
+  }
+
+  /** Returns the length of the part of the log that contains no record that is being written. */
+  private long writtenLogLength() {
+    return pendingWrites.isEmpty() ? logLength : pendingWrites.first();
+  }
+
+  @Override
+  public ActionCache.Entry get(String key) {
+    int index = indexer.getIndex(key);
+    if (index < 0) {
+      return null;
+    }
+    try {
+      byte[] data = read(index);
+      return data != null ? CompactPersistentActionCache.decode(indexer, data) : null;
+    } catch (InterruptedIOException | ClosedByInterruptException e) {
+      // The entry is not corrupted, so let the caller see the interruption instead.
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (IOException e) {
+      if (Thread.currentThread().isInterrupted()) {
+        return null;
+      }
+      // return entry marked as corrupted.
+      return ActionCache.Entry.CORRUPTED;
+    }
+  }
+
+  @Override
+  public void put(String key, ActionCache.Entry entry) {
+    // Encode record. Note that both methods may create new mappings in the indexer.
+    int index = indexer.getOrCreateIndex(key);
+    byte[] content = CompactPersistentActionCache.encode(indexer, entry);
+    try {
+      append(index, content);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to append to action log", e);
+    }
+  }
+
+  @Override
+  public void remove(String key) {
+    int index = indexer.getIndex(key);
+    if (index < 0) {
+      return;
+    }
+    try {
+      append(index, null);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to append to action log", e);
+    }
+  }
+
+  /**
+   * Forces the records appended since the last save to disk, and starts compacting the log in the
+   * background if it is mostly made of replaced records. The lock is not held while the files are
+   * written.
+   */
+  @Override
+  public long save() throws IOException {
+    long savedLogLength;
+    int indexerSize;
+    int savedGeneration;
+    FileChannel savedLog;
+    synchronized (this) {
+      // Every file name referenced by a record of the saved part of the log must be saved too.
+      savedLogLength = writtenLogLength();
+      indexerSize = indexer.size();
+      savedGeneration = generation;
+      savedLog = log;
+    }
+    long indexerBytes = indexer.save();
+    try {
+      savedLog.force(false);
+    } catch (ClosedChannelException e) {
+      reopenIfClosed(savedLog);
+      synchronized (this) {
+        if (generation == savedGeneration) {
+          throw e;
+        }
+      }
+      // The log was replaced by compaction, which saved it.
+    }
+    MappedByteBuffer savedIndex = null;
+    boolean compact;
+    long size;
+    synchronized (this) {
+      if (generation == savedGeneration) {
+        writeIndexHeader(index, usedSlots, indexerSize, savedLogLength, liveBytes);
+        savedIndex = index;
+        indexForces++;
+      }
+      compact =
+          !compacting && logLength >= MIN_LOG_LENGTH_FOR_COMPACTION && liveBytes * 2 < logLength;
+      compacting |= compact;
+      if (compact) {
+        compactionExecutor.execute(this::compactInBackground);
+      }
+      size = indexerBytes + logLength + index.capacity();
+    }
+    if (savedIndex != null) {
+      try {
+        savedIndex.force();
+      } finally {
+        synchronized (this) {
+          if (--indexForces == 0) {
+            retiredIndexes.forEach(LogStructuredActionCache::unmap);
+            retiredIndexes.clear();
+          }
+        }
+      }
+    }
+    return size;
+  }
+
+  private void compactInBackground() {
+    try (AutoProfiler p = AutoProfiler.logged("compacting action log", logger)) {
+      compact();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to compact action log", e);
+    } finally {
+      synchronized (this) {
+        compacting = false;
+      }
+    }
+  }
+
+  /** Returns the key, offset and size of the latest record of each key in the index. */
+  private List<long[]> snapshotIndex() {
+    List<long[]> records = new ArrayList<>(usedSlots);
+    for (int slot = 0; slot < capacity; slot++) {
+      long[] record = getSlot(slot);
+      if (record != null) {
+        records.add(record);
+      }
+    }
+    return records;
+  }
+
+  /**
+   * Copies the latest records into a new log without holding the lock, except to take snapshots of
+   * the index and to swap the files.
+   *
+   * <p>The records are copied from a snapshot of the index while records are still appended. Then
+   * appends wait while the records appended in the meantime are copied, the new index is written
+   * and the file names are saved, but lookups go on in the old log until the files are swapped.
+   */
+  @VisibleForTesting
+  void compact() throws IOException {
+    int snapshotGeneration;
+    long snapshotLength;
+    FileChannel snapshotLog;
+    List<long[]> snapshot;
+    synchronized (this) {
+      snapshotGeneration = generation;
+      snapshotLength = logLength;
+      snapshotLog = log;
+      snapshot = snapshotIndex();
+    }
+
+    long newLogId = ThreadLocalRandom.current().nextLong();
+    Path logPath = logFile(cacheRoot);
+    Path indexPath = indexFile(cacheRoot);
+    Path tempLogPath = tempFile(logPath);
+    Path tempIndexPath = tempFile(indexPath);
+    tempLogPath.delete();
+    boolean swapped = false;
+    FileChannel newLog = openChannel(tempLogPath);
+    try {
+      writeLogHeader(newLog, newLogId);
+      long newLength = LOG_HEADER_SIZE;
+      // The offsets of the copied records in the new log by their offsets in the old log.
+      Map<Long, Long> copied = new HashMap<>();
+      for (long[] record : snapshot) {
+        long newOffset = copyRecord(snapshotLog, record, snapshotLength, newLog, newLength);
+        if (newOffset != newLength) {
+          continue;
+        }
+        copied.put(record[1], newOffset);
+        newLength += record[2];
+      }
+
+      FileChannel currentLog;
+      long currentLength;
+      int indexerSize;
+      synchronized (this) {
+        if (generation != snapshotGeneration) {
+          return;
+        }
+        swapping = true;
+      }
+      try {
+        synchronized (this) {
+          while (!pendingWrites.isEmpty() && generation == snapshotGeneration) {
+            try {
+              wait();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new InterruptedIOException("Interrupted while compacting the action log");
+            }
+          }
+          if (generation != snapshotGeneration) {
+            return;
+          }
+          currentLog = log;
+          currentLength = logLength;
+          snapshot = snapshotIndex();
+          // Every file name referenced by a record of the log must be saved with the new log.
+          indexerSize = indexer.size();
+        }
+
+        // Copy the records appended since the first snapshot, which take precedence.
+        int newCapacity = INITIAL_CAPACITY;
+        while (newCapacity < 2 * (snapshot.size() + 1)) {
+          newCapacity *= 2;
+        }
+        tempIndexPath.delete();
+        MappedByteBuffer newIndex = createIndex(tempIndexPath, newCapacity, newLogId);
+        int newUsedSlots = 0;
+        long newLiveBytes = 0;
+        for (long[] record : snapshot) {
+          Long newOffset = copied.get(record[1]);
+          if (newOffset == null) {
+            newOffset = copyRecord(currentLog, record, currentLength, newLog, newLength);
+            if (newOffset != newLength) {
+              continue;
+            }
+            newLength += record[2];
+          }
+          int key = (int) record[0];
+          putSlot(newIndex, findSlot(newIndex, newCapacity, key), key, newOffset, (int) record[2]);
+          newUsedSlots++;
+          newLiveBytes += record[2];
+        }
+        indexer.save();
+        newLog.force(false);
+        writeIndexHeader(newIndex, newUsedSlots, indexerSize, newLength, newLiveBytes);
+        newIndex.force();
+
+        FileChannel oldLog;
+        synchronized (this) {
+          if (generation != snapshotGeneration) {
+            return;
+          }
+          oldLog = log;
+          log = newLog;
+          logId = newLogId;
+          logLength = newLength;
+          liveBytes = newLiveBytes;
+          replaceIndex(newIndex);
+          capacity = newCapacity;
+          usedSlots = newUsedSlots;
+          generation++;
+          tempLogPath.renameTo(logPath);
+          tempIndexPath.renameTo(indexPath);
+          swapped = true;
+        }
+        // Lookups that still read the old log retry in the new one.
+        oldLog.close();
+        logger.info(
+            String.format("Compacted action log from %d to %d bytes", snapshotLength, newLength));
+      } finally {
+        synchronized (this) {
+          swapping = false;
+          notifyAll();
+        }
+      }
+    } finally {
+      if (!swapped) {
+        newLog.close();
+        tempLogPath.delete();
+        tempIndexPath.delete();
+      }
+    }
+  }
+
+  /**
+   * Copies the record described by {@code record} from {@code from} to {@code to} at {@code
+   * offset}, and returns {@code offset}, or -1 if there is no valid record to copy.
+   */
+  private static long copyRecord(
+      FileChannel from, long[] record, long limit, FileChannel to, long offset)
+      throws IOException {
+    Record copy = readRecord(from, record[1], (int) record[2], limit);
+    if (copy == null || copy.key != record[0] || copy.payload == null) {
+      return -1;
+    }
+    writeFully(to, offset, encodeRecord(copy.key, copy.payload));
+    return offset;
+  }
+
+  @Override
+  public synchronized void clear() {
+    indexer.clear();
+    generation++;
+    pendingWrites.clear();
+    notifyAll();
+    try {
+      log.close();
+      create();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to clear action log", e);
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    List<long[]> records = snapshotIndex();
+    StringBuilder builder = new StringBuilder();
+    builder.append("Action cache (" + records.size() + " records):\n");
+    int size = records.size() > 1000 ? 10 : records.size();
+    int ct = 0;
+    for (long[] record : records) {
+      builder
+          .append("-> ")
+          .append(indexer.getStringForIndex((int) record[0]))
+          .append("\n")
+          .append(describeRecord(record));
+      if (++ct > size) {
+        builder.append("...");
+        break;
+      }
+    }
+    return builder.toString();
+  }
+
+  /** Dumps action cache content. */
+  @Override
+  public synchronized void dump(PrintStream out) {
+    out.println("String indexer content:\n");
+    out.println(indexer);
+    out.println("Action cache log (" + logLength + " bytes):\n");
+    for (long[] record : snapshotIndex()) {
+      int key = (int) record[0];
+      out.println(key + ", " + indexer.getStringForIndex(key) + ":\n" + describeRecord(record));
+    }
+  }
+
+  private String describeRecord(long[] slot) {
+    try {
+      Record record = readRecord(log, slot[1], (int) slot[2], logLength);
+      if (record == null || record.payload == null) {
+        return "  no valid record\n";
+      }
+      return CompactPersistentActionCache.decode(indexer, record.payload)
+          + "  packed_len = "
+          + record.payload.length
+          + "\n";
+    } catch (IOException e) {
+      return e + "\n";
+    }
+  }
+
+
+  @Override
+  public void accountHit() {
+    hits.incrementAndGet();
+  }
+
+  @Override
+  public void accountMiss(MissReason reason) {
+    AtomicInteger counter = misses.get(reason);
+    Preconditions.checkNotNull(counter, "Miss reason %s was not registered in the misses map "
+        + "during cache construction", reason);
+    counter.incrementAndGet();
+  }
+
+  @Override
+  public void mergeIntoActionCacheStatistics(ActionCacheStatistics.Builder builder) {
+    builder.setHits(hits.get());
+
+    int totalMisses = 0;
+    for (Map.Entry<MissReason, AtomicInteger> entry : misses.entrySet()) {
+      int count = entry.getValue().get();
+      builder.addMissDetailsBuilder().setReason(entry.getKey()).setCount(count);
+      totalMisses += count;
+    }
+    builder.setMisses(totalMisses);
+  }
+
+  @Override
+  public void resetStatistics() {
+    hits.set(0);
+    for (Map.Entry<MissReason, AtomicInteger> entry : misses.entrySet()) {
+      entry.getValue().set(0);
+    }
+  }
+}
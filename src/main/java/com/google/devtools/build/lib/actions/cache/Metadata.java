@@ -59,4 +59,14 @@ public interface Metadata {
    * and should be called.
    */
   long getModifiedTime();
+
+  /**
+   * Returns whether the contents of the underlying file only exist in a remote cache, in which
+   * case only {@link #getDigest} and {@link #getSize} are available and the file has to be fetched
+   * through an {@link com.google.devtools.build.lib.actions.ActionInputPrefetcher} before it can be
+   * read locally.
+   */
+  default boolean isRemote() {
+    return false;
+  }
 }
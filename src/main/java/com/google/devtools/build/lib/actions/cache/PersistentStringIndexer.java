@@ -13,10 +13,10 @@
 // limitations under the License.
 package com.google.devtools.build.lib.actions.cache;
 
-import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
 import com.google.devtools.build.lib.clock.Clock;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ConditionallyThreadSafe;
-import com.google.devtools.build.lib.util.CanonicalStringIndexer;
+import com.google.devtools.build.lib.util.ConcurrentStringIndexer;
 import com.google.devtools.build.lib.util.PersistentMap;
 import com.google.devtools.build.lib.util.StringCanonicalizer;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
@@ -24,23 +24,27 @@ import com.google.devtools.build.lib.vfs.Path;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.BitSet;
 import java.util.Map;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Persistent version of the CanonicalStringIndexer.
+ * Persistent version of the ConcurrentStringIndexer.
  *
  * <p>This class is backed by a PersistentMap that holds one direction of the
  * canonicalization mapping. The other direction is handled purely in memory
  * and reconstituted at load-time.
  *
- * <p>Thread-safety is ensured by locking on all mutating operations from the
- * superclass. Read-only operations are not locked, but rather backed by
- * ConcurrentMaps.
+ * <p>Since the PersistentMap is not thread-safe, new mappings are queued by the
+ * threads that create them, and added to the map by whichever thread holds the
+ * journal lock. Threads that find the lock taken do not wait for it, so creating
+ * an index never blocks on journal I/O.
  */
 @ConditionallyThreadSafe // condition: each instance must instantiated with
                          // different dataFile.
-final class PersistentStringIndexer extends CanonicalStringIndexer {
+final class PersistentStringIndexer extends ConcurrentStringIndexer {
 
   /**
    * Persistent metadata map. Used as a backing map to provide a persistent
@@ -53,9 +57,9 @@ final class PersistentStringIndexer extends CanonicalStringIndexer {
     private final Clock clock;
     private long nextUpdate;
 
-    public PersistentIndexMap(Path mapFile, Path journalFile, Clock clock) throws IOException {
-      super(VERSION, PersistentStringIndexer.<String, Integer>newConcurrentMap(INITIAL_ENTRIES),
-            mapFile, journalFile);
+    public PersistentIndexMap(Path mapFile, Path journalFile, Clock clock,
+                              ConcurrentHashMap<String, Integer> map) throws IOException {
+      super(VERSION, map, mapFile, journalFile);
       this.clock = clock;
       nextUpdate = clock.nanoTime();
       load(/* failFast= */ true);
@@ -110,6 +114,9 @@ final class PersistentStringIndexer extends CanonicalStringIndexer {
   }
 
   private final PersistentIndexMap persistentIndexMap;
+  private final ConcurrentLinkedQueue<Map.Entry<String, Integer>> pendingJournalEntries =
+      new ConcurrentLinkedQueue<>();
+  private final ReentrantLock journalLock = new ReentrantLock();
   private static final int INITIAL_ENTRIES = 10000;
 
   /**
@@ -117,39 +124,87 @@ final class PersistentStringIndexer extends CanonicalStringIndexer {
    */
   static PersistentStringIndexer newPersistentStringIndexer(Path dataPath,
                                                             Clock clock) throws IOException {
+    ConcurrentHashMap<String, Integer> stringToInt = new ConcurrentHashMap<>(INITIAL_ENTRIES);
     PersistentIndexMap persistentIndexMap = new PersistentIndexMap(dataPath,
-        FileSystemUtils.replaceExtension(dataPath, ".journal"), clock);
-    Map<Integer, String> reverseMapping = newConcurrentMap(INITIAL_ENTRIES);
-    for (Map.Entry<String, Integer> entry : persistentIndexMap.entrySet()) {
-      if (reverseMapping.put(entry.getValue(), entry.getKey()) != null) {
+        FileSystemUtils.replaceExtension(dataPath, ".journal"), clock, stringToInt);
+    // Indices are journaled and saved in no particular order, so a crash or a save that races
+    // with the creation of indices may leave gaps, which are never assigned again.
+    BitSet seenIndices = new BitSet(stringToInt.size());
+    for (Map.Entry<String, Integer> entry : stringToInt.entrySet()) {
+      int index = entry.getValue();
+      if (index < 0) {
+        throw new IOException("Corrupted filename index has out of range entry: " + entry);
+      }
+      if (seenIndices.get(index)) {
         throw new IOException("Corrupted filename index has duplicate entry: " + entry.getKey());
       }
+      seenIndices.set(index);
+    }
+    return new PersistentStringIndexer(persistentIndexMap, stringToInt);
+  }
+
+  private PersistentStringIndexer(PersistentIndexMap persistentIndexMap,
+                                  ConcurrentHashMap<String, Integer> stringToInt) {
+    super(stringToInt);
+    this.persistentIndexMap = persistentIndexMap;
+  }
+
+  @Override
+  protected void indexCreated(String s, int index) {
+    pendingJournalEntries.add(Maps.immutableEntry(s, index));
+    // If another thread is journaling, it or the next save will pick up this entry.
+    if (journalLock.tryLock()) {
+      try {
+        drainPendingJournalEntries();
+      } finally {
+        journalLock.unlock();
+      }
     }
-    return new PersistentStringIndexer(persistentIndexMap, reverseMapping);
   }
 
-  private PersistentStringIndexer(PersistentIndexMap stringToInt,
-                                  Map<Integer, String> intToString) {
-    super(stringToInt, intToString);
-    this.persistentIndexMap = stringToInt;
+  private void drainPendingJournalEntries() {
+    Map.Entry<String, Integer> entry;
+    while ((entry = pendingJournalEntries.poll()) != null) {
+      persistentIndexMap.put(entry.getKey(), entry.getValue());
+    }
+  }
+
+  @Override
+  public void clear() {
+    journalLock.lock();
+    try {
+      pendingJournalEntries.clear();
+      persistentIndexMap.clear();
+      super.clear();
+    } finally {
+      journalLock.unlock();
+    }
   }
 
   /**
    * Saves index data to the file.
    */
-  synchronized long save() throws IOException {
-    return persistentIndexMap.save();
+  long save() throws IOException {
+    journalLock.lock();
+    try {
+      drainPendingJournalEntries();
+      return persistentIndexMap.save();
+    } finally {
+      journalLock.unlock();
+    }
   }
 
   /**
    * Flushes the journal.
    */
-  synchronized void flush() {
-    persistentIndexMap.flush();
-  }
-
-  private static <K, V> ConcurrentMap<K, V> newConcurrentMap(int expectedCapacity) {
-    return new MapMaker().initialCapacity(expectedCapacity).makeMap();
+  void flush() {
+    journalLock.lock();
+    try {
+      drainPendingJournalEntries();
+      persistentIndexMap.flush();
+    } finally {
+      journalLock.unlock();
+    }
   }
 
 }
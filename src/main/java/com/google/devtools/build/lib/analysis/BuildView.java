@@ -194,6 +194,20 @@ public class BuildView {
     )
     public boolean discardAnalysisCache;
 
+    @Option(
+      name = "experimental_discard_actions_after_execution",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {OptionEffectTag.LOSES_INCREMENTAL_STATE},
+      help =
+          "Discard actions from the analysis cache once they have executed, even when incremental"
+              + " state is kept. Configured targets whose actions were discarded are re-analyzed"
+              + " if a later build needs them, and their actions are then checked against the"
+              + " action cache. Bounds the memory of large builds at the cost of slower incremental"
+              + " builds."
+    )
+    public boolean discardActionsAfterExecution;
+
     @Option(
       name = "experimental_extra_action_filter",
       defaultValue = "",
@@ -255,6 +255,11 @@ public class SpawnAction extends AbstractAction implements ExecutionInfoSpecifie
     return executeUnconditionally;
   }
 
+  @Override
+  public boolean readsInputsOnlyThroughSpawns() {
+    return true;
+  }
+
   /**
    * Executes the action without handling ExecException errors.
    *
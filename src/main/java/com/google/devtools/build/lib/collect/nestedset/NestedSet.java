@@ -16,8 +16,12 @@ package com.google.devtools.build.lib.collect.nestedset;
 import static java.util.stream.Collectors.joining;
 
 import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
 import com.google.devtools.build.lib.collect.compacthashset.CompactHashSet;
 import java.util.AbstractCollection;
 import java.util.Arrays;
@@ -26,6 +30,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.Consumer;
 import javax.annotation.Nullable;
 
 /**
@@ -38,11 +43,31 @@ public final class NestedSet<E> implements Iterable<E> {
 
   private final Order order;
   private final Object children;
-  private byte[] memo;
+  // Null until the set is expanded for the first time. See expand().
+  private volatile byte[] memo;
 
   private static final byte[] LEAF_MEMO = {};
   static final Object[] EMPTY_CHILDREN = {};
 
+  /** The smallest expansion that is kept in {@link #expansionCache}. */
+  static final int EXPANSION_CACHE_MIN_SIZE = 1 << 10;
+
+  /** The maximum total number of elements in the expansions in {@link #expansionCache}. */
+  private static final long EXPANSION_CACHE_MAX_ELEMENTS = 1 << 22;
+
+  /**
+   * The results of {@link #toList} for large sets, shared by all sets. An entry is dropped once its
+   * set is not reachable anymore, or when the expansions in the cache have too many elements in
+   * total, so that the expansions of a set that is flattened by many actions are not rebuilt every
+   * time, but also don't all stay in memory.
+   */
+  private static final Cache<NestedSet<?>, ImmutableList<?>> expansionCache =
+      CacheBuilder.newBuilder()
+          .weakKeys()
+          .maximumWeight(EXPANSION_CACHE_MAX_ELEMENTS)
+          .weigher((NestedSet<?> set, ImmutableList<?> expansion) -> expansion.size())
+          .build();
+
   /**
    * Construct an empty NestedSet.  Should only be called by Order's class initializer.
    */
@@ -195,7 +220,17 @@ public final class NestedSet<E> implements Iterable<E> {
     if (isEmpty()) {
       return ImmutableList.of();
     }
-    return order == Order.LINK_ORDER ? expand().reverse() : expand();
+    if (memo == LEAF_MEMO) {
+      return order == Order.LINK_ORDER ? expand().reverse() : expand();
+    }
+    ImmutableList<E> result = (ImmutableList<E>) expansionCache.getIfPresent(this);
+    if (result == null) {
+      result = order == Order.LINK_ORDER ? expand().reverse() : expand();
+      if (result.size() >= EXPANSION_CACHE_MIN_SIZE) {
+        expansionCache.put(this, result);
+      }
+    }
+    return result;
   }
 
   /**
@@ -266,32 +301,79 @@ public final class NestedSet<E> implements Iterable<E> {
     }
   }
 
+  /**
+   * Returns an iterator over the elements of this set, in the order of {@link #toList}.
+   *
+   * <p>Once the set has been expanded, the iterator visits the elements without building a list
+   * of them, unless the set is in {@link Order#LINK_ORDER}.
+   */
   @Override
   public Iterator<E> iterator() {
-    // TODO: would it help to have a proper lazy iterator?  seems like it might reduce garbage.
-    return toCollection().iterator();
+    if (isSingleton()) {
+      return Iterators.singletonIterator((E) children);
+    }
+    byte[] memo = this.memo;
+    if (memo == LEAF_MEMO && order != Order.LINK_ORDER) {
+      return (Iterator<E>) Iterators.forArray((Object[]) children);
+    }
+    if (memo == null || order == Order.LINK_ORDER) {
+      return toList().iterator();
+    }
+    ImmutableList<E> expansion = (ImmutableList<E>) expansionCache.getIfPresent(this);
+    if (expansion != null) {
+      return expansion.iterator();
+    }
+    return new ReplayIterator<>((Object[]) children, memo);
+  }
+
+  /**
+   * Performs {@code action} for each element of this set, in the order of {@link #toList}.
+   *
+   * <p>Once the set has been expanded, this visits the elements without building a list of them,
+   * unless the set is in {@link Order#LINK_ORDER}.
+   */
+  @Override
+  public void forEach(Consumer<? super E> action) {
+    if (isSingleton()) {
+      action.accept((E) children);
+      return;
+    }
+    byte[] memo = this.memo;
+    if (memo == LEAF_MEMO && order != Order.LINK_ORDER) {
+      for (Object child : (Object[]) children) {
+        action.accept((E) child);
+      }
+    } else if (memo == null || order == Order.LINK_ORDER) {
+      toList().forEach(action);
+    } else {
+      replay(action, (Object[]) children, memo, 0);
+    }
   }
 
   /**
    * Implementation of {@link #toList}.  Uses one of three strategies based on the value of
-   * {@code this.memo}: wrap our direct items in a list, call {@link #lockedExpand} to perform
-   * the initial {@link #walk}, or call {@link #replay} if we have a nontrivial memo.
+   * {@code this.memo}: wrap our direct items in a list, {@link #walk} the set for the first
+   * expansion, or call {@link #replay} if we have a nontrivial memo.
+   *
+   * <p>No lock is held while walking the set. Threads that expand the set for the first time
+   * concurrently each walk it, and compute the same memo.
    */
   private ImmutableList<E> expand() {
-    // This value is only set in the constructor, so safe to test here with no lock.
+    byte[] memo = this.memo;
     if (memo == LEAF_MEMO) {
       return ImmutableList.copyOf(new ArraySharingCollection<>((Object[]) children));
     }
-    CompactHashSet<E> members = lockedExpand();
-    if (members != null) {
-      return ImmutableList.copyOf(members);
-    }
     Object[] children = (Object[]) this.children;
+    if (memo == null) {
+      Walker<E> walker = new Walker<>(children);
+      this.memo = walker.memo;
+      return ImmutableList.copyOf(walker.members);
+    }
     // TODO:  We could record the exact size (inside memo, or by making order an int with two bits
     // for Order.ordinal()) and avoid an array copy here.  It's not directly visible in profiles but
     // it would reduce garbage generated.
     ImmutableList.Builder<E> output = ImmutableList.builder();
-    replay(output, children, memo, 0);
+    NestedSet.<E>replay(output::add, children, memo, 0);
     return output.build();
   }
 
@@ -314,77 +396,75 @@ public final class NestedSet<E> implements Iterable<E> {
   }
 
   /**
-   * If this is the first call for this object, fills {@code this.memo} and returns a set from
-   * {@link #walk}.  Otherwise returns null; the caller should use {@link #replay} instead.
+   * The first expansion of a set. It computes the members of the set, and the memo that {@link
+   * #replay} uses to expand the set again.
    */
-  private synchronized CompactHashSet<E> lockedExpand() {
-    if (memo != null) {
-      return null;
-    }
-    Object[] children = (Object[]) this.children;
-    CompactHashSet<E> members = CompactHashSet.createWithExpectedSize(128);
-    CompactHashSet<Object> sets = CompactHashSet.createWithExpectedSize(128);
-    sets.add(children);
-    memo = new byte[Math.min((children.length + 7) / 8, 8)];
-    int pos = walk(sets, members, children, 0);
-    int bytes = (pos + 7) / 8;
-    if (bytes <= memo.length - 16) {
-      memo = Arrays.copyOf(memo, bytes);
-    }
-    return members;
-  }
+  private static final class Walker<E> {
+    private final CompactHashSet<E> members = CompactHashSet.createWithExpectedSize(128);
+    private final CompactHashSet<Object> sets = CompactHashSet.createWithExpectedSize(128);
+    private byte[] memo;
 
-  /**
-   * Perform a depth-first traversal of {@code children}, tracking visited
-   * arrays in {@code sets} and visited leaves in {@code members}.  We also
-   * record which edges were taken in {@code this.memo} starting at {@code pos}.
-   *
-   * Returns the final value of {@code pos}.
-   */
-  private int walk(CompactHashSet<Object> sets, CompactHashSet<E> members,
-                   Object[] children, int pos) {
-    for (Object child : children) {
-      if ((pos >> 3) >= memo.length) {
-        memo = Arrays.copyOf(memo, memo.length * 2);
+    Walker(Object[] children) {
+      sets.add(children);
+      memo = new byte[Math.min((children.length + 7) / 8, 8)];
+      int pos = walk(children, 0);
+      int bytes = (pos + 7) / 8;
+      if (bytes <= memo.length - 16) {
+        memo = Arrays.copyOf(memo, bytes);
       }
-      if (child instanceof Object[]) {
-        if (sets.add(child)) {
-          int prepos = pos;
-          int presize = members.size();
-          pos = walk(sets, members, (Object[]) child, pos + 1);
-          if (presize < members.size()) {
-            memo[prepos >> 3] |= (byte) (1 << (prepos & 7));
+    }
+
+    /**
+     * Perform a depth-first traversal of {@code children}, tracking visited
+     * arrays in {@code sets} and visited leaves in {@code members}.  We also
+     * record which edges were taken in {@code memo} starting at {@code pos}.
+     *
+     * Returns the final value of {@code pos}.
+     */
+    private int walk(Object[] children, int pos) {
+      for (Object child : children) {
+        if ((pos >> 3) >= memo.length) {
+          memo = Arrays.copyOf(memo, memo.length * 2);
+        }
+        if (child instanceof Object[]) {
+          if (sets.add(child)) {
+            int prepos = pos;
+            int presize = members.size();
+            pos = walk((Object[]) child, pos + 1);
+            if (presize < members.size()) {
+              memo[prepos >> 3] |= (byte) (1 << (prepos & 7));
+            } else {
+              // We didn't find any new nodes, so don't mark this branch as taken.
+              // Rewind pos.  The rest of the array is still zeros because no one
+              // deeper in the traversal set any bits.
+              pos = prepos + 1;
+            }
           } else {
-            // We didn't find any new nodes, so don't mark this branch as taken.
-            // Rewind pos.  The rest of the array is still zeros because no one
-            // deeper in the traversal set any bits.
-            pos = prepos + 1;
+            ++pos;
           }
         } else {
+          if (members.add((E) child)) {
+            memo[pos >> 3] |= (byte) (1 << (pos & 7));
+          }
           ++pos;
         }
-      } else {
-        if (members.add((E) child)) {
-          memo[pos >> 3] |= (byte) (1 << (pos & 7));
-        }
-        ++pos;
       }
+      return pos;
     }
-    return pos;
   }
 
   /**
-   * Repeat a previous traversal of {@code children} performed by {@link #walk}
-   * and recorded in {@code memo}, appending leaves to {@code output}.
+   * Repeat a previous traversal of {@code children} performed by {@link Walker}
+   * and recorded in {@code memo}, passing leaves to {@code output}.
    */
-  private static <E> int replay(ImmutableList.Builder<E> output, Object[] children,
+  private static <E> int replay(Consumer<? super E> output, Object[] children,
                                 byte[] memo, int pos) {
     for (Object child : children) {
       if ((memo[pos >> 3] & (1 << (pos & 7))) != 0) {
         if (child instanceof Object[]) {
           pos = replay(output, (Object[]) child, memo, pos + 1);
         } else {
-          output.add((E) child);
+          output.accept((E) child);
           ++pos;
         }
       } else {
@@ -393,4 +473,50 @@ public final class NestedSet<E> implements Iterable<E> {
     }
     return pos;
   }
+
+  /** Like {@link #replay}, but one element at a time. */
+  private static final class ReplayIterator<E> extends AbstractIterator<E> {
+    private final byte[] memo;
+    // The arrays that are being traversed, and the position in each of them.
+    private Object[][] arrays = new Object[8][];
+    private int[] indices = new int[8];
+    private int depth;
+    private int pos;
+
+    ReplayIterator(Object[] children, byte[] memo) {
+      this.memo = memo;
+      arrays[0] = children;
+      depth = 1;
+    }
+
+    @Override
+    protected E computeNext() {
+      while (depth > 0) {
+        Object[] array = arrays[depth - 1];
+        int index = indices[depth - 1];
+        if (index == array.length) {
+          arrays[--depth] = null;
+          continue;
+        }
+        indices[depth - 1] = index + 1;
+        Object child = array[index];
+        boolean taken = (memo[pos >> 3] & (1 << (pos & 7))) != 0;
+        ++pos;
+        if (!taken) {
+          continue;
+        }
+        if (!(child instanceof Object[])) {
+          return (E) child;
+        }
+        if (depth == arrays.length) {
+          arrays = Arrays.copyOf(arrays, depth * 2);
+          indices = Arrays.copyOf(indices, depth * 2);
+        }
+        arrays[depth] = (Object[]) child;
+        indices[depth] = 0;
+        ++depth;
+      }
+      return endOfData();
+    }
+  }
 }
@@ -23,6 +23,7 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -53,6 +54,24 @@ public class AbstractQueueVisitor implements QuiescingExecutor {
               p.getUnits(),
               p.getWorkQueue(),
               new ThreadFactoryBuilder().setNameFormat(p.getPoolName() + " %d").build());
+
+  /**
+   * Like {@link #EXECUTOR_FACTORY}, but the {@link ThreadPoolExecutor}s this creates run queued
+   * {@link PrioritizedRunnable}s in order of decreasing priority instead of using the work queue of
+   * the {@link ExecutorParams}. Tasks of equal priority are run most recently enqueued first, like
+   * with the default work queue.
+   */
+  public static final Function<ExecutorParams, ThreadPoolExecutor> PRIORITY_EXECUTOR_FACTORY =
+      p ->
+          new ThreadPoolExecutor(
+              /*corePoolSize=*/ p.getParallelism(),
+              /*maximumPoolSize=*/ p.getParallelism(),
+              p.getKeepAliveTime(),
+              p.getUnits(),
+              new PriorityBlockingQueue<>(
+                  /*initialCapacity=*/ 64, AbstractQueueVisitor::compareQueuedRunnables),
+              new ThreadFactoryBuilder().setNameFormat(p.getPoolName() + " %d").build());
+
   /**
    * The most severe unhandled exception thrown by a worker thread, according to {@link
    * #errorClassifier}. This exception gets propagated to the calling thread of {@link
@@ -99,6 +118,9 @@ public class AbstractQueueVisitor implements QuiescingExecutor {
    */
   private volatile boolean jobsMustBeStopped = false;
 
+  /** Source of {@link WrappedRunnable#sequenceNumber}s. */
+  private final AtomicLong nextSequenceNumber = new AtomicLong(0);
+
   /** Map from thread to number of jobs executing in the thread. Used for interrupt handling. */
   private final Map<Thread, AtomicLong> jobs = new ConcurrentHashMap<>();
 
@@ -331,10 +353,14 @@ public class AbstractQueueVisitor implements QuiescingExecutor {
    */
   private final class WrappedRunnable implements Runnable {
     private final Runnable originalRunnable;
+    private final int priority;
+    private final long sequenceNumber;
     private volatile boolean ran;
 
     private WrappedRunnable(Runnable originalRunnable) {
       this.originalRunnable = originalRunnable;
+      this.priority = getPriority(originalRunnable);
+      this.sequenceNumber = nextSequenceNumber.getAndIncrement();
     }
 
     @Override
@@ -367,6 +393,26 @@ public class AbstractQueueVisitor implements QuiescingExecutor {
     }
   }
 
+  private static int getPriority(Runnable runnable) {
+    return runnable instanceof PrioritizedRunnable
+        ? ((PrioritizedRunnable) runnable).getPriority()
+        : 0;
+  }
+
+  /**
+   * Orders the work queue of {@link #PRIORITY_EXECUTOR_FACTORY} executors: higher priorities first,
+   * then most recently enqueued first.
+   */
+  private static int compareQueuedRunnables(Runnable r1, Runnable r2) {
+    if (!(r1 instanceof WrappedRunnable) || !(r2 instanceof WrappedRunnable)) {
+      return Integer.compare(getPriority(r2), getPriority(r1));
+    }
+    WrappedRunnable w1 = (WrappedRunnable) r1;
+    WrappedRunnable w2 = (WrappedRunnable) r2;
+    int byPriority = Integer.compare(w2.priority, w1.priority);
+    return byPriority != 0 ? byPriority : Long.compare(w2.sequenceNumber, w1.sequenceNumber);
+  }
+
   private void addJob(Thread thread) {
     jobs.computeIfAbsent(thread, k -> new AtomicLong()).incrementAndGet();
   }
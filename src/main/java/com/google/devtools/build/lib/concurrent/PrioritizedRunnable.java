@@ -0,0 +1,24 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.concurrent;
+
+/**
+ * A {@link Runnable} with a scheduling priority. Executors created by {@link
+ * AbstractQueueVisitor#PRIORITY_EXECUTOR_FACTORY} run queued tasks with higher priorities first;
+ * other executors ignore the priority.
+ */
+public interface PrioritizedRunnable extends Runnable {
+  /** The priority of this task. Tasks that are not {@link PrioritizedRunnable}s have priority 0. */
+  int getPriority();
+}
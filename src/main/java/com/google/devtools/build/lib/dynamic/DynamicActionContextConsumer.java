@@ -0,0 +1,46 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.dynamic;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Multimap;
+import com.google.devtools.build.lib.actions.ActionContext;
+import com.google.devtools.build.lib.actions.SpawnActionContext;
+import com.google.devtools.build.lib.exec.ActionContextConsumer;
+
+/**
+ * {@link ActionContextConsumer} that requests the local and the remote strategy for the 'dynamic'
+ * strategy to delegate to, and makes 'dynamic' the default spawn strategy.
+ */
+final class DynamicActionContextConsumer implements ActionContextConsumer {
+  private final DynamicExecutionOptions options;
+
+  DynamicActionContextConsumer(DynamicExecutionOptions options) {
+    this.options = options;
+  }
+
+  @Override
+  public ImmutableMap<String, String> getSpawnActionContexts() {
+    return ImmutableMap.of("", "dynamic");
+  }
+
+  @Override
+  public Multimap<Class<? extends ActionContext>, String> getActionContexts() {
+    return ImmutableMultimap.<Class<? extends ActionContext>, String>builder()
+        .put(SpawnActionContext.class, options.localStrategy)
+        .put(SpawnActionContext.class, options.remoteStrategy)
+        .build();
+  }
+}
@@ -0,0 +1,61 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.dynamic;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.actions.ActionContext;
+import com.google.devtools.build.lib.actions.ExecutorInitException;
+import com.google.devtools.build.lib.exec.ActionContextProvider;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Provides the 'dynamic' strategy, and hands it the local and the remote strategy once the
+ * executor has been created.
+ */
+final class DynamicActionContextProvider extends ActionContextProvider {
+  private final ExecutorService executorService;
+  private final DynamicSpawnStrategy strategy;
+  private final DynamicExecutionOptions options;
+
+  DynamicActionContextProvider(DynamicExecutionOptions options) {
+    this.options = options;
+    this.executorService =
+        Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("dynamic-execution-thread-%d").build());
+    this.strategy =
+        new DynamicSpawnStrategy(
+            executorService, Duration.ofMillis(options.localExecutionDelay));
+  }
+
+  @Override
+  public Iterable<? extends ActionContext> getActionContexts() {
+    return ImmutableList.of(strategy);
+  }
+
+  @Override
+  public void executorCreated(Iterable<ActionContext> usedContexts) throws ExecutorInitException {
+    strategy.setStrategies(
+        DynamicSpawnStrategy.findStrategy(usedContexts, options.localStrategy),
+        DynamicSpawnStrategy.findStrategy(usedContexts, options.remoteStrategy));
+  }
+
+  @Override
+  public void executionPhaseEnding() {
+    // Interrupts the branches that lost, in case they are still running.
+    executorService.shutdownNow();
+  }
+}
@@ -0,0 +1,73 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.dynamic;
+
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionDocumentationCategory;
+import com.google.devtools.common.options.OptionEffectTag;
+import com.google.devtools.common.options.OptionsBase;
+
+/**
+ * Options related to dynamic execution, which runs spawns locally and remotely at the same time.
+ */
+public class DynamicExecutionOptions extends OptionsBase {
+
+  @Option(
+    name = "experimental_spawn_scheduler",
+    defaultValue = "false",
+    category = "strategy",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "Enables the 'dynamic' spawn strategy and makes it the default, unless --spawn_strategy "
+            + "says otherwise. It runs spawns remotely and, if they take longer than "
+            + "--experimental_local_execution_delay, also locally, and uses the result that is "
+            + "there first."
+  )
+  public boolean spawnScheduler;
+
+  @Option(
+    name = "experimental_local_execution_delay",
+    defaultValue = "1000",
+    category = "strategy",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "How many milliseconds the 'dynamic' strategy waits for the remote execution of a spawn "
+            + "before it starts to execute the spawn locally as well."
+  )
+  public int localExecutionDelay;
+
+  @Option(
+    name = "experimental_dynamic_local_strategy",
+    defaultValue = "sandboxed",
+    category = "strategy",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "The strategy that the 'dynamic' strategy uses to execute spawns locally, e.g. "
+            + "'sandboxed' or 'worker'."
+  )
+  public String localStrategy;
+
+  @Option(
+    name = "experimental_dynamic_remote_strategy",
+    defaultValue = "remote",
+    category = "strategy",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help = "The strategy that the 'dynamic' strategy uses to execute spawns remotely."
+  )
+  public String remoteStrategy;
+}
@@ -0,0 +1,301 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.dynamic;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.devtools.build.lib.actions.ActionContext;
+import com.google.devtools.build.lib.actions.ActionExecutionContext;
+import com.google.devtools.build.lib.actions.ExecException;
+import com.google.devtools.build.lib.actions.ExecutionStrategy;
+import com.google.devtools.build.lib.actions.ExecutorInitException;
+import com.google.devtools.build.lib.actions.SandboxedSpawnActionContext;
+import com.google.devtools.build.lib.actions.Spawn;
+import com.google.devtools.build.lib.actions.SpawnActionContext;
+import com.google.devtools.build.lib.actions.SpawnResult;
+import com.google.devtools.build.lib.actions.Spawns;
+import com.google.devtools.build.lib.util.io.FileOutErr;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * A strategy that executes a spawn remotely and locally at the same time, and uses the result of
+ * whichever finishes first.
+ *
+ * <p>The remote branch starts right away. Only if it is not done after the local execution delay
+ * does the local branch start, so that spawns that are quick to execute remotely, e.g. because of a
+ * remote cache hit, do not take up local resources. The local strategy acquires local resources
+ * from the {@link com.google.devtools.build.lib.actions.ResourceManager} before it runs a spawn,
+ * so the local branches of many spawns never run on more cores than the ones the build may use.
+ *
+ * <p>The branches decide which of them may write the output files with {@link
+ * SandboxedSpawnActionContext}. The branch that loses is interrupted. Each branch writes stdout
+ * and stderr to files of its own, and only those of the winner are copied to the action's.
+ *
+ * <p>If a branch fails before it wrote any outputs, e.g. because the remote executor is not
+ * available, the other branch may still win.
+ */
+@ExecutionStrategy(
+  name = {"dynamic"},
+  contextType = SpawnActionContext.class
+)
+public class DynamicSpawnStrategy implements SpawnActionContext {
+  private static final Logger logger = Logger.getLogger(DynamicSpawnStrategy.class.getName());
+
+  private final ExecutorService executorService;
+  private final Duration localExecutionDelay;
+
+  @Nullable private volatile SandboxedSpawnActionContext localStrategy;
+  @Nullable private volatile SandboxedSpawnActionContext remoteStrategy;
+
+  /**
+   * @param executorService the executor to run both branches on. It must not limit the number of
+   *     threads, as a branch may block until local resources are available
+   * @param localExecutionDelay how long the remote branch runs alone before the local one starts
+   */
+  public DynamicSpawnStrategy(ExecutorService executorService, Duration localExecutionDelay) {
+    this.executorService = executorService;
+    this.localExecutionDelay = localExecutionDelay;
+  }
+
+  /** Sets the strategies to delegate to. Must be called before the first spawn is executed. */
+  @VisibleForTesting
+  public void setStrategies(
+      SandboxedSpawnActionContext localStrategy, SandboxedSpawnActionContext remoteStrategy)
+      throws ExecutorInitException {
+    if (localStrategy.getClass() == remoteStrategy.getClass()) {
+      // The branches tell each other apart by the class of their strategy.
+      throw new ExecutorInitException(
+          "The local and the remote strategy of the 'dynamic' strategy must be different, but "
+              + "both are "
+              + localStrategy);
+    }
+    this.localStrategy = localStrategy;
+    this.remoteStrategy = remoteStrategy;
+  }
+
+  /** Returns the spawn strategy called {@code name} among {@code contexts}. */
+  static SandboxedSpawnActionContext findStrategy(Iterable<ActionContext> contexts, String name)
+      throws ExecutorInitException {
+    for (ActionContext context : contexts) {
+      ExecutionStrategy annotation = context.getClass().getAnnotation(ExecutionStrategy.class);
+      if (annotation == null
+          || annotation.contextType() != SpawnActionContext.class
+          || !Arrays.asList(annotation.name()).contains(name)) {
+        continue;
+      }
+      if (!(context instanceof SandboxedSpawnActionContext)) {
+        throw new ExecutorInitException(
+            String.format(
+                "The '%s' strategy cannot be used by the 'dynamic' strategy, as it cannot run "
+                    + "concurrently with another strategy",
+                name));
+      }
+      return (SandboxedSpawnActionContext) context;
+    }
+    throw new ExecutorInitException(
+        String.format("The '%s' strategy is not available for the 'dynamic' strategy", name));
+  }
+
+  @Override
+  public List<SpawnResult> exec(Spawn spawn, ActionExecutionContext actionExecutionContext)
+      throws ExecException, InterruptedException {
+    checkState(localStrategy != null, "The strategies of the 'dynamic' strategy are not set");
+    if (!Spawns.mayBeExecutedRemotely(spawn)) {
+      return localStrategy.exec(spawn, actionExecutionContext);
+    }
+
+    AtomicReference<Class<? extends SpawnActionContext>> outputWriteBarrier =
+        new AtomicReference<>();
+    FileOutErr outErr = actionExecutionContext.getFileOutErr();
+    Branch remoteBranch =
+        new Branch(
+            remoteStrategy,
+            spawn,
+            actionExecutionContext,
+            branchOutErr(outErr, "remote"),
+            outputWriteBarrier);
+    Branch localBranch =
+        new Branch(
+            localStrategy,
+            spawn,
+            actionExecutionContext,
+            branchOutErr(outErr, "local"),
+            outputWriteBarrier);
+
+    ExecutorCompletionService<List<SpawnResult>> branches =
+        new ExecutorCompletionService<>(executorService);
+    Future<List<SpawnResult>> remoteFuture = branches.submit(remoteBranch);
+    Future<List<SpawnResult>> localFuture = null;
+    try {
+      Future<List<SpawnResult>> done =
+          branches.poll(localExecutionDelay.toMillis(), TimeUnit.MILLISECONDS);
+      if (done == null) {
+        localFuture = branches.submit(localBranch);
+      }
+      while (true) {
+        if (done == null) {
+          done = branches.take();
+        }
+        Branch branch = done == remoteFuture ? remoteBranch : localBranch;
+        // A local branch that did not start yet counts as running.
+        boolean otherBranchRunning =
+            done == remoteFuture
+                ? localFuture == null || !localFuture.isDone()
+                : !remoteFuture.isDone();
+        try {
+          List<SpawnResult> results = done.get();
+          if (branch.claimOutputs()) {
+            branch.copyOutErrTo(outErr);
+            return results;
+          }
+          // The other branch already writes its outputs, although this one finished first.
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (!(cause instanceof InterruptedException)) {
+            if (branch.ownsOutputs() || !otherBranchRunning) {
+              branch.copyOutErrTo(outErr);
+              Throwables.propagateIfPossible(cause, ExecException.class);
+              throw new IllegalStateException(cause);
+            }
+            logger.log(
+                Level.FINE,
+                String.format(
+                    "%s failed before writing outputs, waiting for the other branch",
+                    branch.strategy),
+                cause);
+          }
+          // Else the other branch is writing its outputs, and so this one gave up.
+        }
+        done = null;
+        if (localFuture == null) {
+          localFuture = branches.submit(localBranch);
+        }
+      }
+    } finally {
+      // Does nothing for the branch that finished.
+      remoteFuture.cancel(true);
+      if (localFuture != null) {
+        localFuture.cancel(true);
+      }
+      remoteBranch.clearOutErr();
+      localBranch.clearOutErr();
+    }
+  }
+
+  /**
+   * Returns a {@link FileOutErr} that writes next to {@code outErr}, so that the stdout and stderr
+   * of a branch do not mix with the other one's.
+   */
+  private static FileOutErr branchOutErr(FileOutErr outErr, String branchName) {
+    Path out = outErr.getOutputPath();
+    Path err = outErr.getErrorPath();
+    if (out == null || err == null) {
+      // The output is discarded anyway.
+      return new FileOutErr();
+    }
+    if (out.equals(err)) {
+      return new FileOutErr(siblingPath(out, branchName));
+    }
+    return new FileOutErr(siblingPath(out, branchName), siblingPath(err, branchName));
+  }
+
+  private static Path siblingPath(Path path, String branchName) {
+    return path.getParentDirectory().getRelative(path.getBaseName() + "." + branchName);
+  }
+
+  @Override
+  public String toString() {
+    return "dynamic";
+  }
+
+  /** Executes a spawn with one of the strategies, with stdout and stderr of its own. */
+  private static final class Branch implements Callable<List<SpawnResult>> {
+    private final SandboxedSpawnActionContext strategy;
+    private final Spawn spawn;
+    private final ActionExecutionContext actionExecutionContext;
+    private final FileOutErr outErr;
+    private final AtomicReference<Class<? extends SpawnActionContext>> outputWriteBarrier;
+
+    Branch(
+        SandboxedSpawnActionContext strategy,
+        Spawn spawn,
+        ActionExecutionContext actionExecutionContext,
+        FileOutErr outErr,
+        AtomicReference<Class<? extends SpawnActionContext>> outputWriteBarrier) {
+      this.strategy = strategy;
+      this.spawn = spawn;
+      this.actionExecutionContext = actionExecutionContext.withFileOutErr(outErr);
+      this.outErr = outErr;
+      this.outputWriteBarrier = outputWriteBarrier;
+    }
+
+    @Override
+    public List<SpawnResult> call() throws ExecException, InterruptedException {
+      return strategy.exec(spawn, actionExecutionContext, outputWriteBarrier);
+    }
+
+    /** Returns whether this branch locked the output files. */
+    boolean ownsOutputs() {
+      return outputWriteBarrier.get() == strategy.getClass();
+    }
+
+    /**
+     * Keeps the other branch from writing output files, unless it already did. Returns whether this
+     * branch owns the output files now.
+     */
+    boolean claimOutputs() {
+      return ownsOutputs() || outputWriteBarrier.compareAndSet(null, strategy.getClass());
+    }
+
+    void copyOutErrTo(FileOutErr actionOutErr) {
+      try {
+        if (outErr.hasRecordedStdout()) {
+          outErr.dumpOutAsLatin1(actionOutErr.getOutputStream());
+          actionOutErr.getOutputStream().flush();
+        }
+        if (outErr.hasRecordedStderr() && !outErr.getErrorPath().equals(outErr.getOutputPath())) {
+          outErr.dumpErrAsLatin1(actionOutErr.getErrorStream());
+          actionOutErr.getErrorStream().flush();
+        }
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to write to " + actionOutErr.getOutputPath(), e);
+      }
+    }
+
+    void clearOutErr() {
+      try {
+        outErr.clearOut();
+        outErr.clearErr();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to delete " + outErr.getOutputPath(), e);
+      }
+    }
+  }
+}
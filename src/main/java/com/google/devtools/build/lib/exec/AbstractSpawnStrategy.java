@@ -30,6 +30,7 @@ import com.google.devtools.build.lib.actions.SpawnActionContext;
 import com.google.devtools.build.lib.actions.SpawnResult;
 import com.google.devtools.build.lib.actions.SpawnResult.Status;
 import com.google.devtools.build.lib.actions.Spawns;
+import com.google.devtools.build.lib.actions.cache.MetadataHandler;
 import com.google.devtools.build.lib.exec.SpawnCache.CacheHandle;
 import com.google.devtools.build.lib.exec.SpawnRunner.ProgressStatus;
 import com.google.devtools.build.lib.exec.SpawnRunner.SpawnExecutionPolicy;
@@ -160,15 +161,23 @@ public abstract class AbstractSpawnStrategy implements SandboxedSpawnActionConte
     }
 
     @Override
-    public void prefetchInputs() throws IOException {
+    public void prefetchInputs() throws IOException, InterruptedException {
       if (Spawns.shouldPrefetchInputsForLocalExecution(spawn)) {
         // TODO(philwo): Benchmark whether using an ExecutionService to do multiple operations in
         // parallel speeds up prefetching of inputs.
         // TODO(philwo): Do we have to expand middleman artifacts here?
-        actionExecutionContext.getActionInputPrefetcher().prefetchFiles(getInputMapping().values());
+        actionExecutionContext
+            .getActionInputPrefetcher()
+            .prefetchFiles(
+                getInputMapping().values(), actionExecutionContext.getActionInputFileCache());
       }
     }
 
+    @Override
+    public MetadataHandler getMetadataHandler() {
+      return actionExecutionContext.getMetadataHandler();
+    }
+
     @Override
     public ActionInputFileCache getActionInputFileCache() {
       return actionExecutionContext.getActionInputFileCache();
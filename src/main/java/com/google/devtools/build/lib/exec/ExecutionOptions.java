@@ -303,4 +303,16 @@ public class ExecutionOptions extends OptionsBase {
             + " aggressive RAM optimizations in some cases."
   )
   public boolean enableCriticalPathProfiling;
+
+  @Option(
+    name = "experimental_schedule_by_critical_path",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+    effectTags = {OptionEffectTag.EXECUTION},
+    help =
+        "If set, the actions on the critical path of the previous build, and what they depend on, "
+            + "are scheduled before other work. Requires "
+            + "--experimental_enable_critical_path_profiling."
+  )
+  public boolean scheduleByCriticalPath;
 }
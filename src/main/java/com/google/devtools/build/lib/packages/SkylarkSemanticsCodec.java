@@ -40,6 +40,7 @@ public final class SkylarkSemanticsCodec implements ObjectCodec<SkylarkSemantics
   public void serialize(SkylarkSemantics semantics, CodedOutputStream codedOut)
       throws SerializationException, IOException {
     // <== Add new options here in alphabetic order ==>
+    codedOut.writeBoolNoTag(semantics.experimentalCompileHotFunctions());
     codedOut.writeBoolNoTag(semantics.incompatibleBzlDisallowLoadAfterStatement());
     codedOut.writeBoolNoTag(semantics.incompatibleCheckedArithmetic());
     codedOut.writeBoolNoTag(semantics.incompatibleComprehensionVariablesDoNotLeak());
@@ -64,6 +65,7 @@ public final class SkylarkSemanticsCodec implements ObjectCodec<SkylarkSemantics
     SkylarkSemantics.Builder builder = SkylarkSemantics.builder();
 
     // <== Add new options here in alphabetic order ==>
+    builder.experimentalCompileHotFunctions(codedIn.readBool());
     builder.incompatibleBzlDisallowLoadAfterStatement(codedIn.readBool());
     builder.incompatibleCheckedArithmetic(codedIn.readBool());
     builder.incompatibleComprehensionVariablesDoNotLeak(codedIn.readBool());
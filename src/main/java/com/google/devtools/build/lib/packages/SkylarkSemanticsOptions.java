@@ -59,6 +59,18 @@ public class SkylarkSemanticsOptions extends OptionsBase implements Serializable
 
   // <== Add new options here in alphabetic order ==>
 
+  @Option(
+    name = "experimental_compile_hot_functions",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+    effectTags = {OptionEffectTag.LOADING_AND_ANALYSIS},
+    metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+    help =
+        "If set to true, Skylark functions that are called often are compiled to a form that "
+            + "executes their statements faster. This does not change the result of evaluation."
+  )
+  public boolean experimentalCompileHotFunctions;
+
   @Option(
     name = "incompatible_bzl_disallow_load_after_statement",
     defaultValue = "false",
@@ -258,6 +270,7 @@ public class SkylarkSemanticsOptions extends OptionsBase implements Serializable
   public SkylarkSemantics toSkylarkSemantics() {
     return SkylarkSemantics.builder()
         // <== Add new options here in alphabetic order ==>
+        .experimentalCompileHotFunctions(experimentalCompileHotFunctions)
         .incompatibleBzlDisallowLoadAfterStatement(incompatibleBzlDisallowLoadAfterStatement)
         .incompatibleCheckedArithmetic(incompatibleCheckedArithmetic)
         .incompatibleComprehensionVariablesDoNotLeak(incompatibleComprehensionVariablesDoNotLeak)
@@ -168,6 +168,18 @@ public class PackageCacheOptions extends OptionsBase {
   )
   public boolean checkOutputFiles;
 
+  @Option(
+    name = "experimental_batch_filesystem_checks_by_directory",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+    effectTags = {OptionEffectTag.LOADING_AND_ANALYSIS},
+    help =
+        "When checking files for modifications without diff information, check the files of a "
+            + "directory together, and list the directory once instead of statting files that "
+            + "did not exist at the last build."
+  )
+  public boolean batchFilesystemChecksByDirectory;
+
   /**
    * A converter from strings containing comma-separated names of packages to lists of strings.
    */
@@ -13,8 +13,17 @@
 // limitations under the License.
 package com.google.devtools.build.lib.remote;
 
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.EnvironmentalExecException;
 import com.google.devtools.build.lib.actions.ExecException;
+import com.google.devtools.build.lib.actions.cache.MetadataHandler;
 import com.google.devtools.build.lib.concurrent.ThreadSafety;
 import com.google.devtools.build.lib.remote.TreeNodeRepository.TreeNode;
 import com.google.devtools.build.lib.util.io.FileOutErr;
@@ -31,6 +40,7 @@ import com.google.devtools.remoteexecution.v1test.OutputDirectory;
 import com.google.devtools.remoteexecution.v1test.OutputFile;
 import com.google.devtools.remoteexecution.v1test.Tree;
 import com.google.protobuf.ByteString;
+import io.grpc.Context;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
@@ -39,6 +49,15 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 
 /** A cache for storing artifacts (input and output) as well as the output of running an action. */
@@ -46,8 +65,38 @@ import javax.annotation.Nullable;
 public abstract class AbstractRemoteActionCache implements AutoCloseable {
   protected final DigestUtil digestUtil;
 
+  /**
+   * Runs the file downloads of {@link #download}, or null if they are run sequentially. It is
+   * shared by all actions, so it bounds the number of downloads in flight across the build.
+   */
+  @Nullable private final ExecutorService downloadExecutor;
+
   public AbstractRemoteActionCache(DigestUtil digestUtil) {
+    this(digestUtil, 1);
+  }
+
+  public AbstractRemoteActionCache(DigestUtil digestUtil, int maxConcurrentDownloads) {
+    Preconditions.checkArgument(
+        maxConcurrentDownloads > 0, "Invalid number of downloads: %s", maxConcurrentDownloads);
     this.digestUtil = digestUtil;
+    if (maxConcurrentDownloads == 1) {
+      this.downloadExecutor = null;
+    } else {
+      ThreadPoolExecutor executor =
+          new ThreadPoolExecutor(
+              maxConcurrentDownloads,
+              maxConcurrentDownloads,
+              60,
+              TimeUnit.SECONDS,
+              new LinkedBlockingQueue<Runnable>(),
+              new ThreadFactoryBuilder()
+                  .setNameFormat("remote-download-%d")
+                  .setDaemon(true)
+                  .build());
+      // Idle threads exit, so the executor does not need to be shut down.
+      executor.allowCoreThreadTimeOut(true);
+      this.downloadExecutor = executor;
+    }
   }
 
   /**
@@ -125,10 +174,62 @@ public abstract class AbstractRemoteActionCache implements AutoCloseable {
   // TODO(olaola): will need to amend to include the TreeNodeRepository for updating.
   public void download(ActionResult result, Path execRoot, FileOutErr outErr)
       throws ExecException, IOException, InterruptedException {
+    download(result, execRoot, outErr, ImmutableSet.of());
+  }
+
+  /**
+   * Like {@link #download}, but does not download output files that are artifacts in {@code
+   * outputs} and whose contents are not part of the {@code result} itself. Their metadata is
+   * injected into {@code metadataHandler} instead, and they can be fetched later through a {@link
+   * RemoteActionInputFetcher}. Output directories are always downloaded.
+   */
+  public void downloadMinimal(
+      ActionResult result,
+      Collection<? extends ActionInput> outputs,
+      Path execRoot,
+      FileOutErr outErr,
+      MetadataHandler metadataHandler)
+      throws ExecException, IOException, InterruptedException {
+    Map<String, Artifact> artifacts = new HashMap<>();
+    for (ActionInput output : outputs) {
+      if (output instanceof Artifact) {
+        Artifact artifact = (Artifact) output;
+        // The contents of tree artifacts are always downloaded.
+        if (!artifact.isTreeArtifact() && !artifact.hasParent()) {
+          artifacts.put(artifact.getExecPathString(), artifact);
+        }
+      }
+    }
+    Map<String, Digest> remoteFiles = new HashMap<>();
+    for (OutputFile file : result.getOutputFilesList()) {
+      if (artifacts.containsKey(file.getPath())
+          && file.getContent().isEmpty()
+          && file.getDigest().getSizeBytes() > 0) {
+        remoteFiles.put(file.getPath(), file.getDigest());
+      }
+    }
+    download(result, execRoot, outErr, remoteFiles.keySet());
+    for (Map.Entry<String, Digest> entry : remoteFiles.entrySet()) {
+      Digest digest = entry.getValue();
+      metadataHandler.injectRemoteFile(
+          artifacts.get(entry.getKey()),
+          HashCode.fromString(digest.getHash()).asBytes(),
+          digest.getSizeBytes());
+    }
+  }
+
+  private void download(
+      ActionResult result, Path execRoot, FileOutErr outErr, Set<String> skippedFiles)
+      throws ExecException, IOException, InterruptedException {
     try {
+      List<FileDownload> downloads = new ArrayList<>();
       for (OutputFile file : result.getOutputFilesList()) {
+        if (skippedFiles.contains(file.getPath())) {
+          continue;
+        }
         Path path = execRoot.getRelative(file.getPath());
-        downloadFile(path, file.getDigest(), file.getIsExecutable(), file.getContent());
+        downloads.add(
+            () -> downloadFile(path, file.getDigest(), file.getIsExecutable(), file.getContent()));
       }
       for (OutputDirectory dir : result.getOutputDirectoriesList()) {
         Digest treeDigest = dir.getTreeDigest();
@@ -144,11 +245,12 @@ public abstract class AbstractRemoteActionCache implements AutoCloseable {
           childrenMap.put(digestUtil.compute(child), child);
         }
         Path path = execRoot.getRelative(dir.getPath());
-        downloadDirectory(path, tree.getRoot(), childrenMap);
+        downloadDirectory(path, tree.getRoot(), childrenMap, downloads);
       }
+      runDownloads(downloads);
       // TODO(ulfjack): use same code as above also for stdout / stderr if applicable.
       downloadOutErr(result, outErr);
-    } catch (IOException downloadException) {
+    } catch (IOException | InterruptedException downloadException) {
       try {
         // Delete any (partially) downloaded output files, since any subsequent local execution
         // of this action may expect none of the output files to exist.
@@ -168,6 +270,9 @@ public abstract class AbstractRemoteActionCache implements AutoCloseable {
 
         // We don't propagate the downloadException, as this is a recoverable error and the cause
         // of the build failure is really that we couldn't delete output files.
+        if (downloadException instanceof InterruptedException) {
+          Thread.currentThread().interrupt();
+        }
         throw new EnvironmentalExecException(
             "Failed to delete output files after incomplete "
                 + "download. Cannot continue with local execution.",
@@ -178,19 +283,138 @@ public abstract class AbstractRemoteActionCache implements AutoCloseable {
     }
   }
 
+  /**
+   * Downloads the given files, which must not exist yet, concurrently if possible. The files are
+   * made executable, as all outputs are.
+   *
+   * @throws IOException the first failure of a download, if any.
+   */
+  void downloadFiles(Map<Path, Digest> files) throws IOException, InterruptedException {
+    List<FileDownload> downloads = new ArrayList<>(files.size());
+    for (Map.Entry<Path, Digest> file : files.entrySet()) {
+      downloads.add(() -> downloadFile(file.getKey(), file.getValue(), true, null));
+    }
+    runDownloads(downloads);
+  }
+
+  /** The download of a single output file. */
+  @FunctionalInterface
+  private interface FileDownload {
+    void run() throws IOException, InterruptedException;
+  }
+
+  /** A download run by the download executor, which can be waited for even once cancelled. */
+  private static final class DownloadTask implements Callable<Void> {
+    private final FileDownload download;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private boolean started;
+    private boolean cancelled;
+
+    DownloadTask(FileDownload download) {
+      this.download = download;
+    }
+
+    @Override
+    public Void call() throws IOException, InterruptedException {
+      synchronized (this) {
+        if (cancelled) {
+          return null;
+        }
+        started = true;
+      }
+      try {
+        download.run();
+      } finally {
+        finished.countDown();
+      }
+      return null;
+    }
+
+    /** Keeps the download from starting, or waits for it to finish if it already started. */
+    void cancelAndAwait() {
+      synchronized (this) {
+        cancelled = true;
+        if (!started) {
+          return;
+        }
+      }
+      Uninterruptibles.awaitUninterruptibly(finished);
+    }
+  }
+
+  /**
+   * Runs the given downloads, concurrently if possible, and waits for all of them to finish, even
+   * if some fail or the thread is interrupted, so that no download is still writing when the
+   * outputs are cleaned up.
+   *
+   * @throws IOException the first failure of a download, if any.
+   */
+  private void runDownloads(List<FileDownload> downloads)
+      throws IOException, InterruptedException {
+    if (downloadExecutor == null || downloads.size() < 2) {
+      for (FileDownload download : downloads) {
+        download.run();
+      }
+      return;
+    }
+    // The downloads need the request metadata of the current context.
+    Context context = Context.current();
+    List<DownloadTask> tasks = new ArrayList<>(downloads.size());
+    List<Future<Void>> futures = new ArrayList<>(downloads.size());
+    for (FileDownload download : downloads) {
+      DownloadTask task = new DownloadTask(download);
+      tasks.add(task);
+      futures.add(downloadExecutor.submit(context.wrap(task)));
+    }
+    IOException failure = null;
+    try {
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof InterruptedException) {
+            throw new InterruptedException();
+          }
+          Throwables.throwIfUnchecked(cause);
+          if (failure == null) {
+            failure = (IOException) cause;
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      for (Future<Void> future : futures) {
+        future.cancel(true);
+      }
+      // Cancelled downloads that already started may still be writing their files.
+      for (DownloadTask task : tasks) {
+        task.cancelAndAwait();
+      }
+      throw e;
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
   /**
    * Download a directory recursively. The directory is represented by a {@link Directory} protobuf
    * message, and the descendant directories are in {@code childrenMap}, accessible through their
-   * digest.
+   * digest. The directories are created right away, and the file downloads are added to {@code
+   * downloads}.
    */
-  private void downloadDirectory(Path path, Directory dir, Map<Digest, Directory> childrenMap)
-      throws IOException, InterruptedException {
+  private void downloadDirectory(
+      Path path,
+      Directory dir,
+      Map<Digest, Directory> childrenMap,
+      List<FileDownload> downloads)
+      throws IOException {
     // Ensure that the directory is created here even though the directory might be empty
     FileSystemUtils.createDirectoryAndParents(path);
 
     for (FileNode child : dir.getFilesList()) {
       Path childPath = path.getRelative(child.getName());
-      downloadFile(childPath, child.getDigest(), child.getIsExecutable(), null);
+      downloads.add(() -> downloadFile(childPath, child.getDigest(), child.getIsExecutable(), null));
     }
 
     for (DirectoryNode child : dir.getDirectoriesList()) {
@@ -207,7 +431,7 @@ public abstract class AbstractRemoteActionCache implements AutoCloseable {
                 + childDigest
                 + "not found");
       }
-      downloadDirectory(childPath, childDir, childrenMap);
+      downloadDirectory(childPath, childDir, childrenMap, downloads);
     }
   }
 
@@ -0,0 +1,68 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+
+/** Decides which blobs are worth compressing on the wire. */
+public final class BlobCompression {
+
+  /** The gRPC message encoding that blobs are compressed with. */
+  public static final String GRPC_ENCODING = "gzip";
+
+  // Compressing a blob of a few hundred bytes saves less than the gzip header costs.
+  private static final long MIN_COMPRESSIBLE_SIZE = 256;
+
+  // The magic numbers of compressed archive and media formats, which do not compress any further.
+  // Output file names are arbitrary (e.g. a .srcjar is a zip file), so the contents are checked.
+  private static final ImmutableList<ByteString> COMPRESSED_MAGIC_NUMBERS =
+      ImmutableList.of(
+          bytes(0x50, 0x4b, 0x03, 0x04), // zip, jar, apk, aar
+          bytes(0x1f, 0x8b), // gzip
+          bytes(0x28, 0xb5, 0x2f, 0xfd), // zstd
+          bytes(0xfd, 0x37, 0x7a, 0x58, 0x5a, 0x00), // xz
+          bytes(0x42, 0x5a, 0x68), // bzip2
+          bytes(0x37, 0x7a, 0xbc, 0xaf, 0x27, 0x1c), // 7z
+          bytes(0x89, 0x50, 0x4e, 0x47), // png
+          bytes(0xff, 0xd8, 0xff), // jpeg
+          bytes(0x47, 0x49, 0x46, 0x38), // gif
+          bytes(0x52, 0x49, 0x46, 0x46)); // webp and other RIFF containers
+
+  private BlobCompression() {}
+
+  /**
+   * Returns whether a blob of {@code size} bytes that starts with {@code prefix} is likely to
+   * become smaller when compressed.
+   */
+  public static boolean isCompressible(long size, ByteString prefix) {
+    if (size < MIN_COMPRESSIBLE_SIZE) {
+      return false;
+    }
+    for (ByteString magic : COMPRESSED_MAGIC_NUMBERS) {
+      if (prefix.startsWith(magic)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static ByteString bytes(int... values) {
+    byte[] bytes = new byte[values.length];
+    for (int i = 0; i < values.length; i++) {
+      bytes[i] = (byte) values[i];
+    }
+    return ByteString.copyFrom(bytes);
+  }
+}
@@ -71,6 +71,7 @@ final class ByteStreamUploader {
   private final long callTimeoutSecs;
   private final RemoteRetrier retrier;
   private final ListeningScheduledExecutorService retryService;
+  private final boolean compress;
 
   private final Object lock = new Object();
 
@@ -102,6 +103,28 @@ final class ByteStreamUploader {
       long callTimeoutSecs,
       RemoteRetrier retrier,
       ListeningScheduledExecutorService retryService) {
+    this(
+        instanceName,
+        channel,
+        callCredentials,
+        callTimeoutSecs,
+        retrier,
+        retryService,
+        /* compress= */ false);
+  }
+
+  /**
+   * Creates a new instance that gzip-compresses the BLOBs that are likely to become smaller, as
+   * decided by {@link BlobCompression#isCompressible}, if {@code compress} is true.
+   */
+  public ByteStreamUploader(
+      @Nullable String instanceName,
+      Channel channel,
+      @Nullable CallCredentials callCredentials,
+      long callTimeoutSecs,
+      RemoteRetrier retrier,
+      ListeningScheduledExecutorService retryService,
+      boolean compress) {
     checkArgument(callTimeoutSecs > 0, "callTimeoutSecs must be gt 0.");
 
     this.instanceName = instanceName;
@@ -110,6 +133,7 @@ final class ByteStreamUploader {
     this.callTimeoutSecs = callTimeoutSecs;
     this.retrier = retrier;
     this.retryService = retryService;
+    this.compress = compress;
   }
 
   /**
@@ -293,7 +317,8 @@ final class ByteStreamUploader {
     }
 
     AsyncUpload newUpload =
-        new AsyncUpload(channel, callCredentials, callTimeoutSecs, instanceName, chunker, listener);
+        new AsyncUpload(
+            channel, callCredentials, callTimeoutSecs, instanceName, compress, chunker, listener);
     overallUploadResult.addListener(
         () -> {
           if (overallUploadResult.isCancelled()) {
@@ -316,6 +341,7 @@ final class ByteStreamUploader {
     private final CallCredentials callCredentials;
     private final long callTimeoutSecs;
     private final String instanceName;
+    private final boolean compress;
     private final Chunker chunker;
     private final Listener listener;
 
@@ -326,12 +352,14 @@ final class ByteStreamUploader {
         CallCredentials callCredentials,
         long callTimeoutSecs,
         String instanceName,
+        boolean compress,
         Chunker chunker,
         Listener listener) {
       this.channel = channel;
       this.callCredentials = callCredentials;
       this.callTimeoutSecs = callTimeoutSecs;
       this.instanceName = instanceName;
+      this.compress = compress;
       this.chunker = chunker;
       this.listener = listener;
     }
@@ -341,6 +369,9 @@ final class ByteStreamUploader {
           CallOptions.DEFAULT
               .withCallCredentials(callCredentials)
               .withDeadlineAfter(callTimeoutSecs, SECONDS);
+      if (compress) {
+        callOptions = callOptions.withCompression(BlobCompression.GRPC_ENCODING);
+      }
       call = channel.newCall(ByteStreamGrpc.METHOD_WRITE, callOptions);
 
       ClientCall.Listener<WriteResponse> callListener =
@@ -385,6 +416,12 @@ final class ByteStreamUploader {
                   if (chunk.getOffset() == 0) {
                     // Resource name only needs to be set on the first write for each file.
                     requestBuilder.setResourceName(newResourceName(chunk.getDigest()));
+                    if (compress) {
+                      // The choice applies to all following messages of this call.
+                      call.setMessageCompression(
+                          BlobCompression.isCompressible(
+                              chunk.getDigest().getSizeBytes(), chunk.getData()));
+                    }
                   }
 
                   boolean isLastChunk = !chunker.hasNext();
@@ -396,7 +433,11 @@ final class ByteStreamUploader {
                           .build();
 
                   call.sendMessage(request);
-                } catch (IOException e) {
+                } catch (IOException | InternalError e) {
+                  IOException cause =
+                      e instanceof InternalError
+                          ? Chunker.truncatedWhileReading((InternalError) e)
+                          : (IOException) e;
                   try {
                     chunker.reset();
                   } catch (IOException e1) {
@@ -405,7 +446,7 @@ final class ByteStreamUploader {
                     // completely.
                     logger.log(Level.WARNING, "Chunker failed closing data source.", e1);
                   } finally {
-                    call.cancel("Failed to read next chunk.", e);
+                    call.cancel("Failed to read next chunk.", cause);
                   }
                 }
               }
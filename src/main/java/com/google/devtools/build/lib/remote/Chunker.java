@@ -22,13 +22,20 @@ import com.google.common.base.Throwables;
 import com.google.common.io.ByteStreams;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.MetadataProvider;
+import com.google.devtools.build.lib.util.OS;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.remoteexecution.v1test.Digest;
 import com.google.protobuf.ByteString;
-import java.io.ByteArrayInputStream;
+import com.google.protobuf.UnsafeByteOperations;
+import java.io.Closeable;
 import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.function.Supplier;
@@ -40,6 +47,12 @@ import java.util.function.Supplier;
  * {@code false}, the chunker closes the underlying data source (i.e. file) itself. However, in
  * case of error or when a data source does not get fully consumed, a user must call
  * {@link #reset()} manually.
+ *
+ * <p>Chunks of byte arrays share memory with the array instead of copying it. So do chunks of
+ * action inputs on the local file system that are larger than a chunk, except on Windows, where a
+ * mapped file cannot be deleted or replaced. Other files, like action outputs, are read into the
+ * Java heap, because they may be rewritten while the chunks are in flight, and a mapping of a file
+ * that shrinks faults when the missing pages are read.
  */
 public final class Chunker {
 
@@ -100,14 +113,24 @@ public final class Chunker {
     }
   }
 
-  private final Supplier<InputStream> dataSupplier;
+  /** Reads the data of a {@link Chunker} in consecutive pieces. */
+  private interface DataSource extends Closeable {
+    /** Returns the next {@code length} bytes, which must not exceed the bytes left. */
+    ByteString read(int length) throws IOException;
+  }
+
+  /** Opens a {@link DataSource}; called lazily on the first call to {@link #next()}. */
+  private interface DataSourceOpener {
+    DataSource open(long size, int chunkSize) throws IOException;
+  }
+
+  private final DataSourceOpener dataOpener;
   private final Digest digest;
   private final int chunkSize;
   private final Chunk emptyChunk;
 
-  private InputStream data;
+  private DataSource data;
   private long offset;
-  private byte[] chunkCache;
 
   // Set to true on the first call to next(). This is so that the Chunker can open its data source
   // lazily on the first call to next(), as opposed to opening it in the constructor or on reset().
@@ -118,7 +141,11 @@ public final class Chunker {
   }
 
   public Chunker(byte[] data, int chunkSize, DigestUtil digestUtil) throws IOException {
-    this(() -> new ByteArrayInputStream(data), digestUtil.compute(data), chunkSize, digestUtil);
+    this(
+        (size, unusedChunkSize) -> new ByteArrayDataSource(data),
+        digestUtil.compute(data),
+        chunkSize,
+        digestUtil);
   }
 
   public Chunker(Path file) throws IOException {
@@ -126,14 +153,18 @@ public final class Chunker {
   }
 
   public Chunker(Path file, int chunkSize) throws IOException {
+    this(file, chunkSize, /* mapLargeFiles= */ false);
+  }
+
+  /**
+   * Creates a chunker for {@code file}, which is mapped into memory if {@code mapLargeFiles} is
+   * true and the file is larger than a chunk. The file must not be modified until the chunks are
+   * sent, see {@link MappedFileDataSource}.
+   */
+  @VisibleForTesting
+  Chunker(Path file, int chunkSize, boolean mapLargeFiles) throws IOException {
     this(
-        () -> {
-          try {
-            return file.getInputStream();
-          } catch (IOException e) {
-            throw new RuntimeException(e);
-          }
-        },
+        (size, chunkSizeForFile) -> openFile(file, size, chunkSizeForFile, mapLargeFiles),
         new DigestUtil(file.getFileSystem().getDigestFunction()).compute(file),
         chunkSize,
         new DigestUtil(file.getFileSystem().getDigestFunction()));
@@ -153,13 +184,12 @@ public final class Chunker {
       DigestUtil digestUtil)
       throws IOException {
     this(
-        () -> {
-          try {
-            return execRoot.getRelative(actionInput.getExecPathString()).getInputStream();
-          } catch (IOException e) {
-            throw new RuntimeException(e);
-          }
-        },
+        (size, chunkSizeForFile) ->
+            openFile(
+                execRoot.getRelative(actionInput.getExecPathString()),
+                size,
+                chunkSizeForFile,
+                /* mapLargeFiles= */ true),
         DigestUtil.getFromInputCache(actionInput, inputCache),
         chunkSize,
         digestUtil);
@@ -168,7 +198,23 @@ public final class Chunker {
   @VisibleForTesting
   Chunker(Supplier<InputStream> dataSupplier, Digest digest, int chunkSize, DigestUtil digestUtil)
       throws IOException {
-    this.dataSupplier = checkNotNull(dataSupplier);
+    this(
+        (size, unusedChunkSize) -> {
+          try {
+            return new StreamDataSource(dataSupplier.get());
+          } catch (RuntimeException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw e;
+          }
+        },
+        digest,
+        chunkSize,
+        digestUtil);
+  }
+
+  private Chunker(DataSourceOpener dataOpener, Digest digest, int chunkSize, DigestUtil digestUtil)
+      throws IOException {
+    this.dataOpener = checkNotNull(dataOpener);
     this.digest = checkNotNull(digest);
     this.chunkSize = chunkSize;
     this.emptyChunk = new Chunk(digestUtil.compute(new byte[0]), ByteString.EMPTY, 0);
@@ -190,7 +236,6 @@ public final class Chunker {
     data = null;
     offset = 0;
     initialized = false;
-    chunkCache = null;
   }
 
   /**
@@ -224,34 +269,17 @@ public final class Chunker {
     // The cast to int is safe, because the return value is capped at chunkSize.
     int bytesToRead = (int) Math.min(bytesLeft(), chunkSize);
     if (bytesToRead == 0) {
-      chunkCache = null;
       data = null;
       throw new NoSuchElementException();
     }
 
-    if (chunkCache == null) {
-      // Lazily allocate it in order to save memory on small data.
-      // 1) bytesToRead < chunkSize: There will only ever be one next() call.
-      // 2) bytesToRead == chunkSize: chunkCache will be set to its biggest possible value.
-      // 3) bytestoRead > chunkSize: Not possible, due to Math.min above.
-      chunkCache = new byte[bytesToRead];
-    }
-
     long offsetBefore = offset;
-    try {
-      ByteStreams.readFully(data, chunkCache, 0, bytesToRead);
-    } catch (EOFException e) {
-      throw new IllegalStateException("Reached EOF, but expected "
-          + bytesToRead + " bytes.", e);
-    }
+    ByteString blob = data.read(bytesToRead);
     offset += bytesToRead;
 
-    ByteString blob = ByteString.copyFrom(chunkCache, 0, bytesToRead);
-
     if (bytesLeft() == 0) {
       data.close();
       data = null;
-      chunkCache = null;
     }
 
     return new Chunk(digest, blob, offsetBefore);
@@ -267,13 +295,146 @@ public final class Chunker {
     }
     checkState(data == null);
     checkState(offset == 0);
-    checkState(chunkCache == null);
-    try {
-      data = dataSupplier.get();
-    } catch (RuntimeException e) {
-      Throwables.propagateIfPossible(e.getCause(), IOException.class);
-      throw e;
-    }
+    data = dataOpener.open(digest.getSizeBytes(), chunkSize);
     initialized = true;
   }
+
+  /**
+   * Opens {@code file}. If {@code mapLargeFiles} is true, files on the local file system are mapped
+   * into memory instead of being read, if they do not fit into a single chunk.
+   */
+  private static DataSource openFile(Path file, long size, int chunkSize, boolean mapLargeFiles)
+      throws IOException {
+    InputStream in = file.getInputStream();
+    if (mapLargeFiles
+        && OS.getCurrent() != OS.WINDOWS
+        && in instanceof FileInputStream
+        && size > chunkSize) {
+      return new MappedFileDataSource((FileInputStream) in, size);
+    }
+    return new StreamDataSource(in);
+  }
+
+  /** Wraps a byte array without copying it. The array must not be modified afterwards. */
+  private static final class ByteArrayDataSource implements DataSource {
+    private final byte[] data;
+    private int offset;
+
+    ByteArrayDataSource(byte[] data) {
+      this.data = data;
+    }
+
+    @Override
+    public ByteString read(int length) {
+      ByteString result = UnsafeByteOperations.unsafeWrap(data, offset, length);
+      offset += length;
+      return result;
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  /** Copies the data of an {@link InputStream} into a new {@link ByteString} for each chunk. */
+  private static final class StreamDataSource implements DataSource {
+    private final InputStream in;
+    // Lazily allocated in order to save memory on small data. The first read has the largest size.
+    private byte[] buffer;
+
+    StreamDataSource(InputStream in) {
+      this.in = checkNotNull(in);
+    }
+
+    @Override
+    public ByteString read(int length) throws IOException {
+      if (buffer == null) {
+        buffer = new byte[length];
+      }
+      try {
+        ByteStreams.readFully(in, buffer, 0, length);
+      } catch (EOFException e) {
+        throw new IllegalStateException("Reached EOF, but expected " + length + " bytes.", e);
+      }
+      return ByteString.copyFrom(buffer, 0, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * Returns chunks that point directly into a read-only memory mapping of a file, so that large
+   * files are neither copied onto the Java heap nor into intermediate buffers. The file is mapped
+   * in regions of at most {@link #MAX_REGION_SIZE} bytes.
+   *
+   * <p>The mapping stays valid until the chunks that point into it are garbage collected, even
+   * after the file has been closed. Concurrent modifications of the file show through, and reading
+   * a chunk after the file was truncated throws an {@link InternalError}, which readers of the
+   * chunks must convert, see {@link #truncatedWhileReading}. If a region cannot be mapped, e.g.
+   * because the address space is exhausted, the rest of the file is read like a stream.
+   */
+  private static final class MappedFileDataSource implements DataSource {
+    private static final long MAX_REGION_SIZE = 64 * 1024 * 1024;
+
+    private final FileInputStream in;
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer region;
+    private long regionOffset;
+    private long position;
+    private StreamDataSource fallback;
+
+    MappedFileDataSource(FileInputStream in, long size) throws IOException {
+      this.in = in;
+      this.channel = in.getChannel();
+      this.size = size;
+      if (channel.size() < size) {
+        in.close();
+        throw new IllegalStateException(
+            "Reached EOF, but expected " + size + " bytes in total, found " + channel.size());
+      }
+    }
+
+    @Override
+    public ByteString read(int length) throws IOException {
+      if (fallback == null
+          && (region == null || position + length > regionOffset + region.capacity())) {
+        try {
+          region =
+              channel.map(MapMode.READ_ONLY, position, Math.min(MAX_REGION_SIZE, size - position));
+          regionOffset = position;
+        } catch (IOException e) {
+          region = null;
+          channel.position(position);
+          fallback = new StreamDataSource(in);
+        }
+      }
+      if (fallback != null) {
+        position += length;
+        return fallback.read(length);
+      }
+      ByteBuffer chunk = region.duplicate();
+      chunk.position((int) (position - regionOffset));
+      chunk.limit(chunk.position() + length);
+      position += length;
+      return UnsafeByteOperations.unsafeWrap(chunk.slice());
+    }
+
+    @Override
+    public void close() throws IOException {
+      region = null;
+      in.close();
+    }
+  }
+
+  /**
+   * Returns an {@link IOException} for an {@link InternalError} that was thrown while reading the
+   * data of a chunk. The JVM throws it when a memory mapped file was truncated by another process
+   * after the chunk was created, see {@link MappedFileDataSource}.
+   */
+  static IOException truncatedWhileReading(InternalError e) {
+    return new IOException("Failed to read a file that was truncated while being uploaded.", e);
+  }
 }
@@ -0,0 +1,269 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.remoteexecution.v1test.Digest;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Coalesces the {@code FindMissingBlobs} queries of concurrent callers into batched calls.
+ *
+ * <p>A query that finds no open batch opens one, and its thread waits for the batch window to
+ * pass or for the batch to fill up. Queries from other threads in the meantime add their digests
+ * to the open batch. The opening thread then sends the batch in calls of at most {@code
+ * maxBatchSize} digests, and every waiting thread picks its results from them. A digest that is
+ * part of an open or in-flight batch is not queried again. If the opening thread is interrupted
+ * before the batch is answered, the waiting threads query their digests again.
+ */
+@ThreadSafe
+final class FindMissingBlobsBatcher {
+
+  /**
+   * Fails a lookup that is shared between threads when the thread that makes the call is
+   * interrupted. The waiting threads were not interrupted, so they make the call again.
+   */
+  static final class SharedCallInterruptedException extends Exception {
+    SharedCallInterruptedException(Throwable cause) {
+      super("The thread making the shared call was interrupted", cause);
+    }
+
+    /**
+     * Returns the exception for the waiters of a call that failed with {@code e}. gRPC cancels a
+     * blocking call whose thread is interrupted, so the call then fails with a {@code CANCELLED}
+     * status rather than an {@link InterruptedException}.
+     */
+    static Exception forWaiters(Exception e) {
+      return Thread.currentThread().isInterrupted() ? new SharedCallInterruptedException(e) : e;
+    }
+  }
+
+  /** Makes the actual {@code FindMissingBlobs} call. */
+  interface MissingDigestsFinder {
+    ImmutableSet<Digest> findMissingDigests(Iterable<Digest> digests)
+        throws IOException, InterruptedException;
+  }
+
+  private final MissingDigestsFinder finder;
+  private final long windowNanos;
+  private final int maxBatchSize;
+
+  private final Object lock = new Object();
+
+  /** Whether each digest of an open or in-flight batch is missing from the remote cache. */
+  @GuardedBy("lock")
+  private final Map<Digest, SettableFuture<Boolean>> lookups = new HashMap<>();
+
+  @GuardedBy("lock")
+  @Nullable
+  private Map<Digest, SettableFuture<Boolean>> openBatch;
+
+  @GuardedBy("lock")
+  private long queryCount;
+
+  @GuardedBy("lock")
+  private long sharedDigestCount;
+
+  @GuardedBy("lock")
+  private long callCount;
+
+  @GuardedBy("lock")
+  private long sentDigestCount;
+
+  @GuardedBy("lock")
+  private int largestCallSize;
+
+  /**
+   * @param windowMillis how long a batch stays open for other queries to join. 0 sends every batch
+   *     right away, in which case only digests that are already being looked up are shared
+   * @param maxBatchSize the maximum number of digests per {@code FindMissingBlobs} call
+   */
+  FindMissingBlobsBatcher(MissingDigestsFinder finder, long windowMillis, int maxBatchSize) {
+    checkArgument(windowMillis >= 0, "windowMillis must be >= 0");
+    checkArgument(maxBatchSize > 0, "maxBatchSize must be > 0");
+    this.finder = finder;
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /** Returns the subset of {@code digests} that is missing from the remote cache. */
+  ImmutableSet<Digest> getMissingDigests(Iterable<Digest> digests)
+      throws IOException, InterruptedException {
+    Map<Digest, SettableFuture<Boolean>> results = new LinkedHashMap<>();
+    Map<Digest, SettableFuture<Boolean>> ownBatch = null;
+    synchronized (lock) {
+      queryCount++;
+      for (Digest digest : ImmutableSet.copyOf(digests)) {
+        SettableFuture<Boolean> lookup = lookups.get(digest);
+        if (lookup != null) {
+          sharedDigestCount++;
+        } else {
+          if (openBatch == null) {
+            openBatch = new LinkedHashMap<>();
+            ownBatch = openBatch;
+          }
+          lookup = SettableFuture.create();
+          openBatch.put(digest, lookup);
+          lookups.put(digest, lookup);
+        }
+        results.put(digest, lookup);
+      }
+      if (openBatch != null && openBatch.size() >= maxBatchSize) {
+        lock.notifyAll();
+      }
+    }
+    if (results.isEmpty()) {
+      return ImmutableSet.of();
+    }
+
+    if (ownBatch != null) {
+      awaitWindow(ownBatch);
+      send(ownBatch);
+    }
+
+    ImmutableSet.Builder<Digest> missing = ImmutableSet.builder();
+    List<Digest> retry = new ArrayList<>();
+    for (Map.Entry<Digest, SettableFuture<Boolean>> result : results.entrySet()) {
+      try {
+        if (getLookupResult(result.getValue())) {
+          missing.add(result.getKey());
+        }
+      } catch (SharedCallInterruptedException e) {
+        retry.add(result.getKey());
+      }
+    }
+    if (!retry.isEmpty()) {
+      missing.addAll(getMissingDigests(retry));
+    }
+    return missing.build();
+  }
+
+  /** Waits until the window of {@code batch} has passed or it is full, and then closes it. */
+  private void awaitWindow(Map<Digest, SettableFuture<Boolean>> batch) {
+    long deadline = System.nanoTime() + windowNanos;
+    synchronized (lock) {
+      try {
+        long remaining = windowNanos;
+        while (remaining > 0 && batch.size() < maxBatchSize) {
+          TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+          remaining = deadline - System.nanoTime();
+        }
+      } catch (InterruptedException e) {
+        // Send the batch anyway, as other threads are waiting for it.
+        Thread.currentThread().interrupt();
+      } finally {
+        if (openBatch == batch) {
+          openBatch = null;
+        }
+      }
+    }
+  }
+
+  private void send(Map<Digest, SettableFuture<Boolean>> batch)
+      throws IOException, InterruptedException {
+    List<Digest> pending = new ArrayList<>(batch.keySet());
+    try {
+      for (List<Digest> call : Iterables.partition(pending, maxBatchSize)) {
+        synchronized (lock) {
+          callCount++;
+          sentDigestCount += call.size();
+          largestCallSize = Math.max(largestCallSize, call.size());
+        }
+        ImmutableSet<Digest> missing = finder.findMissingDigests(call);
+        for (Digest digest : call) {
+          complete(digest, batch.get(digest), missing.contains(digest), null);
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      failAll(batch, SharedCallInterruptedException.forWaiters(e));
+      throw e;
+    } catch (InterruptedException e) {
+      failAll(batch, new SharedCallInterruptedException(e));
+      throw e;
+    }
+  }
+
+  private void failAll(Map<Digest, SettableFuture<Boolean>> batch, Exception e) {
+    for (Map.Entry<Digest, SettableFuture<Boolean>> lookup : batch.entrySet()) {
+      complete(lookup.getKey(), lookup.getValue(), false, e);
+    }
+  }
+
+  private void complete(
+      Digest digest, SettableFuture<Boolean> lookup, boolean missing, @Nullable Exception e) {
+    synchronized (lock) {
+      lookups.remove(digest, lookup);
+    }
+    if (e != null) {
+      lookup.setException(e);
+    } else {
+      lookup.set(missing);
+    }
+  }
+
+  /**
+   * Waits for a lookup that is shared between threads. Failures are rethrown as the exception the
+   * lookup failed with, if that is an {@link IOException} or a {@link
+   * SharedCallInterruptedException}, in which case the caller should make the call itself.
+   */
+  static <T> T getLookupResult(Future<T> lookup)
+      throws IOException, InterruptedException, SharedCallInterruptedException {
+    try {
+      return lookup.get();
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.propagateIfInstanceOf(e.getCause(), SharedCallInterruptedException.class);
+      Throwables.propagateIfPossible(e.getCause());
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /** Returns a one-line summary of the batching so far, for logging. */
+  String getStatsSummary() {
+    synchronized (lock) {
+      return String.format(
+          "FindMissingBlobs batching: %d queries, %d digests shared with other queries, "
+              + "%d calls with %d digests (largest call: %d digests)",
+          queryCount, sharedDigestCount, callCount, sentDigestCount, largestCallSize);
+    }
+  }
+
+  long getCallCount() {
+    synchronized (lock) {
+      return callCount;
+    }
+  }
+
+  long getSharedDigestCount() {
+    synchronized (lock) {
+      return sharedDigestCount;
+    }
+  }
+}
@@ -21,13 +21,14 @@ import com.google.bytestream.ByteStreamProto.ReadResponse;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.ListeningScheduledExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.MetadataProvider;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.remote.DigestUtil.ActionKey;
+import com.google.devtools.build.lib.remote.FindMissingBlobsBatcher.SharedCallInterruptedException;
 import com.google.devtools.build.lib.remote.Retrier.RetryException;
 import com.google.devtools.build.lib.remote.TreeNodeRepository.TreeNode;
 import com.google.devtools.build.lib.util.io.FileOutErr;
@@ -55,22 +56,42 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /** A RemoteActionCache implementation that uses gRPC calls to a remote cache server. */
 @ThreadSafe
 public class GrpcRemoteCache extends AbstractRemoteActionCache {
+  private static final Logger logger = Logger.getLogger(GrpcRemoteCache.class.getName());
+
+  // Keeps FindMissingBlobs requests well below the default gRPC message size limit of 4MiB.
+  private static final int MAX_FIND_MISSING_BLOBS_BATCH_SIZE = 10_000;
+
   private final RemoteOptions options;
   private final CallCredentials credentials;
   private final Channel channel;
   private final RemoteRetrier retrier;
   private final ByteStreamUploader uploader;
+  @Nullable private final PresentDigestsCache presentDigests;
+  private final FindMissingBlobsBatcher missingDigestsBatcher;
   private final ListeningScheduledExecutorService retryScheduler =
       MoreExecutors.listeningDecorator(Executors.newScheduledThreadPool(1));
 
+  /** The action result lookups in progress, so that concurrent lookups of an action share one. */
+  private final ConcurrentMap<Digest, SettableFuture<ActionResult>> actionResultLookups =
+      new ConcurrentHashMap<>();
+
+  private final AtomicLong sharedActionResultLookups = new AtomicLong();
+
   @VisibleForTesting
   public GrpcRemoteCache(
       Channel channel,
@@ -78,14 +99,41 @@ public class GrpcRemoteCache extends AbstractRemoteActionCache {
       RemoteOptions options,
       RemoteRetrier retrier,
       DigestUtil digestUtil) {
-    super(digestUtil);
+    this(channel, credentials, options, retrier, digestUtil, null);
+  }
+
+  /**
+   * @param presentDigests if not null, the digests that are known to be in the remote cache.
+   *     Lookups of these are skipped, and the digests of new blobs are added.
+   */
+  public GrpcRemoteCache(
+      Channel channel,
+      CallCredentials credentials,
+      RemoteOptions options,
+      RemoteRetrier retrier,
+      DigestUtil digestUtil,
+      @Nullable PresentDigestsCache presentDigests) {
+    super(digestUtil, options.experimentalRemoteMaxConcurrentDownloads);
     this.options = options;
     this.credentials = credentials;
     this.channel = channel;
     this.retrier = retrier;
+    this.presentDigests = presentDigests;
+    this.missingDigestsBatcher =
+        new FindMissingBlobsBatcher(
+            this::findMissingDigests,
+            options.experimentalRemoteBatchWindowMillis,
+            MAX_FIND_MISSING_BLOBS_BATCH_SIZE);
 
-    uploader = new ByteStreamUploader(options.remoteInstanceName, channel, credentials,
-        options.remoteTimeout, retrier, retryScheduler);
+    uploader =
+        new ByteStreamUploader(
+            options.remoteInstanceName,
+            channel,
+            credentials,
+            options.remoteTimeout,
+            retrier,
+            retryScheduler,
+            options.experimentalRemoteCompression);
   }
 
   private ContentAddressableStorageBlockingStub casBlockingStub() {
@@ -111,16 +159,31 @@ public class GrpcRemoteCache extends AbstractRemoteActionCache {
 
   @Override
   public void close() {
+    logger.info(
+        missingDigestsBatcher.getStatsSummary()
+            + ", "
+            + sharedActionResultLookups.get()
+            + " action result lookups shared with other actions");
     retryScheduler.shutdownNow();
     uploader.shutdown();
   }
 
+  @VisibleForTesting
+  long getSharedActionResultLookupCount() {
+    return sharedActionResultLookups.get();
+  }
+
   public static boolean isRemoteCacheOptions(RemoteOptions options) {
     return options.remoteCache != null;
   }
 
   private ImmutableSet<Digest> getMissingDigests(Iterable<Digest> digests)
       throws IOException, InterruptedException {
+    return missingDigestsBatcher.getMissingDigests(digests);
+  }
+
+  private ImmutableSet<Digest> findMissingDigests(Iterable<Digest> digests)
+      throws IOException, InterruptedException {
     FindMissingBlobsRequest.Builder request =
         FindMissingBlobsRequest.newBuilder()
             .setInstanceName(options.remoteInstanceName)
@@ -143,10 +206,12 @@ public class GrpcRemoteCache extends AbstractRemoteActionCache {
       throws IOException, InterruptedException {
     repository.computeMerkleDigests(root);
     Digest commandDigest = digestUtil.compute(command);
-    // TODO(olaola): avoid querying all the digests, only ask for novel subtrees.
-    ImmutableSet<Digest> missingDigests =
-        getMissingDigests(
-            Iterables.concat(repository.getAllDigests(root), ImmutableList.of(commandDigest)));
+    Set<Digest> unknownDigests = new LinkedHashSet<>();
+    if (!isKnownPresent(commandDigest)) {
+      unknownDigests.add(commandDigest);
+    }
+    addUnknownDigests(repository, root, unknownDigests);
+    ImmutableSet<Digest> missingDigests = getMissingDigests(unknownDigests);
 
     List<Chunker> toUpload = new ArrayList<>();
     // Only upload data that was missing from the cache.
@@ -171,6 +236,28 @@ public class GrpcRemoteCache extends AbstractRemoteActionCache {
       }
     }
     uploader.uploadBlobs(toUpload);
+    if (presentDigests != null) {
+      presentDigests.addAll(unknownDigests);
+    }
+  }
+
+  private boolean isKnownPresent(Digest digest) {
+    return presentDigests != null && presentDigests.contains(digest);
+  }
+
+  /**
+   * Adds the digests of {@code node} and its descendants to {@code digests}, except for subtrees
+   * that are known to be present in the remote cache or were already added.
+   */
+  private void addUnknownDigests(TreeNodeRepository repository, TreeNode node, Set<Digest> digests)
+      throws IOException {
+    Digest digest = repository.getMerkleDigest(node);
+    if (isKnownPresent(digest) || !digests.add(digest)) {
+      return;
+    }
+    for (TreeNode child : repository.children(node)) {
+      addUnknownDigests(repository, child, digests);
+    }
   }
 
   /**
@@ -295,6 +382,10 @@ public class GrpcRemoteCache extends AbstractRemoteActionCache {
     if (!filesToUpload.isEmpty()) {
       uploader.uploadBlobs(filesToUpload);
     }
+    if (presentDigests != null) {
+      // Saves looking up the outputs again when they are inputs of other actions.
+      presentDigests.addAll(digests);
+    }
 
     // TODO(olaola): inline small stdout/stderr here.
     if (outErr.getErrorPath().exists()) {
@@ -352,6 +443,35 @@ public class GrpcRemoteCache extends AbstractRemoteActionCache {
   @Override
   public ActionResult getCachedActionResult(ActionKey actionKey)
       throws IOException, InterruptedException {
+    SettableFuture<ActionResult> lookup = SettableFuture.create();
+    SettableFuture<ActionResult> existing;
+    while ((existing = actionResultLookups.putIfAbsent(actionKey.getDigest(), lookup)) != null) {
+      sharedActionResultLookups.incrementAndGet();
+      try {
+        return FindMissingBlobsBatcher.getLookupResult(existing);
+      } catch (SharedCallInterruptedException e) {
+        // The thread that made the call was interrupted, so make it again.
+        actionResultLookups.remove(actionKey.getDigest(), existing);
+      }
+    }
+    try {
+      ActionResult result = lookupActionResult(actionKey);
+      lookup.set(result);
+      return result;
+    } catch (IOException | RuntimeException e) {
+      lookup.setException(SharedCallInterruptedException.forWaiters(e));
+      throw e;
+    } catch (InterruptedException e) {
+      lookup.setException(new SharedCallInterruptedException(e));
+      throw e;
+    } finally {
+      actionResultLookups.remove(actionKey.getDigest(), lookup);
+    }
+  }
+
+  @Nullable
+  private ActionResult lookupActionResult(ActionKey actionKey)
+      throws IOException, InterruptedException {
     try {
       return retrier.execute(
           () ->
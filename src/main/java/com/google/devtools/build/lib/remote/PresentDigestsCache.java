@@ -0,0 +1,67 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.remoteexecution.v1test.Digest;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The digests that were recently found in, or uploaded to, a remote CAS. The digest of a {@link
+ * com.google.devtools.remoteexecution.v1test.Directory} is only added once all of its contents are
+ * known to be present, too.
+ *
+ * <p>The remote cache may evict blobs at any time, so entries expire after a fixed time.
+ */
+@ThreadSafe
+final class PresentDigestsCache {
+  // About 40MB worth of digests.
+  private static final long MAX_ENTRIES = 200_000;
+
+  private final String remoteCache;
+  private final long ttlSeconds;
+  private final Cache<Digest, Boolean> present;
+
+  PresentDigestsCache(String remoteCache, long ttlSeconds, Ticker ticker) {
+    this.remoteCache = remoteCache;
+    this.ttlSeconds = ttlSeconds;
+    this.present =
+        CacheBuilder.newBuilder()
+            .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+            .maximumSize(MAX_ENTRIES)
+            .ticker(ticker)
+            .build();
+  }
+
+  /**
+   * Whether this can be reused by a later command that talks to {@code remoteCache}, including the
+   * instance name, and expires entries after {@code ttlSeconds}.
+   */
+  boolean canBeReusedFor(String remoteCache, long ttlSeconds) {
+    return this.remoteCache.equals(remoteCache) && this.ttlSeconds == ttlSeconds;
+  }
+
+  boolean contains(Digest digest) {
+    return present.getIfPresent(digest) != null;
+  }
+
+  void addAll(Iterable<Digest> digests) {
+    for (Digest digest : digests) {
+      present.put(digest, Boolean.TRUE);
+    }
+  }
+}
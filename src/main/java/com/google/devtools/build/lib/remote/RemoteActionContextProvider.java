@@ -101,11 +101,4 @@ final class RemoteActionContextProvider extends ActionContextProvider {
             env.getRuntime().getProductName(),
             localEnvProvider);
   }
-
-  @Override
-  public void executionPhaseEnding() {
-    if (cache != null) {
-      cache.close();
-    }
-  }
 }
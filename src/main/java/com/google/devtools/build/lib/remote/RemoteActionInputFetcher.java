@@ -0,0 +1,131 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.ActionInputPrefetcher;
+import com.google.devtools.build.lib.actions.MetadataProvider;
+import com.google.devtools.build.lib.actions.cache.Metadata;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.remoteexecution.v1test.Digest;
+import io.grpc.Context;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Fetches the outputs of remote actions that were not downloaded with {@code
+ * --experimental_remote_download_outputs=minimal}, once a local action or the user needs them.
+ */
+@ThreadSafe
+final class RemoteActionInputFetcher implements ActionInputPrefetcher {
+  private final AbstractRemoteActionCache remoteCache;
+  private final Path execRoot;
+  private final Context withMetadata;
+
+  /**
+   * The fetches started by this build, by path. Each file is fetched at most once, even if several
+   * actions need it at the same time.
+   */
+  private final ConcurrentMap<Path, SettableFuture<Void>> fetches = new ConcurrentHashMap<>();
+
+  RemoteActionInputFetcher(
+      AbstractRemoteActionCache remoteCache,
+      Path execRoot,
+      String buildRequestId,
+      String commandId) {
+    this.remoteCache = remoteCache;
+    this.execRoot = execRoot;
+    this.withMetadata =
+        TracingMetadataUtils.contextWithMetadata(buildRequestId, commandId, "fetch-remote-inputs");
+  }
+
+  @Override
+  public void prefetchFiles(
+      Iterable<? extends ActionInput> inputs, MetadataProvider metadataProvider)
+      throws IOException, InterruptedException {
+    Map<Path, Digest> remoteFiles = new HashMap<>();
+    for (ActionInput input : inputs) {
+      Metadata metadata = metadataProvider.getMetadata(input);
+      if (metadata != null && metadata.isRemote()) {
+        remoteFiles.put(
+            execRoot.getRelative(input.getExecPath()),
+            DigestUtil.buildDigest(metadata.getDigest(), metadata.getSize()));
+      }
+    }
+    if (remoteFiles.isEmpty()) {
+      return;
+    }
+
+    Map<Path, Digest> toFetch = new HashMap<>();
+    Map<Path, SettableFuture<Void>> ownFetches = new HashMap<>();
+    List<SettableFuture<Void>> otherFetches = new ArrayList<>();
+    for (Map.Entry<Path, Digest> file : remoteFiles.entrySet()) {
+      SettableFuture<Void> fetch = SettableFuture.create();
+      SettableFuture<Void> existing = fetches.putIfAbsent(file.getKey(), fetch);
+      if (existing != null) {
+        otherFetches.add(existing);
+      } else {
+        ownFetches.put(file.getKey(), fetch);
+        toFetch.put(file.getKey(), file.getValue());
+      }
+    }
+
+    Context previous = withMetadata.attach();
+    try {
+      for (Map.Entry<Path, Digest> file : remoteFiles.entrySet()) {
+        // The file may still be around from a previous build.
+        Path path = file.getKey();
+        if (toFetch.containsKey(path) && path.exists()) {
+          if (remoteCache.digestUtil.compute(path).equals(file.getValue())) {
+            toFetch.remove(path);
+          } else {
+            path.delete();
+          }
+        }
+      }
+      remoteCache.downloadFiles(toFetch);
+      for (Path path : toFetch.keySet()) {
+        path.setWritable(false);
+      }
+    } catch (IOException | InterruptedException | RuntimeException e) {
+      // Let the next action that needs these files try again.
+      for (Map.Entry<Path, SettableFuture<Void>> fetch : ownFetches.entrySet()) {
+        fetches.remove(fetch.getKey(), fetch.getValue());
+        fetch.getValue().setException(e);
+      }
+      throw e;
+    } finally {
+      withMetadata.detach(previous);
+    }
+    for (SettableFuture<Void> fetch : ownFetches.values()) {
+      fetch.set(null);
+    }
+
+    for (SettableFuture<Void> fetch : otherFetches) {
+      try {
+        fetch.get();
+      } catch (ExecutionException e) {
+        throw new IOException("Failed to fetch remote input: " + e.getCause().getMessage(), e);
+      }
+    }
+  }
+}
@@ -15,6 +15,7 @@
 package com.google.devtools.build.lib.remote;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.authandtls.AuthAndTLSOptions;
 import com.google.devtools.build.lib.authandtls.GoogleAuthUtils;
@@ -22,6 +23,8 @@ import com.google.devtools.build.lib.buildeventstream.PathConverter;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.exec.ExecutorBuilder;
+import com.google.devtools.build.lib.remote.RemoteOptions.RemoteOutputsStrategy;
+import com.google.devtools.build.lib.remote.blobstore.OnDiskBlobStore;
 import com.google.devtools.build.lib.runtime.BlazeModule;
 import com.google.devtools.build.lib.runtime.Command;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
@@ -36,6 +39,7 @@ import com.google.devtools.remoteexecution.v1test.Digest;
 import io.grpc.Channel;
 import java.io.IOException;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /** RemoteModule provides distributed cache and remote execution for Bazel. */
 public final class RemoteModule extends BlazeModule {
@@ -83,6 +87,19 @@ public final class RemoteModule extends BlazeModule {
   private final CasPathConverter converter = new CasPathConverter();
 
   private RemoteActionContextProvider actionContextProvider;
+  // Created by every command that uses a remote or local disk cache, and closed after it, also if
+  // the command fails before the execution phase.
+  @Nullable private AbstractRemoteActionCache remoteCache;
+  @Nullable private RemoteActionInputFetcher actionInputFetcher;
+  // Whether the last build may have left outputs in the remote cache without downloading them.
+  private boolean remoteOutputsMayExist;
+  // Kept across commands, as long as they use the same remote cache.
+  @Nullable private PresentDigestsCache presentDigests;
+  // Kept across commands, as long as they use the same local disk cache, so that its index is only
+  // loaded when the server starts and saved when it shuts down.
+  @Nullable private OnDiskBlobStore diskCache;
+  // Whether remoteCache is backed by diskCache, which must not be closed with it.
+  private boolean remoteCacheUsesDiskCache;
 
   @Override
   public void serverInit(OptionsProvider startupOptions, ServerBuilder builder)
@@ -93,6 +110,7 @@ public final class RemoteModule extends BlazeModule {
   @Override
   public void beforeCommand(CommandEnvironment env) {
     env.getEventBus().register(this);
+    actionInputFetcher = null;
     String buildRequestId = env.getBuildRequestId().toString();
     String commandId = env.getCommandId().toString();
     logger.info("Command: buildRequestId = " + buildRequestId + ", commandId = " + commandId);
@@ -118,14 +136,20 @@ public final class RemoteModule extends BlazeModule {
       // TODO(davido): The naming is wrong here. "Remote"-prefix in RemoteActionCache class has no
       // meaning.
       final AbstractRemoteActionCache cache;
+      remoteCacheUsesDiskCache =
+          remoteOrLocalCache && !SimpleBlobStoreFactory.isRestUrlOptions(remoteOptions);
       if (remoteOrLocalCache) {
         cache =
             new SimpleBlobStoreActionCache(
-                SimpleBlobStoreFactory.create(
-                    remoteOptions,
-                    GoogleAuthUtils.newCredentials(authAndTlsOptions),
-                    env.getWorkingDirectory()),
-                digestUtil);
+                remoteCacheUsesDiskCache
+                    ? getDiskCache(remoteOptions, env.getWorkingDirectory())
+                    : SimpleBlobStoreFactory.create(
+                        remoteOptions,
+                        GoogleAuthUtils.newCredentials(authAndTlsOptions),
+                        env.getWorkingDirectory()),
+                digestUtil,
+                remoteOptions.experimentalRemoteMaxConcurrentDownloads,
+                /* linkFromDiskCache= */ true);
       } else if (grpcCache || remoteOptions.remoteExecutor != null) {
         // If a remote executor but no remote cache is specified, assume both at the same target.
         String target = grpcCache ? remoteOptions.remoteCache : remoteOptions.remoteExecutor;
@@ -136,7 +160,8 @@ public final class RemoteModule extends BlazeModule {
                 GoogleAuthUtils.newCallCredentials(authAndTlsOptions),
                 remoteOptions,
                 retrier,
-                digestUtil);
+                digestUtil,
+                getPresentDigests(target + "/" + remoteOptions.remoteInstanceName, remoteOptions));
       } else {
         cache = null;
       }
@@ -153,18 +178,80 @@ public final class RemoteModule extends BlazeModule {
         executor = null;
       }
 
+      remoteCache = cache;
       actionContextProvider = new RemoteActionContextProvider(env, cache, executor, digestUtil);
+      boolean downloadMinimal =
+          cache != null && remoteOptions.remoteDownloadOutputs == RemoteOutputsStrategy.MINIMAL;
+      if (downloadMinimal) {
+        actionInputFetcher =
+            new RemoteActionInputFetcher(cache, env.getExecRoot(), buildRequestId, commandId);
+      } else if (remoteOutputsMayExist) {
+        // Without a fetcher, nothing downloads the outputs that the last build left in the remote
+        // cache, so the actions that produced them run again.
+        env.getSkyframeExecutor().invalidateActionsWithRemoteOutputs();
+      }
+      remoteOutputsMayExist = downloadMinimal;
     } catch (IOException e) {
       env.getReporter().handle(Event.error(e.getMessage()));
       env.getBlazeModuleEnvironment().exit(new AbruptExitException(ExitCode.COMMAND_LINE_ERROR));
     }
   }
 
+  @Nullable
+  private PresentDigestsCache getPresentDigests(String remoteCache, RemoteOptions options) {
+    if (options.remotePresenceCacheTtl <= 0) {
+      presentDigests = null;
+    } else if (presentDigests == null
+        || !presentDigests.canBeReusedFor(remoteCache, options.remotePresenceCacheTtl)) {
+      presentDigests =
+          new PresentDigestsCache(remoteCache, options.remotePresenceCacheTtl, Ticker.systemTicker());
+    }
+    return presentDigests;
+  }
+
+  private OnDiskBlobStore getDiskCache(RemoteOptions options, Path workingDirectory)
+      throws IOException {
+    Path root = SimpleBlobStoreFactory.localDiskCacheRoot(options, workingDirectory);
+    long maxSizeBytes = SimpleBlobStoreFactory.localDiskCacheMaxSizeBytes(options);
+    if (diskCache == null || !diskCache.canBeReusedFor(root, maxSizeBytes)) {
+      closeDiskCache();
+      diskCache = SimpleBlobStoreFactory.createLocalDisk(options, workingDirectory);
+    }
+    return diskCache;
+  }
+
+  private void closeDiskCache() {
+    if (diskCache != null) {
+      diskCache.close();
+      diskCache = null;
+    }
+  }
+
   @Override
   public void executorInit(CommandEnvironment env, BuildRequest request, ExecutorBuilder builder) {
     if (actionContextProvider != null) {
       builder.addActionContextProvider(actionContextProvider);
     }
+    if (actionInputFetcher != null) {
+      builder.setActionInputPrefetcher(actionInputFetcher);
+    }
+  }
+
+  @Override
+  public void afterCommand() {
+    if (remoteCache != null) {
+      if (!remoteCacheUsesDiskCache) {
+        remoteCache.close();
+      }
+      remoteCache = null;
+    }
+    actionContextProvider = null;
+    actionInputFetcher = null;
+  }
+
+  @Override
+  public void blazeShutdown() {
+    closeDiskCache();
   }
 
   @Override
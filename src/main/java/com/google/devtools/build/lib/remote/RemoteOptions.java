@@ -16,6 +16,8 @@ package com.google.devtools.build.lib.remote;
 
 import com.google.devtools.build.lib.util.OptionsUtils;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.common.options.Converters.RangeConverter;
+import com.google.devtools.common.options.EnumConverter;
 import com.google.devtools.common.options.Option;
 import com.google.devtools.common.options.OptionDocumentationCategory;
 import com.google.devtools.common.options.OptionEffectTag;
@@ -79,6 +81,84 @@ public final class RemoteOptions extends OptionsBase {
   )
   public int remoteTimeout;
 
+  @Option(
+    name = "experimental_remote_max_concurrent_downloads",
+    defaultValue = "16",
+    category = "remote",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help = "The maximum number of output files that are downloaded from the remote cache at the "
+        + "same time, across all actions. 1 downloads the outputs of each action one by one.",
+    converter = PositiveIntConverter.class
+  )
+  public int experimentalRemoteMaxConcurrentDownloads;
+
+  @Option(
+    name = "experimental_remote_presence_cache_ttl",
+    defaultValue = "0",
+    category = "remote",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help = "The number of seconds for which Bazel assumes that a blob it found in or uploaded to the "
+        + "remote cache is still there, and that a directory is still there with all of its "
+        + "contents. Such blobs and directories are not looked up again before remote execution. "
+        + "Set this lower than the time after which the remote cache may evict blobs. 0 disables "
+        + "this."
+  )
+  public int remotePresenceCacheTtl;
+
+  @Option(
+    name = "experimental_remote_compression",
+    defaultValue = "false",
+    category = "remote",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help = "If enabled, blobs are gzip-compressed on the wire when they are uploaded to a gRPC "
+        + "remote cache, and downloads from the gRPC and HTTP caches accept compressed "
+        + "responses. Blobs that are small or already compressed, such as zip archives and "
+        + "images, are sent as they are."
+  )
+  public boolean experimentalRemoteCompression;
+
+  @Option(
+    name = "experimental_remote_batch_window_millis",
+    defaultValue = "0",
+    category = "remote",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    converter = NonNegativeIntConverter.class,
+    help = "The number of milliseconds for which Bazel collects the digests that concurrent "
+        + "actions look up in the gRPC remote cache, before it sends them in a single "
+        + "FindMissingBlobs call. Digests that are already being looked up are never looked up "
+        + "twice. 0 sends each lookup right away."
+  )
+  public int experimentalRemoteBatchWindowMillis;
+
+  @Option(
+    name = "experimental_remote_http2",
+    defaultValue = "false",
+    category = "remote",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help = "If enabled, all requests to the HTTP cache share a single HTTP/2 connection, instead of "
+        + "taking a HTTP/1.1 connection each. An https cache must support HTTP/2 via ALPN, and an "
+        + "http cache must accept HTTP/2 without an upgrade."
+  )
+  public boolean experimentalRemoteHttp2;
+
+  @Option(
+    name = "experimental_remote_download_outputs",
+    defaultValue = "all",
+    category = "remote",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    converter = RemoteOutputsStrategyConverter.class,
+    help = "If set to 'minimal', the outputs of remote actions are only downloaded if they are "
+        + "outputs of top-level targets or inputs of local actions; all other outputs stay in the "
+        + "remote cache. If set to 'all', all outputs of remote actions are downloaded."
+  )
+  public RemoteOutputsStrategy remoteDownloadOutputs;
+
   @Option(
     name = "remote_accept_cached",
     defaultValue = "true",
@@ -179,6 +259,19 @@ public final class RemoteOptions extends OptionsBase {
   )
   public double experimentalRemoteRetryJitter;
 
+  @Option(
+    name = "experimental_remote_merkle_tree_cache_size_mb",
+    defaultValue = "128",
+    category = "remote",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    converter = NonNegativeIntConverter.class,
+    help =
+        "Roughly how much memory, in MB, the Merkle trees of inputs that are shared by many actions "
+            + "may take up. Trees that exceed it are evicted and built again when needed."
+  )
+  public int experimentalRemoteMerkleTreeCacheSizeMb;
+
   @Option(
     name = "experimental_remote_spawn_cache",
     defaultValue = "false",
@@ -212,6 +305,18 @@ public final class RemoteOptions extends OptionsBase {
   )
   public PathFragment experimentalLocalDiskCachePath;
 
+  @Option(
+    name = "experimental_local_disk_cache_max_size_mb",
+    defaultValue = "0",
+    category = "remote",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    converter = NonNegativeIntConverter.class,
+    help = "The maximum size of the local disk cache in megabytes. When it is exceeded, the least "
+        + "recently used entries are deleted in the background. 0 means unlimited."
+  )
+  public int experimentalLocalDiskCacheMaxSizeMb;
+
   @Option(
     name = "experimental_guard_against_concurrent_changes",
     defaultValue = "false",
@@ -223,4 +328,31 @@ public final class RemoteOptions extends OptionsBase {
         + "writing of files, which could cause false positives."
   )
   public boolean experimentalGuardAgainstConcurrentChanges;
+
+  /** Which outputs of remote actions to download. */
+  public enum RemoteOutputsStrategy {
+    ALL,
+    MINIMAL
+  }
+
+  /** Converter for {@link RemoteOutputsStrategy}. */
+  public static class RemoteOutputsStrategyConverter extends EnumConverter<RemoteOutputsStrategy> {
+    public RemoteOutputsStrategyConverter() {
+      super(RemoteOutputsStrategy.class, "remote outputs strategy");
+    }
+  }
+
+  /** Converter for options that take a positive number. */
+  public static class PositiveIntConverter extends RangeConverter {
+    public PositiveIntConverter() {
+      super(1, Integer.MAX_VALUE);
+    }
+  }
+
+  /** Converter for options that take a number that is not negative. */
+  public static class NonNegativeIntConverter extends RangeConverter {
+    public NonNegativeIntConverter() {
+      super(0, Integer.MAX_VALUE);
+    }
+  }
 }
@@ -66,6 +66,10 @@ final class RemoteSpawnCache implements SpawnCache {
 
   private final DigestUtil digestUtil;
 
+  // Shared by all spawns of the build, so that the digests of common input directories are only
+  // computed once.
+  private final TreeNodeRepository treeNodeRepository;
+
   RemoteSpawnCache(
       Path execRoot,
       RemoteOptions options,
@@ -83,16 +87,20 @@ final class RemoteSpawnCache implements SpawnCache {
     this.buildRequestId = buildRequestId;
     this.commandId = commandId;
     this.digestUtil = digestUtil;
+    this.treeNodeRepository =
+        new TreeNodeRepository(
+            execRoot, digestUtil, options.experimentalRemoteMerkleTreeCacheSizeMb * 1024L * 1024);
   }
 
   @Override
   public CacheHandle lookup(Spawn spawn, SpawnExecutionPolicy policy)
       throws InterruptedException, IOException, ExecException {
-    // Temporary hack: the TreeNodeRepository should be created and maintained upstream!
     TreeNodeRepository repository =
-        new TreeNodeRepository(execRoot, policy.getActionInputFileCache(), digestUtil);
+        treeNodeRepository.withInputFileCache(policy.getActionInputFileCache());
     SortedMap<PathFragment, ActionInput> inputMap = policy.getInputMapping();
-    TreeNode inputRoot = repository.buildFromActionInputs(inputMap);
+    TreeNode inputRoot =
+        repository.buildFromSpawnInputs(
+            spawn.getInputFiles(), policy.getArtifactExpander(), inputMap);
     repository.computeMerkleDigests(inputRoot);
     Command command = RemoteSpawnRunner.buildCommand(spawn.getArguments(), spawn.getEnvironment());
     Action action =
@@ -119,9 +127,7 @@ final class RemoteSpawnCache implements SpawnCache {
               : null;
       if (result != null) {
         // We don't cache failed actions, so we know the outputs exist.
-        // For now, download all outputs locally; in the future, we can reuse the digests to
-        // just update the TreeNodeRepository and continue the build.
-        remoteCache.download(result, execRoot, policy.getFileOutErr());
+        RemoteSpawnRunner.download(options, remoteCache, execRoot, spawn, policy, result);
         SpawnResult spawnResult =
             new SpawnResult.Builder()
                 .setStatus(Status.SUCCESS)
@@ -27,6 +27,7 @@ import com.google.devtools.build.lib.actions.SpawnResult.Status;
 import com.google.devtools.build.lib.actions.Spawns;
 import com.google.devtools.build.lib.actions.cache.VirtualActionInput;
 import com.google.devtools.build.lib.analysis.platform.PlatformInfo;
+import com.google.devtools.build.lib.analysis.test.TestRunnerAction;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.events.Event;
@@ -34,6 +35,7 @@ import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.exec.SpawnExecException;
 import com.google.devtools.build.lib.exec.SpawnRunner;
 import com.google.devtools.build.lib.remote.DigestUtil.ActionKey;
+import com.google.devtools.build.lib.remote.RemoteOptions.RemoteOutputsStrategy;
 import com.google.devtools.build.lib.remote.Retrier.RetryException;
 import com.google.devtools.build.lib.remote.TreeNodeRepository.TreeNode;
 import com.google.devtools.build.lib.util.ExitCode;
@@ -83,6 +85,10 @@ class RemoteSpawnRunner implements SpawnRunner {
   private final String commandId;
   private final DigestUtil digestUtil;
 
+  // Shared by all spawns of the build, so that the digests of common input directories are only
+  // computed once.
+  private final TreeNodeRepository treeNodeRepository;
+
   // Used to ensure that a warning is reported only once.
   private final AtomicBoolean warningReported = new AtomicBoolean();
 
@@ -107,6 +113,9 @@ class RemoteSpawnRunner implements SpawnRunner {
     this.buildRequestId = buildRequestId;
     this.commandId = commandId;
     this.digestUtil = digestUtil;
+    this.treeNodeRepository =
+        new TreeNodeRepository(
+            execRoot, digestUtil, options.experimentalRemoteMerkleTreeCacheSizeMb * 1024L * 1024);
   }
 
   @Override
@@ -117,11 +126,12 @@ class RemoteSpawnRunner implements SpawnRunner {
     }
 
     policy.report(ProgressStatus.EXECUTING, "remote");
-    // Temporary hack: the TreeNodeRepository should be created and maintained upstream!
     ActionInputFileCache inputFileCache = policy.getActionInputFileCache();
-    TreeNodeRepository repository = new TreeNodeRepository(execRoot, inputFileCache, digestUtil);
+    TreeNodeRepository repository = treeNodeRepository.withInputFileCache(inputFileCache);
     SortedMap<PathFragment, ActionInput> inputMap = policy.getInputMapping();
-    TreeNode inputRoot = repository.buildFromActionInputs(inputMap);
+    TreeNode inputRoot =
+        repository.buildFromSpawnInputs(
+            spawn.getInputFiles(), policy.getArtifactExpander(), inputMap);
     repository.computeMerkleDigests(inputRoot);
     Command command = buildCommand(spawn.getArguments(), spawn.getEnvironment());
     Action action =
@@ -156,7 +166,7 @@ class RemoteSpawnRunner implements SpawnRunner {
                     + actionKey.getDigest());
           }
           try {
-            return downloadRemoteResults(cachedResult, policy.getFileOutErr());
+            return downloadRemoteResults(spawn, policy, cachedResult);
           } catch (CacheNotFoundException e) {
             // No cache hit, so we fall through to local or remote execution.
             // We set acceptCachedResult to false in order to force the action re-execution.
@@ -193,7 +203,7 @@ class RemoteSpawnRunner implements SpawnRunner {
       }
 
       try {
-        return downloadRemoteResults(result, policy.getFileOutErr());
+        return downloadRemoteResults(spawn, policy, result);
       } catch (IOException e) {
         return execLocallyOrFail(spawn, policy, inputMap, actionKey, uploadLocalResults, e);
       }
@@ -202,9 +212,10 @@ class RemoteSpawnRunner implements SpawnRunner {
     }
   }
 
-  private SpawnResult downloadRemoteResults(ActionResult result, FileOutErr outErr)
+  private SpawnResult downloadRemoteResults(
+      Spawn spawn, SpawnExecutionPolicy policy, ActionResult result)
       throws ExecException, IOException, InterruptedException {
-    remoteCache.download(result, execRoot, outErr);
+    download(options, remoteCache, execRoot, spawn, policy, result);
     int exitCode = result.getExitCode();
     return new SpawnResult.Builder()
         .setStatus(exitCode == 0 ? Status.SUCCESS : Status.NON_ZERO_EXIT)
@@ -212,6 +223,37 @@ class RemoteSpawnRunner implements SpawnRunner {
         .build();
   }
 
+  /**
+   * Downloads the outputs of a remote action, or, with {@code
+   * --experimental_remote_download_outputs=minimal}, only injects their metadata where possible.
+   * Bazel itself reads the outputs of actions that discover their inputs, e.g. .d files, and of
+   * tests, so these are always downloaded.
+   */
+  static void download(
+      RemoteOptions options,
+      AbstractRemoteActionCache remoteCache,
+      Path execRoot,
+      Spawn spawn,
+      SpawnExecutionPolicy policy,
+      ActionResult result)
+      throws ExecException, IOException, InterruptedException {
+    // Another runner may execute the spawn at the same time, and may have won.
+    policy.lockOutputFiles();
+    if (options.remoteDownloadOutputs == RemoteOutputsStrategy.ALL
+        || result.getExitCode() != 0
+        || spawn.getResourceOwner().discoversInputs()
+        || spawn.getResourceOwner() instanceof TestRunnerAction) {
+      remoteCache.download(result, execRoot, policy.getFileOutErr());
+    } else {
+      remoteCache.downloadMinimal(
+          result,
+          spawn.getOutputFiles(),
+          execRoot,
+          policy.getFileOutErr(),
+          policy.getMetadataHandler());
+    }
+  }
+
   private SpawnResult execLocallyOrFail(
       Spawn spawn,
       SpawnExecutionPolicy policy,
@@ -20,7 +20,9 @@ import com.google.devtools.build.lib.actions.cache.VirtualActionInput;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.remote.DigestUtil.ActionKey;
 import com.google.devtools.build.lib.remote.TreeNodeRepository.TreeNode;
+import com.google.devtools.build.lib.remote.blobstore.OnDiskBlobStore;
 import com.google.devtools.build.lib.remote.blobstore.SimpleBlobStore;
+import com.google.devtools.build.lib.util.OS;
 import com.google.devtools.build.lib.util.io.FileOutErr;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
@@ -39,6 +41,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Collection;
 import java.util.Map;
+import javax.annotation.Nullable;
 
 /**
  * A RemoteActionCache implementation that uses a concurrent map as a distributed storage for files
@@ -46,6 +49,9 @@ import java.util.Map;
  *
  * <p>The thread safety is guaranteed by the underlying map.
  *
+ * <p>If enabled, files found in an {@link OnDiskBlobStore} are hard linked into place rather than
+ * copied, after their digest was verified, see {@link OnDiskBlobStore#linkTo}.
+ *
  * <p>Note that this class is used from src/tools/remote.
  */
 @ThreadSafe
@@ -53,10 +59,26 @@ public final class SimpleBlobStoreActionCache extends AbstractRemoteActionCache
   private static final int MAX_BLOB_SIZE_FOR_INLINE = 10 * 1024;
 
   private final SimpleBlobStore blobStore;
+  private final boolean linkFromDiskCache;
 
   public SimpleBlobStoreActionCache(SimpleBlobStore blobStore, DigestUtil digestUtil) {
-    super(digestUtil);
+    this(blobStore, digestUtil, 1, /* linkFromDiskCache= */ false);
+  }
+
+  /**
+   * @param linkFromDiskCache whether to hard link downloaded files from an {@link OnDiskBlobStore}.
+   *     The files then share their contents with the store, so this must only be enabled for files
+   *     that are not modified in place, like the outputs in Bazel's output tree.
+   */
+  public SimpleBlobStoreActionCache(
+      SimpleBlobStore blobStore,
+      DigestUtil digestUtil,
+      int maxConcurrentDownloads,
+      boolean linkFromDiskCache) {
+    super(digestUtil, maxConcurrentDownloads);
     this.blobStore = blobStore;
+    this.linkFromDiskCache =
+        linkFromDiskCache && blobStore instanceof OnDiskBlobStore && OS.getCurrent() != OS.WINDOWS;
   }
 
   @Override
@@ -211,6 +233,24 @@ public final class SimpleBlobStoreActionCache extends AbstractRemoteActionCache
     blobStore.close();
   }
 
+  @Override
+  protected void downloadFile(
+      Path path, Digest digest, boolean isExecutable, @Nullable ByteString content)
+      throws IOException, InterruptedException {
+    if (linkFromDiskCache
+        && digest.getSizeBytes() != 0
+        && (content == null || content.isEmpty())) {
+      FileSystemUtils.createDirectoryAndParents(path.getParentDirectory());
+      path.delete();
+      // A linked file is always executable, like all outputs once the action is done.
+      if (((OnDiskBlobStore) blobStore)
+          .linkTo(digest.getHash(), path, blob -> digestUtil.compute(blob).equals(digest))) {
+        return;
+      }
+    }
+    super.downloadFile(path, digest, isExecutable, content);
+  }
+
   @Override
   protected void downloadBlob(Digest digest, Path dest) throws IOException, InterruptedException {
     try (OutputStream out = dest.getOutputStream()) {
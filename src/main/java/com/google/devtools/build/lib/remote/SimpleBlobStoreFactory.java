@@ -17,6 +17,7 @@ package com.google.devtools.build.lib.remote;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.auth.Credentials;
+import com.google.devtools.build.lib.clock.BlazeClock;
 import com.google.devtools.build.lib.remote.blobstore.OnDiskBlobStore;
 import com.google.devtools.build.lib.remote.blobstore.SimpleBlobStore;
 import com.google.devtools.build.lib.remote.blobstore.http.HttpBlobStore;
@@ -40,16 +41,28 @@ public final class SimpleBlobStoreFactory {
       return new HttpBlobStore(
           URI.create(options.remoteHttpCache),
           (int) TimeUnit.SECONDS.toMillis(options.remoteTimeout),
-          creds);
+          creds,
+          options.experimentalRemoteCompression,
+          options.experimentalRemoteHttp2);
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
   }
 
-  public static SimpleBlobStore createLocalDisk(RemoteOptions options, Path workingDirectory)
+  public static OnDiskBlobStore createLocalDisk(RemoteOptions options, Path workingDirectory)
       throws IOException {
     return new OnDiskBlobStore(
-        workingDirectory.getRelative(checkNotNull(options.experimentalLocalDiskCachePath)));
+        localDiskCacheRoot(options, workingDirectory),
+        localDiskCacheMaxSizeBytes(options),
+        BlazeClock.instance());
+  }
+
+  public static Path localDiskCacheRoot(RemoteOptions options, Path workingDirectory) {
+    return workingDirectory.getRelative(checkNotNull(options.experimentalLocalDiskCachePath));
+  }
+
+  public static long localDiskCacheMaxSizeBytes(RemoteOptions options) {
+    return options.experimentalLocalDiskCacheMaxSizeMb * 1024L * 1024L;
   }
 
   public static SimpleBlobStore create(
@@ -74,7 +87,7 @@ public final class SimpleBlobStoreFactory {
     return options.experimentalLocalDiskCache;
   }
 
-  private static boolean isRestUrlOptions(RemoteOptions options) {
+  public static boolean isRestUrlOptions(RemoteOptions options) {
     return options.remoteHttpCache != null;
   }
 }
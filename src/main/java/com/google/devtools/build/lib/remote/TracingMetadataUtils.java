@@ -50,11 +50,20 @@ public class TracingMetadataUtils {
    */
   public static Context contextWithMetadata(
       String buildRequestId, String commandId, ActionKey actionKey) {
+    return contextWithMetadata(buildRequestId, commandId, actionKey.getDigest().getHash());
+  }
+
+  /**
+   * Like {@link #contextWithMetadata(String, String, ActionKey)}, for requests that are not made on
+   * behalf of a single action. {@code actionId} describes their purpose instead.
+   */
+  public static Context contextWithMetadata(
+      String buildRequestId, String commandId, String actionId) {
     RequestMetadata metadata =
         RequestMetadata.newBuilder()
             .setCorrelatedInvocationsId(buildRequestId)
             .setToolInvocationId(commandId)
-            .setActionId(actionKey.getDigest().getHash())
+            .setActionId(actionId)
             .setToolDetails(
                 ToolDetails.newBuilder()
                     .setToolName("bazel")
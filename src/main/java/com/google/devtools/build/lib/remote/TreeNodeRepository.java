@@ -16,17 +16,24 @@ package com.google.devtools.build.lib.remote;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Interner;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.MapMaker;
 import com.google.common.collect.TreeTraverser;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputFileCache;
 import com.google.devtools.build.lib.actions.ActionInputHelper;
+import com.google.devtools.build.lib.actions.Artifact.ArtifactExpander;
 import com.google.devtools.build.lib.actions.cache.Metadata;
 import com.google.devtools.build.lib.actions.cache.VirtualActionInput;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetView;
 import com.google.devtools.build.lib.concurrent.BlazeInterners;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
@@ -41,11 +48,13 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import javax.annotation.Nullable;
 
 /**
@@ -79,6 +88,14 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
     private final ImmutableList<ChildEntry> childEntries; // no need to make it a map thus far.
     @Nullable private final ActionInput actionInput;
     private final boolean isLeaf;
+    // The number of inputs in the tree. The descendants of an artifact directory are not counted.
+    private final int inputCount;
+
+    // Computed by the repository. The directory is set last, so that it being set implies that the
+    // Merkle digests of the node and of all of its descendants are set. Keeping them in the node
+    // means that they are freed together with it.
+    @Nullable private volatile Digest merkleDigest;
+    @Nullable private volatile Directory directory;
 
     /** A pair of path segment, TreeNode. */
     @Immutable
@@ -131,6 +148,15 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
       } else {
         hashCode = Arrays.hashCode(this.childEntries.toArray());
       }
+      int count = 0;
+      if (actionInput != null) {
+        count = 1;
+      } else {
+        for (ChildEntry entry : this.childEntries) {
+          count += entry.child.inputCount;
+        }
+      }
+      inputCount = count;
     }
 
     // Should only be called by the TreeNodeRepository.
@@ -141,6 +167,7 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
       this.childEntries = ImmutableList.of();
       hashCode = actionInput.hashCode(); // This will ensure efficient interning of TreeNodes as
       // long as all ActionInputs either implement data-based hashCode or are interned themselves.
+      inputCount = 1;
     }
 
     public ActionInput getActionInput() {
@@ -200,33 +227,128 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
     }
   }
 
-  private static final TreeNode EMPTY_NODE =
-      new TreeNode(ImmutableList.<TreeNode.ChildEntry>of(), null);
+  public static final long DEFAULT_NESTED_SET_TREE_CACHE_SIZE_BYTES = 128L * 1024 * 1024;
+
+  // A rough estimate of the memory that a TreeNode and its child entry take up.
+  private static final int ESTIMATED_TREE_NODE_SIZE_BYTES = 100;
+
+  /** The tree of the inputs of a nested set, and the number of tree nodes that were built for it. */
+  private static final class NestedSetTree {
+    // Null if the inputs cannot be composed into a tree, e.g. because two of them have the same
+    // path.
+    @Nullable private final TreeNode root;
+    private final int builtNodes;
+
+    NestedSetTree(@Nullable TreeNode root, int builtNodes) {
+      this.root = root;
+      this.builtNodes = builtNodes;
+    }
+  }
 
   // Keep only one canonical instance of every TreeNode in the repository.
-  private final Interner<TreeNode> interner = BlazeInterners.newWeakInterner();
+  private final Interner<TreeNode> interner;
+  // Not shared between repositories, as it keeps the Merkle digest computed by this one.
+  private final TreeNode emptyNode;
+  // The trees of the nested sets of inputs, keyed by the identifier of their NestedSetView, so that
+  // the inputs that many actions share, such as a transitive classpath, are only turned into a tree
+  // once. The trees keep their nodes, and so their Merkle digests, alive.
+  private final Cache<Object, NestedSetTree> nestedSetTreeCache;
   // Merkle hashes are computed and cached by the repository, therefore execRoot must
   // be part of the state.
   private final Path execRoot;
-  private final ActionInputFileCache inputFileCache;
+  @Nullable private final ActionInputFileCache inputFileCache;
   // For directories that are themselves artifacts, map of the ActionInput to the Merkle hash
-  private final Map<ActionInput, Digest> inputDirectoryDigestCache = new HashMap<>();
-  private final Map<TreeNode, Digest> treeNodeDigestCache = new HashMap<>();
-  private final Map<Digest, TreeNode> digestTreeNodeCache = new HashMap<>();
-  private final Map<TreeNode, Directory> directoryCache = new HashMap<>();
-  private final Map<VirtualActionInput, Digest> virtualInputDigestCache = new HashMap<>();
-  private final Map<Digest, VirtualActionInput> digestVirtualInputCache = new HashMap<>();
+  private final Map<ActionInput, Digest> inputDirectoryDigestCache;
+  // Does not keep the nodes alive, which keep their Merkle digest and Directory.
+  private final Map<Digest, TreeNode> digestTreeNodeCache;
+  // Neither keeps the virtual inputs alive: the leaf nodes of the trees that contain them do, and
+  // the repository may be shared by all spawns of a build.
+  private final Map<VirtualActionInput, Digest> virtualInputDigestCache;
+  private final Map<Digest, VirtualActionInput> digestVirtualInputCache;
   private final DigestUtil digestUtil;
 
   public TreeNodeRepository(
       Path execRoot, ActionInputFileCache inputFileCache, DigestUtil digestUtil) {
+    this(execRoot, Preconditions.checkNotNull(inputFileCache), digestUtil, null);
+  }
+
+  /**
+   * Creates a repository that can only build trees. Use {@link #withInputFileCache} to compute
+   * their Merkle digests.
+   */
+  public TreeNodeRepository(Path execRoot, DigestUtil digestUtil) {
+    this(execRoot, digestUtil, DEFAULT_NESTED_SET_TREE_CACHE_SIZE_BYTES);
+  }
+
+  /**
+   * Creates a repository that can only build trees. Use {@link #withInputFileCache} to compute
+   * their Merkle digests.
+   *
+   * @param nestedSetTreeCacheSizeBytes roughly how much memory the trees of nested sets of inputs
+   *     may take up, see {@link #buildFromSpawnInputs}
+   */
+  public TreeNodeRepository(
+      Path execRoot, DigestUtil digestUtil, long nestedSetTreeCacheSizeBytes) {
+    this(execRoot, null, digestUtil, null, nestedSetTreeCacheSizeBytes);
+  }
+
+  private TreeNodeRepository(
+      Path execRoot,
+      @Nullable ActionInputFileCache inputFileCache,
+      DigestUtil digestUtil,
+      @Nullable TreeNodeRepository shared) {
+    this(execRoot, inputFileCache, digestUtil, shared, DEFAULT_NESTED_SET_TREE_CACHE_SIZE_BYTES);
+  }
+
+  private TreeNodeRepository(
+      Path execRoot,
+      @Nullable ActionInputFileCache inputFileCache,
+      DigestUtil digestUtil,
+      @Nullable TreeNodeRepository shared,
+      long nestedSetTreeCacheSizeBytes) {
     this.execRoot = execRoot;
     this.inputFileCache = inputFileCache;
     this.digestUtil = digestUtil;
+    if (shared != null) {
+      interner = shared.interner;
+      emptyNode = shared.emptyNode;
+      nestedSetTreeCache = shared.nestedSetTreeCache;
+      inputDirectoryDigestCache = shared.inputDirectoryDigestCache;
+      digestTreeNodeCache = shared.digestTreeNodeCache;
+      virtualInputDigestCache = shared.virtualInputDigestCache;
+      digestVirtualInputCache = shared.digestVirtualInputCache;
+    } else {
+      interner = BlazeInterners.newWeakInterner();
+      emptyNode = interner.intern(new TreeNode(ImmutableList.<TreeNode.ChildEntry>of(), null));
+      nestedSetTreeCache =
+          CacheBuilder.newBuilder()
+              .weakKeys()
+              .maximumWeight(nestedSetTreeCacheSizeBytes / ESTIMATED_TREE_NODE_SIZE_BYTES)
+              .<Object, NestedSetTree>weigher((key, tree) -> Math.max(1, tree.builtNodes))
+              .build();
+      inputDirectoryDigestCache = new ConcurrentHashMap<>();
+      digestTreeNodeCache = new MapMaker().weakValues().makeMap();
+      virtualInputDigestCache = new MapMaker().weakKeys().makeMap();
+      digestVirtualInputCache = new MapMaker().weakValues().makeMap();
+    }
+  }
+
+  /**
+   * Returns a repository that shares all tree nodes and cached Merkle digests with this one, but
+   * reads the digests of input files from {@code inputFileCache}.
+   *
+   * <p>Sharing one repository between all actions of a build means that the Merkle digests of
+   * directories that appear in the inputs of many actions, such as those of a large library, are
+   * only computed once. This relies on an input having the same contents for all actions of the
+   * build.
+   */
+  public TreeNodeRepository withInputFileCache(ActionInputFileCache inputFileCache) {
+    return new TreeNodeRepository(
+        execRoot, Preconditions.checkNotNull(inputFileCache), digestUtil, this);
   }
 
   public ActionInputFileCache getInputFileCache() {
-    return inputFileCache;
+    return Preconditions.checkNotNull(inputFileCache, "no input file cache");
   }
 
   @Override
@@ -271,6 +393,153 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
     return buildParentNode(inputs, segments.build(), 0, inputs.size(), 0);
   }
 
+  /**
+   * Builds the tree of the inputs of a spawn. Returns the same tree as {@link
+   * #buildFromActionInputs}{@code (inputMap)}.
+   *
+   * <p>If the inputs of the spawn are a {@link NestedSet}, the tree is composed of the trees of its
+   * transitive members, which are built once and reused by all spawns that share them. Only the
+   * runfiles and filesets of the spawn are added from {@code inputMap}. The composed tree is only
+   * used if it maps every path of {@code inputMap} to the same input, and the tree is built from
+   * {@code inputMap} otherwise.
+   *
+   * @param spawnInputs the input files of the spawn
+   * @param artifactExpander the expander that {@code inputMap} was computed with
+   * @param inputMap the input mapping of the spawn
+   */
+  public TreeNode buildFromSpawnInputs(
+      Iterable<? extends ActionInput> spawnInputs,
+      @Nullable ArtifactExpander artifactExpander,
+      SortedMap<PathFragment, ActionInput> inputMap)
+      throws IOException {
+    if (spawnInputs instanceof NestedSet && artifactExpander != null) {
+      @SuppressWarnings("unchecked")
+      NestedSetView<ActionInput> view = new NestedSetView<>((NestedSet<ActionInput>) spawnInputs);
+      TreeNode root = buildFromNestedSet(view, artifactExpander);
+      if (root != null) {
+        SortedMap<PathFragment, ActionInput> otherInputs = new TreeMap<>();
+        for (Map.Entry<PathFragment, ActionInput> e : inputMap.entrySet()) {
+          if (!e.getKey().equals(e.getValue().getExecPath())) {
+            otherInputs.put(e.getKey(), e.getValue());
+          }
+        }
+        root = merge(root, buildFromActionInputs(otherInputs), new int[1]);
+        // Runfiles or filesets that are mapped to their own exec path are missing from the tree,
+        // and the mapping may have picked another input than the tree where two have the same
+        // path.
+        if (root != null && hasInputs(root, inputMap)) {
+          return root;
+        }
+      }
+    }
+    return buildFromActionInputs(inputMap);
+  }
+
+  /** Returns whether the tree of {@code root} has exactly the inputs of {@code inputMap}. */
+  private static boolean hasInputs(TreeNode root, SortedMap<PathFragment, ActionInput> inputMap) {
+    return root.inputCount == inputMap.size()
+        && hasInputs(root, PathFragment.EMPTY_FRAGMENT, inputMap);
+  }
+
+  private static boolean hasInputs(
+      TreeNode node, PathFragment path, SortedMap<PathFragment, ActionInput> inputMap) {
+    if (node.getActionInput() != null) {
+      return node.getActionInput().equals(inputMap.get(path));
+    }
+    for (TreeNode.ChildEntry entry : node.getChildEntries()) {
+      if (!hasInputs(entry.getChild(), path.getRelative(entry.getSegment()), inputMap)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Nullable
+  private TreeNode buildFromNestedSet(
+      NestedSetView<ActionInput> view, ArtifactExpander artifactExpander) throws IOException {
+    try {
+      return nestedSetTreeCache.get(
+              view.identifier(), () -> buildNestedSetTree(view, artifactExpander))
+          .root;
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private NestedSetTree buildNestedSetTree(
+      NestedSetView<ActionInput> view, ArtifactExpander artifactExpander) throws IOException {
+    SortedMap<PathFragment, ActionInput> directs = new TreeMap<>();
+    int builtNodes = 0;
+    for (ActionInput input : ActionInputHelper.expandArtifacts(view.directs(), artifactExpander)) {
+      if (directs.putIfAbsent(input.getExecPath(), input) == null) {
+        builtNodes += input.getExecPath().segmentCount();
+      }
+    }
+    TreeNode root = buildFromActionInputs(directs);
+    int[] mergedNodes = new int[1];
+    for (NestedSetView<ActionInput> transitive : view.transitives()) {
+      TreeNode transitiveRoot = buildFromNestedSet(transitive, artifactExpander);
+      if (transitiveRoot == null) {
+        return new NestedSetTree(null, 0);
+      }
+      root = merge(root, transitiveRoot, mergedNodes);
+      if (root == null) {
+        return new NestedSetTree(null, 0);
+      }
+    }
+    return new NestedSetTree(root, builtNodes + mergedNodes[0]);
+  }
+
+  /**
+   * Returns the tree that has the inputs of both {@code a} and {@code b}, or null if they have
+   * different inputs at the same path. Counts the nodes that it builds in {@code builtNodes}.
+   */
+  @Nullable
+  private TreeNode merge(TreeNode a, TreeNode b, int[] builtNodes) {
+    // Pointer comparisons only, because TreeNodes are interned.
+    if (a == b || b == emptyNode) {
+      return a;
+    }
+    if (a == emptyNode) {
+      return b;
+    }
+    if (a.getActionInput() != null || b.getActionInput() != null) {
+      return null;
+    }
+    List<TreeNode.ChildEntry> aEntries = a.getChildEntries();
+    List<TreeNode.ChildEntry> bEntries = b.getChildEntries();
+    List<TreeNode.ChildEntry> entries = new ArrayList<>(aEntries.size() + bEntries.size());
+    int i = 0;
+    int j = 0;
+    while (i < aEntries.size() && j < bEntries.size()) {
+      TreeNode.ChildEntry aEntry = aEntries.get(i);
+      TreeNode.ChildEntry bEntry = bEntries.get(j);
+      // The same order as that of the segments of a PathFragment.
+      int cmp = aEntry.getSegment().compareTo(bEntry.getSegment());
+      if (cmp < 0) {
+        entries.add(aEntry);
+        i++;
+      } else if (cmp > 0) {
+        entries.add(bEntry);
+        j++;
+      } else {
+        TreeNode child = merge(aEntry.getChild(), bEntry.getChild(), builtNodes);
+        if (child == null) {
+          return null;
+        }
+        entries.add(
+            child == aEntry.getChild() ? aEntry : new TreeNode.ChildEntry(aEntry.getSegment(), child));
+        i++;
+        j++;
+      }
+    }
+    entries.addAll(aEntries.subList(i, aEntries.size()));
+    entries.addAll(bEntries.subList(j, bEntries.size()));
+    builtNodes[0]++;
+    return interner.intern(new TreeNode(entries, null));
+  }
+
   // Expand the descendant of an artifact (input) directory
   private List<TreeNode.ChildEntry> buildInputDirectoryEntries(Path path) throws IOException {
     List<Dirent> sortedDirent = new ArrayList<>(path.readdir(SYMLINK_POLICY));
@@ -304,7 +573,7 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
       // We sometimes have actions with no inputs (e.g., echo "xyz" > $@), so we need to handle that
       // case here.
       Preconditions.checkState(inputs.isEmpty());
-      return EMPTY_NODE;
+      return emptyNode;
     }
     if (segmentIndex == segments.get(inputsStart).size()) {
       // Leaf node reached. Must be unique.
@@ -336,11 +605,13 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
     return interner.intern(new TreeNode(entries, null));
   }
 
-  private synchronized Directory getOrComputeDirectory(TreeNode node) throws IOException {
+  private Directory getOrComputeDirectory(TreeNode node) throws IOException {
     // Assumes all child digests have already been computed!
     Preconditions.checkArgument(!node.isLeaf());
-    Directory directory = directoryCache.get(node);
+    Directory directory = node.directory;
     if (directory == null) {
+      // Another thread may compute the same directory concurrently, with the same result.
+      ActionInputFileCache inputFileCache = getInputFileCache();
       Directory.Builder b = Directory.newBuilder();
       for (TreeNode.ChildEntry entry : node.getChildEntries()) {
         TreeNode child = entry.getChild();
@@ -364,7 +635,7 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
                 .setIsExecutable(execRoot.getRelative(input.getExecPathString()).isExecutable());
           }
         } else {
-          Digest childDigest = Preconditions.checkNotNull(treeNodeDigestCache.get(child));
+          Digest childDigest = Preconditions.checkNotNull(child.merkleDigest);
           if (child.getActionInput() != null) {
             inputDirectoryDigestCache.put(child.getActionInput(), childDigest);
           }
@@ -372,10 +643,10 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
         }
       }
       directory = b.build();
-      directoryCache.put(node, directory);
       Digest digest = digestUtil.compute(directory);
-      treeNodeDigestCache.put(node, digest);
+      node.merkleDigest = digest;
       digestTreeNodeCache.put(digest, node);
+      node.directory = directory;
     }
     return directory;
   }
@@ -383,11 +654,9 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
   // Recursively traverses the tree, expanding and computing Merkle digests for nodes for which
   // they have not yet been computed and cached.
   public void computeMerkleDigests(TreeNode root) throws IOException {
-    synchronized (this) {
-      if (directoryCache.get(root) != null) {
-        // Strong assumption: the cache is valid, i.e. parent present implies children present.
-        return;
-      }
+    if (root.directory != null) {
+      // Strong assumption: the cache is valid, i.e. parent present implies children present.
+      return;
     }
     if (!root.isLeaf()) {
       for (TreeNode child : children(root)) {
@@ -404,7 +673,7 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
   public Digest getMerkleDigest(TreeNode node) throws IOException {
     return node.isLeaf()
         ? actionInputToDigest(node.getActionInput())
-        : treeNodeDigestCache.get(node);
+        : node.merkleDigest;
   }
 
   /**
@@ -417,7 +686,7 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
       digests.add(
           node.isLeaf()
               ? actionInputToDigest(node.getActionInput())
-              : Preconditions.checkNotNull(treeNodeDigestCache.get(node)));
+              : Preconditions.checkNotNull(node.merkleDigest));
     }
     return digests.build();
   }
@@ -426,6 +695,7 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
     if (input instanceof VirtualActionInput) {
       return Preconditions.checkNotNull(virtualInputDigestCache.get(input));
     }
+    ActionInputFileCache inputFileCache = getInputFileCache();
     Metadata metadata = Preconditions.checkNotNull(inputFileCache.getMetadata(input));
     byte[] digest = metadata.getDigest();
     if (digest == null) {
@@ -449,7 +719,7 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
     ImmutableList.Builder<Directory> directories = ImmutableList.builder();
     for (TreeNode node : descendants(root)) {
       if (!node.isLeaf()) {
-        directories.add(Preconditions.checkNotNull(directoryCache.get(node)));
+        directories.add(Preconditions.checkNotNull(node.directory));
       }
     }
     return directories.build();
@@ -464,10 +734,10 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
     for (Digest digest : digests) {
       TreeNode treeNode = digestTreeNodeCache.get(digest);
       if (treeNode != null) {
-        nodes.add(Preconditions.checkNotNull(directoryCache.get(treeNode)));
+        nodes.add(Preconditions.checkNotNull(treeNode.directory));
       } else { // If not there, it must be an ActionInput.
         ByteString hexDigest = ByteString.copyFromUtf8(digest.getHash());
-        ActionInput input = inputFileCache.getInputFromDigest(hexDigest);
+        ActionInput input = getInputFileCache().getInputFromDigest(hexDigest);
         if (input == null) {
           // ... or a VirtualActionInput.
           input = digestVirtualInputCache.get(digest);
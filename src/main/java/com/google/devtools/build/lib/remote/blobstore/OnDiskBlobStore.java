@@ -13,36 +13,190 @@
 // limitations under the License.
 package com.google.devtools.build.lib.remote.blobstore;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.clock.Clock;
+import com.google.devtools.build.lib.clock.JavaClock;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-/** A on-disk store for the remote action cache. */
+/**
+ * A on-disk store for the remote action cache.
+ *
+ * <p>Blobs are stored under {@code <root>/<first two characters of the key>/<key>}, so that no
+ * single directory grows too large. The store keeps an index of the size and last access time of
+ * every blob in memory, which is meant to live as long as the server. The index is persisted in
+ * {@code <root>/index} when the store is closed, and that file is deleted once it is loaded again,
+ * so that a server that dies without closing the store does not leave a stale index behind. If a
+ * maximum size is set, the least recently used blobs are deleted by a background thread whenever
+ * the total size exceeds it, until the total size is back below {@link #LOW_WATERMARK} of it.
+ *
+ * <p>Blobs written by other processes sharing the same directory are only picked up by a full
+ * scan of the directory, which is done if there is no index or the last scan is older than
+ * {@link #RESCAN_INTERVAL_MILLIS}. The scan also moves blobs that an older version stored directly
+ * under {@code <root>} into their subdirectories, and deletes the temporary files it left there.
+ */
 public final class OnDiskBlobStore implements SimpleBlobStore {
+  private static final Logger logger = Logger.getLogger(OnDiskBlobStore.class.getName());
+
+  private static final int VERSION = 1;
+  private static final String INDEX_FILE = "index";
+  private static final String TMP_DIR = "tmp";
+
+  @VisibleForTesting static final double LOW_WATERMARK = 0.9;
+  @VisibleForTesting static final long RESCAN_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  private static final class Entry {
+    final long size;
+    long lastAccessMillis;
+
+    Entry(long size, long lastAccessMillis) {
+      this.size = size;
+      this.lastAccessMillis = lastAccessMillis;
+    }
+  }
+
   private final Path root;
+  private final long maxSizeBytes;
+  private final Clock clock;
 
-  public OnDiskBlobStore(Path root) {
+  /** Entries in least recently used order. Guarded by {@code this}. */
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  /** Sum of the sizes of {@link #entries}. Guarded by {@code this}. */
+  private long totalSizeBytes;
+  /** Time of the last full scan of the directory. Guarded by {@code this}. */
+  private long lastScanMillis;
+
+  private final ExecutorService maintenanceExecutor =
+      Executors.newSingleThreadExecutor(
+          new ThreadFactoryBuilder()
+              .setNameFormat("disk-cache-maintenance-%d")
+              .setDaemon(true)
+              .build());
+  private final AtomicBoolean evictionScheduled = new AtomicBoolean();
+  private final AtomicLong evictedBlobs = new AtomicLong();
+  private volatile boolean closing;
+
+  public OnDiskBlobStore(Path root) throws IOException {
+    this(root, 0, new JavaClock());
+  }
+
+  /**
+   * Creates a store in {@code root} that holds at most {@code maxSizeBytes} bytes of blobs, or an
+   * unlimited amount if {@code maxSizeBytes} is 0.
+   */
+  public OnDiskBlobStore(Path root, long maxSizeBytes, Clock clock) throws IOException {
+    Preconditions.checkArgument(maxSizeBytes >= 0, "Negative maximum size: %s", maxSizeBytes);
     this.root = root;
+    this.maxSizeBytes = maxSizeBytes;
+    this.clock = clock;
+    root.getRelative(TMP_DIR).createDirectoryAndParents();
+    boolean loaded = loadIndex();
+    if (!loaded || clock.currentTimeMillis() - lastScanMillis > RESCAN_INTERVAL_MILLIS) {
+      maintenanceExecutor.execute(this::scanQuietly);
+    }
+    maybeScheduleEviction();
+  }
+
+  /** Whether this store can be used by a later command for {@code root} and {@code maxSizeBytes}. */
+  public boolean canBeReusedFor(Path root, long maxSizeBytes) {
+    return this.root.equals(root) && this.maxSizeBytes == maxSizeBytes;
   }
 
   @Override
-  public boolean containsKey(String key) {
-    return toPath(key).exists();
+  public boolean containsKey(String key) throws IOException {
+    FileStatus status = toPath(key).statIfFound();
+    if (status == null) {
+      remove(key);
+      return false;
+    }
+    recordAccess(key, status.getSize());
+    return true;
   }
 
   @Override
   public boolean get(String key, OutputStream out) throws IOException {
     Path f = toPath(key);
-    if (!f.exists()) {
+    long size;
+    try (InputStream in = f.getInputStream()) {
+      size = ByteStreams.copy(in, out);
+    } catch (FileNotFoundException e) {
+      remove(key);
       return false;
     }
-    try (InputStream in = f.getInputStream()) {
-      ByteStreams.copy(in, out);
+    recordAccess(key, size);
+    return true;
+  }
+
+  /** Checks the contents of a blob before it is linked, see {@link #linkTo}. */
+  @FunctionalInterface
+  public interface BlobVerifier {
+    boolean isValid(Path blob) throws IOException;
+  }
+
+  /**
+   * Hard links the blob for {@code key} to {@code dest}, which must not exist. Returns false if the
+   * blob is not in the store or cannot be linked, e.g. because {@code dest} is on a different
+   * device; callers should then fall back to {@link #get}.
+   *
+   * <p>A linked blob shares its contents with {@code dest}, so it is made read-only and executable
+   * first, which is the mode Bazel sets on all outputs anyway. A blob that was modified in place
+   * nonetheless fails {@code verifier}, and is then deleted instead of being linked.
+   */
+  public boolean linkTo(String key, Path dest, BlobVerifier verifier) throws IOException {
+    if (dest.getFileSystem() != root.getFileSystem()) {
+      return false;
     }
+    Path f = toPath(key);
+    FileStatus status = f.statIfFound();
+    if (status == null) {
+      remove(key);
+      return false;
+    }
+    try {
+      f.chmod(0555);
+      if (!verifier.isValid(f)) {
+        logger.warning("Deleting modified blob " + key + " from the local disk cache");
+        remove(key);
+        f.delete();
+        return false;
+      }
+      f.createHardLink(dest);
+    } catch (FileNotFoundException e) {
+      // Evicted in the meantime.
+      remove(key);
+      return false;
+    } catch (IOException | UnsupportedOperationException e) {
+      return false;
+    }
+    recordAccess(key, status.getSize());
     return true;
   }
 
@@ -54,26 +208,323 @@ public final class OnDiskBlobStore implements SimpleBlobStore {
 
   @Override
   public void put(String key, long length, InputStream in) throws IOException {
+    // Blobs are content-addressed, so there is no need to write them again.
+    if (containsKey(key)) {
+      return;
+    }
+    write(key, in);
+  }
+
+  @Override
+  public void putActionResult(String key, byte[] in) throws IOException, InterruptedException {
+    write(key, new ByteArrayInputStream(in));
+  }
+
+  private void write(String key, InputStream in) throws IOException {
     // Write a temporary file first, and then rename, to avoid data corruption in case of a crash.
-    Path temp = toPath(UUID.randomUUID().toString());
+    Path temp = root.getRelative(TMP_DIR).getChild(UUID.randomUUID().toString());
+    long size;
     try (OutputStream out = temp.getOutputStream()) {
-      ByteStreams.copy(in, out);
+      size = ByteStreams.copy(in, out);
     }
     // TODO(ulfjack): Fsync temp here before we rename it to avoid data loss in the case of machine
     // crashes (the OS may reorder the writes and the rename).
     Path f = toPath(key);
-    temp.renameTo(f);
+    synchronized (this) {
+      f.getParentDirectory().createDirectory();
+      temp.renameTo(f);
+      Entry old = entries.put(key, new Entry(size, clock.currentTimeMillis()));
+      totalSizeBytes += size - (old == null ? 0 : old.size);
+    }
+    maybeScheduleEviction();
   }
 
   @Override
-  public void putActionResult(String key, byte[] in) throws IOException, InterruptedException {
-    put(key, in.length, new ByteArrayInputStream(in));
+  public void close() {
+    // An unfinished scan is abandoned and restarted by the next instance; evictions are finished.
+    closing = true;
+    maintenanceExecutor.shutdown();
+    try {
+      while (!maintenanceExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+        logger.info("Waiting for the local disk cache to finish evicting blobs");
+      }
+    } catch (InterruptedException e) {
+      maintenanceExecutor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+    try {
+      saveIndex();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to save the local disk cache index", e);
+    }
   }
 
-  @Override
-  public void close() {}
+  /** Returns the total size of the blobs in the store. */
+  public synchronized long getTotalSizeBytes() {
+    return totalSizeBytes;
+  }
+
+  /** Returns the number of blobs in the store. */
+  public synchronized int getBlobCount() {
+    return entries.size();
+  }
+
+  /** Returns the number of blobs that were deleted to stay within the maximum size. */
+  public long getEvictedBlobCount() {
+    return evictedBlobs.get();
+  }
+
+  /** Waits until pending scans and evictions are done. */
+  @VisibleForTesting
+  void awaitMaintenance() throws Exception {
+    maintenanceExecutor.submit(() -> {}).get();
+  }
 
   private Path toPath(String key) {
-    return root.getChild(key);
+    return root.getChild(key.substring(0, 2)).getChild(key);
+  }
+
+  private synchronized void recordAccess(String key, long size) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entries.put(key, new Entry(size, clock.currentTimeMillis()));
+      totalSizeBytes += size;
+    } else {
+      entry.lastAccessMillis = clock.currentTimeMillis();
+    }
+  }
+
+  private synchronized void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) {
+      totalSizeBytes -= entry.size;
+    }
+  }
+
+  private void maybeScheduleEviction() {
+    if (maxSizeBytes == 0) {
+      return;
+    }
+    synchronized (this) {
+      if (totalSizeBytes <= maxSizeBytes) {
+        return;
+      }
+    }
+    if (evictionScheduled.compareAndSet(false, true)) {
+      maintenanceExecutor.execute(this::evictQuietly);
+    }
+  }
+
+  /**
+   * Drops the least recently used entries from the index under the lock, and then deletes their
+   * blobs without holding it. A blob that is written again in the meantime may be deleted too, in
+   * which case its entry is dropped by the next lookup.
+   */
+  private void evictQuietly() {
+    evictionScheduled.set(false);
+    long targetSizeBytes = (long) (maxSizeBytes * LOW_WATERMARK);
+    List<String> evicted = new ArrayList<>();
+    synchronized (this) {
+      Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+      while (totalSizeBytes > targetSizeBytes && it.hasNext()) {
+        Map.Entry<String, Entry> eldest = it.next();
+        it.remove();
+        totalSizeBytes -= eldest.getValue().size;
+        evicted.add(eldest.getKey());
+      }
+    }
+    try {
+      for (String key : evicted) {
+        toPath(key).delete();
+        evictedBlobs.incrementAndGet();
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to evict blobs from the local disk cache", e);
+    }
+  }
+
+  private void scanQuietly() {
+    try {
+      scan();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to scan the local disk cache", e);
+    }
+    maybeScheduleEviction();
+  }
+
+  /**
+   * Adds the blobs that are missing from the index, drops the index entries whose blob is gone,
+   * and deletes leftover temporary files.
+   */
+  private void scan() throws IOException {
+    long now = clock.currentTimeMillis();
+    migrateLegacyBlobs();
+    LinkedHashMap<String, Entry> found = new LinkedHashMap<>();
+    for (Dirent shard : root.readdir(Symlinks.NOFOLLOW)) {
+      if (shard.getType() != Dirent.Type.DIRECTORY || shard.getName().equals(TMP_DIR)) {
+        continue;
+      }
+      if (closing) {
+        return;
+      }
+      for (Dirent blob : root.getChild(shard.getName()).readdir(Symlinks.NOFOLLOW)) {
+        found.put(blob.getName(), null);
+      }
+    }
+    for (Map.Entry<String, Entry> e : found.entrySet()) {
+      if (closing) {
+        return;
+      }
+      synchronized (this) {
+        if (entries.containsKey(e.getKey())) {
+          continue;
+        }
+      }
+      FileStatus status = toPath(e.getKey()).statIfFound();
+      if (status != null) {
+        // Blobs unknown to the index count as least recently used, ordered by modification time.
+        e.setValue(new Entry(status.getSize(), status.getLastModifiedTime()));
+      }
+    }
+    synchronized (this) {
+      Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<String, Entry> e = it.next();
+        // Entries added while scanning are not in found, but their files exist.
+        if (!found.containsKey(e.getKey()) && e.getValue().lastAccessMillis < now) {
+          totalSizeBytes -= e.getValue().size;
+          it.remove();
+        }
+      }
+      List<Map.Entry<String, Entry>> added = new ArrayList<>();
+      for (Map.Entry<String, Entry> e : found.entrySet()) {
+        if (e.getValue() != null && !entries.containsKey(e.getKey())) {
+          added.add(e);
+        }
+      }
+      added.sort(Comparator.comparingLong(e -> e.getValue().lastAccessMillis));
+      LinkedHashMap<String, Entry> reordered = new LinkedHashMap<>();
+      for (Map.Entry<String, Entry> e : added) {
+        reordered.put(e.getKey(), e.getValue());
+        totalSizeBytes += e.getValue().size;
+      }
+      reordered.putAll(entries);
+      entries.clear();
+      entries.putAll(reordered);
+      lastScanMillis = now;
+    }
+    for (Path temp : root.getRelative(TMP_DIR).getDirectoryEntries()) {
+      if (temp.getLastModifiedTime() < now - RESCAN_INTERVAL_MILLIS) {
+        temp.delete();
+      }
+    }
+  }
+
+  /**
+   * Moves the blobs that an older version stored directly under the root into their
+   * subdirectories, and deletes the temporary files it left there.
+   */
+  private void migrateLegacyBlobs() throws IOException {
+    for (Dirent dirent : root.readdir(Symlinks.NOFOLLOW)) {
+      String name = dirent.getName();
+      if (dirent.getType() == Dirent.Type.DIRECTORY || name.equals(INDEX_FILE)) {
+        continue;
+      }
+      if (closing) {
+        return;
+      }
+      Path legacy = root.getChild(name);
+      if (isLegacyTempFile(name)) {
+        legacy.delete();
+        continue;
+      }
+      if (!isKey(name)) {
+        continue;
+      }
+      Path f = toPath(name);
+      synchronized (this) {
+        f.getParentDirectory().createDirectory();
+        if (f.exists()) {
+          legacy.delete();
+        } else {
+          legacy.renameTo(f);
+        }
+      }
+    }
+  }
+
+  /** Returns whether {@code name} is a temporary file that an older version left under the root. */
+  private static boolean isLegacyTempFile(String name) {
+    try {
+      return UUID.fromString(name).toString().equals(name);
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /** Returns whether {@code name} is a key, i.e. a hex digest. */
+  private static boolean isKey(String name) {
+    if (name.length() <= 2) {
+      return false;
+    }
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean loadIndex() throws IOException {
+    Path index = root.getChild(INDEX_FILE);
+    if (!index.exists()) {
+      return false;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(index.getInputStream()))) {
+      if (in.readInt() != VERSION) {
+        return false;
+      }
+      long scanMillis = in.readLong();
+      int count = in.readInt();
+      LinkedHashMap<String, Entry> loaded = new LinkedHashMap<>();
+      long loadedSizeBytes = 0;
+      for (int i = 0; i < count; i++) {
+        String key = in.readUTF();
+        Entry entry = new Entry(in.readLong(), in.readLong());
+        loaded.put(key, entry);
+        loadedSizeBytes += entry.size;
+      }
+      synchronized (this) {
+        entries.putAll(loaded);
+        totalSizeBytes = loadedSizeBytes;
+        lastScanMillis = scanMillis;
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Ignoring corrupted local disk cache index " + index, e);
+      return false;
+    }
+    // It is written again when the store is closed.
+    index.delete();
+    return true;
+  }
+
+
+  private void saveIndex() throws IOException {
+    Path temp = root.getRelative(TMP_DIR).getChild(UUID.randomUUID().toString());
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(temp.getOutputStream()))) {
+      synchronized (this) {
+        out.writeInt(VERSION);
+        out.writeLong(lastScanMillis);
+        out.writeInt(entries.size());
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+          out.writeUTF(e.getKey());
+          out.writeLong(e.getValue().size);
+          out.writeLong(e.getValue().lastAccessMillis);
+        }
+      }
+    }
+    temp.renameTo(root.getChild(INDEX_FILE));
   }
 }
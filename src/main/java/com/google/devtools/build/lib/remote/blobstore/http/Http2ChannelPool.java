@@ -0,0 +1,446 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.blobstore.http;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.pool.ChannelPool;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2ConnectionAdapter;
+import io.netty.handler.codec.http2.Http2ConnectionDecoder;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2FrameListener;
+import io.netty.handler.codec.http2.Http2FrameListenerDecorator;
+import io.netty.handler.codec.http2.Http2MultiplexCodec;
+import io.netty.handler.codec.http2.Http2MultiplexCodecBuilder;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2Stream;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * A {@link ChannelPool} of HTTP/2 streams, all of which are multiplexed over a single {@link
+ * Connection}. Acquiring a channel opens a new stream, and releasing it closes the stream.
+ */
+final class Http2ChannelPool implements ChannelPool {
+
+  /**
+   * A HTTP/2 connection that is kept open for as long as the server allows, and that is reopened
+   * when it was closed or the server asked us to go away. Several pools can share a connection.
+   *
+   * <p>Streams in excess of the server's limit on concurrent streams wait for others to close.
+   *
+   * <p>Over TLS, the server must pick HTTP/2 with ALPN. Over plain TCP, the server must accept
+   * HTTP/2 without an upgrade (prior knowledge).
+   */
+  static final class Connection {
+    private static final AttributeKey<StreamTracker> STREAM_TRACKER =
+        AttributeKey.valueOf(Http2ChannelPool.class, "streamTracker");
+
+    private final Bootstrap bootstrap;
+    @Nullable private final SslContext sslCtx;
+
+    @GuardedBy("this")
+    private Future<Channel> channel;
+
+    /** The server's limit on concurrent streams, which is 0 until its settings arrived. */
+    @GuardedBy("this")
+    private long maxConcurrentStreams;
+
+    @GuardedBy("this")
+    private int openStreams;
+
+    @GuardedBy("this")
+    private final Deque<PendingStream> pendingStreams = new ArrayDeque<>();
+
+    /**
+     * @param bootstrap the bootstrap to connect with, with a remote address but without a handler
+     * @param sslCtx the TLS configuration, which must offer {@code h2} with ALPN. May be {@code
+     *     null}, in which case TLS is not used
+     */
+    Connection(Bootstrap bootstrap, @Nullable SslContext sslCtx) {
+      this.bootstrap = bootstrap;
+      this.sslCtx = sslCtx;
+    }
+
+    Promise<Channel> newPromise() {
+      return bootstrap.config().group().next().newPromise();
+    }
+
+    /**
+     * Opens a stream with {@code handler} in its pipeline and completes {@code promise} with it,
+     * once the server's limit on concurrent streams allows it.
+     */
+    @SuppressWarnings("FutureReturnValueIgnored")
+    void openStream(ChannelHandler handler, Promise<Channel> promise) {
+      synchronized (this) {
+        if (openStreams >= maxConcurrentStreams) {
+          pendingStreams.add(new PendingStream(handler, promise));
+          // Connects, if this is the first stream.
+          get();
+          return;
+        }
+        openStreams++;
+      }
+      doOpenStream(handler, promise);
+    }
+
+    @SuppressWarnings("FutureReturnValueIgnored")
+    private void doOpenStream(ChannelHandler handler, Promise<Channel> promise) {
+      get()
+          .addListener(
+              (Future<Channel> parent) -> {
+                if (!parent.isSuccess()) {
+                  streamClosed();
+                  promise.tryFailure(parent.cause());
+                  return;
+                }
+                new Http2StreamChannelBootstrap(parent.getNow())
+                    .handler(handler)
+                    .open()
+                    .addListener(
+                        (Future<Http2StreamChannel> stream) -> {
+                          if (!stream.isSuccess()) {
+                            streamClosed();
+                            promise.tryFailure(stream.cause());
+                            return;
+                          }
+                          Http2StreamChannel child = stream.getNow();
+                          StreamTracker tracker = parent.getNow().attr(STREAM_TRACKER).get();
+                          child
+                              .closeFuture()
+                              .addListener((f) -> tracker.childClosed(child.stream().id()));
+                          promise.trySuccess(child);
+                        });
+              });
+    }
+
+    private void streamClosed() {
+      synchronized (this) {
+        openStreams--;
+      }
+      openPendingStreams();
+    }
+
+    private void openPendingStreams() {
+      while (true) {
+        PendingStream next;
+        synchronized (this) {
+          if (openStreams >= maxConcurrentStreams || pendingStreams.isEmpty()) {
+            return;
+          }
+          next = pendingStreams.poll();
+          openStreams++;
+        }
+        doOpenStream(next.handler, next.promise);
+      }
+    }
+
+    /** Returns the connection, and opens a new one if there is none or if it was closed. */
+    private synchronized Future<Channel> get() {
+      if (channel == null
+          || (channel.isDone() && (!channel.isSuccess() || !channel.getNow().isActive()))) {
+        maxConcurrentStreams = 0;
+        channel = connect();
+      }
+      return channel;
+    }
+
+    @SuppressWarnings("FutureReturnValueIgnored")
+    synchronized void close() {
+      if (channel != null && channel.isSuccess()) {
+        channel.getNow().close();
+      }
+      channel = null;
+    }
+
+    @SuppressWarnings("FutureReturnValueIgnored")
+    private Future<Channel> connect() {
+      Promise<Channel> ready = newPromise();
+      ChannelFuture connectFuture =
+          bootstrap
+              .clone()
+              .handler(
+                  new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                      ChannelPipeline p = ch.pipeline();
+                      if (sslCtx == null) {
+                        p.addLast(newMultiplexCodec(ch, ready));
+                        p.addLast(new PrefaceFlusher());
+                        return;
+                      }
+                      SSLEngine engine = sslCtx.newEngine(ch.alloc());
+                      engine.setUseClientMode(true);
+                      p.addLast(new SslHandler(engine));
+                      p.addLast(new ProtocolNegotiationHandler(ready));
+                    }
+                  })
+              .connect();
+      connectFuture.addListener(
+          (ChannelFuture f) -> {
+            if (!f.isSuccess()) {
+              ready.tryFailure(f.cause());
+            }
+          });
+      connectFuture
+          .channel()
+          .closeFuture()
+          .addListener((f) -> ready.tryFailure(new ClosedChannelException()));
+      ready.addListener(
+          (Future<Channel> f) -> {
+            if (!f.isSuccess()) {
+              failPendingStreams(f.cause());
+            }
+          });
+      return ready;
+    }
+
+    private void failPendingStreams(Throwable cause) {
+      Deque<PendingStream> failed;
+      synchronized (this) {
+        failed = new ArrayDeque<>(pendingStreams);
+        pendingStreams.clear();
+      }
+      for (PendingStream stream : failed) {
+        stream.promise.tryFailure(cause);
+      }
+    }
+
+    private synchronized void settingsReceived(@Nullable Long maxConcurrentStreams) {
+      this.maxConcurrentStreams =
+          maxConcurrentStreams != null ? maxConcurrentStreams : Long.MAX_VALUE;
+    }
+
+    /** Makes sure that no new streams are opened on {@code ch}. */
+    private synchronized void goAwayReceived(Channel ch) {
+      if (channel != null && channel.isSuccess() && channel.getNow() == ch) {
+        channel = null;
+      }
+    }
+
+    private ChannelHandler newMultiplexCodec(Channel ch, Promise<Channel> ready) {
+      Http2MultiplexCodec codec =
+          Http2MultiplexCodecBuilder.forClient(new PushedStreamHandler()).build();
+      Http2ConnectionDecoder decoder = codec.decoder();
+      decoder.frameListener(new ConnectionListener(decoder.frameListener(), ready));
+      StreamTracker tracker = new StreamTracker(codec.connection());
+      codec.connection().addListener(tracker);
+      ch.attr(STREAM_TRACKER).set(tracker);
+      return codec;
+    }
+
+    /**
+     * Frees the slot of a stream once both its channel and the codec closed it. The codec counts a
+     * stream against the server's limit until it has seen the end of the stream in both directions,
+     * which may be after the channel was closed.
+     *
+     * <p>All methods run on the event loop of the connection.
+     */
+    private final class StreamTracker extends Http2ConnectionAdapter {
+      private final Http2Connection connection;
+      /** Streams whose channel was closed, but which the codec still counts. */
+      private final Set<Integer> closingStreams = new HashSet<>();
+      /** Streams that the codec closed, but whose channel is still open. */
+      private final Set<Integer> closedStreams = new HashSet<>();
+
+      StreamTracker(Http2Connection connection) {
+        this.connection = connection;
+      }
+
+      @Override
+      public void onStreamClosed(Http2Stream stream) {
+        if (!connection.local().isValidStreamId(stream.id())) {
+          // Pushed by the server.
+          return;
+        }
+        if (closingStreams.remove(stream.id())) {
+          streamClosed();
+        } else {
+          closedStreams.add(stream.id());
+        }
+      }
+
+      void childClosed(int streamId) {
+        if (closedStreams.remove(streamId)) {
+          streamClosed();
+        } else if (streamId <= 0 || connection.stream(streamId) == null) {
+          // The stream was never created, as the channel did not write anything.
+          streamClosed();
+        } else {
+          closingStreams.add(streamId);
+        }
+      }
+    }
+
+    /** A request to open a stream, which waits for other streams to close. */
+    private static final class PendingStream {
+      final ChannelHandler handler;
+      final Promise<Channel> promise;
+
+      PendingStream(ChannelHandler handler, Promise<Channel> promise) {
+        this.handler = handler;
+        this.promise = promise;
+      }
+    }
+
+    /**
+     * Flushes the preface that the codec writes once the connection is active, so that the server
+     * answers with its settings before the first stream is opened.
+     */
+    @Sharable
+    private static final class PrefaceFlusher extends ChannelInboundHandlerAdapter {
+      @Override
+      public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        ctx.flush();
+        super.channelActive(ctx);
+      }
+    }
+
+    /** Ignores streams that the server pushes, as we never ask for any. */
+    @Sharable
+    private static final class PushedStreamHandler extends ChannelInboundHandlerAdapter {}
+
+    /**
+     * Completes the connection once the server's settings arrived, and tracks the connection-level
+     * frames that the server sends afterwards. The multiplex codec does not pass these on to the
+     * pipeline, so this listens to its decoder instead.
+     */
+    private final class ConnectionListener extends Http2FrameListenerDecorator {
+      private final Promise<Channel> ready;
+
+      ConnectionListener(Http2FrameListener listener, Promise<Channel> ready) {
+        super(listener);
+        this.ready = ready;
+      }
+
+      @Override
+      public void onSettingsRead(ChannelHandlerContext ctx, Http2Settings settings)
+          throws Http2Exception {
+        super.onSettingsRead(ctx, settings);
+        settingsReceived(settings.maxConcurrentStreams());
+        openPendingStreams();
+        ready.trySuccess(ctx.channel());
+      }
+
+      @SuppressWarnings("FutureReturnValueIgnored")
+      @Override
+      public void onGoAwayRead(
+          ChannelHandlerContext ctx, int lastStreamId, long errorCode, ByteBuf debugData)
+          throws Http2Exception {
+        super.onGoAwayRead(ctx, lastStreamId, errorCode, debugData);
+        goAwayReceived(ctx.channel());
+        // The codec lets the streams in progress finish before it closes the connection.
+        ctx.channel().close();
+      }
+    }
+
+    /** Sets up HTTP/2 once the server agreed to speak it. */
+    private final class ProtocolNegotiationHandler extends ApplicationProtocolNegotiationHandler {
+      private final Promise<Channel> ready;
+
+      ProtocolNegotiationHandler(Promise<Channel> ready) {
+        super(ApplicationProtocolNames.HTTP_1_1);
+        this.ready = ready;
+      }
+
+      @SuppressWarnings("FutureReturnValueIgnored")
+      @Override
+      protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
+        if (!ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+          ready.tryFailure(
+              new IOException("The remote cache does not support HTTP/2, but " + protocol));
+          ctx.close();
+          return;
+        }
+        ctx.pipeline().addLast(newMultiplexCodec(ctx.channel(), ready));
+        // The codec wrote its preface when it was added, as the connection is already active.
+        ctx.channel().flush();
+      }
+
+      @Override
+      protected void handshakeFailure(ChannelHandlerContext ctx, Throwable cause)
+          throws Exception {
+        ready.tryFailure(cause);
+        super.handshakeFailure(ctx, cause);
+      }
+    }
+  }
+
+  private final Connection connection;
+  private final ChannelHandler streamHandler;
+
+  /**
+   * @param connection the connection to open streams on
+   * @param streamHandler the handler to add to the pipeline of each stream. Usually a {@link
+   *     ChannelInitializer}
+   */
+  Http2ChannelPool(Connection connection, ChannelHandler streamHandler) {
+    this.connection = connection;
+    this.streamHandler = streamHandler;
+  }
+
+  @Override
+  public Future<Channel> acquire() {
+    return acquire(connection.newPromise());
+  }
+
+  @Override
+  public Future<Channel> acquire(Promise<Channel> promise) {
+    connection.openStream(streamHandler, promise);
+    return promise;
+  }
+
+  @Override
+  public Future<Void> release(Channel channel) {
+    return release(channel, channel.eventLoop().<Void>newPromise());
+  }
+
+  @SuppressWarnings("FutureReturnValueIgnored")
+  @Override
+  public Future<Void> release(Channel channel, Promise<Void> promise) {
+    // A stream carries a single request.
+    channel.close();
+    return promise.setSuccess(null);
+  }
+
+  @Override
+  public void close() {
+    connection.close();
+  }
+}
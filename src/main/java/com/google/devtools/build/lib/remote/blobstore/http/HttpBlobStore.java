@@ -18,22 +18,33 @@ import com.google.devtools.build.lib.remote.blobstore.SimpleBlobStore;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.pool.ChannelPool;
 import io.netty.channel.pool.ChannelPoolHandler;
 import io.netty.channel.pool.SimpleChannelPool;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpContentDecompressor;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpRequestEncoder;
 import io.netty.handler.codec.http.HttpResponseDecoder;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolConfig.Protocol;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectedListenerFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectorFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolNames;
 import io.netty.handler.ssl.OpenSsl;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
 import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.util.internal.PlatformDependent;
 import java.io.ByteArrayInputStream;
@@ -46,7 +57,7 @@ import javax.annotation.Nullable;
 import javax.net.ssl.SSLEngine;
 
 /**
- * Implementation of {@link SimpleBlobStore} that can talk to a HTTP/1.1 backend.
+ * Implementation of {@link SimpleBlobStore} that can talk to a HTTP/1.1 or HTTP/2 backend.
  *
  * <p>Blobs (Binary large objects) are uploaded using the {@code PUT} method. Action cache blobs are
  * stored under the path {@code /ac/base16-key}. CAS (Content Addressable Storage) blobs are stored
@@ -63,21 +74,44 @@ import javax.net.ssl.SSLEngine;
  *
  * <p>TLS is supported and enabled automatically when using HTTPS as the URI scheme.
  *
+ * <p>With HTTP/1.1, every concurrent request takes a connection of its own. With HTTP/2, all
+ * requests are streams of a single connection. Over TLS, the server has to pick HTTP/2 with ALPN,
+ * which the JDK's TLS implementation only supports from Java 9, so netty tcnative is needed on
+ * Java 8. Over plain HTTP, the server has to accept HTTP/2 without an upgrade.
+ *
  * <p>Uploads do not use {@code Expect: 100-CONTINUE} headers, as this would incur an additional
  * roundtrip for every upload and with little practical value as we would expect most uploads to be
  * accepted.
  *
- * <p>The implementation currently does not support transfer encoding chunked.
+ * <p>The implementation currently does not support transfer encoding chunked. For the same reason,
+ * uploads are never compressed. Downloads may be compressed with a {@code Content-Encoding} that
+ * the server picks per blob, if enabled.
  */
 public final class HttpBlobStore implements SimpleBlobStore {
 
   private final NioEventLoopGroup eventLoop = new NioEventLoopGroup(2 /* number of threads */);
-  private final SimpleChannelPool downloadChannels;
-  private final SimpleChannelPool uploadChannels;
+  private final ChannelPool downloadChannels;
+  private final ChannelPool uploadChannels;
   private final URI uri;
 
   public HttpBlobStore(URI uri, int timeoutMillis, @Nullable final Credentials creds)
       throws Exception {
+    this(uri, timeoutMillis, creds, /* compressedDownloads= */ false, /* http2= */ false);
+  }
+
+  /**
+   * @param compressedDownloads if true, downloads accept gzip and deflate encoded responses. The
+   *     server decides per blob whether to compress it
+   * @param http2 if true, all requests are multiplexed over a single HTTP/2 connection, instead of
+   *     each taking a HTTP/1.1 connection of its own
+   */
+  public HttpBlobStore(
+      URI uri,
+      int timeoutMillis,
+      @Nullable final Credentials creds,
+      boolean compressedDownloads,
+      boolean http2)
+      throws Exception {
     boolean useTls = uri.getScheme().equals("https");
     if (uri.getPort() == -1) {
       int port = useTls ? 443 : 80;
@@ -98,7 +132,18 @@ public final class HttpBlobStore implements SimpleBlobStore {
         // OpenSsl gives us a > 2x speed improvement on fast networks, but requires netty tcnative
         // to be there which is not available on all platforms and environments.
       SslProvider sslProvider = OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
-      sslCtx = SslContextBuilder.forClient().sslProvider(sslProvider).build();
+      SslContextBuilder sslCtxBuilder = SslContextBuilder.forClient().sslProvider(sslProvider);
+      if (http2) {
+        sslCtxBuilder
+            .ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+            .applicationProtocolConfig(
+                new ApplicationProtocolConfig(
+                    Protocol.ALPN,
+                    SelectorFailureBehavior.NO_ADVERTISE,
+                    SelectedListenerFailureBehavior.ACCEPT,
+                    ApplicationProtocolNames.HTTP_2));
+      }
+      sslCtx = sslCtxBuilder.build();
     } else {
       sslCtx = null;
     }
@@ -109,6 +154,38 @@ public final class HttpBlobStore implements SimpleBlobStore {
             .option(ChannelOption.SO_TIMEOUT, timeoutMillis)
             .group(eventLoop)
             .remoteAddress(uri.getHost(), uri.getPort());
+    if (http2) {
+      Http2ChannelPool.Connection connection =
+          new Http2ChannelPool.Connection(clientBootstrap, sslCtx);
+      downloadChannels =
+          new Http2ChannelPool(
+              connection,
+              new ChannelInitializer<Channel>() {
+                @Override
+                protected void initChannel(Channel ch) {
+                  ChannelPipeline p = ch.pipeline();
+                  p.addLast(new Http2StreamFrameToHttpObjectCodec(/* isServer= */ false));
+                  if (compressedDownloads) {
+                    p.addLast(new HttpContentDecompressor());
+                  }
+                  p.addLast(new HttpDownloadHandler(creds, compressedDownloads));
+                }
+              });
+      uploadChannels =
+          new Http2ChannelPool(
+              connection,
+              new ChannelInitializer<Channel>() {
+                @Override
+                protected void initChannel(Channel ch) {
+                  ChannelPipeline p = ch.pipeline();
+                  p.addLast(new Http2StreamFrameToHttpObjectCodec(/* isServer= */ false));
+                  p.addLast(new HttpObjectAggregator(10 * 1024));
+                  p.addLast(new ChunkedWriteHandler());
+                  p.addLast(new HttpUploadHandler(creds));
+                }
+              });
+      return;
+    }
     downloadChannels =
         new SimpleChannelPool(
             clientBootstrap,
@@ -128,7 +205,10 @@ public final class HttpBlobStore implements SimpleBlobStore {
                   p.addFirst(new SslHandler(engine));
                 }
                 p.addLast(new HttpClientCodec());
-                p.addLast(new HttpDownloadHandler(creds));
+                if (compressedDownloads) {
+                  p.addLast(new HttpContentDecompressor());
+                }
+                p.addLast(new HttpDownloadHandler(creds, compressedDownloads));
               }
             });
     uploadChannels =
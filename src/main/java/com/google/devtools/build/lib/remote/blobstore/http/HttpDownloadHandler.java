@@ -38,16 +38,34 @@ import java.io.OutputStream;
 /** ChannelHandler for downloads. */
 final class HttpDownloadHandler extends AbstractHttpHandler<HttpObject> {
 
+  private final boolean acceptCompressed;
   private OutputStream out;
   private boolean keepAlive = HttpVersion.HTTP_1_1.isKeepAliveDefault();
 
   public HttpDownloadHandler(Credentials credentials) {
+    this(credentials, /* acceptCompressed= */ false);
+  }
+
+  /**
+   * If {@code acceptCompressed} is true, the server may send a gzip or deflate encoded response.
+   * Such responses must be decoded by an {@link io.netty.handler.codec.http.HttpContentDecompressor}
+   * earlier in the pipeline.
+   */
+  public HttpDownloadHandler(Credentials credentials, boolean acceptCompressed) {
     super(credentials);
+    this.acceptCompressed = acceptCompressed;
   }
 
   @Override
   protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) throws Exception {
     checkState(userPromise != null, "response before request");
+    if (!(msg instanceof HttpResponse) && !(msg instanceof HttpContent)) {
+      failAndReset(
+          new IllegalArgumentException(
+              "Unsupported message type: " + StringUtil.simpleClassName(msg)),
+          ctx);
+      return;
+    }
     if (msg instanceof HttpResponse) {
       HttpResponse response = (HttpResponse) msg;
       keepAlive = HttpUtil.isKeepAlive((HttpResponse) msg);
@@ -56,18 +74,16 @@ final class HttpDownloadHandler extends AbstractHttpHandler<HttpObject> {
             new HttpException(
                 response.status(), "Download failed with Status: " + response.status(), null),
             ctx);
+        return;
       }
-    } else if (msg instanceof HttpContent) {
+    }
+    // Over HTTP/2, a response without a body is a single FullHttpResponse.
+    if (msg instanceof HttpContent) {
       ByteBuf content = ((HttpContent) msg).content();
       content.readBytes(out, content.readableBytes());
       if (msg instanceof LastHttpContent) {
         succeedAndReset(ctx);
       }
-    } else {
-      failAndReset(
-          new IllegalArgumentException(
-              "Unsupported message type: " + StringUtil.simpleClassName(msg)),
-          ctx);
     }
   }
 
@@ -103,6 +119,13 @@ final class HttpDownloadHandler extends AbstractHttpHandler<HttpObject> {
     httpRequest.headers().set(HttpHeaderNames.HOST, constructHost(request.uri()));
     httpRequest.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
     httpRequest.headers().set(HttpHeaderNames.ACCEPT, "*/*");
+    if (acceptCompressed) {
+      httpRequest
+          .headers()
+          .set(
+              HttpHeaderNames.ACCEPT_ENCODING,
+              HttpHeaderValues.GZIP + "," + HttpHeaderValues.DEFLATE);
+    }
     return httpRequest;
   }
 
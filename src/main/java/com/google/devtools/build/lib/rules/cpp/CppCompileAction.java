@@ -1082,6 +1082,11 @@ public class CppCompileAction extends AbstractAction
     return f.hexDigestAndReset();
   }
 
+  @Override
+  public boolean readsInputsOnlyThroughSpawns() {
+    return true;
+  }
+
   @Override
   @ThreadCompatible
   public ActionResult execute(ActionExecutionContext actionExecutionContext)
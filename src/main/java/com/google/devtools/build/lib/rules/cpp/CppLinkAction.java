@@ -302,6 +302,12 @@ public final class CppLinkAction extends AbstractAction
     return linkstampObjects;
   }
 
+  @Override
+  public boolean readsInputsOnlyThroughSpawns() {
+    // Fake links read the object files directly.
+    return !fake;
+  }
+
   @Override
   @ThreadCompatible
   public ActionResult execute(ActionExecutionContext actionExecutionContext)
@@ -347,6 +347,33 @@ public class BlazeServerStartupOptions extends OptionsBase {
   )
   public boolean watchFS;
 
+  @Option(
+    name = "experimental_compact_skyframe_graph",
+    defaultValue = "false", // NOTE: purely decorative!  See class docstring.
+    category = "server startup",
+    documentationCategory = OptionDocumentationCategory.BAZEL_CLIENT_OPTIONS,
+    effectTags = {OptionEffectTag.LOSES_INCREMENTAL_STATE},
+    help =
+        "If true, the Skyframe graph stores the dependency edges of evaluated nodes as compact "
+            + "integer ids instead of object references. This reduces the retained heap of large "
+            + "graphs at a small CPU cost when edges are traversed."
+  )
+  public boolean compactSkyframeGraph;
+
+  @Option(
+    name = "experimental_log_structured_action_cache",
+    defaultValue = "false", // NOTE: purely decorative!  See class docstring.
+    category = "server startup",
+    documentationCategory = OptionDocumentationCategory.BAZEL_CLIENT_OPTIONS,
+    effectTags = {OptionEffectTag.LOSES_INCREMENTAL_STATE},
+    help =
+        "If true, the action cache appends entries to a log and looks them up through a "
+            + "memory-mapped index, instead of loading all entries into memory on startup and "
+            + "rewriting a journal on every build. Switching this flag starts from an empty "
+            + "action cache."
+  )
+  public boolean logStructuredActionCache;
+
   @Option(
     name = "invocation_policy",
     defaultValue = "",
@@ -29,6 +29,7 @@ import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.exec.ExecutorBuilder;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.skyframe.SkyframeExecutor;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.protobuf.ByteString;
 import java.util.ArrayList;
@@ -46,14 +47,17 @@ public class BuildSummaryStatsModule extends BlazeModule {
   private SimpleCriticalPathComputer criticalPathComputer;
   private EventBus eventBus;
   private Reporter reporter;
+  private SkyframeExecutor skyframeExecutor;
   private boolean enabled;
   private boolean discardActions;
+  private boolean scheduleByCriticalPath;
 
   @Override
   public void beforeCommand(CommandEnvironment env) {
     this.reporter = env.getReporter();
     this.eventBus = env.getEventBus();
-    this.actionKeyContext = env.getSkyframeExecutor().getActionKeyContext();
+    this.skyframeExecutor = env.getSkyframeExecutor();
+    this.actionKeyContext = skyframeExecutor.getActionKeyContext();
     eventBus.register(this);
   }
 
@@ -62,12 +66,18 @@ public class BuildSummaryStatsModule extends BlazeModule {
     this.criticalPathComputer = null;
     this.eventBus = null;
     this.reporter = null;
+    this.skyframeExecutor = null;
   }
 
   @Override
   public void executorInit(CommandEnvironment env, BuildRequest request, ExecutorBuilder builder) {
-    enabled = env.getOptions().getOptions(ExecutionOptions.class).enableCriticalPathProfiling;
+    ExecutionOptions executionOptions = env.getOptions().getOptions(ExecutionOptions.class);
+    enabled = executionOptions.enableCriticalPathProfiling;
+    scheduleByCriticalPath = executionOptions.scheduleByCriticalPath;
     discardActions = !env.getSkyframeExecutor().tracksStateForIncrementality();
+    if (!scheduleByCriticalPath) {
+      skyframeExecutor.setEvaluationPriorities(null);
+    }
   }
 
   @Subscribe
@@ -111,6 +121,12 @@ public class BuildSummaryStatsModule extends BlazeModule {
                   stat.prettyPrintAction());
         }
         Profiler.instance().completeTask(ProfilerTask.CRITICAL_PATH);
+        if (scheduleByCriticalPath) {
+          CriticalPathEvaluationPriorities priorities =
+              CriticalPathEvaluationPriorities.create(criticalPath);
+          logger.info(String.format("Prioritizing %d nodes in the next build", priorities.size()));
+          skyframeExecutor.setEvaluationPriorities(priorities);
+        }
       }
 
       reporter.handle(Event.info(Joiner.on(", ").join(items)));
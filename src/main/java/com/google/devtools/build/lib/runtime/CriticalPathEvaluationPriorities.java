@@ -0,0 +1,78 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.primitives.Ints;
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.skyframe.ArtifactSkyKey;
+import com.google.devtools.build.skyframe.EvaluationPriorityFunction;
+import com.google.devtools.build.skyframe.SkyKey;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Prioritizes the outputs of the actions on the critical path of a previous build, so that the
+ * next build starts them as early as possible.
+ *
+ * <p>The priority of an output is one more than the number of milliseconds that the critical path
+ * took from the start of its generating action to the end of the build, so outputs deeper on the
+ * critical path come first. The priorities are inherited by the nodes needed to build these
+ * outputs; see {@link EvaluationPriorityFunction}.
+ */
+public final class CriticalPathEvaluationPriorities implements EvaluationPriorityFunction {
+  private final ImmutableMap<SkyKey, Integer> priorities;
+
+  @VisibleForTesting
+  CriticalPathEvaluationPriorities(ImmutableMap<SkyKey, Integer> priorities) {
+    this.priorities = priorities;
+  }
+
+  /**
+   * Computes priorities from {@code criticalPath}. Components whose action was discarded are
+   * skipped.
+   */
+  public static CriticalPathEvaluationPriorities create(
+      AggregatedCriticalPath<? extends AbstractCriticalPathComponent<?>> criticalPath) {
+    Map<SkyKey, Integer> priorities = new HashMap<>();
+    long remainingMillis = 0;
+    // The components are ordered from the last action executed to the first.
+    for (AbstractCriticalPathComponent<?> component : criticalPath.components()) {
+      remainingMillis += component.getElapsedTimeMillis();
+      Action action = component.maybeGetAction();
+      if (action == null) {
+        continue;
+      }
+      int priority = Ints.saturatedCast(remainingMillis + 1);
+      for (Artifact output : action.getOutputs()) {
+        // Outputs are derived artifacts, whose keys do not depend on isMandatory.
+        priorities.merge(ArtifactSkyKey.key(output, /*isMandatory=*/ true), priority, Math::max);
+      }
+    }
+    return new CriticalPathEvaluationPriorities(ImmutableMap.copyOf(priorities));
+  }
+
+  @Override
+  public int getPriority(SkyKey key) {
+    Integer priority = priorities.get(key);
+    return priority == null ? 0 : priority;
+  }
+
+  /** Returns the number of nodes with a non-default priority. */
+  public int size() {
+    return priorities.size();
+  }
+}
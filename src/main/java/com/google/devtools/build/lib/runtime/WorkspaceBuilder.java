@@ -29,6 +29,7 @@ import com.google.devtools.build.lib.skyframe.SkyValueDirtinessChecker;
 import com.google.devtools.build.lib.skyframe.SkyframeExecutor;
 import com.google.devtools.build.lib.skyframe.SkyframeExecutorFactory;
 import com.google.devtools.build.lib.util.AbruptExitException;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
 import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionName;
 import java.util.Map;
@@ -65,7 +66,16 @@ public final class WorkspaceBuilder {
       SubscriberExceptionHandler eventBusExceptionHandler) throws AbruptExitException {
     // Set default values if none are set.
     if (skyframeExecutorFactory == null) {
-      skyframeExecutorFactory = new SequencedSkyframeExecutorFactory();
+      boolean compactGraph =
+          runtime
+              .getStartupOptionsProvider()
+              .getOptions(BlazeServerStartupOptions.class)
+              .compactSkyframeGraph;
+      skyframeExecutorFactory =
+          new SequencedSkyframeExecutorFactory(
+              compactGraph
+                  ? InMemoryMemoizingEvaluator.COMPACT_SUPPLIER
+                  : InMemoryMemoizingEvaluator.SUPPLIER);
     }
 
     SkyframeExecutor skyframeExecutor =
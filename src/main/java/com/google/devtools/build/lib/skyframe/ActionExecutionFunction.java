@@ -80,6 +80,8 @@ public class ActionExecutionFunction implements SkyFunction, CompletionReceiver
   private final SkyframeActionExecutor skyframeActionExecutor;
   private final AtomicReference<TimestampGranularityMonitor> tsgm;
   private ConcurrentMap<Action, ContinuationState> stateMap;
+  /** Keys of the {@link ActionLookupValue}s that had actions removed since the last build. */
+  private final Set<SkyKey> actionLookupKeysWithRemovedActions = Sets.newConcurrentHashSet();
 
   public ActionExecutionFunction(SkyframeActionExecutor skyframeActionExecutor,
       AtomicReference<TimestampGranularityMonitor> tsgm) {
@@ -216,7 +218,14 @@ public class ActionExecutionFunction implements SkyFunction, CompletionReceiver
 
     // Remove action from state map in case it's there (won't be unless it discovers inputs).
     stateMap.remove(action);
-    actionLookupValue.actionEvaluated(actionIndex, action);
+    try {
+      skyframeActionExecutor.refetchMaterializedRemoteOutputs(action, result);
+    } catch (ActionExecutionException e) {
+      throw new ActionExecutionFunctionException(e);
+    }
+    if (actionLookupValue.actionEvaluated(actionIndex, action)) {
+      actionLookupKeysWithRemovedActions.add(actionLookupData.getActionLookupNode());
+    }
     return result;
   }
 
@@ -710,6 +719,17 @@ public class ActionExecutionFunction implements SkyFunction, CompletionReceiver
     stateMap = Maps.newConcurrentMap();
   }
 
+  /**
+   * Returns the keys of the {@link ActionLookupValue}s that had actions removed by {@link
+   * ActionLookupValue#actionEvaluated} since the last call. These values can no longer provide
+   * their actions, so they must be recomputed before another build executes them.
+   */
+  ImmutableSet<SkyKey> getAndClearActionLookupKeysWithRemovedActions() {
+    ImmutableSet<SkyKey> result = ImmutableSet.copyOf(actionLookupKeysWithRemovedActions);
+    actionLookupKeysWithRemovedActions.removeAll(result);
+    return result;
+  }
+
   private ContinuationState getState(Action action) {
     ContinuationState state = stateMap.get(action);
     if (state == null) {
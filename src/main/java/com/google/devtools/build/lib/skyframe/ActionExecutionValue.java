@@ -69,8 +69,8 @@ public class ActionExecutionValue implements SkyValue {
    * @param additionalOutputData Map from Artifacts to values if the FileArtifactValue for this
    *     artifact cannot be derived from the corresponding FileValue (see {@link
    *     ActionMetadataHandler#getAdditionalOutputData} for when this is necessary).
-   *     These output data are not used by the {@link FilesystemValueChecker}
-   *     to invalidate ActionExecutionValues.
+   *     These output data are only used by the {@link FilesystemValueChecker} to invalidate
+   *     ActionExecutionValues whose remote outputs were fetched and then modified.
    */
   ActionExecutionValue(
       Map<Artifact, FileValue> artifactData,
@@ -91,6 +91,19 @@ public class ActionExecutionValue implements SkyValue {
     return additionalOutputData.get(artifact);
   }
 
+  /**
+   * Returns whether some outputs of the action were left in the remote cache that produced them
+   * instead of being written to the output tree.
+   */
+  boolean hasRemoteOutputs() {
+    for (FileArtifactValue value : additionalOutputData.values()) {
+      if (value.isRemote()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * @return The data for each non-middleman output of this action, in the form of the {@link
    * FileValue} that would be created for the file if it were to be read from disk.
@@ -124,6 +137,15 @@ public class ActionExecutionValue implements SkyValue {
     return treeArtifactData;
   }
 
+  /**
+   * @return The map from {@link Artifact}s to the corresponding {@link FileArtifactValue}s that
+   *     would be returned by {@link #getArtifactValue}. Should only be needed by {@link
+   *     FilesystemValueChecker}.
+   */
+  ImmutableMap<Artifact, FileArtifactValue> getAllAdditionalOutputData() {
+    return additionalOutputData;
+  }
+
   /**
    * @param lookupKey A {@link SkyKey} whose argument is an {@code ActionLookupKey}, whose
    *     corresponding {@code ActionLookupValue} contains the action to be executed.
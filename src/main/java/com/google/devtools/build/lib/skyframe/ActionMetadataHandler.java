@@ -201,6 +201,11 @@ public class ActionMetadataHandler implements MetadataHandler {
       throw new FileNotFoundException(artifact + " not found");
     }
     // It's an ordinary artifact.
+    value = additionalOutputData.get(artifact);
+    if (value != null && value.isRemote()) {
+      // Outputs that only exist remotely have no file, and therefore no FileValue.
+      return value;
+    }
     FileValue fileValue = outputArtifactData.get(artifact);
     if (fileValue != null) {
       // Non-middleman artifacts should only have additionalOutputData if they have
@@ -465,6 +470,15 @@ public class ActionMetadataHandler implements MetadataHandler {
     }
   }
 
+  @Override
+  public void injectRemoteFile(Artifact output, byte[] digest, long size) {
+    Preconditions.checkState(executionMode.get());
+    Preconditions.checkArgument(
+        !output.isTreeArtifact() && !output.isMiddlemanArtifact() && !output.hasParent(), output);
+    Preconditions.checkState(injectedFiles.add(output), output);
+    additionalOutputData.put(output, FileArtifactValue.createRemote(digest, size));
+  }
+
   @Override
   public void markOmitted(ActionInput output) {
     Preconditions.checkState(executionMode.get());
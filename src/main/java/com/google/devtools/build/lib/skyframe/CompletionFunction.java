@@ -34,11 +34,14 @@ import com.google.devtools.build.lib.packages.Target;
 import com.google.devtools.build.lib.skyframe.AspectCompletionValue.AspectCompletionKey;
 import com.google.devtools.build.lib.skyframe.AspectValue.AspectKey;
 import com.google.devtools.build.lib.skyframe.TargetCompletionValue.TargetCompletionKey;
+import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionException;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.build.skyframe.ValueOrException2;
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.Map;
 import javax.annotation.Nullable;
 
@@ -265,18 +268,23 @@ public final class CompletionFunction<TValue extends SkyValue, TResult extends S
     }
   }
 
-  public static SkyFunction targetCompletionFunction() {
-    return new CompletionFunction<>(new TargetCompletor());
+  public static SkyFunction targetCompletionFunction(
+      SkyframeActionExecutor skyframeActionExecutor) {
+    return new CompletionFunction<>(new TargetCompletor(), skyframeActionExecutor);
   }
 
-  public static SkyFunction aspectCompletionFunction() {
-    return new CompletionFunction<>(new AspectCompletor());
+  public static SkyFunction aspectCompletionFunction(
+      SkyframeActionExecutor skyframeActionExecutor) {
+    return new CompletionFunction<>(new AspectCompletor(), skyframeActionExecutor);
   }
 
   private final Completor<TValue, TResult> completor;
+  private final SkyframeActionExecutor skyframeActionExecutor;
 
-  private CompletionFunction(Completor<TValue, TResult> completor) {
+  private CompletionFunction(
+      Completor<TValue, TResult> completor, SkyframeActionExecutor skyframeActionExecutor) {
     this.completor = completor;
+    this.skyframeActionExecutor = skyframeActionExecutor;
   }
 
   @Nullable
@@ -300,11 +308,12 @@ public final class CompletionFunction<TValue extends SkyValue, TResult extends S
     ActionExecutionException firstActionExecutionException = null;
     MissingInputFileException missingInputException = null;
     NestedSetBuilder<Cause> rootCausesBuilder = NestedSetBuilder.stableOrder();
+    Map<Artifact, FileArtifactValue> remoteOutputs = new HashMap<>();
     for (Map.Entry<SkyKey, ValueOrException2<MissingInputFileException, ActionExecutionException>>
         depsEntry : inputDeps.entrySet()) {
       Artifact input = ArtifactSkyKey.artifact(depsEntry.getKey());
       try {
-        depsEntry.getValue().get();
+        addRemoteOutputs(input, depsEntry.getValue().get(), remoteOutputs);
       } catch (MissingInputFileException e) {
         missingCount++;
         final Label inputOwner = input.getOwner();
@@ -343,10 +352,39 @@ public final class CompletionFunction<TValue extends SkyValue, TResult extends S
     if (env.valuesMissing()) {
       return null;
     }
+    try {
+      skyframeActionExecutor.fetchRemoteOutputs(remoteOutputs);
+    } catch (IOException e) {
+      String message = "failed to fetch outputs of " + completor.extractTag(skyKey) + ": "
+          + e.getMessage();
+      env.getListener().handle(Event.error(message));
+      env.getListener().post(completor.createFailed(value, rootCauses));
+      throw new CompletionFunctionException(new MissingInputFileException(message, null));
+    }
     env.getListener().post(completor.createSucceeded(skyKey, value, topLevelContext));
     return completor.createResult(value);
   }
 
+  /**
+   * Adds {@code artifact}, or the contents of a runfiles middleman, to {@code remoteOutputs} if
+   * they were not downloaded from the remote cache that produced them.
+   */
+  private static void addRemoteOutputs(
+      Artifact artifact, @Nullable SkyValue value, Map<Artifact, FileArtifactValue> remoteOutputs) {
+    if (value instanceof FileArtifactValue) {
+      if (((FileArtifactValue) value).isRemote()) {
+        remoteOutputs.put(artifact, (FileArtifactValue) value);
+      }
+    } else if (value instanceof AggregatingArtifactValue) {
+      for (Pair<Artifact, FileArtifactValue> input :
+          ((AggregatingArtifactValue) value).getInputs()) {
+        if (input.getSecond().isRemote()) {
+          remoteOutputs.put(input.getFirst(), input.getSecond());
+        }
+      }
+    }
+  }
+
   @Override
   public String extractTag(SkyKey skyKey) {
     return completor.extractTag(skyKey);
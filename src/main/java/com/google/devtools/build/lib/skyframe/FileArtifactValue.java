@@ -231,6 +231,76 @@ public abstract class FileArtifactValue implements SkyValue, Metadata {
     }
   }
 
+  /**
+   * The value of an output whose contents were not downloaded from the remote cache that produced
+   * them. There is no file to check for modifications, so only the digest and size are known.
+   */
+  private static final class RemoteFileArtifactValue extends FileArtifactValue {
+    private final byte[] digest;
+    private final long size;
+
+    private RemoteFileArtifactValue(byte[] digest, long size) {
+      this.digest = Preconditions.checkNotNull(digest);
+      this.size = size;
+    }
+
+    @Override
+    public FileStateType getType() {
+      return FileStateType.REGULAR_FILE;
+    }
+
+    @Override
+    public byte[] getDigest() {
+      return digest;
+    }
+
+    @Override
+    public long getSize() {
+      return size;
+    }
+
+    @Override
+    public boolean isRemote() {
+      return true;
+    }
+
+    @Override
+    public boolean wasModifiedSinceDigest(Path path) {
+      return false;
+    }
+
+    @Override
+    public long getModifiedTime() {
+      throw new UnsupportedOperationException(
+          "remote file's mtime should never be called. (" + this + ")");
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("digest", BaseEncoding.base16().lowerCase().encode(digest))
+          .add("size", size)
+          .toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof RemoteFileArtifactValue)) {
+        return false;
+      }
+      RemoteFileArtifactValue r = (RemoteFileArtifactValue) o;
+      return Arrays.equals(digest, r.digest) && size == r.size;
+    }
+
+    @Override
+    public int hashCode() {
+      return 37 * Long.hashCode(size) + Arrays.hashCode(digest);
+    }
+  }
+
   static FileArtifactValue create(Artifact artifact, FileValue fileValue) throws IOException {
     boolean isFile = fileValue.isFile();
     FileContentsProxy proxy = getProxyFromFileStateValue(fileValue.realFileStateValue());
@@ -304,6 +374,11 @@ public abstract class FileArtifactValue implements SkyValue, Metadata {
     return createNormalFile(digest, /*proxy=*/null, size);
   }
 
+  /** Creates the value of a file whose contents are only available in a remote cache. */
+  public static FileArtifactValue createRemote(byte[] digest, long size) {
+    return new RemoteFileArtifactValue(digest, size);
+  }
+
   public static FileArtifactValue createDirectory(long mtime) {
     return new DirectoryArtifactValue(mtime);
   }
@@ -25,6 +25,7 @@ import com.google.common.collect.Range;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.FileStateType;
 import com.google.devtools.build.lib.concurrent.ExecutorUtil;
 import com.google.devtools.build.lib.concurrent.Sharder;
 import com.google.devtools.build.lib.concurrent.ThrowableRecordingRunnableWrapper;
@@ -35,16 +36,22 @@ import com.google.devtools.build.lib.util.LoggingUtil;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
 import com.google.devtools.build.lib.vfs.BatchStat;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
 import com.google.devtools.build.lib.vfs.ModifiedFileSet;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.lib.vfs.Symlinks;
 import com.google.devtools.build.skyframe.Differencer;
 import com.google.devtools.build.skyframe.SkyFunctionName;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.build.skyframe.WalkableGraph;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -70,6 +77,13 @@ import javax.annotation.Nullable;
 public class FilesystemValueChecker {
 
   private static final int DIRTINESS_CHECK_THREADS = 200;
+  /** Number of keys of a directory to accumulate before checking them in one job. */
+  private static final int DIRECTORY_BATCH_SIZE = 128;
+  /**
+   * Minimum number of files of a directory that did not exist at the last build, for which it is
+   * worth listing the directory once instead of statting each of them.
+   */
+  private static final int MIN_NONEXISTENT_FILES_FOR_READDIR = 8;
   private static final Logger logger = Logger.getLogger(FilesystemValueChecker.class.getName());
 
   private static final Predicate<SkyKey> ACTION_FILTER =
@@ -78,13 +92,24 @@ public class FilesystemValueChecker {
   private final TimestampGranularityMonitor tsgm;
   @Nullable
   private final Range<Long> lastExecutionTimeRange;
+  private final boolean batchByDirectory;
   private AtomicInteger modifiedOutputFilesCounter = new AtomicInteger(0);
   private AtomicInteger modifiedOutputFilesIntraBuildCounter = new AtomicInteger(0);
 
   public FilesystemValueChecker(@Nullable TimestampGranularityMonitor tsgm,
       @Nullable Range<Long> lastExecutionTimeRange) {
+    this(tsgm, lastExecutionTimeRange, /*batchByDirectory=*/ false);
+  }
+
+  /**
+   * @param batchByDirectory whether to check the file system keys of a directory together, in one
+   *     job, listing the directory instead of statting files that did not exist at the last build
+   */
+  public FilesystemValueChecker(@Nullable TimestampGranularityMonitor tsgm,
+      @Nullable Range<Long> lastExecutionTimeRange, boolean batchByDirectory) {
     this.tsgm = tsgm;
     this.lastExecutionTimeRange = lastExecutionTimeRange;
+    this.batchByDirectory = batchByDirectory;
   }
 
   /**
@@ -161,6 +186,21 @@ public class FilesystemValueChecker {
   Collection<SkyKey> getDirtyActionValues(Map<SkyKey, SkyValue> valuesMap,
       @Nullable final BatchStat batchStatter, ModifiedFileSet modifiedOutputFiles)
           throws InterruptedException {
+    return getDirtyActionValues(
+        valuesMap,
+        batchStatter,
+        modifiedOutputFiles,
+        /*materializedRemoteOutputs=*/ ImmutableSet.of());
+  }
+
+  /**
+   * Like {@link #getDirtyActionValues(Map, BatchStat, ModifiedFileSet)}, but also returns the
+   * action values with outputs in {@code materializedRemoteOutputs}, i.e. remote outputs that were
+   * fetched into the output tree, that were deleted or modified since.
+   */
+  Collection<SkyKey> getDirtyActionValues(Map<SkyKey, SkyValue> valuesMap,
+      @Nullable final BatchStat batchStatter, ModifiedFileSet modifiedOutputFiles,
+      final Set<Artifact> materializedRemoteOutputs) throws InterruptedException {
     if (modifiedOutputFiles == ModifiedFileSet.NOTHING_MODIFIED) {
       logger.info("Not checking for dirty actions since nothing was modified");
       return ImmutableList.of();
@@ -213,9 +253,9 @@ public class FilesystemValueChecker {
     for (List<Pair<SkyKey, ActionExecutionValue>> shard : outputShards) {
       Runnable job = (batchStatter == null)
           ? outputStatJob(dirtyKeys, shard, knownModifiedOutputFiles,
-              sortedKnownModifiedOutputFiles)
+              sortedKnownModifiedOutputFiles, materializedRemoteOutputs)
           : batchStatJob(dirtyKeys, shard, batchStatter, knownModifiedOutputFiles,
-              sortedKnownModifiedOutputFiles);
+              sortedKnownModifiedOutputFiles, materializedRemoteOutputs);
       Future<?> unused = executor.submit(wrapper.wrap(job));
     }
 
@@ -231,7 +271,8 @@ public class FilesystemValueChecker {
   private Runnable batchStatJob(final Collection<SkyKey> dirtyKeys,
           final List<Pair<SkyKey, ActionExecutionValue>> shard,
           final BatchStat batchStatter, final ImmutableSet<PathFragment> knownModifiedOutputFiles,
-          final Supplier<NavigableSet<PathFragment>> sortedKnownModifiedOutputFiles) {
+          final Supplier<NavigableSet<PathFragment>> sortedKnownModifiedOutputFiles,
+          final Set<Artifact> materializedRemoteOutputs) {
     return new Runnable() {
       @Override
       public void run() {
@@ -269,7 +310,8 @@ public class FilesystemValueChecker {
           // Batch stat did not work. Log an exception and fall back on system calls.
           LoggingUtil.logToRemote(Level.WARNING, "Unable to process batch stat", e);
           logger.log(Level.WARNING, "Unable to process batch stat", e);
-          outputStatJob(dirtyKeys, shard, knownModifiedOutputFiles, sortedKnownModifiedOutputFiles)
+          outputStatJob(dirtyKeys, shard, knownModifiedOutputFiles, sortedKnownModifiedOutputFiles,
+              materializedRemoteOutputs)
               .run();
           return;
         } catch (InterruptedException e) {
@@ -327,6 +369,16 @@ public class FilesystemValueChecker {
             dirtyKeys.add(entry.getValue().getFirst());
           }
         }
+
+        // Remote outputs have no FileValue to compare a batch stat against.
+        for (Pair<SkyKey, ActionExecutionValue> keyAndValue : shard) {
+          ActionExecutionValue actionValue = keyAndValue.getSecond();
+          if (actionValue != null
+              && materializedRemoteOutputsAreDirty(
+                  actionValue, knownModifiedOutputFiles, materializedRemoteOutputs)) {
+            dirtyKeys.add(keyAndValue.getFirst());
+          }
+        }
       }
     };
   }
@@ -343,7 +395,8 @@ public class FilesystemValueChecker {
   private Runnable outputStatJob(final Collection<SkyKey> dirtyKeys,
       final List<Pair<SkyKey, ActionExecutionValue>> shard,
       final ImmutableSet<PathFragment> knownModifiedOutputFiles,
-      final Supplier<NavigableSet<PathFragment>> sortedKnownModifiedOutputFiles) {
+      final Supplier<NavigableSet<PathFragment>> sortedKnownModifiedOutputFiles,
+      final Set<Artifact> materializedRemoteOutputs) {
     return new Runnable() {
       @Override
       public void run() {
@@ -351,7 +404,9 @@ public class FilesystemValueChecker {
           ActionExecutionValue value = keyAndValue.getSecond();
           if (value == null
               || actionValueIsDirtyWithDirectSystemCalls(
-                  value, knownModifiedOutputFiles, sortedKnownModifiedOutputFiles)) {
+                  value, knownModifiedOutputFiles, sortedKnownModifiedOutputFiles)
+              || materializedRemoteOutputsAreDirty(
+                  value, knownModifiedOutputFiles, materializedRemoteOutputs)) {
             dirtyKeys.add(keyAndValue.getFirst());
           }
         }
@@ -438,6 +493,48 @@ public class FilesystemValueChecker {
     return isDirty;
   }
 
+  /**
+   * Returns whether a remote output of {@code actionValue} that was fetched into the output tree
+   * no longer matches its remote metadata, e.g. because it was deleted, so that the action is
+   * evaluated again and fetches it anew.
+   */
+  private boolean materializedRemoteOutputsAreDirty(ActionExecutionValue actionValue,
+      ImmutableSet<PathFragment> knownModifiedOutputFiles,
+      Set<Artifact> materializedRemoteOutputs) {
+    if (materializedRemoteOutputs.isEmpty()) {
+      return false;
+    }
+    boolean isDirty = false;
+    for (Map.Entry<Artifact, FileArtifactValue> entry :
+        actionValue.getAllAdditionalOutputData().entrySet()) {
+      Artifact file = entry.getKey();
+      FileArtifactValue lastKnownData = entry.getValue();
+      if (!lastKnownData.isRemote()
+          || !materializedRemoteOutputs.contains(file)
+          || !shouldCheckFile(knownModifiedOutputFiles, file)) {
+        continue;
+      }
+      FileStatus stat;
+      try {
+        stat = file.getPath().statIfFound(Symlinks.FOLLOW);
+      } catch (IOException e) {
+        stat = null;
+      }
+      try {
+        if (stat == null || !stat.isFile() || stat.getSize() != lastKnownData.getSize()) {
+          updateIntraBuildModifiedCounter(
+              stat != null ? stat.getLastChangeTime() : -1, false, false);
+          modifiedOutputFilesCounter.getAndIncrement();
+          isDirty = true;
+        }
+      } catch (IOException e) {
+        modifiedOutputFilesCounter.getAndIncrement();
+        isDirty = true;
+      }
+    }
+    return isDirty;
+  }
+
   private static boolean shouldCheckFile(ImmutableSet<PathFragment> knownModifiedOutputFiles,
       Artifact artifact) {
     return knownModifiedOutputFiles == null
@@ -491,6 +588,7 @@ public class FilesystemValueChecker {
           }
         };
     try (AutoProfiler prof = AutoProfiler.create(elapsedTimeReceiver)) {
+      Map<Path, List<Pair<SkyKey, SkyValue>>> directoryBatches = new HashMap<>();
       for (final SkyKey key : keys) {
         numKeysScanned.incrementAndGet();
         if (!checker.applies(key)) {
@@ -500,6 +598,20 @@ public class FilesystemValueChecker {
         if (!checkMissingValues && value == null) {
           continue;
         }
+        Path directory = batchByDirectory ? getParentDirectory(key) : null;
+        if (directory != null) {
+          List<Pair<SkyKey, SkyValue>> batch =
+              directoryBatches.computeIfAbsent(directory, d -> new ArrayList<>());
+          batch.add(Pair.of(key, value));
+          // Start checking full batches right away rather than after scanning all keys.
+          if (batch.size() >= DIRECTORY_BATCH_SIZE) {
+            directoryBatches.remove(directory);
+            executor.execute(
+                wrapper.wrap(
+                    directoryBatchJob(directory, batch, checker, batchResult, numKeysChecked)));
+          }
+          continue;
+        }
         executor.execute(
             wrapper.wrap(
                 new Runnable() {
@@ -513,6 +625,12 @@ public class FilesystemValueChecker {
                   }
                 }));
       }
+      for (Map.Entry<Path, List<Pair<SkyKey, SkyValue>>> entry : directoryBatches.entrySet()) {
+        executor.execute(
+            wrapper.wrap(
+                directoryBatchJob(
+                    entry.getKey(), entry.getValue(), checker, batchResult, numKeysChecked)));
+      }
 
       boolean interrupted = ExecutorUtil.interruptibleShutdown(executor);
       Throwables.propagateIfPossible(wrapper.getFirstThrownError());
@@ -523,6 +641,85 @@ public class FilesystemValueChecker {
     return batchResult;
   }
 
+  /**
+   * Returns the directory containing the file or directory of {@code key}, or null if it is not a
+   * file system key.
+   */
+  @Nullable
+  private static Path getParentDirectory(SkyKey key) {
+    if (!key.functionName().equals(SkyFunctions.FILE_STATE)
+        && !key.functionName().equals(SkyFunctions.DIRECTORY_LISTING_STATE)) {
+      return null;
+    }
+    return ((RootedPath) key.argument()).asPath().getParentDirectory();
+  }
+
+  private static boolean isNonexistentFileState(SkyKey key, @Nullable SkyValue value) {
+    return key.functionName().equals(SkyFunctions.FILE_STATE)
+        && value instanceof FileStateValue
+        && ((FileStateValue) value).getType() == FileStateType.NONEXISTENT;
+  }
+
+  private Runnable directoryBatchJob(
+      final Path directory,
+      final List<Pair<SkyKey, SkyValue>> batch,
+      final SkyValueDirtinessChecker checker,
+      final BatchDirtyResult batchResult,
+      final AtomicInteger numKeysChecked) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        Set<String> names = listDirectoryIfCheaper(directory, batch);
+        for (Pair<SkyKey, SkyValue> keyAndValue : batch) {
+          SkyKey key = keyAndValue.getFirst();
+          SkyValue value = keyAndValue.getSecond();
+          if (names != null
+              && isNonexistentFileState(key, value)
+              && !names.contains(((RootedPath) key.argument()).asPath().getBaseName())) {
+            // Still does not exist.
+            continue;
+          }
+          numKeysChecked.incrementAndGet();
+          DirtyResult result = checker.check(key, value, tsgm);
+          if (result.isDirty()) {
+            batchResult.add(key, value, result.getNewValue());
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Returns the names of the entries of {@code directory}, or null if enough files of the batch
+   * existed at the last build that statting them individually is cheaper, or if names found by
+   * listing the directory cannot be compared to the names of the keys.
+   */
+  @Nullable
+  private static Set<String> listDirectoryIfCheaper(
+      Path directory, List<Pair<SkyKey, SkyValue>> batch) {
+    int numNonexistentFiles = 0;
+    for (Pair<SkyKey, SkyValue> keyAndValue : batch) {
+      if (isNonexistentFileState(keyAndValue.getFirst(), keyAndValue.getSecond())) {
+        numNonexistentFiles++;
+      }
+    }
+    if (numNonexistentFiles < MIN_NONEXISTENT_FILES_FOR_READDIR
+        || !directory.getFileSystem().isFilePathCaseSensitive()) {
+      return null;
+    }
+    try {
+      Set<String> names = new HashSet<>();
+      for (Dirent dirent : directory.readdir(Symlinks.NOFOLLOW)) {
+        names.add(dirent.getName());
+      }
+      return names;
+    } catch (FileNotFoundException e) {
+      return ImmutableSet.of();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
   /**
    * Result of a batch call to {@link SkyValueDirtinessChecker#check}. Partitions the dirty
    * values based on whether we have a new value available for them or not.
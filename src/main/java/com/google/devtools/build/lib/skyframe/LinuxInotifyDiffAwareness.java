@@ -0,0 +1,135 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.UnixJniLoader;
+import com.google.devtools.common.options.OptionsClassProvider;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * A {@link DiffAwareness} that uses inotify directly, through JNI, to watch the filesystem.
+ *
+ * <p>Compared to {@link WatchServiceDiffAwareness}, all directories are registered in native code
+ * in a single pass, and events are read and coalesced by a native thread as they arrive, so that
+ * {@link #getCurrentView} only has to collect the set of changed paths instead of draining one
+ * {@link java.nio.file.WatchKey} per directory.
+ */
+public final class LinuxInotifyDiffAwareness extends LocalDiffAwareness {
+  private boolean closed;
+
+  // Keep a pointer to a native structure in the JNI code (the reader thread needs that structure).
+  private long nativePointer;
+
+  private boolean opened;
+
+  LinuxInotifyDiffAwareness(String watchRoot) {
+    super(watchRoot);
+  }
+
+  /**
+   * JNI code registering watches for all directories under <code>root</code> and starting the
+   * thread that reads their events.
+   */
+  private native void create(String root) throws IOException;
+
+  private void init() throws IOException {
+    Preconditions.checkState(!opened);
+    create(watchRootPath.toAbsolutePath().toString());
+    opened = true;
+  }
+
+  /**
+   * Close this watch service, this service should not be used any longer after closing.
+   */
+  @Override
+  public void close() {
+    // Also called after the watcher broke, so this must be idempotent.
+    if (opened && !closed) {
+      closed = true;
+      doClose();
+    }
+  }
+
+  private static final boolean JNI_AVAILABLE;
+
+  /**
+   * JNI code stopping the reader thread and releasing the inotify instance.
+   */
+  private native void doClose();
+
+  /**
+   * JNI code returning the list of absolute paths modified since the last call. Throws if events
+   * may have been lost, e.g. because the kernel event queue overflowed.
+   */
+  private native String[] poll() throws IOException;
+
+  static {
+    boolean loadJniWorked = false;
+    try {
+      UnixJniLoader.loadJni();
+      loadJniWorked = true;
+    } catch (UnsatisfiedLinkError ignored) {
+      // See MacOSXFsEventsDiffAwareness; the bootstrap binary doesn't have the JNI code.
+    }
+    JNI_AVAILABLE = loadJniWorked;
+  }
+
+  /** Returns whether the JNI code backing this class could be loaded. */
+  static boolean isAvailable() {
+    return JNI_AVAILABLE;
+  }
+
+  @Override
+  public View getCurrentView(OptionsClassProvider options)
+      throws BrokenDiffAwarenessException {
+    if (!JNI_AVAILABLE) {
+      return EVERYTHING_MODIFIED;
+    }
+    // See WatchServiceDiffAwareness#getCurrentView for an explanation of this logic.
+    boolean watchFs = options.getOptions(Options.class).watchFS;
+    if (watchFs && !opened) {
+      try {
+        init();
+      } catch (IOException e) {
+        throw new BrokenDiffAwarenessException(
+            "Error encountered with local file system watcher " + e);
+      }
+      // Watches are only registered now, so changes before this point are unknown; see (1a) in
+      // WatchServiceDiffAwareness#getCurrentView for why an empty view is still correct.
+      return newView(ImmutableSet.<Path>of());
+    } else if (!watchFs && opened) {
+      close();
+      throw new BrokenDiffAwarenessException("Switched off --watchfs again");
+    } else if (!opened) {
+      return EVERYTHING_MODIFIED;
+    }
+    Preconditions.checkState(!closed);
+    ImmutableSet.Builder<Path> paths = ImmutableSet.builder();
+    try {
+      for (String path : poll()) {
+        paths.add(new File(path).toPath());
+      }
+    } catch (IOException e) {
+      close();
+      throw new BrokenDiffAwarenessException(
+          "Error encountered with local file system watcher " + e);
+    }
+    return newView(paths.build());
+  }
+}
@@ -176,9 +176,43 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
       CrossRepositoryLabelViolationStrategy crossRepositoryLabelViolationStrategy,
       List<BuildFileName> buildFilesByPriority,
       ActionOnIOExceptionReadingBuildFile actionOnIOExceptionReadingBuildFile) {
+    return create(
+        InMemoryMemoizingEvaluator.SUPPLIER,
+        pkgFactory,
+        fileSystem,
+        directories,
+        actionKeyContext,
+        workspaceStatusActionFactory,
+        buildInfoFactories,
+        diffAwarenessFactories,
+        extraSkyFunctions,
+        customDirtinessCheckers,
+        hardcodedBlacklistedPackagePrefixes,
+        additionalBlacklistedPackagePrefixesFile,
+        crossRepositoryLabelViolationStrategy,
+        buildFilesByPriority,
+        actionOnIOExceptionReadingBuildFile);
+  }
+
+  public static SequencedSkyframeExecutor create(
+      EvaluatorSupplier evaluatorSupplier,
+      PackageFactory pkgFactory,
+      FileSystem fileSystem,
+      BlazeDirectories directories,
+      ActionKeyContext actionKeyContext,
+      Factory workspaceStatusActionFactory,
+      ImmutableList<BuildInfoFactory> buildInfoFactories,
+      Iterable<? extends DiffAwareness.Factory> diffAwarenessFactories,
+      ImmutableMap<SkyFunctionName, SkyFunction> extraSkyFunctions,
+      Iterable<SkyValueDirtinessChecker> customDirtinessCheckers,
+      ImmutableSet<PathFragment> hardcodedBlacklistedPackagePrefixes,
+      PathFragment additionalBlacklistedPackagePrefixesFile,
+      CrossRepositoryLabelViolationStrategy crossRepositoryLabelViolationStrategy,
+      List<BuildFileName> buildFilesByPriority,
+      ActionOnIOExceptionReadingBuildFile actionOnIOExceptionReadingBuildFile) {
     SequencedSkyframeExecutor skyframeExecutor =
         new SequencedSkyframeExecutor(
-            InMemoryMemoizingEvaluator.SUPPLIER,
+            evaluatorSupplier,
             pkgFactory,
             fileSystem,
             directories,
@@ -244,7 +278,11 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     }
     super.sync(eventHandler, packageCacheOptions, skylarkSemanticsOptions, outputBase,
         workingDirectory, defaultsPackageContents, commandId, clientEnv, tsgm, options);
-    handleDiffs(eventHandler, packageCacheOptions.checkOutputFiles, options);
+    handleDiffs(
+        eventHandler,
+        packageCacheOptions.checkOutputFiles,
+        packageCacheOptions.batchFilesystemChecksByDirectory,
+        options);
   }
 
   /**
@@ -299,11 +337,18 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
   /** Uses diff awareness on all the package paths to invalidate changed files. */
   @VisibleForTesting
   public void handleDiffs(ExtendedEventHandler eventHandler) throws InterruptedException {
-    handleDiffs(eventHandler, /*checkOutputFiles=*/false, OptionsClassProvider.EMPTY);
+    handleDiffs(
+        eventHandler,
+        /*checkOutputFiles=*/ false,
+        /*batchByDirectory=*/ false,
+        OptionsClassProvider.EMPTY);
   }
 
   private void handleDiffs(
-      ExtendedEventHandler eventHandler, boolean checkOutputFiles, OptionsClassProvider options)
+      ExtendedEventHandler eventHandler,
+      boolean checkOutputFiles,
+      boolean batchByDirectory,
+      OptionsClassProvider options)
       throws InterruptedException {
     if (lastAnalysisDiscarded) {
       // Values were cleared last build, but they couldn't be deleted because they were needed for
@@ -311,6 +356,7 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
       dropConfiguredTargetsNow(eventHandler);
       lastAnalysisDiscarded = false;
     }
+    invalidateActionLookupValuesWithRemovedActions();
     TimestampGranularityMonitor tsgm = this.tsgm.get();
     modifiedFiles = 0;
     Map<Root, DiffAwarenessManager.ProcessableModifiedFileSet> modifiedFilesByPathEntry =
@@ -328,7 +374,7 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     }
     handleDiffsWithCompleteDiffInformation(tsgm, modifiedFilesByPathEntry);
     handleDiffsWithMissingDiffInformation(eventHandler, tsgm, pathEntriesWithoutDiffInformation,
-        checkOutputFiles);
+        checkOutputFiles, batchByDirectory);
     handleClientEnvironmentChanges();
   }
 
@@ -384,7 +430,8 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
       TimestampGranularityMonitor tsgm,
       Set<Pair<Root, DiffAwarenessManager.ProcessableModifiedFileSet>>
           pathEntriesWithoutDiffInformation,
-      boolean checkOutputFiles)
+      boolean checkOutputFiles,
+      boolean batchByDirectory)
       throws InterruptedException {
     ExternalFilesKnowledge externalFilesKnowledge =
         externalFilesHelper.getExternalFilesKnowledge();
@@ -403,7 +450,7 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     buildDriver.evaluate(ImmutableList.<SkyKey>of(), false,
         DEFAULT_THREAD_COUNT, eventHandler);
 
-    FilesystemValueChecker fsvc = new FilesystemValueChecker(tsgm, null);
+    FilesystemValueChecker fsvc = new FilesystemValueChecker(tsgm, null, batchByDirectory);
     // We need to manually check for changes to known files. This entails finding all dirty file
     // system values under package roots for which we don't have diff information. If at least
     // one path entry doesn't have diff information, then we're going to have to iterate over
@@ -557,10 +604,14 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     if (oldValueOfTrackIncrementalState != trackIncrementalState) {
       logger.info("Set incremental state to " + trackIncrementalState);
       evaluatorNeedsReset = true;
-      removeActionsAfterEvaluation.set(!trackIncrementalState);
     } else if (!trackIncrementalState) {
       evaluatorNeedsReset = true;
     }
+    // Actions removed while incremental state is tracked are recreated on demand: see
+    // SkyframeExecutor#invalidateActionLookupValuesWithRemovedActions.
+    removeActionsAfterEvaluation.set(
+        !trackIncrementalState
+            || (viewOptions != null && viewOptions.discardActionsAfterExecution));
   }
 
   @Override
@@ -578,6 +629,7 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
       dropConfiguredTargetsNow(eventHandler);
       lastAnalysisDiscarded = false;
     }
+    invalidateActionLookupValuesWithRemovedActions();
     TimestampGranularityMonitor tsgm = this.tsgm.get();
     Differencer.Diff diff;
     if (modifiedFileSet.treatEverythingAsModified()) {
@@ -610,7 +662,10 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     BatchStat batchStatter = outputService == null ? null : outputService.getBatchStatter();
     recordingDiffer.invalidate(
         fsvc.getDirtyActionValues(
-            memoizingEvaluator.getValues(), batchStatter, modifiedOutputFiles));
+            memoizingEvaluator.getValues(),
+            batchStatter,
+            modifiedOutputFiles,
+            getMaterializedRemoteOutputs()));
     modifiedFiles += fsvc.getNumberOfModifiedOutputFiles();
     outputDirtyFiles += fsvc.getNumberOfModifiedOutputFiles();
     modifiedFilesDuringPreviousBuild += fsvc.getNumberOfModifiedOutputFilesDuringPreviousBuild();
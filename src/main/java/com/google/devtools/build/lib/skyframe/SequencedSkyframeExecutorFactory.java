@@ -21,6 +21,8 @@ import com.google.devtools.build.lib.analysis.WorkspaceStatusAction.Factory;
 import com.google.devtools.build.lib.analysis.buildinfo.BuildInfoFactory;
 import com.google.devtools.build.lib.packages.PackageFactory;
 import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
+import com.google.devtools.build.skyframe.MemoizingEvaluator.EvaluatorSupplier;
 import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionName;
 
@@ -29,6 +31,16 @@ import com.google.devtools.build.skyframe.SkyFunctionName;
  */
 public class SequencedSkyframeExecutorFactory implements SkyframeExecutorFactory {
 
+  private final EvaluatorSupplier evaluatorSupplier;
+
+  public SequencedSkyframeExecutorFactory() {
+    this(InMemoryMemoizingEvaluator.SUPPLIER);
+  }
+
+  public SequencedSkyframeExecutorFactory(EvaluatorSupplier evaluatorSupplier) {
+    this.evaluatorSupplier = evaluatorSupplier;
+  }
+
   @Override
   public SkyframeExecutor create(
       PackageFactory pkgFactory,
@@ -41,6 +53,7 @@ public class SequencedSkyframeExecutorFactory implements SkyframeExecutorFactory
       ImmutableMap<SkyFunctionName, SkyFunction> extraSkyFunctions,
       Iterable<SkyValueDirtinessChecker> customDirtinessCheckers) {
     return SequencedSkyframeExecutor.create(
+        evaluatorSupplier,
         pkgFactory,
         fileSystem,
         directories,
@@ -19,6 +19,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.eventbus.EventBus;
 import com.google.common.util.concurrent.Striped;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
@@ -85,7 +86,9 @@ import com.google.devtools.build.skyframe.SkyFunction.Environment;
 import com.google.protobuf.ByteString;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -149,6 +152,9 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
   private boolean hadExecutionError;
   private ActionInputFileCache perBuildFileCache;
   private ActionInputPrefetcher actionInputPrefetcher;
+  // Remote outputs of top-level targets and aspects that were fetched into the output tree. They
+  // are fetched again whenever their action is re-evaluated, e.g. because they were deleted.
+  private final Set<Artifact> materializedRemoteOutputs = Sets.newConcurrentHashSet();
   /** These variables are nulled out between executions. */
   private ProgressSupplier progressSupplier;
   private ActionCompletedReceiver completionReceiver;
@@ -494,12 +500,17 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
       MetadataHandler metadataHandler,
       long actionStartTime,
       Iterable<Artifact> resolvedCacheArtifacts,
-      Map<String, String> clientEnv) {
+      Map<String, String> clientEnv)
+      throws InterruptedException {
     profiler.startTask(ProfilerTask.ACTION_CHECK, action);
-    Token token =
-        actionCacheChecker.getTokenIfNeedToExecute(
-            action, resolvedCacheArtifacts, clientEnv, explain ? reporter : null, metadataHandler);
-    profiler.completeTask(ProfilerTask.ACTION_CHECK);
+    Token token;
+    try {
+      token =
+          actionCacheChecker.getTokenIfNeedToExecute(
+              action, resolvedCacheArtifacts, clientEnv, explain ? reporter : null, metadataHandler);
+    } finally {
+      profiler.completeTask(ProfilerTask.ACTION_CHECK);
+    }
     if (token == null) {
       boolean eventPosted = false;
       // Notify BlazeRuntimeStatistics about the action middleman 'execution'.
@@ -601,6 +612,7 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
             clientEnv,
             env);
     try {
+      prefetchInputs(action, action.getInputs(), actionExecutionContext);
       return action.discoverInputs(actionExecutionContext);
     } catch (ActionExecutionException e) {
       throw processAndThrow(
@@ -640,6 +652,55 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
     this.actionInputPrefetcher = actionInputPrefetcher;
   }
 
+  /**
+   * Fetches the given outputs of a top-level target or aspect, which were not downloaded from the
+   * remote cache that produced them, so that they are in the output tree when the build finishes.
+   */
+  void fetchRemoteOutputs(Map<Artifact, FileArtifactValue> remoteOutputs)
+      throws IOException, InterruptedException {
+    if (remoteOutputs.isEmpty()) {
+      return;
+    }
+    actionInputPrefetcher.prefetchFiles(remoteOutputs.keySet(), remoteOutputs::get);
+    materializedRemoteOutputs.addAll(remoteOutputs.keySet());
+  }
+
+  /**
+   * Returns the remote outputs that {@link #fetchRemoteOutputs} fetched into the output tree. Their
+   * actions are dirty if the fetched files were deleted or modified since.
+   */
+  Set<Artifact> getMaterializedRemoteOutputs() {
+    return materializedRemoteOutputs;
+  }
+
+  /**
+   * Fetches the remote outputs of {@code action} that were fetched into the output tree by an
+   * earlier build, so that they are not lost when the action is evaluated again.
+   */
+  void refetchMaterializedRemoteOutputs(Action action, ActionExecutionValue value)
+      throws ActionExecutionException, InterruptedException {
+    if (materializedRemoteOutputs.isEmpty()
+        || actionInputPrefetcher == ActionInputPrefetcher.NONE) {
+      return;
+    }
+    Map<Artifact, FileArtifactValue> remoteOutputs = new HashMap<>();
+    for (Artifact output : action.getOutputs()) {
+      FileArtifactValue metadata = value.getArtifactValue(output);
+      if (metadata != null && metadata.isRemote() && materializedRemoteOutputs.contains(output)) {
+        remoteOutputs.put(output, metadata);
+      }
+    }
+    if (remoteOutputs.isEmpty()) {
+      return;
+    }
+    try {
+      actionInputPrefetcher.prefetchFiles(remoteOutputs.keySet(), remoteOutputs::get);
+    } catch (IOException e) {
+      throw new ActionExecutionException(
+          "Failed to fetch outputs: " + e.getMessage(), e, action, false);
+    }
+  }
+
   private class ActionRunner implements Callable<ActionExecutionValue> {
     private final ExtendedEventHandler eventHandler;
     private final Action action;
@@ -888,6 +949,13 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
     // instead.
     FileOutErr outErrBuffer = actionExecutionContext.getFileOutErr();
     try {
+      if (actionInputPrefetcher != ActionInputPrefetcher.NONE
+          && !action.readsInputsOnlyThroughSpawns()) {
+        List<Artifact> inputs = new ArrayList<>();
+        Artifact.addExpandedArtifacts(
+            action.getInputs(), inputs, actionExecutionContext.getArtifactExpander());
+        prefetchInputs(action, inputs, actionExecutionContext);
+      }
       ActionResult actionResult = action.execute(actionExecutionContext);
       if (actionResult != ActionResult.EMPTY) {
         eventHandler.post(new ActionResultReceivedEvent(action, actionResult));
@@ -994,6 +1062,27 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
     reporter.handle(Event.error(action.getOwner().getLocation(), errorMessage));
   }
 
+  /**
+   * Fetches the given inputs of {@code action} if they are not available locally, e.g. because they
+   * are the outputs of a remotely executed action that were never downloaded.
+   */
+  private void prefetchInputs(
+      Action action,
+      Iterable<? extends ActionInput> inputs,
+      ActionExecutionContext actionExecutionContext)
+      throws ActionExecutionException, InterruptedException {
+    if (actionInputPrefetcher == ActionInputPrefetcher.NONE) {
+      return;
+    }
+    try {
+      actionInputPrefetcher.prefetchFiles(
+          inputs, actionExecutionContext.getActionInputFileCache());
+    } catch (IOException e) {
+      throw new ActionExecutionException(
+          "Failed to fetch inputs: " + e.getMessage(), e, action, false);
+    }
+  }
+
   /**
    * Validates that all action outputs were created or intentionally omitted. This can result in
    * chmod calls on the output files; see {@link ActionMetadataHandler}.
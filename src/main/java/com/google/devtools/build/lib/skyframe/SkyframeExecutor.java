@@ -142,9 +142,11 @@ import com.google.devtools.build.skyframe.CyclesReporter;
 import com.google.devtools.build.skyframe.Differencer;
 import com.google.devtools.build.skyframe.Differencer.DiffWithDelta.Delta;
 import com.google.devtools.build.skyframe.ErrorInfo;
+import com.google.devtools.build.skyframe.EvaluationPriorityFunction;
 import com.google.devtools.build.skyframe.EvaluationProgressReceiver;
 import com.google.devtools.build.skyframe.EvaluationResult;
 import com.google.devtools.build.skyframe.ImmutableDiff;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
 import com.google.devtools.build.skyframe.Injectable;
 import com.google.devtools.build.skyframe.MemoizingEvaluator;
 import com.google.devtools.build.skyframe.MemoizingEvaluator.EvaluatorSupplier;
@@ -261,7 +263,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   private final AtomicReference<ActionExecutionStatusReporter> statusReporterRef =
       new AtomicReference<>();
   private final SkyframeActionExecutor skyframeActionExecutor;
-  private CompletionReceiver actionExecutionFunction;
+  private ActionExecutionFunction actionExecutionFunction;
   protected SkyframeProgressReceiver progressReceiver;
   private final AtomicReference<CyclesReporter> cyclesReporter = new AtomicReference<>();
 
@@ -441,8 +443,12 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
         SkyFunctions.WORKSPACE_FILE,
         new WorkspaceFileFunction(ruleClassProvider, pkgFactory, directories));
     map.put(SkyFunctions.EXTERNAL_PACKAGE, new ExternalPackageFunction());
-    map.put(SkyFunctions.TARGET_COMPLETION, CompletionFunction.targetCompletionFunction());
-    map.put(SkyFunctions.ASPECT_COMPLETION, CompletionFunction.aspectCompletionFunction());
+    map.put(
+        SkyFunctions.TARGET_COMPLETION,
+        CompletionFunction.targetCompletionFunction(skyframeActionExecutor));
+    map.put(
+        SkyFunctions.ASPECT_COMPLETION,
+        CompletionFunction.aspectCompletionFunction(skyframeActionExecutor));
     map.put(SkyFunctions.TEST_COMPLETION, new TestCompletionFunction());
     map.put(SkyFunctions.ARTIFACT, new ArtifactFunction());
     map.put(
@@ -629,6 +635,17 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     skyframeBuildView.clearLegacyData();
   }
 
+  /**
+   * Sets the priorities with which subsequent evaluations schedule nodes, or goes back to the
+   * default order if {@code priorityFunction} is null. Does nothing if the evaluator does not
+   * support priorities.
+   */
+  public void setEvaluationPriorities(@Nullable EvaluationPriorityFunction priorityFunction) {
+    if (memoizingEvaluator instanceof InMemoryMemoizingEvaluator) {
+      ((InMemoryMemoizingEvaluator) memoizingEvaluator).setPriorityFunction(priorityFunction);
+    }
+  }
+
   protected abstract Differencer evaluatorDiffer();
 
   protected abstract BuildDriver getBuildDriver();
@@ -1253,6 +1270,47 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     }
   }
 
+  /**
+   * Invalidates the actions whose outputs were left in a remote cache instead of being written to
+   * the output tree, so that they run again in the next build, e.g. because that build cannot fetch
+   * such outputs or must download all of them.
+   */
+  public void invalidateActionsWithRemoteOutputs() {
+    Map<SkyKey, SkyValue> values = memoizingEvaluator.getValues();
+    invalidate(
+        key -> {
+          SkyValue value = values.get(key);
+          return value instanceof ActionExecutionValue
+              && ((ActionExecutionValue) value).hasRemoteOutputs();
+        });
+  }
+
+  /**
+   * Returns the remote outputs of top-level targets and aspects that were fetched into the output
+   * tree, which must be checked for external modifications like local outputs.
+   */
+  protected Set<Artifact> getMaterializedRemoteOutputs() {
+    return skyframeActionExecutor.getMaterializedRemoteOutputs();
+  }
+
+  /**
+   * Invalidates the {@link ActionLookupValue}s that had actions removed after execution, so that
+   * they are recomputed, together with their actions, if a later build needs them. Not needed if
+   * incremental state is not tracked, since the graph will not be reused then.
+   *
+   * <p>Must only be called before the analysis phase of a build: the execution phase may evaluate
+   * several times, e.g. for exclusive tests, and those evaluations must not re-analyze anything.
+   */
+  protected void invalidateActionLookupValuesWithRemovedActions() {
+    ImmutableSet<SkyKey> keys =
+        actionExecutionFunction.getAndClearActionLookupKeysWithRemovedActions();
+    if (!keys.isEmpty() && tracksStateForIncrementality()) {
+      logger.info(
+          String.format("Invalidating %d values whose actions were removed", keys.size()));
+      invalidate(Predicates.in(keys));
+    }
+  }
+
   @VisibleForTesting
   public void prepareBuildingForTestingOnly(Reporter reporter, Executor executor, boolean keepGoing,
       boolean explain, ActionCacheChecker checker) {
@@ -0,0 +1,363 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.syntax;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
+import com.google.devtools.build.lib.events.Location;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * The body of a {@link UserDefinedFunction}, compiled to a tree of nodes that each execute one
+ * statement.
+ *
+ * <p>Unlike {@link Eval}, the nodes don't dispatch on the kind of the statement every time it is
+ * executed, and they signal {@code return}, {@code break} and {@code continue} by their result
+ * instead of by throwing an exception. Expressions are still evaluated by {@link
+ * Expression#eval}, and the errors of each statement are transformed like {@link Eval#exec} does,
+ * so that the result of a call, its side effects and its errors are the same as when the body is
+ * interpreted.
+ *
+ * <p>Statements that are rare in function bodies, like nested function definitions, are executed
+ * by {@link Eval}. A body in which {@code break} or {@code continue} is not inside a loop is not
+ * compiled.
+ */
+@Immutable
+final class CompiledFunctionBody {
+
+  /** The result of a node whose statement completed normally. */
+  private static final Object NEXT = new Object();
+  /** The result of a node that executed a {@code break} statement. */
+  private static final Object BREAK = new Object();
+  /** The result of a node that executed a {@code continue} statement. */
+  private static final Object CONTINUE = new Object();
+
+  /**
+   * A compiled statement. Its result is {@link #NEXT}, {@link #BREAK}, {@link #CONTINUE}, or else
+   * the value of a {@code return} statement.
+   */
+  private abstract static class Node {
+    abstract Object exec(Environment env) throws EvalException, InterruptedException;
+  }
+
+  /** A node whose errors are transformed by its statement, like {@link Eval#exec} does. */
+  private abstract static class StatementNode extends Node {
+    private final Statement statement;
+
+    StatementNode(Statement statement) {
+      this.statement = statement;
+    }
+
+    @Override
+    final Object exec(Environment env) throws EvalException, InterruptedException {
+      try {
+        return doExec(env);
+      } catch (EvalException ex) {
+        throw statement.maybeTransformException(ex);
+      }
+    }
+
+    abstract Object doExec(Environment env) throws EvalException, InterruptedException;
+  }
+
+  private static final class AssignmentNode extends StatementNode {
+    private final LValue lvalue;
+    private final Expression expression;
+    private final Location location;
+
+    AssignmentNode(AssignmentStatement node) {
+      super(node);
+      this.lvalue = node.getLValue();
+      this.expression = node.getExpression();
+      this.location = node.getLocation();
+    }
+
+    @Override
+    Object doExec(Environment env) throws EvalException, InterruptedException {
+      lvalue.assign(expression.eval(env), env, location);
+      return NEXT;
+    }
+  }
+
+  private static final class AugmentedAssignmentNode extends StatementNode {
+    private final AugmentedAssignmentStatement node;
+
+    AugmentedAssignmentNode(AugmentedAssignmentStatement node) {
+      super(node);
+      this.node = node;
+    }
+
+    @Override
+    Object doExec(Environment env) throws EvalException, InterruptedException {
+      node.getLValue()
+          .assignAugmented(node.getOperator(), node.getExpression(), env, node.getLocation());
+      return NEXT;
+    }
+  }
+
+  private static final class ExpressionNode extends StatementNode {
+    private final Expression expression;
+
+    ExpressionNode(ExpressionStatement node) {
+      super(node);
+      this.expression = node.getExpression();
+    }
+
+    @Override
+    Object doExec(Environment env) throws EvalException, InterruptedException {
+      expression.eval(env);
+      return NEXT;
+    }
+  }
+
+  private static final class FlowNode extends StatementNode {
+    private final Object result;
+
+    FlowNode(FlowStatement node) {
+      super(node);
+      this.result = node.getKind() == FlowStatement.Kind.BREAK ? BREAK : CONTINUE;
+    }
+
+    @Override
+    Object doExec(Environment env) {
+      return result;
+    }
+  }
+
+  private static final class ForNode extends StatementNode {
+    private final LValue variable;
+    private final Expression collection;
+    private final Location location;
+    private final Node[] block;
+
+    ForNode(ForStatement node, Node[] block) {
+      super(node);
+      this.variable = node.getVariable();
+      this.collection = node.getCollection();
+      this.location = node.getLocation();
+      this.block = block;
+    }
+
+    @Override
+    Object doExec(Environment env) throws EvalException, InterruptedException {
+      Object o = collection.eval(env);
+      Iterable<?> col = EvalUtils.toIterable(o, location, env);
+      EvalUtils.lock(o, location);
+      try {
+        for (Object it : col) {
+          variable.assign(it, env, location);
+          Object result = execBlock(block, env);
+          if (result == BREAK) {
+            return NEXT;
+          }
+          if (result != NEXT && result != CONTINUE) {
+            return result;
+          }
+        }
+      } finally {
+        EvalUtils.unlock(o, location);
+      }
+      return NEXT;
+    }
+  }
+
+  private static final class IfNode extends StatementNode {
+    private final Expression[] conditions;
+    private final Node[] thenBlocks;
+    private final Node[] elseBlock;
+
+    IfNode(IfStatement node, Expression[] conditions, Node[] thenBlocks, Node[] elseBlock) {
+      super(node);
+      this.conditions = conditions;
+      this.thenBlocks = thenBlocks;
+      this.elseBlock = elseBlock;
+    }
+
+    @Override
+    Object doExec(Environment env) throws EvalException, InterruptedException {
+      for (int i = 0; i < conditions.length; i++) {
+        if (EvalUtils.toBoolean(conditions[i].eval(env))) {
+          return thenBlocks[i].exec(env);
+        }
+      }
+      return execBlock(elseBlock, env);
+    }
+  }
+
+  /** The block of an {@link IfStatement.ConditionalStatements}. */
+  private static final class BlockNode extends StatementNode {
+    private final Node[] block;
+
+    BlockNode(Statement node, Node[] block) {
+      super(node);
+      this.block = block;
+    }
+
+    @Override
+    Object doExec(Environment env) throws EvalException, InterruptedException {
+      return execBlock(block, env);
+    }
+  }
+
+  private static final class ReturnNode extends StatementNode {
+    @Nullable private final Expression expression;
+
+    ReturnNode(ReturnStatement node) {
+      super(node);
+      this.expression = node.getReturnExpression();
+    }
+
+    @Override
+    Object doExec(Environment env) throws EvalException, InterruptedException {
+      return expression == null ? Runtime.NONE : expression.eval(env);
+    }
+  }
+
+  /**
+   * A {@code return} statement at the top level of the body, whose errors are not transformed by
+   * the statement, like in {@link UserDefinedFunction#call}.
+   */
+  private static final class TopLevelReturnNode extends Node {
+    @Nullable private final Expression expression;
+
+    TopLevelReturnNode(ReturnStatement node) {
+      this.expression = node.getReturnExpression();
+    }
+
+    @Override
+    Object exec(Environment env) throws EvalException, InterruptedException {
+      return expression == null ? Runtime.NONE : expression.eval(env);
+    }
+  }
+
+  /** A statement that is executed by {@link Eval}. */
+  private static final class EvalNode extends Node {
+    private final Statement statement;
+
+    EvalNode(Statement statement) {
+      this.statement = statement;
+    }
+
+    @Override
+    Object exec(Environment env) throws EvalException, InterruptedException {
+      new Eval(env).exec(statement);
+      return NEXT;
+    }
+  }
+
+  private final Node[] body;
+
+  private CompiledFunctionBody(Node[] body) {
+    this.body = body;
+  }
+
+  /**
+   * Compiles the body of a function, or returns null if it contains a statement that cannot be
+   * compiled.
+   */
+  @Nullable
+  static CompiledFunctionBody compile(List<Statement> statements) {
+    Node[] body = compileBlock(statements, /*topLevel=*/ true, /*inLoop=*/ false);
+    return body == null ? null : new CompiledFunctionBody(body);
+  }
+
+  /** Executes the body, and returns the value of the function. */
+  Object exec(Environment env) throws EvalException, InterruptedException {
+    Object result = execBlock(body, env);
+    return result == NEXT ? Runtime.NONE : result;
+  }
+
+  private static Object execBlock(Node[] block, Environment env)
+      throws EvalException, InterruptedException {
+    for (Node node : block) {
+      Object result = node.exec(env);
+      if (result != NEXT) {
+        return result;
+      }
+    }
+    return NEXT;
+  }
+
+  @Nullable
+  private static Node[] compileBlock(List<Statement> statements, boolean topLevel, boolean inLoop) {
+    List<Node> nodes = new ArrayList<>(statements.size());
+    for (Statement statement : statements) {
+      if (statement.kind() == Statement.Kind.PASS) {
+        continue;
+      }
+      if (topLevel && statement.kind() == Statement.Kind.RETURN) {
+        // Nothing after this statement is executed.
+        nodes.add(new TopLevelReturnNode((ReturnStatement) statement));
+        break;
+      }
+      Node node = compile(statement, inLoop);
+      if (node == null) {
+        return null;
+      }
+      nodes.add(node);
+    }
+    return nodes.toArray(new Node[0]);
+  }
+
+  @Nullable
+  private static Node compile(Statement statement, boolean inLoop) {
+    switch (statement.kind()) {
+      case ASSIGNMENT:
+        return new AssignmentNode((AssignmentStatement) statement);
+      case AUGMENTED_ASSIGNMENT:
+        return new AugmentedAssignmentNode((AugmentedAssignmentStatement) statement);
+      case EXPRESSION:
+        return new ExpressionNode((ExpressionStatement) statement);
+      case FLOW:
+        // Outside of a loop, the exception that Eval throws for the statement ends the call.
+        return inLoop ? new FlowNode((FlowStatement) statement) : null;
+      case FOR:
+        {
+          ForStatement node = (ForStatement) statement;
+          Node[] block = compileBlock(node.getBlock(), /*topLevel=*/ false, /*inLoop=*/ true);
+          return block == null ? null : new ForNode(node, block);
+        }
+      case IF:
+        return compileIf((IfStatement) statement, inLoop);
+      case RETURN:
+        return new ReturnNode((ReturnStatement) statement);
+      case CONDITIONAL:
+      case FUNCTION_DEF:
+      case LOAD:
+      case PASS:
+        return new EvalNode(statement);
+    }
+    return null;
+  }
+
+  @Nullable
+  private static Node compileIf(IfStatement node, boolean inLoop) {
+    List<IfStatement.ConditionalStatements> thenBlocks = node.getThenBlocks();
+    Expression[] conditions = new Expression[thenBlocks.size()];
+    Node[] thenNodes = new Node[thenBlocks.size()];
+    for (int i = 0; i < thenBlocks.size(); i++) {
+      IfStatement.ConditionalStatements thenBlock = thenBlocks.get(i);
+      Node[] block = compileBlock(thenBlock.getStatements(), /*topLevel=*/ false, inLoop);
+      if (block == null) {
+        return null;
+      }
+      conditions[i] = thenBlock.getCondition();
+      thenNodes[i] = new BlockNode(thenBlock, block);
+    }
+    Node[] elseBlock = compileBlock(node.getElseBlock(), /*topLevel=*/ false, inLoop);
+    return elseBlock == null ? null : new IfNode(node, conditions, thenNodes, elseBlock);
+  }
+}
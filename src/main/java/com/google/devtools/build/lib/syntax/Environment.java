@@ -327,19 +327,34 @@ public final class Environment implements Freezable {
     /** The set of known global variables of the caller. */
     @Nullable final Set<String> knownGlobalVariables;
 
+    /** The scope of the caller, if it is a {@link UserDefinedFunction}. */
+    @Nullable final FunctionScope functionScope;
+
+    /** The values of the local variables of the caller. */
+    @Nullable final Object[] localValues;
+
+    /** The values of the global variables of the caller that no longer change. */
+    @Nullable final Object[] globalValues;
+
     Continuation(
         Continuation continuation,
         BaseFunction function,
         FuncallExpression caller,
         Frame lexicalFrame,
         Frame globalFrame,
-        Set<String> knownGlobalVariables) {
+        Set<String> knownGlobalVariables,
+        FunctionScope functionScope,
+        Object[] localValues,
+        Object[] globalValues) {
       this.continuation = continuation;
       this.function = function;
       this.caller = caller;
       this.lexicalFrame = lexicalFrame;
       this.globalFrame = globalFrame;
       this.knownGlobalVariables = knownGlobalVariables;
+      this.functionScope = functionScope;
+      this.localValues = localValues;
+      this.globalValues = globalValues;
     }
   }
 
@@ -449,6 +464,21 @@ public final class Environment implements Freezable {
    */
   @Nullable private Set<String> knownGlobalVariables;
 
+  /**
+   * When in the body of a {@link UserDefinedFunction}, the scope of the function. Its local
+   * variables are kept in {@link #localValues} rather than in the lexical Frame.
+   */
+  @Nullable private FunctionScope functionScope;
+
+  /** When in the body of a {@link UserDefinedFunction}, the values of its local variables. */
+  @Nullable private Object[] localValues;
+
+  /**
+   * When in the body of a {@link UserDefinedFunction}, the values of its global variables that were
+   * found in a frozen global Frame, and so cannot change. Shared by all calls of the function.
+   */
+  @Nullable private Object[] globalValues;
+
   /**
    * When in a lexical (Skylark) frame, this lists the names of the functions in the call stack.
    * We currently use it to artificially disable recursion.
@@ -469,15 +499,42 @@ public final class Environment implements Freezable {
    * @param globals the global Frame that this function closes over from its definition Environment
    */
   void enterScope(BaseFunction function, FuncallExpression caller, Frame globals) {
+    enterScope(function, caller, globals, null, null);
+  }
+
+  /**
+   * Enters the scope of a function whose variables were resolved to slots.
+   *
+   * @param scope the scope of the function
+   * @param globalValues the values of the global variables of the function that no longer change,
+   *     which are added to as they are looked up
+   */
+  void enterScope(
+      BaseFunction function,
+      FuncallExpression caller,
+      Frame globals,
+      @Nullable FunctionScope scope,
+      @Nullable Object[] globalValues) {
     continuation =
         new Continuation(
-            continuation, function, caller, lexicalFrame, globalFrame, knownGlobalVariables);
+            continuation,
+            function,
+            caller,
+            lexicalFrame,
+            globalFrame,
+            knownGlobalVariables,
+            functionScope,
+            localValues,
+            this.globalValues);
     // TODO(bazel-team): What if instead of tracking both the lexical and global frames from the
     // Environment, we instead just tracked the current lexical frame, and made the global frame its
     // parent?
     lexicalFrame = new Frame(mutability(), null);
     globalFrame = globals;
     knownGlobalVariables = new HashSet<>();
+    functionScope = scope;
+    localValues = scope == null ? null : new Object[scope.getLocalCount()];
+    this.globalValues = globalValues;
   }
 
   /**
@@ -488,6 +545,9 @@ public final class Environment implements Freezable {
     lexicalFrame = continuation.lexicalFrame;
     globalFrame = continuation.globalFrame;
     knownGlobalVariables = continuation.knownGlobalVariables;
+    functionScope = continuation.functionScope;
+    localValues = continuation.localValues;
+    globalValues = continuation.globalValues;
     continuation = continuation.continuation;
   }
 
@@ -746,7 +806,7 @@ public final class Environment implements Freezable {
           String.format("Trying to bind dynamic variable '%s' but it is already bound",
               varname));
     }
-    if (lexicalFrame != null && lexicalFrame.get(varname) != null) {
+    if (lexicalFrame != null && lookupLexical(varname) != null) {
       throw new AssertionError(
           String.format("Trying to bind dynamic variable '%s' but it is already bound lexically",
               varname));
@@ -771,6 +831,11 @@ public final class Environment implements Freezable {
 
   /** Remove variable from local bindings. */
   void removeLocalBinding(String varname) {
+    int slot = functionScope == null ? -1 : functionScope.getLocalSlot(varname);
+    if (slot >= 0) {
+      localValues[slot] = null;
+      return;
+    }
     try {
       currentFrame().remove(this, varname);
     } catch (MutabilityException e) {
@@ -789,15 +854,12 @@ public final class Environment implements Freezable {
    */
   public Environment update(String varname, Object value) throws EvalException {
     Preconditions.checkNotNull(value, "update(value == null)");
-    // prevents clashes between static and dynamic variables.
-    if (dynamicFrame.get(varname) != null) {
-      throw new EvalException(
-          null, String.format("Trying to update special read-only global variable '%s'", varname));
-    }
-    if (isKnownGlobalVariable(varname)) {
-      throw new EvalException(
-          null, String.format("Trying to update read-only global variable '%s'", varname));
+    int slot = functionScope == null ? -1 : functionScope.getLocalSlot(varname);
+    if (slot >= 0) {
+      updateLocal(slot, varname, value);
+      return this;
     }
+    checkUpdate(varname);
     try {
       currentFrame().put(this, varname, Preconditions.checkNotNull(value));
     } catch (MutabilityException e) {
@@ -813,6 +875,33 @@ public final class Environment implements Freezable {
     return this;
   }
 
+  /**
+   * Modifies the local variable {@code varname} of the current function, which is in {@code slot}
+   * of its {@link FunctionScope}, as would an {@link AssignmentStatement}.
+   */
+  void updateLocal(int slot, String varname, Object value) throws EvalException {
+    if (localValues == null) {
+      // Not in the function that the variable was resolved for.
+      update(varname, value);
+      return;
+    }
+    Preconditions.checkNotNull(value, "update(value == null)");
+    checkUpdate(varname);
+    localValues[slot] = value;
+  }
+
+  private void checkUpdate(String varname) throws EvalException {
+    // prevents clashes between static and dynamic variables.
+    if (dynamicFrame.get(varname) != null) {
+      throw new EvalException(
+          null, String.format("Trying to update special read-only global variable '%s'", varname));
+    }
+    if (isKnownGlobalVariable(varname)) {
+      throw new EvalException(
+          null, String.format("Trying to update read-only global variable '%s'", varname));
+    }
+  }
+
   public boolean hasVariable(String varname) {
     return lookup(varname) != null;
   }
@@ -852,11 +941,73 @@ public final class Environment implements Freezable {
   public Object lookup(String varname) {
     // Lexical frame takes precedence, then globals, then dynamics.
     if (lexicalFrame != null) {
-      Object lexicalValue = lexicalFrame.get(varname);
+      Object lexicalValue = lookupLexical(varname);
       if (lexicalValue != null) {
         return lexicalValue;
       }
     }
+    return lookupGlobalOrDynamic(varname);
+  }
+
+  /**
+   * Returns the value of the local variable {@code varname} of the current function, which is in
+   * {@code slot} of its {@link FunctionScope}, or the global or dynamic value of the variable if it
+   * is not bound locally, or null.
+   */
+  Object lookupLocal(int slot, String varname) {
+    if (localValues == null) {
+      // Not in the function that the variable was resolved for.
+      return lookup(varname);
+    }
+    Object value = localValues[slot];
+    return value != null ? value : lookupGlobalOrDynamic(varname);
+  }
+
+  /**
+   * Returns the value of the global variable {@code varname} of the current function, which is in
+   * {@code slot} of its {@link FunctionScope}, or null.
+   */
+  Object lookupGlobal(int slot, String varname) {
+    if (globalValues == null) {
+      // Not in the function that the variable was resolved for.
+      return lookup(varname);
+    }
+    Object value = globalValues[slot];
+    if (value != null) {
+      return value;
+    }
+    if (!lexicalFrame.bindings.isEmpty()) {
+      value = lexicalFrame.get(varname);
+      if (value != null) {
+        return value;
+      }
+    }
+    // The function body never assigns the variable, so there is no need to add it to the known
+    // global variables.
+    value = globalFrame.get(varname);
+    if (value != null) {
+      if (globalFrame.mutability().isFrozen()) {
+        // Calls in other Environments may store the same value concurrently.
+        globalValues[slot] = value;
+      }
+      return value;
+    }
+    return dynamicFrame.get(varname);
+  }
+
+  /** Returns the value of a variable that is bound in the current function, or null. */
+  @Nullable
+  private Object lookupLexical(String varname) {
+    if (functionScope != null) {
+      int slot = functionScope.getLocalSlot(varname);
+      if (slot >= 0) {
+        return localValues[slot];
+      }
+    }
+    return lexicalFrame.get(varname);
+  }
+
+  private Object lookupGlobalOrDynamic(String varname) {
     Object globalValue = globalFrame.get(varname);
     Object dynamicValue = dynamicFrame.get(varname);
     if (globalValue == null && dynamicValue == null) {
@@ -893,6 +1044,13 @@ public final class Environment implements Freezable {
     if (lexicalFrame != null) {
       vars.addAll(lexicalFrame.getTransitiveBindings().keySet());
     }
+    if (functionScope != null) {
+      for (int slot = 0; slot < localValues.length; slot++) {
+        if (localValues[slot] != null) {
+          vars.add(functionScope.getLocalName(slot));
+        }
+      }
+    }
     vars.addAll(globalFrame.getTransitiveBindings().keySet());
     vars.addAll(dynamicFrame.getTransitiveBindings().keySet());
     return vars;
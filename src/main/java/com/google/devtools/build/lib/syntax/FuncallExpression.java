@@ -36,7 +36,9 @@ import com.google.devtools.build.lib.syntax.Runtime.NoneType;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.StringUtilities;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.Collections;
@@ -58,14 +60,36 @@ public final class FuncallExpression extends Expression {
   /**
    * A value class to store Methods with their corresponding SkylarkCallable annotations.
    * This is needed because the annotation is sometimes in a superclass.
+   *
+   * <p>It also keeps what is needed to call the method, so that it is computed only once: a {@link
+   * MethodHandle} that invokes the method, and the types and default values of its parameters.
    */
   public static final class MethodDescriptor {
+    private static final MethodType INVOKER_TYPE =
+        MethodType.methodType(Object.class, Object.class, Object[].class);
+
     private final Method method;
     private final SkylarkCallable annotation;
+    private final SkylarkType[] parameterTypes;
+    // Filled in on first use, since evaluating a default value is expensive. Each value is frozen,
+    // so sharing it between calls is safe.
+    private final Object[] defaultValues;
+
+    @Nullable private volatile MethodHandle invoker;
 
     private MethodDescriptor(Method method, SkylarkCallable annotation) {
       this.method = method;
       this.annotation = annotation;
+      Param[] parameters = annotation.parameters();
+      this.parameterTypes = new SkylarkType[parameters.length];
+      for (int i = 0; i < parameters.length; i++) {
+        SkylarkType type = getType(parameters[i]);
+        if (parameters[i].noneable()) {
+          type = SkylarkType.Union.of(type, SkylarkType.NONE);
+        }
+        parameterTypes[i] = type;
+      }
+      this.defaultValues = new Object[parameters.length];
     }
 
     Method getMethod() {
@@ -78,6 +102,63 @@ public final class FuncallExpression extends Expression {
     public SkylarkCallable getAnnotation() {
       return annotation;
     }
+
+    /** Returns the type of the {@code i}th parameter in {@link SkylarkCallable#parameters}. */
+    SkylarkType getParameterType(int i) {
+      return parameterTypes[i];
+    }
+
+    /**
+     * Returns the default value of the {@code i}th parameter in {@link
+     * SkylarkCallable#parameters}.
+     */
+    Object getDefaultValue(int i) {
+      Object value = defaultValues[i];
+      if (value == null) {
+        value = SkylarkSignatureProcessor.getDefaultValue(annotation.parameters()[i], null);
+        defaultValues[i] = value;
+      }
+      return value;
+    }
+
+    /**
+     * Returns a handle of type {@code (Object, Object[])Object} that invokes the method on its
+     * first argument, which is ignored if the method is static, with the elements of its second
+     * argument as arguments. It returns null if the method is void.
+     */
+    MethodHandle getInvoker() throws IllegalAccessException {
+      MethodHandle result = invoker;
+      if (result == null) {
+        // This happens when the interface is public but the implementation classes
+        // have reduced visibility.
+        method.setAccessible(true);
+        result = MethodHandles.lookup().unreflect(method);
+        if (Modifier.isStatic(method.getModifiers())) {
+          result = MethodHandles.dropArguments(result, 0, Object.class);
+        }
+        result =
+            result
+                .asSpreader(Object[].class, method.getParameterTypes().length)
+                .asType(INVOKER_TYPE);
+        invoker = result;
+      }
+      return result;
+    }
+  }
+
+  /**
+   * The Java methods that the last call at this site resolved to, for the class of its receiver.
+   * Most call sites are only ever used with one class, so this saves looking up the methods of the
+   * class in {@link #methodCache}.
+   */
+  private static final class CachedMethods {
+    private final Class<?> objClass;
+    @Nullable private final List<MethodDescriptor> methods;
+
+    CachedMethods(Class<?> objClass, @Nullable List<MethodDescriptor> methods) {
+      this.objClass = objClass;
+      this.methods = methods;
+    }
   }
 
   private static final LoadingCache<Class<?>, Map<String, List<MethodDescriptor>>> methodCache =
@@ -196,6 +277,9 @@ public final class FuncallExpression extends Expression {
 
   private final int numPositionalArgs;
 
+  // The inline cache of the Java methods that this call resolves to.
+  @Nullable private volatile CachedMethods cachedMethods;
+
   public FuncallExpression(Expression function, ImmutableList<Argument.Passed> arguments) {
     this.function = Preconditions.checkNotNull(function);
     this.arguments = Preconditions.checkNotNull(arguments);
@@ -286,52 +370,55 @@ public final class FuncallExpression extends Expression {
 
   static Object callMethod(MethodDescriptor methodDescriptor, String methodName, Object obj,
       Object[] args, Location loc, Environment env) throws EvalException {
-    try {
-      Method method = methodDescriptor.getMethod();
-      if (obj == null && !Modifier.isStatic(method.getModifiers())) {
-        throw new EvalException(loc, "method '" + methodName + "' is not static");
-      }
-      // This happens when the interface is public but the implementation classes
-      // have reduced visibility.
-      method.setAccessible(true);
-      Object result = method.invoke(obj, args);
-      if (method.getReturnType().equals(Void.TYPE)) {
+    Method method = methodDescriptor.getMethod();
+    if (obj == null && !Modifier.isStatic(method.getModifiers())) {
+      throw new EvalException(loc, "method '" + methodName + "' is not static");
+    }
+    Object result = invokeJavaMethod(methodDescriptor, obj, args, loc);
+    if (method.getReturnType().equals(Void.TYPE)) {
+      return Runtime.NONE;
+    }
+    if (result == null) {
+      if (methodDescriptor.getAnnotation().allowReturnNones()) {
         return Runtime.NONE;
-      }
-      if (result == null) {
-        if (methodDescriptor.getAnnotation().allowReturnNones()) {
-          return Runtime.NONE;
-        } else {
-          throw new EvalException(
-              loc,
-              "method invocation returned None, please file a bug report: "
-                  + methodName
-                  + Printer.printAbbreviatedList(
-                      ImmutableList.copyOf(args), "(", ", ", ")", null));
-        }
-      }
-      // TODO(bazel-team): get rid of this, by having everyone use the Skylark data structures
-      result = SkylarkType.convertToSkylark(result, method, env);
-      if (result != null && !EvalUtils.isSkylarkAcceptable(result.getClass())) {
+      } else {
         throw new EvalException(
             loc,
-            Printer.format(
-                "method '%s' returns an object of invalid type %r", methodName, result.getClass()));
+            "method invocation returned None, please file a bug report: "
+                + methodName
+                + Printer.printAbbreviatedList(
+                    ImmutableList.copyOf(args), "(", ", ", ")", null));
       }
-      return result;
+    }
+    // TODO(bazel-team): get rid of this, by having everyone use the Skylark data structures
+    result = SkylarkType.convertToSkylark(result, method, env);
+    if (result != null && !EvalUtils.isSkylarkAcceptable(result.getClass())) {
+      throw new EvalException(
+          loc,
+          Printer.format(
+              "method '%s' returns an object of invalid type %r", methodName, result.getClass()));
+    }
+    return result;
+  }
+
+  /** Invokes a Java method, and turns the exceptions that it throws into EvalExceptions. */
+  private static Object invokeJavaMethod(
+      MethodDescriptor methodDescriptor, Object obj, Object[] args, Location loc)
+      throws EvalException {
+    MethodHandle invoker;
+    try {
+      invoker = methodDescriptor.getInvoker();
     } catch (IllegalAccessException e) {
       // TODO(bazel-team): Print a nice error message. Maybe the method exists
       // and an argument is missing or has the wrong type.
       throw new EvalException(loc, "Method invocation failed: " + e);
-    } catch (InvocationTargetException e) {
-      if (e.getCause() instanceof FuncallException) {
-        throw new EvalException(loc, e.getCause().getMessage());
-      } else if (e.getCause() != null) {
-        throw new EvalExceptionWithJavaCause(loc, e.getCause());
-      } else {
-        // This is unlikely to happen
-        throw new EvalException(loc, "method invocation failed: " + e);
-      }
+    }
+    try {
+      return (Object) invoker.invokeExact(obj, args);
+    } catch (FuncallException e) {
+      throw new EvalException(loc, e.getMessage());
+    } catch (Throwable e) {
+      throw new EvalExceptionWithJavaCause(loc, e);
     }
   }
 
@@ -343,7 +430,7 @@ public final class FuncallExpression extends Expression {
       Class<?> objClass, String methodName, List<Object> args, Map<String, Object> kwargs)
       throws EvalException {
     Pair<MethodDescriptor, List<Object>> matchingMethod = null;
-    List<MethodDescriptor> methods = getMethods(objClass, methodName);
+    List<MethodDescriptor> methods = getCallSiteMethods(objClass, methodName);
     ArgumentListConversionResult argumentListConversionResult = null;
     if (methods != null) {
       for (MethodDescriptor method : methods) {
@@ -391,6 +478,15 @@ public final class FuncallExpression extends Expression {
     return matchingMethod;
   }
 
+  private List<MethodDescriptor> getCallSiteMethods(Class<?> objClass, String methodName) {
+    CachedMethods cached = cachedMethods;
+    if (cached == null || cached.objClass != objClass) {
+      cached = new CachedMethods(objClass, getMethods(objClass, methodName));
+      cachedMethods = cached;
+    }
+    return cached.methods;
+  }
+
   private static SkylarkType getType(Param param) {
     if (param.allowedTypes().length > 0) {
       Preconditions.checkState(Object.class.equals(param.type()));
@@ -455,11 +551,10 @@ public final class FuncallExpression extends Expression {
 
     // Then the parameters specified in callable.parameters()
     Set<String> keys = new LinkedHashSet<>(kwargs.keySet());
-    for (Param param : callable.parameters()) {
-      SkylarkType type = getType(param);
-      if (param.noneable()) {
-        type = SkylarkType.Union.of(type, SkylarkType.NONE);
-      }
+    Param[] parameters = callable.parameters();
+    for (int p = 0; p < parameters.length; p++) {
+      Param param = parameters[p];
+      SkylarkType type = method.getParameterType(p);
       Object value = null;
       if (i < args.size()) {
         value = args.get(i);
@@ -486,7 +581,7 @@ public final class FuncallExpression extends Expression {
           return ArgumentListConversionResult.fromError(
               String.format("parameter '%s' has no default value", param.name()));
         }
-        value = SkylarkSignatureProcessor.getDefaultValue(param, null);
+        value = method.getDefaultValue(p);
       }
       builder.add(value);
       if (!param.noneable() && value instanceof NoneType) {
@@ -651,20 +746,8 @@ public final class FuncallExpression extends Expression {
           call.findJavaMethod(objClass, method, positionalArgs, keyWordArgs);
       if (javaMethod.first.getAnnotation().structField()) {
         // Not a method but a callable attribute
-        try {
-          return callFunction(javaMethod.first.getMethod().invoke(obj), env);
-        } catch (IllegalAccessException e) {
-          throw new EvalException(getLocation(), "method invocation failed: " + e);
-        } catch (InvocationTargetException e) {
-          if (e.getCause() instanceof FuncallException) {
-            throw new EvalException(getLocation(), e.getCause().getMessage());
-          } else if (e.getCause() != null) {
-            throw new EvalExceptionWithJavaCause(getLocation(), e.getCause());
-          } else {
-            // This is unlikely to happen
-            throw new EvalException(getLocation(), "method invocation failed: " + e);
-          }
-        }
+        return callFunction(
+            invokeJavaMethod(javaMethod.first, obj, new Object[0], getLocation()), env);
       }
       return callMethod(javaMethod.first, method, obj, javaMethod.second.toArray(), location, env);
     }
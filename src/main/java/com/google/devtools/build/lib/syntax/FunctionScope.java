@@ -0,0 +1,114 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The variables of a {@link UserDefinedFunction}, each of which is assigned to a slot of an array,
+ * so that evaluating the function body does not look them up by name.
+ *
+ * <p>The local variables are the parameters, which come first and in the order of the signature,
+ * and all other names that the body binds, e.g. by assignment or in a for loop. All other names in
+ * the body are global variables. The {@link Identifier}s of the body are resolved to their slot
+ * when the function is defined.
+ *
+ * <p>This doesn't change the semantics of evaluation: the value of a local variable that is not
+ * bound yet is still looked up in the global and dynamic frames of the {@link Environment}, and the
+ * value of a global variable is only kept in its slot once the frame that it comes from is frozen.
+ */
+@Immutable
+final class FunctionScope {
+
+  private final ImmutableMap<String, Integer> localSlots;
+  private final ImmutableList<String> localNames;
+  private final int globalCount;
+
+  private FunctionScope(ImmutableList<String> localNames, int globalCount) {
+    ImmutableMap.Builder<String, Integer> localSlots = ImmutableMap.builder();
+    for (int i = 0; i < localNames.size(); i++) {
+      localSlots.put(localNames.get(i), i);
+    }
+    this.localSlots = localSlots.build();
+    this.localNames = localNames;
+    this.globalCount = globalCount;
+  }
+
+  /**
+   * Resolves the identifiers of a function body to slots, and returns the scope of the function.
+   *
+   * <p>Resolving the same body again, e.g. when the statement that defines the function is
+   * executed once more, assigns the same slots.
+   */
+  static FunctionScope resolve(List<String> parameterNames, List<Statement> statements) {
+    Map<String, Integer> locals = new LinkedHashMap<>();
+    for (String name : parameterNames) {
+      locals.putIfAbsent(name, locals.size());
+    }
+    new SyntaxTreeVisitor() {
+      @Override
+      public void visit(LValue node) {
+        for (Identifier ident : node.boundIdentifiers()) {
+          locals.putIfAbsent(ident.getName(), locals.size());
+        }
+        super.visit(node);
+      }
+    }.visitAll(statements);
+
+    Map<String, Integer> globals = new LinkedHashMap<>();
+    new SyntaxTreeVisitor() {
+      @Override
+      public void visit(Identifier node) {
+        Integer slot = locals.get(node.getName());
+        if (slot != null) {
+          node.setLocalSlot(slot);
+        } else {
+          node.setGlobalSlot(globals.computeIfAbsent(node.getName(), k -> globals.size()));
+        }
+      }
+
+      @Override
+      public void visit(DotExpression node) {
+        visit(node.getObject());
+        // The field is not a variable.
+      }
+    }.visitAll(statements);
+    return new FunctionScope(ImmutableList.copyOf(locals.keySet()), globals.size());
+  }
+
+  /** Returns the slot of the local variable {@code name}, or -1 if it is not a local variable. */
+  int getLocalSlot(String name) {
+    Integer slot = localSlots.get(name);
+    return slot == null ? -1 : slot;
+  }
+
+  /** Returns the name of the local variable in {@code slot}. */
+  String getLocalName(int slot) {
+    return localNames.get(slot);
+  }
+
+  int getLocalCount() {
+    return localNames.size();
+  }
+
+  int getGlobalCount() {
+    return globalCount;
+  }
+}
@@ -37,6 +37,11 @@ public final class Identifier extends Expression {
 
   private final String name;
 
+  // The slot of the variable in the FunctionScope of the function whose body has this identifier,
+  // or -1. Set when the function is defined.
+  private int localSlot = -1;
+  private int globalSlot = -1;
+
   public Identifier(String name) {
     this.name = name;
   }
@@ -48,6 +53,21 @@ public final class Identifier extends Expression {
     return name;
   }
 
+  void setLocalSlot(int slot) {
+    localSlot = slot;
+    globalSlot = -1;
+  }
+
+  void setGlobalSlot(int slot) {
+    globalSlot = slot;
+    localSlot = -1;
+  }
+
+  /** Returns the slot of the local variable in the scope of its function, or -1. */
+  int getLocalSlot() {
+    return localSlot;
+  }
+
   public boolean isPrivate() {
     return name.startsWith("_");
   }
@@ -73,7 +93,14 @@ public final class Identifier extends Expression {
 
   @Override
   Object doEval(Environment env) throws EvalException {
-    Object value = env.lookup(name);
+    Object value;
+    if (localSlot >= 0) {
+      value = env.lookupLocal(localSlot, name);
+    } else if (globalSlot >= 0) {
+      value = env.lookupGlobal(globalSlot, name);
+    } else {
+      value = env.lookup(name);
+    }
     if (value == null) {
       throw createInvalidIdentifierException(env.getVariableNames());
     }
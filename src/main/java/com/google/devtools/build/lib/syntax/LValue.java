@@ -103,7 +103,12 @@ public final class LValue extends ASTNode {
                   + "The variable is defined in the global scope.",
               ident.getName()));
     }
-    env.update(ident.getName(), value);
+    int slot = ident.getLocalSlot();
+    if (slot >= 0) {
+      env.updateLocal(slot, ident.getName(), value);
+    } else {
+      env.update(ident.getName(), value);
+    }
   }
 
   /**
@@ -19,6 +19,7 @@ import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkPrinter;
+import javax.annotation.Nullable;
 
 /**
  * The actual function registered in the environment. This function is defined in the
@@ -31,6 +32,21 @@ public class UserDefinedFunction extends BaseFunction {
   // we close over the globals at the time of definition
   private final Environment.Frame definitionGlobals;
 
+  private final FunctionScope scope;
+
+  // The values of the global variables of the function, once they cannot change anymore. Shared by
+  // all calls.
+  private final Object[] globalValues;
+
+  // The number of calls before the body is compiled, if compiling hot functions is enabled.
+  static final int COMPILE_THRESHOLD = 100;
+
+  // The number of calls so far, up to COMPILE_THRESHOLD. It isn't synchronized, since a lost update
+  // only delays the compilation, and compiling the body more than once is harmless.
+  private int calls;
+
+  @Nullable private volatile CompiledFunctionBody compiledBody;
+
   public UserDefinedFunction(
       String name,
       Location loc,
@@ -40,6 +56,8 @@ public class UserDefinedFunction extends BaseFunction {
     super(name, signature, loc);
     this.statements = statements;
     this.definitionGlobals = definitionGlobals;
+    this.scope = FunctionScope.resolve(signature.getSignature().getNames(), statements);
+    this.globalValues = new Object[scope.getGlobalCount()];
   }
 
   public ImmutableList<Statement> getStatements() {
@@ -64,7 +82,7 @@ public class UserDefinedFunction extends BaseFunction {
 
     Profiler.instance().startTask(ProfilerTask.SKYLARK_USER_FN, getName());
     try {
-      env.enterScope(this, ast, definitionGlobals);
+      env.enterScope(this, ast, definitionGlobals, scope, globalValues);
       ImmutableList<String> names = signature.getSignature().getNames();
 
       // Registering the functions's arguments as variables in the local Environment
@@ -73,6 +91,11 @@ public class UserDefinedFunction extends BaseFunction {
         env.update(name, arguments[i++]);
       }
 
+      CompiledFunctionBody compiledBody = getCompiledBody(env);
+      if (compiledBody != null) {
+        return compiledBody.exec(env);
+      }
+
       Eval eval = new Eval(env);
       try {
         for (Statement stmt : statements) {
@@ -98,6 +121,19 @@ public class UserDefinedFunction extends BaseFunction {
     }
   }
 
+  @Nullable
+  private CompiledFunctionBody getCompiledBody(Environment env) {
+    CompiledFunctionBody result = compiledBody;
+    if (result == null
+        && calls < COMPILE_THRESHOLD
+        && env.getSemantics().experimentalCompileHotFunctions()
+        && ++calls == COMPILE_THRESHOLD) {
+      result = CompiledFunctionBody.compile(statements);
+      compiledBody = result;
+    }
+    return result;
+  }
+
   @Override
   public void repr(SkylarkPrinter printer) {
     Label label = this.definitionGlobals.getTransitiveLabel();
@@ -0,0 +1,174 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.util;
+
+import com.google.common.base.Preconditions;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A string indexer that, unlike {@link CanonicalStringIndexer}, does not serialize the creation of
+ * new indices. Strings are mapped to indices by a {@link ConcurrentHashMap}, which only locks the
+ * bin of the string being inserted, and indices are mapped back to strings by an append-only array
+ * of fixed-size chunks, which is never copied as it grows. Every unique string is stored in memory
+ * exactly once.
+ *
+ * <p>{@link #clear} must not be called concurrently with other operations.
+ */
+@ThreadSafe
+public class ConcurrentStringIndexer extends AbstractIndexer {
+
+  private static final int NOT_FOUND = -1;
+
+  private static final int CHUNK_BITS = 14;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  private static final int MAX_CHUNKS = 1 << (31 - CHUNK_BITS);
+
+  private final ConcurrentHashMap<String, Integer> stringToInt;
+  private final AtomicReferenceArray<String[]> intToString = new AtomicReferenceArray<>(MAX_CHUNKS);
+  private final AtomicInteger nextIndex = new AtomicInteger();
+
+  public ConcurrentStringIndexer() {
+    this(new ConcurrentHashMap<String, Integer>());
+  }
+
+  /**
+   * Creates an indexer instance backed by the given map, which may be pre-initialized with data.
+   * The indices in the map must be distinct and non-negative. They need not be contiguous, since
+   * indices are published out of order, but the missing ones are never assigned again.
+   */
+  public ConcurrentStringIndexer(ConcurrentHashMap<String, Integer> stringToInt) {
+    this.stringToInt = stringToInt;
+    int size = 0;
+    for (Map.Entry<String, Integer> entry : stringToInt.entrySet()) {
+      int index = entry.getValue();
+      Preconditions.checkArgument(index >= 0, "Index out of range: %s", entry);
+      String[] chunk = getOrCreateChunk(index);
+      Preconditions.checkArgument(
+          chunk[index & CHUNK_MASK] == null, "Duplicate index: %s", entry);
+      chunk[index & CHUNK_MASK] = entry.getKey();
+      size = Math.max(size, index + 1);
+    }
+    nextIndex.set(size);
+  }
+
+  /**
+   * Called once for every new index, by the thread that created it, after the index was published.
+   */
+  protected void indexCreated(String s, int index) {}
+
+  @Override
+  public synchronized void clear() {
+    stringToInt.clear();
+    for (int i = 0; i < MAX_CHUNKS && intToString.get(i) != null; i++) {
+      intToString.set(i, null);
+    }
+    nextIndex.set(0);
+  }
+
+  /** Returns the number of indices assigned so far, including those that are not in the map. */
+  @Override
+  public int size() {
+    return nextIndex.get();
+  }
+
+  /**
+   * Makes sure that indices below {@code size} are never assigned, e.g. because a persisted
+   * reference to one of them outlived its mapping.
+   */
+  public void reserveIndices(int size) {
+    nextIndex.accumulateAndGet(size, Math::max);
+  }
+
+  @Override
+  public int getOrCreateIndex(String s) {
+    Integer i = stringToInt.get(s);
+    return i != null ? i : createIndex(s, new boolean[1]);
+  }
+
+  /**
+   * Returns the index of {@code s}, creating it if needed. Sets {@code created[0]} if this call
+   * created it.
+   */
+  private int createIndex(String s, boolean[] created) {
+    int index =
+        stringToInt.computeIfAbsent(
+            StringCanonicalizer.intern(s),
+            key -> {
+              created[0] = true;
+              return assignIndex(key);
+            });
+    if (created[0]) {
+      indexCreated(s, index);
+    }
+    return index;
+  }
+
+  private int assignIndex(String s) {
+    int index = nextIndex.getAndIncrement();
+    Preconditions.checkState(index >= 0, "Too many strings: %s", s);
+    // Readers only learn about this index through the map, which is updated after this write.
+    getOrCreateChunk(index)[index & CHUNK_MASK] = s;
+    return index;
+  }
+
+  private String[] getOrCreateChunk(int index) {
+    int chunkIndex = index >>> CHUNK_BITS;
+    String[] chunk = intToString.get(chunkIndex);
+    if (chunk == null) {
+      intToString.compareAndSet(chunkIndex, null, new String[CHUNK_SIZE]);
+      chunk = intToString.get(chunkIndex);
+    }
+    return chunk;
+  }
+
+  @Override
+  public int getIndex(String s) {
+    Integer i = stringToInt.get(s);
+    return (i == null) ? NOT_FOUND : i;
+  }
+
+  @Override
+  public boolean addString(String s) {
+    if (stringToInt.containsKey(s)) {
+      return false;
+    }
+    boolean[] created = new boolean[1];
+    createIndex(s, created);
+    return created[0];
+  }
+
+  @Override
+  public String getStringForIndex(int i) {
+    if (i < 0 || i >= nextIndex.get()) {
+      return null;
+    }
+    String[] chunk = intToString.get(i >>> CHUNK_BITS);
+    return chunk == null ? null : chunk[i & CHUNK_MASK];
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("size = ").append(size()).append("\n");
+    for (Map.Entry<String, Integer> entry : stringToInt.entrySet()) {
+      builder.append(entry.getKey()).append(" <==> ").append(entry.getValue()).append("\n");
+    }
+    return builder.toString();
+  }
+}
@@ -119,6 +119,9 @@ final class WorkerSpawnRunner implements SpawnRunner {
           String.format(ERROR_MESSAGE_PREFIX + REASON_NO_TOOLS, spawn.getMnemonic()));
     }
 
+    // Both the worker and its flag files need to be on the local file system.
+    policy.prefetchInputs();
+
     // We assume that the spawn to be executed always gets at least one @flagfile.txt or
     // --flagfile=flagfile.txt argument, which contains the flags related to the work itself (as
     // opposed to start-up options for the executed tool). Thus, we can extract those elements from
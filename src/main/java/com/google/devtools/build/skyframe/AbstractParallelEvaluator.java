@@ -65,7 +65,8 @@ public abstract class AbstractParallelEvaluator {
       ErrorInfoManager errorInfoManager,
       boolean keepGoing,
       int threadCount,
-      DirtyTrackingProgressReceiver progressReceiver) {
+      DirtyTrackingProgressReceiver progressReceiver,
+      @Nullable EvaluationPriorityFunction priorityFunction) {
     this.graph = graph;
     evaluatorContext =
         new ParallelEvaluatorContext(
@@ -79,7 +80,8 @@ public abstract class AbstractParallelEvaluator {
             storedEventFilter,
             errorInfoManager,
             Evaluate::new,
-            threadCount);
+            threadCount,
+            priorityFunction);
   }
 
   AbstractParallelEvaluator(
@@ -0,0 +1,67 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+/**
+ * An {@link InMemoryGraphImpl} whose nodes store their done direct deps as varint-encoded int ids
+ * (see {@link CompactInMemoryNodeEntry}), trading some CPU on edge traversal for a smaller retained
+ * heap on large graphs.
+ *
+ * <p>Each node gets an id when it is created, and its id is recycled when it is deleted.
+ */
+public class CompactInMemoryGraphImpl extends InMemoryGraphImpl {
+  private final SkyKeyIndex keyIndex = new SkyKeyIndex();
+
+  public CompactInMemoryGraphImpl(boolean keepEdges) {
+    super(keepEdges);
+  }
+
+  @Override
+  public void remove(SkyKey skyKey) {
+    InMemoryNodeEntry entry = nodeMap.remove(skyKey);
+    if (entry instanceof CompactInMemoryNodeEntry) {
+      keyIndex.releaseId(((CompactInMemoryNodeEntry) entry).getId());
+    }
+  }
+
+  @Override
+  protected InMemoryNodeEntry createIfAbsent(SkyKey key) {
+    if (!keepsEdges()) {
+      return super.createIfAbsent(key);
+    }
+    InMemoryNodeEntry oldval = nodeMap.get(key);
+    if (oldval != null) {
+      return oldval;
+    }
+    CompactInMemoryNodeEntry newval = new CompactInMemoryNodeEntry(this, keyIndex.assignId(key));
+    oldval = nodeMap.putIfAbsent(key, newval);
+    if (oldval != null) {
+      keyIndex.releaseId(newval.getId());
+      return oldval;
+    }
+    return newval;
+  }
+
+  /** Returns the id of {@code key}, or -1 if it has no node in the graph. */
+  int getId(SkyKey key) {
+    InMemoryNodeEntry entry = nodeMap.get(key);
+    return entry instanceof CompactInMemoryNodeEntry
+        ? ((CompactInMemoryNodeEntry) entry).getId()
+        : -1;
+  }
+
+  SkyKey getKey(int id) {
+    return keyIndex.getKey(id);
+  }
+}
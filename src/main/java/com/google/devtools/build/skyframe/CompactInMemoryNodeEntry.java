@@ -0,0 +1,143 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.devtools.build.lib.util.GroupedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * {@link InMemoryNodeEntry} that stores the direct deps of a done node as a single byte array of
+ * varint-encoded ids of the {@link CompactInMemoryGraphImpl} instead of an array of key references
+ * and per-group lists.
+ *
+ * <p>Ids are delta-encoded in the order the deps were requested. Deps requested together tend to
+ * have been created together and so to have nearby ids, which makes most edges take one or two
+ * bytes. The layout is: number of groups, then for each group its size followed by its ids.
+ *
+ * <p>Deps of nodes that are evaluating, and reverse deps, are stored as usual, since they are
+ * mutated frequently. So are the deps of a done node if one of them has no node in the graph, which
+ * only happens when the graph is used without an evaluator.
+ */
+class CompactInMemoryNodeEntry extends InMemoryNodeEntry {
+  private static final byte[] NO_DEPS = new byte[] {0};
+
+  private final CompactInMemoryGraphImpl graph;
+  private final int id;
+
+  CompactInMemoryNodeEntry(CompactInMemoryGraphImpl graph, int id) {
+    this.graph = graph;
+    this.id = id;
+  }
+
+  int getId() {
+    return id;
+  }
+
+  @Override
+  protected Object compressDoneDirectDeps(GroupedList<SkyKey> deps) {
+    if (deps.isEmpty()) {
+      return NO_DEPS;
+    }
+    byte[] buffer = new byte[5 * (1 + deps.listSize() + deps.numElements())];
+    int pos = writeVarInt(deps.listSize(), buffer, 0);
+    int previousId = 0;
+    for (Collection<SkyKey> group : deps) {
+      pos = writeVarInt(group.size(), buffer, pos);
+      for (SkyKey dep : group) {
+        int depId = graph.getId(dep);
+        if (depId < 0) {
+          return super.compressDoneDirectDeps(deps);
+        }
+        pos = writeVarInt(zigZagEncode(depId - previousId), buffer, pos);
+        previousId = depId;
+      }
+    }
+    return Arrays.copyOf(buffer, pos);
+  }
+
+  @Override
+  protected GroupedList<SkyKey> uncompressDoneDirectDeps(Object compressed) {
+    if (!(compressed instanceof byte[])) {
+      return super.uncompressDoneDirectDeps(compressed);
+    }
+    byte[] bytes = (byte[]) compressed;
+    GroupedList<SkyKey> deps = new GroupedList<>();
+    int[] pos = new int[1];
+    int numGroups = readVarInt(bytes, pos);
+    int previousId = 0;
+    for (int i = 0; i < numGroups; i++) {
+      int groupSize = readVarInt(bytes, pos);
+      List<SkyKey> group = new ArrayList<>(groupSize);
+      for (int j = 0; j < groupSize; j++) {
+        int depId = previousId + zigZagDecode(readVarInt(bytes, pos));
+        group.add(graph.getKey(depId));
+        previousId = depId;
+      }
+      deps.appendGroup(group);
+    }
+    return deps;
+  }
+
+  @Override
+  protected int numElementsInDoneDirectDeps(Object compressed) {
+    if (!(compressed instanceof byte[])) {
+      return super.numElementsInDoneDirectDeps(compressed);
+    }
+    byte[] bytes = (byte[]) compressed;
+    int[] pos = new int[1];
+    int numGroups = readVarInt(bytes, pos);
+    int numElements = 0;
+    for (int i = 0; i < numGroups; i++) {
+      int groupSize = readVarInt(bytes, pos);
+      numElements += groupSize;
+      for (int j = 0; j < groupSize; j++) {
+        readVarInt(bytes, pos);
+      }
+    }
+    return numElements;
+  }
+
+  private static int zigZagEncode(int n) {
+    return (n << 1) ^ (n >> 31);
+  }
+
+  private static int zigZagDecode(int n) {
+    return (n >>> 1) ^ -(n & 1);
+  }
+
+  private static int writeVarInt(int value, byte[] buffer, int pos) {
+    while ((value & ~0x7F) != 0) {
+      buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer[pos++] = (byte) value;
+    return pos;
+  }
+
+  /** Reads the varint at {@code pos[0]} and advances {@code pos[0]} past it. */
+  private static int readVarInt(byte[] bytes, int[] pos) {
+    int result = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = bytes[pos[0]++];
+      result |= (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0);
+    return result;
+  }
+}
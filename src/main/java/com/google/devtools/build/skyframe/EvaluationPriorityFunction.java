@@ -0,0 +1,31 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+/**
+ * Assigns scheduling priorities to the nodes of a {@link ParallelEvaluator}, typically from
+ * timings of a previous build, so that nodes on the critical path are not starved by less
+ * important work.
+ *
+ * <p>A node is evaluated with the higher of its own priority and the priority of the node whose
+ * evaluation enqueued it, so a priority given to a node is inherited by the deps it requests, and by
+ * the parents it signals when it is done.
+ */
+@ThreadSafe
+public interface EvaluationPriorityFunction {
+  /** Returns the priority of {@code key}. Higher priorities are evaluated first; the default is 0. */
+  int getPriority(SkyKey key);
+}
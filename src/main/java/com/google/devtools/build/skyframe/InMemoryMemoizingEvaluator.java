@@ -74,6 +74,9 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
 
   private final AtomicBoolean evaluating = new AtomicBoolean(false);
 
+  /** Priorities for subsequent evaluations; see {@link #setPriorityFunction}. */
+  @Nullable private volatile EvaluationPriorityFunction priorityFunction = null;
+
   public InMemoryMemoizingEvaluator(
       Map<SkyFunctionName, ? extends SkyFunction> skyFunctions, Differencer differencer) {
     this(skyFunctions, differencer, null);
@@ -92,12 +95,26 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
       @Nullable EvaluationProgressReceiver progressReceiver,
       EmittedEventState emittedEventState,
       boolean keepEdges) {
+    this(
+        skyFunctions,
+        differencer,
+        progressReceiver,
+        emittedEventState,
+        new InMemoryGraphImpl(keepEdges));
+  }
+
+  public InMemoryMemoizingEvaluator(
+      Map<SkyFunctionName, ? extends SkyFunction> skyFunctions,
+      Differencer differencer,
+      @Nullable EvaluationProgressReceiver progressReceiver,
+      EmittedEventState emittedEventState,
+      InMemoryGraphImpl graph) {
     this.skyFunctions = ImmutableMap.copyOf(skyFunctions);
     this.differencer = Preconditions.checkNotNull(differencer);
     this.progressReceiver = new DirtyTrackingProgressReceiver(progressReceiver);
-    this.graph = new InMemoryGraphImpl(keepEdges);
+    this.graph = graph;
     this.emittedEventState = emittedEventState;
-    this.keepEdges = keepEdges;
+    this.keepEdges = graph.keepsEdges();
   }
 
   private void invalidate(Iterable<SkyKey> diff) {
@@ -179,7 +196,8 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
               ErrorInfoManager.UseChildErrorInfoIfNecessary.INSTANCE,
               keepGoing,
               numThreads,
-              progressReceiver);
+              progressReceiver,
+              priorityFunction);
       EvaluationResult<T> result = evaluator.eval(roots);
       return EvaluationResult.<T>builder()
           .mergeFrom(result)
@@ -256,6 +274,14 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
     valuesToDirty = new LinkedHashSet<>();
   }
 
+  /**
+   * Sets the function used to prioritize node evaluations in subsequent calls to {@link #evaluate},
+   * or, if {@code null}, goes back to evaluating the most recently enqueued nodes first.
+   */
+  public void setPriorityFunction(@Nullable EvaluationPriorityFunction priorityFunction) {
+    this.priorityFunction = priorityFunction;
+  }
+
   private void setAndCheckEvaluateState(boolean newValue, Object requestInfo) {
     Preconditions.checkState(evaluating.getAndSet(newValue) != newValue,
         "Re-entrant evaluation for request: %s", requestInfo);
@@ -387,4 +413,14 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
       };
 
   public static final EvaluatorSupplier SUPPLIER = InMemoryMemoizingEvaluator::new;
+
+  /** Supplies evaluators backed by a {@link CompactInMemoryGraphImpl}. */
+  public static final EvaluatorSupplier COMPACT_SUPPLIER =
+      (skyFunctions, differencer, progressReceiver, emittedEventState, keepEdges) ->
+          new InMemoryMemoizingEvaluator(
+              skyFunctions,
+              differencer,
+              progressReceiver,
+              emittedEventState,
+              new CompactInMemoryGraphImpl(keepEdges));
 }
@@ -97,7 +97,7 @@ public class InMemoryNodeEntry implements NodeEntry {
    * This object represents the direct deps of the node, in groups if the {@code SkyFunction}
    * requested them that way. It contains either the in-progress direct deps, stored as a {@code
    * GroupedList<SkyKey>} before the node is finished building, or the full direct deps, compressed
-   * in a memory-efficient way (via {@link GroupedList#compress}, after the node is done.
+   * in a memory-efficient way (via {@link #compressDoneDirectDeps}), after the node is done.
    *
    * <p>It is initialized lazily in getTemporaryDirectDeps() to save a little bit more memory.
    */
@@ -230,12 +230,31 @@ public class InMemoryNodeEntry implements NodeEntry {
   public synchronized GroupedList<SkyKey> getGroupedDirectDeps() {
     assertKeepDeps();
     Preconditions.checkState(isDone(), "no deps until done. NodeEntry: %s", this);
-    return GroupedList.create(directDeps);
+    return uncompressDoneDirectDeps(directDeps);
   }
 
   public int getNumDirectDeps() {
     Preconditions.checkState(isDone(), "no deps until done. NodeEntry: %s", this);
-    return GroupedList.numElements(directDeps);
+    return numElementsInDoneDirectDeps(directDeps);
+  }
+
+  /**
+   * Compresses the direct deps of a node that is done for storage in {@link #directDeps}.
+   * Subclasses may use a more compact representation, in which case they must override {@link
+   * #uncompressDoneDirectDeps} and {@link #numElementsInDoneDirectDeps} too.
+   */
+  protected Object compressDoneDirectDeps(GroupedList<SkyKey> deps) {
+    return deps.compress();
+  }
+
+  /** Inverse of {@link #compressDoneDirectDeps}. */
+  protected GroupedList<SkyKey> uncompressDoneDirectDeps(Object compressed) {
+    return GroupedList.create(compressed);
+  }
+
+  /** Returns the number of deps in the result of {@link #compressDoneDirectDeps}. */
+  protected int numElementsInDoneDirectDeps(Object compressed) {
+    return GroupedList.numElements(compressed);
   }
 
   @Override
@@ -261,7 +280,7 @@ public class InMemoryNodeEntry implements NodeEntry {
   protected final synchronized Set<SkyKey> setStateFinishedAndReturnReverseDepsToSignal() {
     Set<SkyKey> reverseDepsToSignal =
         ReverseDepsUtility.consolidateDataAndReturnNewElements(this, getOpToStoreBare());
-    this.directDeps = getTemporaryDirectDeps().compress();
+    this.directDeps = compressDoneDirectDeps(getTemporaryDirectDeps());
 
     markDone();
     postProcessAfterDone();
@@ -457,7 +476,7 @@ public class InMemoryNodeEntry implements NodeEntry {
     assertKeepDeps();
     if (isDone()) {
       dirtyBuildingState =
-          DirtyBuildingState.create(isChanged, GroupedList.<SkyKey>create(directDeps), value);
+          DirtyBuildingState.create(isChanged, uncompressDoneDirectDeps(directDeps), value);
       value = null;
       directDeps = null;
       return new MarkedDirtyResult(ReverseDepsUtility.getReverseDeps(this));
@@ -613,7 +632,7 @@ public class InMemoryNodeEntry implements NodeEntry {
         .add("value", value)
         .add("lastChangedVersion", lastChangedVersion)
         .add("lastEvaluatedVersion", lastEvaluatedVersion)
-        .add("directDeps", isDone() ? GroupedList.create(directDeps) : directDeps)
+        .add("directDeps", isDone() ? uncompressDoneDirectDeps(directDeps) : directDeps)
         .add("signaledDeps", signaledDeps)
         .add("reverseDeps", ReverseDepsUtility.toString(this))
         .add("dirtyBuildingState", dirtyBuildingState)
@@ -627,7 +646,7 @@ public class InMemoryNodeEntry implements NodeEntry {
     newEntry.lastChangedVersion = this.lastChangedVersion;
     newEntry.lastEvaluatedVersion = this.lastEvaluatedVersion;
     ReverseDepsUtility.addReverseDeps(newEntry, ReverseDepsUtility.getReverseDeps(this));
-    newEntry.directDeps = directDeps;
+    newEntry.directDeps = newEntry.compressDoneDirectDeps(uncompressDoneDirectDeps(directDeps));
     newEntry.dirtyBuildingState = null;
     return newEntry;
   }
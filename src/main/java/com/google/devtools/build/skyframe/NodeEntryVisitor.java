@@ -19,6 +19,7 @@ import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.concurrent.AbstractQueueVisitor;
 import com.google.devtools.build.lib.concurrent.ErrorClassifier;
 import com.google.devtools.build.lib.concurrent.ForkJoinQuiescingExecutor;
+import com.google.devtools.build.lib.concurrent.PrioritizedRunnable;
 import com.google.devtools.build.lib.concurrent.QuiescingExecutor;
 import java.util.Collection;
 import java.util.Set;
@@ -26,6 +27,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
 
 /**
  * Threadpool manager for {@link ParallelEvaluator}. Wraps a {@link QuiescingExecutor} and keeps
@@ -60,6 +62,13 @@ class NodeEntryVisitor {
    */
   private final Function<SkyKey, Runnable> runnableMaker;
 
+  @Nullable private final EvaluationPriorityFunction priorityFunction;
+  /**
+   * Priority of the evaluation running in the current thread, which the nodes it enqueues inherit.
+   * Only used if there is a {@link #priorityFunction}.
+   */
+  private final ThreadLocal<int[]> currentPriority = ThreadLocal.withInitial(() -> new int[1]);
+
   NodeEntryVisitor(
       ForkJoinPool forkJoinPool,
       DirtyTrackingProgressReceiver progressReceiver,
@@ -70,12 +79,26 @@ class NodeEntryVisitor {
         .build();
     this.progressReceiver = progressReceiver;
     this.runnableMaker = runnableMaker;
+    this.priorityFunction = null;
   }
 
   NodeEntryVisitor(
       int threadCount,
       DirtyTrackingProgressReceiver progressReceiver,
       Function<SkyKey, Runnable> runnableMaker) {
+    this(threadCount, progressReceiver, runnableMaker, /*priorityFunction=*/ null);
+  }
+
+  /**
+   * If {@code priorityFunction} is non-null, nodes are evaluated in order of the priority it
+   * assigns them, raised to the priority of the evaluation that enqueued them, instead of most
+   * recently enqueued first.
+   */
+  NodeEntryVisitor(
+      int threadCount,
+      DirtyTrackingProgressReceiver progressReceiver,
+      Function<SkyKey, Runnable> runnableMaker,
+      @Nullable EvaluationPriorityFunction priorityFunction) {
     quiescingExecutor =
         new AbstractQueueVisitor(
             threadCount,
@@ -83,10 +106,13 @@ class NodeEntryVisitor {
             TimeUnit.SECONDS,
             /*failFastOnException*/ true,
             "skyframe-evaluator",
-            AbstractQueueVisitor.EXECUTOR_FACTORY,
+            priorityFunction == null
+                ? AbstractQueueVisitor.EXECUTOR_FACTORY
+                : AbstractQueueVisitor.PRIORITY_EXECUTOR_FACTORY,
             NODE_ENTRY_VISITOR_ERROR_CLASSIFIER);
     this.progressReceiver = progressReceiver;
     this.runnableMaker = runnableMaker;
+    this.priorityFunction = priorityFunction;
   }
 
   void waitForCompletion() throws InterruptedException {
@@ -101,7 +127,40 @@ class NodeEntryVisitor {
       return;
     }
     progressReceiver.enqueueing(key);
-    quiescingExecutor.execute(runnableMaker.apply(key));
+    Runnable evaluation = runnableMaker.apply(key);
+    if (priorityFunction != null) {
+      int priority = Math.max(priorityFunction.getPriority(key), currentPriority.get()[0]);
+      evaluation = new PrioritizedEvaluation(evaluation, priority);
+    }
+    quiescingExecutor.execute(evaluation);
+  }
+
+  /** Runs an evaluation with {@link #currentPriority} set to its priority. */
+  private class PrioritizedEvaluation implements PrioritizedRunnable {
+    private final Runnable evaluation;
+    private final int priority;
+
+    private PrioritizedEvaluation(Runnable evaluation, int priority) {
+      this.evaluation = evaluation;
+      this.priority = priority;
+    }
+
+    @Override
+    public int getPriority() {
+      return priority;
+    }
+
+    @Override
+    public void run() {
+      int[] threadPriority = currentPriority.get();
+      int previousPriority = threadPriority[0];
+      threadPriority[0] = priority;
+      try {
+        evaluation.run();
+      } finally {
+        threadPriority[0] = previousPriority;
+      }
+    }
   }
 
   /**
@@ -85,6 +85,36 @@ public class ParallelEvaluator extends AbstractParallelEvaluator implements Eval
       boolean keepGoing,
       int threadCount,
       DirtyTrackingProgressReceiver progressReceiver) {
+    this(
+        graph,
+        graphVersion,
+        skyFunctions,
+        reporter,
+        emittedEventState,
+        storedEventFilter,
+        errorInfoManager,
+        keepGoing,
+        threadCount,
+        progressReceiver,
+        /*priorityFunction=*/ null);
+  }
+
+  /**
+   * Creates an evaluator that evaluates nodes in order of the priorities assigned by {@code
+   * priorityFunction}, if it is non-null.
+   */
+  public ParallelEvaluator(
+      ProcessableGraph graph,
+      Version graphVersion,
+      ImmutableMap<SkyFunctionName, ? extends SkyFunction> skyFunctions,
+      final ExtendedEventHandler reporter,
+      EmittedEventState emittedEventState,
+      EventFilter storedEventFilter,
+      ErrorInfoManager errorInfoManager,
+      boolean keepGoing,
+      int threadCount,
+      DirtyTrackingProgressReceiver progressReceiver,
+      @Nullable EvaluationPriorityFunction priorityFunction) {
     super(
         graph,
         graphVersion,
@@ -95,7 +125,8 @@ public class ParallelEvaluator extends AbstractParallelEvaluator implements Eval
         errorInfoManager,
         keepGoing,
         threadCount,
-        progressReceiver);
+        progressReceiver,
+        priorityFunction);
     cycleDetector = new SimpleCycleDetector();
   }
 
@@ -72,7 +72,8 @@ class ParallelEvaluatorContext {
       EventFilter storedEventFilter,
       ErrorInfoManager errorInfoManager,
       final Function<SkyKey, Runnable> runnableMaker,
-      final int threadCount) {
+      final int threadCount,
+      @Nullable final EvaluationPriorityFunction priorityFunction) {
     this.graph = graph;
     this.graphVersion = graphVersion;
     this.skyFunctions = skyFunctions;
@@ -92,7 +93,7 @@ class ParallelEvaluatorContext {
               @Override
               public NodeEntryVisitor get() {
                 return new NodeEntryVisitor(
-                    threadCount, progressReceiver, runnableMaker);
+                    threadCount, progressReceiver, runnableMaker, priorityFunction);
               }
             });
   }
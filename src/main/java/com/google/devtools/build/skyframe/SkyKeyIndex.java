@@ -0,0 +1,113 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Maps dense int ids to {@link SkyKey}s, so that graph edges can be stored as ids instead of
+ * references. The id of a key is stored in its node (see {@link CompactInMemoryNodeEntry}), so the
+ * index only keeps the id to key direction.
+ *
+ * <p>The id to key mapping is an array of fixed-size chunks, so that lookups by id are lock-free and
+ * the array never needs to be copied as it grows.
+ *
+ * <p>Ids of deleted nodes are recycled. A released id can still be looked up until the next id is
+ * assigned: the nodes that refer to a deleted node are deleted in the same invalidation, and may
+ * read their deps while they are deleted, but no node is created until the invalidation is over.
+ */
+@ThreadSafe
+final class SkyKeyIndex {
+  private static final int CHUNK_BITS = 14;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  private static final int MAX_CHUNKS = 1 << (31 - CHUNK_BITS);
+
+  private final AtomicReferenceArray<SkyKey[]> chunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+  private final AtomicInteger nextId = new AtomicInteger();
+
+  // Released ids, which may still be looked up, followed by free ids, whose keys were cleared.
+  // Guarded by this.
+  private int[] recycledIds = new int[0];
+  private int numReleasedIds;
+  private int numFreeIds;
+  // Whether there are released or free ids, so that assigning ids doesn't lock when there are none.
+  private volatile boolean hasRecycledIds;
+
+  /** Assigns a new id to {@code key}. */
+  int assignId(SkyKey key) {
+    if (hasRecycledIds) {
+      synchronized (this) {
+        clearReleasedIds();
+        if (numFreeIds > 0) {
+          int id = recycledIds[--numFreeIds];
+          hasRecycledIds = numFreeIds > 0;
+          setKey(id, key);
+          return id;
+        }
+      }
+    }
+    int id = nextId.getAndIncrement();
+    Preconditions.checkState(id >= 0, "Too many SkyKeys: %s", key);
+    setKey(id, key);
+    return id;
+  }
+
+  /**
+   * Releases {@code id}, whose node was deleted. The id can still be looked up until the next call
+   * to {@link #assignId}, which reuses it.
+   */
+  synchronized void releaseId(int id) {
+    if (numReleasedIds + numFreeIds == recycledIds.length) {
+      recycledIds = Arrays.copyOf(recycledIds, Math.max(16, recycledIds.length * 2));
+    }
+    // Keep the free ids at the end of the array.
+    recycledIds[numReleasedIds + numFreeIds] = recycledIds[numReleasedIds];
+    recycledIds[numReleasedIds++] = id;
+    hasRecycledIds = true;
+  }
+
+  private void clearReleasedIds() {
+    for (int i = 0; i < numReleasedIds; i++) {
+      setKey(recycledIds[i], null);
+    }
+    numFreeIds += numReleasedIds;
+    numReleasedIds = 0;
+  }
+
+  private void setKey(int id, SkyKey key) {
+    int chunkIndex = id >>> CHUNK_BITS;
+    SkyKey[] chunk = chunks.get(chunkIndex);
+    if (chunk == null) {
+      chunks.compareAndSet(chunkIndex, null, new SkyKey[CHUNK_SIZE]);
+      chunk = chunks.get(chunkIndex);
+    }
+    // Readers only learn about this id through data published after this call returns.
+    chunk[id & CHUNK_MASK] = key;
+  }
+
+  /** Returns the key with id {@code id}, which must have been returned by {@link #assignId}. */
+  SkyKey getKey(int id) {
+    return chunks.get(id >>> CHUNK_BITS)[id & CHUNK_MASK];
+  }
+
+  /** Returns the number of ids in use. */
+  synchronized int size() {
+    return nextId.get() - numReleasedIds - numFreeIds;
+  }
+}
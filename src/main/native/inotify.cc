@@ -0,0 +1,299 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+#include <dirent.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <jni.h>
+#include <poll.h>
+#include <pthread.h>
+#include <string.h>
+#include <sys/inotify.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#include <string>
+#include <unordered_map>
+#include <unordered_set>
+#include <vector>
+
+namespace {
+
+const uint32_t kWatchMask = IN_ATTRIB | IN_CLOSE_WRITE | IN_CREATE |
+                            IN_DELETE | IN_DELETE_SELF | IN_MODIFY |
+                            IN_MOVE_SELF | IN_MOVED_FROM | IN_MOVED_TO |
+                            IN_ONLYDIR | IN_DONT_FOLLOW | IN_EXCL_UNLINK;
+
+// A structure holding the inotify instance, the reader thread, and the paths
+// that changed since the last call to LinuxInotifyDiffAwareness#poll().
+struct JNIInotifyDiffAwareness {
+  int inotify_fd;
+  // Written to by doClose() to wake up and stop the reader thread.
+  int wakeup_pipe[2];
+  pthread_t thread;
+  // Watch descriptor of the root directory.
+  int root_wd;
+  // Directory of each watch descriptor. Only accessed by the reader thread once
+  // it has been started.
+  std::unordered_map<int, std::string> directories;
+  // Paths that changed since the last poll, coalesced. Filled by the reader
+  // thread and emptied by poll().
+  std::unordered_set<std::string> paths;
+  // If not empty, events may have been lost and the next poll() fails.
+  std::string error;
+  // Mutex to protect concurrent access of paths and error.
+  pthread_mutex_t mutex;
+
+  JNIInotifyDiffAwareness() : inotify_fd(-1), root_wd(-1) {
+    wakeup_pipe[0] = wakeup_pipe[1] = -1;
+    pthread_mutex_init(&mutex, nullptr);
+  }
+
+  ~JNIInotifyDiffAwareness() {
+    if (inotify_fd >= 0) {
+      close(inotify_fd);
+    }
+    if (wakeup_pipe[0] >= 0) {
+      close(wakeup_pipe[0]);
+      close(wakeup_pipe[1]);
+    }
+    pthread_mutex_destroy(&mutex);
+  }
+};
+
+bool IsDirectory(const std::string &path, const struct dirent *entry) {
+  if (entry->d_type != DT_UNKNOWN) {
+    return entry->d_type == DT_DIR;
+  }
+  struct stat statbuf;
+  return lstat(path.c_str(), &statbuf) == 0 && S_ISDIR(statbuf.st_mode);
+}
+
+// Watches dir and all directories under it, registering each directory before
+// listing it so that no entry created concurrently is missed. If contents is
+// not null, adds all paths under dir to it. Returns an error message, or an
+// empty string on success.
+std::string WatchRecursively(JNIInotifyDiffAwareness *info,
+                             const std::string &dir,
+                             std::vector<std::string> *contents) {
+  int wd = inotify_add_watch(info->inotify_fd, dir.c_str(), kWatchMask);
+  if (wd < 0) {
+    if (errno == ENOENT || errno == ENOTDIR) {
+      // Deleted or replaced since we learned about it; there will be an event.
+      return "";
+    }
+    return "inotify_add_watch(" + dir + ") failed: " + strerror(errno);
+  }
+  // A directory that was moved keeps its watch descriptor.
+  info->directories[wd] = dir;
+  DIR *d = opendir(dir.c_str());
+  if (d == nullptr) {
+    if (errno == ENOENT || errno == ENOTDIR) {
+      return "";
+    }
+    return "opendir(" + dir + ") failed: " + strerror(errno);
+  }
+  std::string error;
+  struct dirent *entry;
+  while (error.empty() && (entry = readdir(d)) != nullptr) {
+    if (strcmp(entry->d_name, ".") == 0 || strcmp(entry->d_name, "..") == 0) {
+      continue;
+    }
+    std::string path = dir + "/" + entry->d_name;
+    if (contents != nullptr) {
+      contents->push_back(path);
+    }
+    if (IsDirectory(path, entry)) {
+      error = WatchRecursively(info, path, contents);
+    }
+  }
+  closedir(d);
+  return error;
+}
+
+// Turns a buffer of inotify events into changed paths. Returns an error
+// message if events may have been lost.
+std::string ProcessEvents(JNIInotifyDiffAwareness *info, const char *buffer,
+                          ssize_t length, std::vector<std::string> *paths) {
+  for (const char *p = buffer; p < buffer + length;) {
+    const struct inotify_event *event =
+        reinterpret_cast<const struct inotify_event *>(p);
+    p += sizeof(struct inotify_event) + event->len;
+    if (event->mask & IN_Q_OVERFLOW) {
+      return "Overflow when watching local filesystem for changes";
+    }
+    auto it = info->directories.find(event->wd);
+    if (it == info->directories.end()) {
+      continue;
+    }
+    if (event->mask & (IN_IGNORED | IN_DELETE_SELF | IN_MOVE_SELF)) {
+      if (event->wd == info->root_wd) {
+        return "Root directory " + it->second + " became inaccessible";
+      }
+      if (event->mask & IN_IGNORED) {
+        info->directories.erase(it);
+      }
+      // The parent directory reports the deletion or move.
+      continue;
+    }
+    std::string path = it->second;
+    if (event->len > 0) {
+      path += "/";
+      path += event->name;
+    }
+    paths->push_back(path);
+    if ((event->mask & IN_ISDIR) && (event->mask & (IN_CREATE | IN_MOVED_TO))) {
+      // Changes to the new directory have not been watched so far.
+      std::string error = WatchRecursively(info, path, paths);
+      if (!error.empty()) {
+        return error;
+      }
+    }
+  }
+  return "";
+}
+
+void *ReadEvents(void *arg) {
+  JNIInotifyDiffAwareness *info = static_cast<JNIInotifyDiffAwareness *>(arg);
+  // Large enough for many events, and aligned for struct inotify_event.
+  static const size_t kBufferSize = 64 * 1024;
+  std::vector<struct inotify_event> buffer(
+      kBufferSize / sizeof(struct inotify_event));
+  char *data = reinterpret_cast<char *>(buffer.data());
+  std::vector<std::string> paths;
+  while (true) {
+    struct pollfd fds[2] = {{info->inotify_fd, POLLIN, 0},
+                            {info->wakeup_pipe[0], POLLIN, 0}};
+    std::string error;
+    if (poll(fds, 2, -1) < 0) {
+      if (errno == EINTR) {
+        continue;
+      }
+      error = std::string("poll() failed: ") + strerror(errno);
+    } else if (fds[1].revents != 0) {
+      return nullptr;
+    } else {
+      ssize_t length = read(info->inotify_fd, data, kBufferSize);
+      if (length < 0) {
+        if (errno == EINTR || errno == EAGAIN) {
+          continue;
+        }
+        error = std::string("read() failed: ") + strerror(errno);
+      } else {
+        paths.clear();
+        error = ProcessEvents(info, data, length, &paths);
+      }
+    }
+    pthread_mutex_lock(&info->mutex);
+    info->paths.insert(paths.begin(), paths.end());
+    if (info->error.empty()) {
+      info->error = error;
+    }
+    pthread_mutex_unlock(&info->mutex);
+    paths.clear();
+    if (!error.empty()) {
+      // The next poll() fails, and the Java side discards this instance.
+      return nullptr;
+    }
+  }
+}
+
+JNIInotifyDiffAwareness *GetInfo(JNIEnv *env, jobject inotifyDiffAwareness) {
+  jclass clazz = env->GetObjectClass(inotifyDiffAwareness);
+  jfieldID fid = env->GetFieldID(clazz, "nativePointer", "J");
+  jlong field = env->GetLongField(inotifyDiffAwareness, fid);
+  return reinterpret_cast<JNIInotifyDiffAwareness *>(field);
+}
+
+void ThrowIOException(JNIEnv *env, const std::string &message) {
+  env->ThrowNew(env->FindClass("java/io/IOException"), message.c_str());
+}
+
+}  // namespace
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_skyframe_LinuxInotifyDiffAwareness_create(
+    JNIEnv *env, jobject inotifyDiffAwareness, jstring root) {
+  JNIInotifyDiffAwareness *info = new JNIInotifyDiffAwareness();
+  const char *rootCStr = env->GetStringUTFChars(root, nullptr);
+  std::string rootPath(rootCStr);
+  env->ReleaseStringUTFChars(root, rootCStr);
+
+  std::string error;
+  info->inotify_fd = inotify_init1(IN_NONBLOCK | IN_CLOEXEC);
+  if (info->inotify_fd < 0) {
+    error = std::string("inotify_init1() failed: ") + strerror(errno);
+  } else if (pipe2(info->wakeup_pipe, O_CLOEXEC) < 0) {
+    error = std::string("pipe2() failed: ") + strerror(errno);
+  } else {
+    error = WatchRecursively(info, rootPath, nullptr);
+    for (const auto &entry : info->directories) {
+      if (entry.second == rootPath) {
+        info->root_wd = entry.first;
+      }
+    }
+    if (error.empty() && info->root_wd < 0) {
+      error = "Root directory " + rootPath + " is not a directory";
+    }
+  }
+  if (error.empty() &&
+      pthread_create(&info->thread, nullptr, ReadEvents, info) != 0) {
+    error = "pthread_create() failed";
+  }
+  if (!error.empty()) {
+    delete info;
+    ThrowIOException(env, error);
+    return;
+  }
+
+  jclass clazz = env->GetObjectClass(inotifyDiffAwareness);
+  jfieldID fid = env->GetFieldID(clazz, "nativePointer", "J");
+  env->SetLongField(inotifyDiffAwareness, fid, reinterpret_cast<jlong>(info));
+}
+
+extern "C" JNIEXPORT jobjectArray JNICALL
+Java_com_google_devtools_build_lib_skyframe_LinuxInotifyDiffAwareness_poll(
+    JNIEnv *env, jobject inotifyDiffAwareness) {
+  JNIInotifyDiffAwareness *info = GetInfo(env, inotifyDiffAwareness);
+  pthread_mutex_lock(&info->mutex);
+  if (!info->error.empty()) {
+    std::string error = info->error;
+    pthread_mutex_unlock(&info->mutex);
+    ThrowIOException(env, error);
+    return nullptr;
+  }
+
+  jclass classString = env->FindClass("java/lang/String");
+  jobjectArray result =
+      env->NewObjectArray(info->paths.size(), classString, nullptr);
+  int i = 0;
+  for (auto it = info->paths.begin(); it != info->paths.end(); it++, i++) {
+    jstring path = env->NewStringUTF(it->c_str());
+    env->SetObjectArrayElement(result, i, path);
+    env->DeleteLocalRef(path);
+  }
+  info->paths.clear();
+  pthread_mutex_unlock(&info->mutex);
+  return result;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_skyframe_LinuxInotifyDiffAwareness_doClose(
+    JNIEnv *env, jobject inotifyDiffAwareness) {
+  JNIInotifyDiffAwareness *info = GetInfo(env, inotifyDiffAwareness);
+  char c = 0;
+  while (write(info->wakeup_pipe[1], &c, 1) < 0 && errno == EINTR) {
+  }
+  pthread_join(info->thread, nullptr);
+  delete info;
+}
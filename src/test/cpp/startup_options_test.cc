@@ -132,6 +132,8 @@ TEST_F(StartupOptionsTest, ValidStartupFlagsTest) {
   SuccessfulIsNullaryTest("block_for_lock");
   SuccessfulIsNullaryTest("client_debug");
   SuccessfulIsNullaryTest("deep_execroot");
+  SuccessfulIsNullaryTest("experimental_compact_skyframe_graph");
+  SuccessfulIsNullaryTest("experimental_log_structured_action_cache");
   SuccessfulIsNullaryTest("experimental_oom_more_eagerly");
   SuccessfulIsNullaryTest("fatal_event_bus_exceptions");
   SuccessfulIsNullaryTest("host_jvm_debug");
@@ -0,0 +1,263 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.clock.JavaClock;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test for the LogStructuredActionCache class. It uses the real file system, since the index is
+ * memory-mapped.
+ */
+@RunWith(JUnit4.class)
+public class LogStructuredActionCacheTest {
+  private final JavaClock clock = new JavaClock();
+  private Path cacheRoot;
+  private LogStructuredActionCache cache;
+
+  @Before
+  public final void createCache() throws Exception {
+    cacheRoot = new JavaIoFileSystem().getPath(TestUtils.makeTempDir().getCanonicalPath());
+    cache = new LogStructuredActionCache(cacheRoot, clock);
+  }
+
+  @Test
+  public void testGetInvalidKey() {
+    assertThat(cache.get("key")).isNull();
+  }
+
+  @Test
+  public void testPutAndGet() {
+    putKey("key", cache, "digest");
+    assertThat(cache.get("key").getActionKey()).isEqualTo("digest");
+  }
+
+  @Test
+  public void testPutReplacesEntry() {
+    putKey("key", cache, "old");
+    putKey("key", cache, "new");
+    assertThat(cache.get("key").getActionKey()).isEqualTo("new");
+  }
+
+  @Test
+  public void testPutAndRemove() {
+    putKey("key", cache, "digest");
+    cache.remove("key");
+    assertThat(cache.get("key")).isNull();
+  }
+
+  @Test
+  public void testSaveAndReopen() throws Exception {
+    for (int i = 0; i < 10000; i++) {
+      putKey(Integer.toString(i), cache, "digest" + i);
+    }
+    cache.remove("17");
+    cache.save();
+    assertThat(LogStructuredActionCache.logFile(cacheRoot).exists()).isTrue();
+    assertThat(LogStructuredActionCache.indexFile(cacheRoot).exists()).isTrue();
+
+    LogStructuredActionCache newCache = new LogStructuredActionCache(cacheRoot, clock);
+    for (int i = 0; i < 10000; i++) {
+      if (i != 17) {
+        assertThat(newCache.get(Integer.toString(i)).getActionKey()).isEqualTo("digest" + i);
+      }
+    }
+    assertThat(newCache.get("17")).isNull();
+
+    putKey("0", newCache, "changed");
+    newCache.save();
+    assertThat(new LogStructuredActionCache(cacheRoot, clock).get("0").getActionKey())
+        .isEqualTo("changed");
+  }
+
+  @Test
+  public void testEntriesAppendedAfterSaveAreIgnoredOnReopen() throws Exception {
+    putKey("saved", cache, "digest");
+    cache.save();
+    putKey("unsaved", cache, "digest");
+    putKey("saved", cache, "changed");
+
+    LogStructuredActionCache newCache = new LogStructuredActionCache(cacheRoot, clock);
+    assertThat(newCache.get("unsaved")).isNull();
+    // The index already points at the unsaved record, which is past the saved part of the log.
+    assertThat(newCache.get("saved")).isNull();
+  }
+
+  @Test
+  public void testEntriesAppendedAfterCrashReplaceUnsavedOnes() throws Exception {
+    putKey("saved", cache, "digest");
+    cache.save();
+    putKey("other", cache, "digest");
+    putKey("saved", cache, "unsaved");
+
+    LogStructuredActionCache newCache = new LogStructuredActionCache(cacheRoot, clock);
+    // This record lands before the unsaved one that the index still pointed at.
+    putKey("saved", newCache, "changed");
+    assertThat(newCache.get("saved").getActionKey()).isEqualTo("changed");
+    newCache.save();
+    assertThat(new LogStructuredActionCache(cacheRoot, clock).get("saved").getActionKey())
+        .isEqualTo("changed");
+  }
+
+  @Test
+  public void testResize() throws Exception {
+    for (int i = 0; i < 10000; i++) {
+      putKey(Integer.toString(i), cache, "digest" + i);
+    }
+    cache.save();
+
+    LogStructuredActionCache newCache = new LogStructuredActionCache(cacheRoot, clock);
+    for (int i = 0; i < 10000; i++) {
+      assertThat(cache.get(Integer.toString(i)).getActionKey()).isEqualTo("digest" + i);
+      assertThat(newCache.get(Integer.toString(i)).getActionKey()).isEqualTo("digest" + i);
+    }
+  }
+
+  @Test
+  public void testCompact() throws Exception {
+    for (int round = 0; round < 10; round++) {
+      for (int i = 0; i < 100; i++) {
+        putKey(Integer.toString(i), cache, "digest" + round);
+      }
+    }
+    cache.remove("42");
+    cache.save();
+    long sizeBefore = LogStructuredActionCache.logFile(cacheRoot).getFileSize();
+
+    cache.compact();
+
+    assertThat(LogStructuredActionCache.logFile(cacheRoot).getFileSize())
+        .isLessThan(sizeBefore / 5);
+    assertThat(cache.get("0").getActionKey()).isEqualTo("digest9");
+    assertThat(cache.get("42")).isNull();
+    putKey("1", cache, "changed");
+    cache.save();
+
+    LogStructuredActionCache newCache = new LogStructuredActionCache(cacheRoot, clock);
+    assertThat(newCache.get("0").getActionKey()).isEqualTo("digest9");
+    assertThat(newCache.get("1").getActionKey()).isEqualTo("changed");
+    assertThat(newCache.get("42")).isNull();
+  }
+
+  @Test
+  public void testConcurrentPutsAndCompaction() throws Exception {
+    for (int i = 0; i < 1000; i++) {
+      putKey(Integer.toString(i), cache, "old");
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      int thread = t;
+      futures.add(
+          executor.submit(
+              () -> {
+                for (int i = thread; i < 1000; i += 4) {
+                  putKey(Integer.toString(i), cache, "new" + i);
+                  assertThat(cache.get(Integer.toString(i)).getActionKey()).isEqualTo("new" + i);
+                }
+                return null;
+              }));
+    }
+    cache.compact();
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    cache.save();
+
+    LogStructuredActionCache newCache = new LogStructuredActionCache(cacheRoot, clock);
+    for (int i = 0; i < 1000; i++) {
+      assertThat(cache.get(Integer.toString(i)).getActionKey()).isEqualTo("new" + i);
+      assertThat(newCache.get(Integer.toString(i)).getActionKey()).isEqualTo("new" + i);
+    }
+  }
+
+  @Test
+  public void testInterruptedLookupDoesNotBreakCache() throws Exception {
+    putKey("key", cache, "digest");
+    Thread.currentThread().interrupt();
+    ActionCache.Entry entry;
+    try {
+      entry = cache.get("key");
+    } finally {
+      assertThat(Thread.interrupted()).isTrue();
+    }
+    assertThat(entry).isNull();
+    assertThat(cache.get("key").getActionKey()).isEqualTo("digest");
+    putKey("other", cache, "digest");
+    cache.save();
+    assertThat(new LogStructuredActionCache(cacheRoot, clock).get("other")).isNotNull();
+  }
+
+  @Test
+  public void testClear() throws Exception {
+    putKey("key", cache, "digest");
+    cache.save();
+    cache.clear();
+    assertThat(cache.get("key")).isNull();
+    putKey("other", cache, "digest");
+    cache.save();
+    assertThat(new LogStructuredActionCache(cacheRoot, clock).get("other")).isNotNull();
+  }
+
+  @Test
+  public void testCorruptedLogIsRenamed() throws Exception {
+    putKey("key", cache, "digest");
+    cache.save();
+    Path logFile = LogStructuredActionCache.logFile(cacheRoot);
+    FileSystemUtils.writeContentAsLatin1(logFile, "garbage");
+
+    try {
+      new LogStructuredActionCache(cacheRoot, clock);
+      fail("Expected IOException");
+    } catch (IOException expected) {
+      assertThat(expected).hasMessageThat().contains("Failed to load action cache data");
+    }
+    assertThat(logFile.exists()).isFalse();
+    assertThat(cacheRoot.getChild(logFile.getBaseName() + ".bad").exists()).isTrue();
+    assertThat(new LogStructuredActionCache(cacheRoot, clock).get("key")).isNull();
+  }
+
+  @Test
+  public void testToString() {
+    for (int i = 0; i < 3; i++) {
+      putKey(Integer.toString(i), cache, "digest");
+    }
+    assertThat(cache.toString()).startsWith("Action cache (3 records):\n");
+  }
+
+  private static void putKey(String key, ActionCache ac, String actionKey) {
+    ActionCache.Entry entry =
+        new ActionCache.Entry(actionKey, ImmutableMap.<String, String>of(), false);
+    entry.getFileDigest();
+    ac.put(key, entry);
+  }
+}
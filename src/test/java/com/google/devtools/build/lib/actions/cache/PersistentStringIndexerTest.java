@@ -354,6 +354,36 @@ public class PersistentStringIndexerTest {
     }
   }
 
+  @Test
+  public void testIndexGapsAreTolerated() throws Exception {
+    setupTestContent();
+    assertIndex(9, "abc1234");
+    psi.save();
+    byte[] content = FileSystemUtils.readContent(dataPath);
+
+    // Entries may be journaled out of order, so the journal can lack an index below the last one
+    // after a crash. Give the last entry of the file an index past all others to leave a gap.
+    assertThat(dataPath.delete()).isTrue();
+    content[content.length - 1] = 20;
+    FileSystemUtils.writeContent(journalPath, content);
+
+    psi = PersistentStringIndexer.newPersistentStringIndexer(dataPath, clock);
+    assertSize(21);
+    assertThat(psi.getStringForIndex(20)).isNotNull();
+    // The missing index is not reused.
+    assertIndex(21, "new record");
+  }
+
+  @Test
+  public void testReserveIndices() throws Exception {
+    setupTestContent();
+    psi.reserveIndices(5);
+    assertSize(9);
+    psi.reserveIndices(15);
+    assertSize(15);
+    assertIndex(15, "new record");
+  }
+
   @Test
   public void testDeferredIOFailure() throws Exception {
     assertThat(dataPath.exists()).isFalse();
@@ -90,6 +90,11 @@ public class PopulateTreeArtifactActionTest extends BuildViewTestCase {
       throw new UnsupportedOperationException(output.toString());
     }
 
+    @Override
+    public void injectRemoteFile(Artifact output, byte[] digest, long size) {
+      throw new UnsupportedOperationException(output.toString());
+    }
+
     @Override
     public void markOmitted(ActionInput output) {
       throw new UnsupportedOperationException(output.toString());
@@ -18,6 +18,7 @@ import static org.junit.Assert.fail;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -228,6 +229,11 @@ public abstract class ExpanderTestBase  {
     assertThat(Lists.newArrayList(set.toCollection())).isEqualTo(expected);
     assertThat(Lists.newArrayList(set.toList())).isEqualTo(expected);
     assertThat(Lists.newArrayList(set.toSet())).isEqualTo(expected);
+    // Once the set has been expanded, iterating over it replays the expansion.
+    assertThat(Lists.newArrayList(set)).isEqualTo(expected);
+    List<String> visited = new ArrayList<>();
+    set.forEach(visited::add);
+    assertThat(visited).isEqualTo(expected);
   }
 
   protected final void assertCollectionsEqual(
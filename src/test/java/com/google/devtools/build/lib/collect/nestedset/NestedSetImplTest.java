@@ -18,6 +18,11 @@ import static org.junit.Assert.fail;
 
 import com.google.common.collect.Lists;
 import com.google.common.testing.EqualsTester;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -216,6 +221,64 @@ public class NestedSetImplTest {
     }
   }
 
+  /** Builds a chain of sets, each of which has a few new members and overlaps with the others. */
+  private static NestedSet<Integer> createLargeNestedSet(Order order, int size) {
+    NestedSet<Integer> previous = NestedSetBuilder.emptySet(order);
+    NestedSet<Integer> beforePrevious = previous;
+    for (int i = 0; i < size; i += 2) {
+      NestedSet<Integer> next =
+          new NestedSetBuilder<Integer>(order)
+              .add(i)
+              .add(i + 1)
+              .addTransitive(previous)
+              .addTransitive(beforePrevious)
+              .build();
+      beforePrevious = previous;
+      previous = next;
+    }
+    return previous;
+  }
+
+  @Test
+  public void iterationAfterExpansionMatchesList() {
+    for (Order order : Order.values()) {
+      NestedSet<Integer> set = createLargeNestedSet(order, 100);
+      List<Integer> expected = set.toList();
+      assertThat(expected).hasSize(100);
+      assertThat(Lists.newArrayList(set)).isEqualTo(expected);
+      List<Integer> visited = new ArrayList<>();
+      set.forEach(visited::add);
+      assertThat(visited).isEqualTo(expected);
+    }
+  }
+
+  @Test
+  public void largeExpansionIsShared() {
+    NestedSet<Integer> large =
+        createLargeNestedSet(Order.STABLE_ORDER, NestedSet.EXPANSION_CACHE_MIN_SIZE);
+    assertThat(large.toList()).isSameAs(large.toList());
+
+    NestedSet<Integer> small = createLargeNestedSet(Order.STABLE_ORDER, 10);
+    assertThat(small.toList()).isNotSameAs(small.toList());
+  }
+
+  @Test
+  public void concurrentExpansion() throws Exception {
+    NestedSet<Integer> set = createLargeNestedSet(Order.COMPILE_ORDER, 1000);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<List<Integer>>> expansions = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        expansions.add(executor.submit(() -> Lists.newArrayList(set)));
+      }
+      for (Future<List<Integer>> expansion : expansions) {
+        assertThat(expansion.get()).isEqualTo(set.toList());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
   private NestedSet<Integer> createNestedSet(Order order, int numDirects, int numTransitives,
       Order transitiveOrder) {
     NestedSetBuilder<Integer> builder = new NestedSetBuilder<>(order);
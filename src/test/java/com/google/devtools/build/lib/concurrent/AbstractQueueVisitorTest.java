@@ -69,6 +69,52 @@ public class AbstractQueueVisitorTest {
         .isTrue();
   }
 
+  @Test
+  public void priorityExecutorRunsHigherPrioritiesFirst() throws Exception {
+    AbstractQueueVisitor visitor =
+        new AbstractQueueVisitor(
+            /*parallelism=*/ 1,
+            /*keepAliveTime=*/ 3L,
+            TimeUnit.SECONDS,
+            /*failFastOnException=*/ false,
+            "priority-visitor",
+            AbstractQueueVisitor.PRIORITY_EXECUTOR_FACTORY,
+            ErrorClassifier.DEFAULT);
+    CountDownLatch blockerStarted = new CountDownLatch(1);
+    CountDownLatch releaseBlocker = new CountDownLatch(1);
+    List<String> order = Collections.synchronizedList(Lists.<String>newArrayList());
+    // Occupy the only thread so that the other tasks are queued.
+    visitor.execute(
+        () -> {
+          blockerStarted.countDown();
+          Uninterruptibles.awaitUninterruptibly(releaseBlocker);
+        });
+    blockerStarted.await();
+    visitor.execute(prioritized("low", 1, order));
+    visitor.execute(() -> order.add("none"));
+    visitor.execute(prioritized("high", 3, order));
+    visitor.execute(prioritized("mid", 2, order));
+    visitor.execute(prioritized("high, later", 3, order));
+    releaseBlocker.countDown();
+    visitor.awaitQuiescence(/*interruptWorkers=*/ false);
+
+    assertThat(order).containsExactly("high, later", "high", "mid", "low", "none").inOrder();
+  }
+
+  private static PrioritizedRunnable prioritized(String name, int priority, List<String> order) {
+    return new PrioritizedRunnable() {
+      @Override
+      public int getPriority() {
+        return priority;
+      }
+
+      @Override
+      public void run() {
+        order.add(name);
+      }
+    };
+  }
+
   @Test
   public void doubleCounter() throws Exception {
     CountingQueueVisitor counter = new CountingQueueVisitor();
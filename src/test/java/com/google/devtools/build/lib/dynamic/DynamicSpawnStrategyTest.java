@@ -0,0 +1,295 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.dynamic;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.actions.ActionExecutionContext;
+import com.google.devtools.build.lib.actions.ExecException;
+import com.google.devtools.build.lib.actions.ExecutionRequirements;
+import com.google.devtools.build.lib.actions.ExecutorInitException;
+import com.google.devtools.build.lib.actions.SandboxedSpawnActionContext;
+import com.google.devtools.build.lib.actions.Spawn;
+import com.google.devtools.build.lib.actions.SpawnActionContext;
+import com.google.devtools.build.lib.actions.SpawnResult;
+import com.google.devtools.build.lib.actions.SpawnResult.Status;
+import com.google.devtools.build.lib.actions.UserExecException;
+import com.google.devtools.build.lib.exec.util.SpawnBuilder;
+import com.google.devtools.build.lib.util.io.FileOutErr;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DynamicSpawnStrategy}. */
+@RunWith(JUnit4.class)
+public class DynamicSpawnStrategyTest {
+  private static final Spawn SPAWN = new SpawnBuilder("/bin/echo", "Hi!").build();
+  private static final Duration LONG_DELAY = Duration.ofMinutes(1);
+
+  /** What a fake strategy does when it executes a spawn. */
+  private interface Behavior {
+    List<SpawnResult> exec(
+        FileOutErr outErr, AtomicReference<Class<? extends SpawnActionContext>> writeOutputFiles)
+        throws ExecException, InterruptedException;
+  }
+
+  private abstract static class FakeStrategy implements SandboxedSpawnActionContext {
+    private final Behavior behavior;
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    FakeStrategy(Behavior behavior) {
+      this.behavior = behavior;
+    }
+
+    @Override
+    public List<SpawnResult> exec(Spawn spawn, ActionExecutionContext actionExecutionContext)
+        throws ExecException, InterruptedException {
+      return exec(spawn, actionExecutionContext, new AtomicReference<>());
+    }
+
+    @Override
+    public List<SpawnResult> exec(
+        Spawn spawn,
+        ActionExecutionContext actionExecutionContext,
+        AtomicReference<Class<? extends SpawnActionContext>> writeOutputFiles)
+        throws ExecException, InterruptedException {
+      started.countDown();
+      return behavior.exec(actionExecutionContext.getFileOutErr(), writeOutputFiles);
+    }
+
+    boolean started() {
+      return started.getCount() == 0;
+    }
+  }
+
+  private static final class LocalStrategy extends FakeStrategy {
+    LocalStrategy(Behavior behavior) {
+      super(behavior);
+    }
+  }
+
+  private static final class RemoteStrategy extends FakeStrategy {
+    RemoteStrategy(Behavior behavior) {
+      super(behavior);
+    }
+  }
+
+  /** Succeeds if it gets to write the outputs, after printing {@code name} to stdout. */
+  private Behavior succeed(String name, SpawnResult result) {
+    return (outErr, writeOutputFiles) -> {
+      outErr.printOut(name);
+      lockOutputs(writeOutputFiles, name);
+      return ImmutableList.of(result);
+    };
+  }
+
+  /** Runs until interrupted. */
+  private Behavior block(CountDownLatch interrupted) {
+    return (outErr, writeOutputFiles) -> {
+      try {
+        new CountDownLatch(1).await();
+      } finally {
+        interrupted.countDown();
+      }
+      throw new IllegalStateException("unreachable");
+    };
+  }
+
+  private static void lockOutputs(
+      AtomicReference<Class<? extends SpawnActionContext>> writeOutputFiles, String name)
+      throws InterruptedException {
+    Class<? extends SpawnActionContext> strategy =
+        name.equals("local") ? LocalStrategy.class : RemoteStrategy.class;
+    if (!writeOutputFiles.compareAndSet(null, strategy) && writeOutputFiles.get() != strategy) {
+      throw new InterruptedException();
+    }
+  }
+
+  private static SpawnResult result() {
+    return new SpawnResult.Builder().setStatus(Status.SUCCESS).setExitCode(0).build();
+  }
+
+  private final FileSystem fs = new InMemoryFileSystem();
+  private ExecutorService executorService;
+  private FileOutErr outErr;
+  private ActionExecutionContext actionExecutionContext;
+
+  @Before
+  public final void setUp() throws Exception {
+    executorService = Executors.newCachedThreadPool();
+    Path outDir = fs.getPath("/out");
+    outDir.createDirectory();
+    outErr = new FileOutErr(outDir.getRelative("stdout"), outDir.getRelative("stderr"));
+    actionExecutionContext = mock(ActionExecutionContext.class);
+    when(actionExecutionContext.getFileOutErr()).thenReturn(outErr);
+    when(actionExecutionContext.withFileOutErr(any(FileOutErr.class)))
+        .thenAnswer(
+            invocation -> {
+              ActionExecutionContext branchContext = mock(ActionExecutionContext.class);
+              when(branchContext.getFileOutErr())
+                  .thenReturn((FileOutErr) invocation.getArguments()[0]);
+              return branchContext;
+            });
+  }
+
+  @After
+  public final void tearDown() {
+    executorService.shutdownNow();
+  }
+
+  private DynamicSpawnStrategy createStrategy(
+      Duration localExecutionDelay, FakeStrategy local, FakeStrategy remote) throws Exception {
+    DynamicSpawnStrategy strategy = new DynamicSpawnStrategy(executorService, localExecutionDelay);
+    strategy.setStrategies(local, remote);
+    return strategy;
+  }
+
+  @Test
+  public void remoteWinsWithinDelay() throws Exception {
+    SpawnResult remoteResult = result();
+    LocalStrategy local = new LocalStrategy(succeed("local", result()));
+    RemoteStrategy remote = new RemoteStrategy(succeed("remote", remoteResult));
+
+    List<SpawnResult> results =
+        createStrategy(LONG_DELAY, local, remote).exec(SPAWN, actionExecutionContext);
+
+    assertThat(results).containsExactly(remoteResult);
+    assertThat(local.started()).isFalse();
+    assertThat(outErr.outAsLatin1()).isEqualTo("remote");
+  }
+
+  @Test
+  public void localWinsAfterDelay() throws Exception {
+    SpawnResult localResult = result();
+    CountDownLatch remoteInterrupted = new CountDownLatch(1);
+    LocalStrategy local = new LocalStrategy(succeed("local", localResult));
+    RemoteStrategy remote = new RemoteStrategy(block(remoteInterrupted));
+
+    List<SpawnResult> results =
+        createStrategy(Duration.ZERO, local, remote).exec(SPAWN, actionExecutionContext);
+
+    assertThat(results).containsExactly(localResult);
+    assertThat(remoteInterrupted.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(outErr.outAsLatin1()).isEqualTo("local");
+  }
+
+  @Test
+  public void remoteFailureBeforeWritingOutputsFallsBackToLocal() throws Exception {
+    SpawnResult localResult = result();
+    LocalStrategy local = new LocalStrategy(succeed("local", localResult));
+    RemoteStrategy remote =
+        new RemoteStrategy(
+            (outErr, writeOutputFiles) -> {
+              outErr.printErr("remote failed");
+              throw new UserExecException("remote execution is not available");
+            });
+
+    // Does not wait for the delay, as the remote branch failed.
+    List<SpawnResult> results =
+        createStrategy(LONG_DELAY, local, remote).exec(SPAWN, actionExecutionContext);
+
+    assertThat(results).containsExactly(localResult);
+    assertThat(outErr.outAsLatin1()).isEqualTo("local");
+    assertThat(outErr.hasRecordedStderr()).isFalse();
+  }
+
+  @Test
+  public void failureAfterWritingOutputsIsReported() throws Exception {
+    LocalStrategy local = new LocalStrategy(succeed("local", result()));
+    RemoteStrategy remote =
+        new RemoteStrategy(
+            (outErr, writeOutputFiles) -> {
+              lockOutputs(writeOutputFiles, "remote");
+              outErr.printErr("remote failed");
+              throw new UserExecException("failed to download outputs");
+            });
+
+    try {
+      createStrategy(LONG_DELAY, local, remote).exec(SPAWN, actionExecutionContext);
+      fail("Expected UserExecException");
+    } catch (UserExecException e) {
+      assertThat(e).hasMessageThat().isEqualTo("failed to download outputs");
+    }
+    assertThat(local.started()).isFalse();
+    assertThat(outErr.errAsLatin1()).isEqualTo("remote failed");
+  }
+
+  @Test
+  public void failureOfBothBranchesIsReported() throws Exception {
+    LocalStrategy local =
+        new LocalStrategy(
+            (outErr, writeOutputFiles) -> {
+              throw new UserExecException("local failure");
+            });
+    RemoteStrategy remote =
+        new RemoteStrategy(
+            (outErr, writeOutputFiles) -> {
+              throw new UserExecException("remote failure");
+            });
+
+    try {
+      createStrategy(LONG_DELAY, local, remote).exec(SPAWN, actionExecutionContext);
+      fail("Expected UserExecException");
+    } catch (UserExecException e) {
+      assertThat(e).hasMessageThat().isEqualTo("local failure");
+    }
+  }
+
+  @Test
+  public void spawnThatMustRunLocallyIsNotExecutedRemotely() throws Exception {
+    SpawnResult localResult = result();
+    LocalStrategy local = new LocalStrategy(succeed("local", localResult));
+    RemoteStrategy remote = new RemoteStrategy(succeed("remote", result()));
+    Spawn spawn =
+        new SpawnBuilder("/bin/echo", "Hi!")
+            .withExecutionInfo(ExecutionRequirements.NO_REMOTE, "")
+            .build();
+
+    List<SpawnResult> results =
+        createStrategy(Duration.ZERO, local, remote).exec(spawn, actionExecutionContext);
+
+    assertThat(results).containsExactly(localResult);
+    assertThat(remote.started()).isFalse();
+  }
+
+  @Test
+  public void strategiesMustDiffer() throws Exception {
+    DynamicSpawnStrategy strategy = new DynamicSpawnStrategy(executorService, Duration.ZERO);
+    try {
+      strategy.setStrategies(
+          new LocalStrategy(succeed("local", result())),
+          new LocalStrategy(succeed("local", result())));
+      fail("Expected ExecutorInitException");
+    } catch (ExecutorInitException e) {
+      assertThat(e).hasMessageThat().contains("must be different");
+    }
+  }
+}
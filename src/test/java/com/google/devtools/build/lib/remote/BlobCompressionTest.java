@@ -0,0 +1,60 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link BlobCompression}. */
+@RunWith(JUnit4.class)
+public class BlobCompressionTest {
+
+  @Test
+  public void testTextIsCompressible() {
+    ByteString text = ByteString.copyFromUtf8("int main() { return 0; }\n");
+    assertThat(BlobCompression.isCompressible(4096, text)).isTrue();
+  }
+
+  @Test
+  public void testSmallBlobsAreNotCompressible() {
+    ByteString text = ByteString.copyFromUtf8("int main() { return 0; }\n");
+    assertThat(BlobCompression.isCompressible(text.size(), text)).isFalse();
+  }
+
+  @Test
+  public void testArchivesAreNotCompressible() throws Exception {
+    ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    try (ZipOutputStream out = new ZipOutputStream(zip)) {
+      out.putNextEntry(new ZipEntry("Foo.class"));
+      out.write(new byte[1024]);
+    }
+    assertThat(BlobCompression.isCompressible(4096, ByteString.copyFrom(zip.toByteArray())))
+        .isFalse();
+
+    ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(gzip)) {
+      out.write(new byte[1024]);
+    }
+    assertThat(BlobCompression.isCompressible(4096, ByteString.copyFrom(gzip.toByteArray())))
+        .isFalse();
+  }
+}
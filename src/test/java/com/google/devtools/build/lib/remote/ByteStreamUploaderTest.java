@@ -21,6 +21,7 @@ import com.google.bytestream.ByteStreamGrpc;
 import com.google.bytestream.ByteStreamGrpc.ByteStreamImplBase;
 import com.google.bytestream.ByteStreamProto.WriteRequest;
 import com.google.bytestream.ByteStreamProto.WriteResponse;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningScheduledExecutorService;
@@ -39,6 +40,7 @@ import io.grpc.Server;
 import io.grpc.ServerCall;
 import io.grpc.ServerCall.Listener;
 import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
 import io.grpc.ServerInterceptors;
 import io.grpc.ServerServiceDefinition;
 import io.grpc.Status;
@@ -48,6 +50,7 @@ import io.grpc.inprocess.InProcessServerBuilder;
 import io.grpc.stub.StreamObserver;
 import io.grpc.util.MutableHandlerRegistry;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -609,6 +612,106 @@ public class ByteStreamUploaderTest {
     }
   }
 
+  @Test(timeout = 10000)
+  public void faultReadingMappedFileShouldFailUpload() throws Exception {
+    withEmptyMetadata.attach();
+    RemoteRetrier retrier =
+        new RemoteRetrier(() -> new FixedBackoff(1, 0), (e) -> false, Retrier.ALLOW_ALL_CALLS);
+    ByteStreamUploader uploader =
+        new ByteStreamUploader(INSTANCE_NAME, channel, null, 3, retrier, retryService);
+
+    serviceRegistry.addService(new ByteStreamImplBase() {
+      @Override
+      public StreamObserver<WriteRequest> write(StreamObserver<WriteResponse> response) {
+        return new NoopStreamObserver();
+      }
+    });
+
+    // The JVM throws an InternalError when a mapped file was truncated before it is read.
+    byte[] blob = new byte[CHUNK_SIZE];
+    InputStream truncated =
+        new InputStream() {
+          @Override
+          public int read() {
+            throw new InternalError("a fault occurred in an unsafe memory access operation");
+          }
+        };
+    Chunker chunker =
+        new Chunker(() -> truncated, DIGEST_UTIL.compute(blob), CHUNK_SIZE, DIGEST_UTIL);
+
+    try {
+      uploader.uploadBlob(chunker);
+      fail("Should have thrown an exception.");
+    } catch (IOException e) {
+      List<Throwable> causes = Throwables.getCausalChain(e);
+      assertThat(causes.get(causes.size() - 1)).isInstanceOf(InternalError.class);
+      assertThat(causes.get(causes.size() - 2)).isInstanceOf(IOException.class);
+      assertThat(causes.get(causes.size() - 2)).hasMessageThat().contains("truncated");
+    }
+    blockUntilInternalStateConsistent(uploader);
+  }
+
+  @Test(timeout = 10000)
+  public void compressedUploadShouldWork() throws Exception {
+    withEmptyMetadata.attach();
+    RemoteRetrier retrier =
+        new RemoteRetrier(() -> mockBackoff, (e) -> true, Retrier.ALLOW_ALL_CALLS);
+    ByteStreamUploader uploader =
+        new ByteStreamUploader(
+            INSTANCE_NAME, channel, null, 3, retrier, retryService, /* compress= */ true);
+
+    byte[] blob = new byte[1024];
+    Chunker chunker = new Chunker(blob, CHUNK_SIZE, DIGEST_UTIL);
+
+    Metadata.Key<String> encodingKey =
+        Metadata.Key.of("grpc-encoding", Metadata.ASCII_STRING_MARSHALLER);
+    List<String> encodings = Collections.synchronizedList(new ArrayList<>());
+    ByteStreamImplBase bsService =
+        new ByteStreamImplBase() {
+          @Override
+          public StreamObserver<WriteRequest> write(StreamObserver<WriteResponse> response) {
+            return new StreamObserver<WriteRequest>() {
+              long committedSize;
+
+              @Override
+              public void onNext(WriteRequest request) {
+                committedSize += request.getData().size();
+              }
+
+              @Override
+              public void onError(Throwable t) {
+                fail("onError should never be called.");
+              }
+
+              @Override
+              public void onCompleted() {
+                assertThat(committedSize).isEqualTo(blob.length);
+                response.onNext(WriteResponse.newBuilder().setCommittedSize(committedSize).build());
+                response.onCompleted();
+              }
+            };
+          }
+        };
+    serviceRegistry.addService(
+        ServerInterceptors.intercept(
+            bsService,
+            new ServerInterceptor() {
+              @Override
+              public <ReqT, RespT> Listener<ReqT> interceptCall(
+                  ServerCall<ReqT, RespT> call,
+                  Metadata headers,
+                  ServerCallHandler<ReqT, RespT> next) {
+                encodings.add(headers.get(encodingKey));
+                return next.startCall(call, headers);
+              }
+            }));
+
+    uploader.uploadBlob(chunker);
+
+    assertThat(encodings).containsExactly(BlobCompression.GRPC_ENCODING);
+    blockUntilInternalStateConsistent(uploader);
+  }
+
   private static class NoopStreamObserver implements StreamObserver<WriteRequest> {
     @Override
     public void onNext(WriteRequest writeRequest) {
@@ -0,0 +1,142 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.bytestream.ByteStreamGrpc.ByteStreamImplBase;
+import com.google.bytestream.ByteStreamProto.WriteRequest;
+import com.google.bytestream.ByteStreamProto.WriteResponse;
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.remoteexecution.v1test.Digest;
+import io.grpc.Channel;
+import io.grpc.Context;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+/**
+ * Microbenchmarks for chunking local files with {@link Chunker} and uploading them with {@link
+ * ByteStreamUploader} to an in-process ByteStream server that discards the data.
+ */
+public class ChunkerBenchmark {
+
+  @Param({"1024", "1048576", "67108864", "4294967296"})
+  long size;
+
+  @Param({"false", "true"})
+  boolean mapLargeFiles;
+
+  private Path file;
+  private Server server;
+  private ByteStreamUploader uploader;
+  private Context withEmptyMetadata;
+  private ListeningScheduledExecutorService retryService;
+
+  @BeforeExperiment
+  void setUp() throws Exception {
+    file =
+        new JavaIoFileSystem()
+            .getPath(TestUtils.makeTempDir().getCanonicalPath())
+            .getRelative("blob");
+    byte[] block = new byte[1024 * 1024];
+    new Random().nextBytes(block);
+    try (OutputStream out = file.getOutputStream()) {
+      for (long written = 0; written < size; written += block.length) {
+        out.write(block, 0, (int) Math.min(block.length, size - written));
+      }
+    }
+
+    String serverName = "Server for " + getClass();
+    server =
+        InProcessServerBuilder.forName(serverName)
+            .addService(new DiscardingByteStreamImpl())
+            .build()
+            .start();
+    Channel channel = InProcessChannelBuilder.forName(serverName).build();
+    retryService = MoreExecutors.listeningDecorator(Executors.newScheduledThreadPool(1));
+    RemoteRetrier retrier =
+        new RemoteRetrier(() -> Retrier.RETRIES_DISABLED, (e) -> false, Retrier.ALLOW_ALL_CALLS);
+    uploader = new ByteStreamUploader("", channel, null, 3600, retrier, retryService);
+    DigestUtil digestUtil = new DigestUtil(file.getFileSystem().getDigestFunction());
+    withEmptyMetadata =
+        TracingMetadataUtils.contextWithMetadata(
+            "none", "none", digestUtil.asActionKey(Digest.getDefaultInstance()));
+  }
+
+  @AfterExperiment
+  void tearDown() throws Exception {
+    uploader.shutdown();
+    server.shutdownNow();
+    retryService.shutdownNow();
+    file.delete();
+  }
+
+  @Benchmark
+  long chunk(int reps) throws Exception {
+    long result = 0;
+    for (int rep = 0; rep < reps; rep++) {
+      Chunker chunker = new Chunker(file, Chunker.getDefaultChunkSize(), mapLargeFiles);
+      while (chunker.hasNext()) {
+        result += chunker.next().getData().byteAt(0);
+      }
+    }
+    return result;
+  }
+
+  @Benchmark
+  void upload(int reps) throws Exception {
+    Context previous = withEmptyMetadata.attach();
+    try {
+      for (int rep = 0; rep < reps; rep++) {
+        uploader.uploadBlob(new Chunker(file, Chunker.getDefaultChunkSize(), mapLargeFiles));
+      }
+    } finally {
+      withEmptyMetadata.detach(previous);
+    }
+  }
+
+  private static class DiscardingByteStreamImpl extends ByteStreamImplBase {
+    @Override
+    public StreamObserver<WriteRequest> write(StreamObserver<WriteResponse> response) {
+      return new StreamObserver<WriteRequest>() {
+        long committedSize;
+
+        @Override
+        public void onNext(WriteRequest request) {
+          committedSize += request.getData().size();
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {
+          response.onNext(WriteResponse.newBuilder().setCommittedSize(committedSize).build());
+          response.onCompleted();
+        }
+      };
+    }
+  }
+}
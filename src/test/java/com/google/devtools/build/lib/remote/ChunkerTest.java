@@ -17,13 +17,18 @@ import static com.google.common.truth.Truth.assertThat;
 import static junit.framework.TestCase.fail;
 
 import com.google.devtools.build.lib.remote.Chunker.Chunk;
+import com.google.devtools.build.lib.testutil.TestUtils;
 import com.google.devtools.build.lib.vfs.FileSystem.HashFunction;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.remoteexecution.v1test.Digest;
 import com.google.protobuf.ByteString;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicReference;
@@ -162,6 +167,51 @@ public class ChunkerTest {
     Mockito.verify(in.get()).close();
   }
 
+  @Test
+  public void chunkingLocalFileShouldWork() throws Exception {
+    byte[] expectedData = new byte[25];
+    new Random().nextBytes(expectedData);
+    Path file =
+        new JavaIoFileSystem()
+            .getPath(TestUtils.makeTempDir().getCanonicalPath())
+            .getRelative("file");
+    FileSystemUtils.writeContent(file, expectedData);
+
+    Chunker chunker = new Chunker(file, 10);
+    assertThat(chunker.digest())
+        .isEqualTo(new DigestUtil(file.getFileSystem().getDigestFunction()).compute(expectedData));
+    assertThat(chunker.next().getData().toByteArray()).isEqualTo(Arrays.copyOf(expectedData, 10));
+    chunker.reset();
+
+    ByteArrayOutputStream actualData = new ByteArrayOutputStream();
+    for (long offset = 0; chunker.hasNext(); offset += 10) {
+      Chunk next = chunker.next();
+      assertThat(next.getOffset()).isEqualTo(offset);
+      next.getData().writeTo(actualData);
+    }
+    assertThat(actualData.toByteArray()).isEqualTo(expectedData);
+  }
+
+  @Test
+  public void chunkingMappedLocalFileShouldWork() throws Exception {
+    byte[] expectedData = new byte[25];
+    new Random().nextBytes(expectedData);
+    Path file =
+        new JavaIoFileSystem()
+            .getPath(TestUtils.makeTempDir().getCanonicalPath())
+            .getRelative("file");
+    FileSystemUtils.writeContent(file, expectedData);
+
+    Chunker chunker = new Chunker(file, 10, /* mapLargeFiles= */ true);
+    ByteArrayOutputStream actualData = new ByteArrayOutputStream();
+    for (long offset = 0; chunker.hasNext(); offset += 10) {
+      Chunk next = chunker.next();
+      assertThat(next.getOffset()).isEqualTo(offset);
+      next.getData().writeTo(actualData);
+    }
+    assertThat(actualData.toByteArray()).isEqualTo(expectedData);
+  }
+
   private void assertNextEquals(Chunker chunker, byte... data) throws IOException {
     assertThat(chunker.hasNext()).isTrue();
     ByteString next = chunker.next().getData();
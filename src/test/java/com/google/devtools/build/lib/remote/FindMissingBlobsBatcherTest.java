@@ -0,0 +1,178 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.vfs.FileSystem.HashFunction;
+import com.google.devtools.remoteexecution.v1test.Digest;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link FindMissingBlobsBatcher}. */
+@RunWith(JUnit4.class)
+public class FindMissingBlobsBatcherTest {
+  private static final DigestUtil DIGEST_UTIL = new DigestUtil(HashFunction.SHA256);
+
+  private final Digest a = DIGEST_UTIL.computeAsUtf8("a");
+  private final Digest b = DIGEST_UTIL.computeAsUtf8("b");
+  private final Digest c = DIGEST_UTIL.computeAsUtf8("c");
+  private final List<List<Digest>> calls = Collections.synchronizedList(new ArrayList<>());
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  @After
+  public final void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test(timeout = 10000)
+  public void testConcurrentQueriesShareOneCall() throws Exception {
+    FindMissingBlobsBatcher batcher =
+        new FindMissingBlobsBatcher(
+            digests -> {
+              calls.add(ImmutableList.copyOf(digests));
+              return ImmutableSet.of(a, c);
+            },
+            /* windowMillis= */ 60000,
+            /* maxBatchSize= */ 3);
+
+    Future<ImmutableSet<Digest>> first =
+        executor.submit(() -> batcher.getMissingDigests(ImmutableList.of(a, b)));
+    Future<ImmutableSet<Digest>> second =
+        executor.submit(() -> batcher.getMissingDigests(ImmutableList.of(b, c)));
+
+    // The batch is sent as soon as it is full, long before the window passes.
+    assertThat(first.get()).containsExactly(a);
+    assertThat(second.get()).containsExactly(c);
+    assertThat(calls).hasSize(1);
+    assertThat(calls.get(0)).containsExactly(a, b, c);
+    assertThat(batcher.getSharedDigestCount()).isEqualTo(1);
+  }
+
+  @Test(timeout = 10000)
+  public void testInFlightLookupsAreShared() throws Exception {
+    CountDownLatch callStarted = new CountDownLatch(1);
+    CountDownLatch finishCall = new CountDownLatch(1);
+    FindMissingBlobsBatcher batcher =
+        new FindMissingBlobsBatcher(
+            digests -> {
+              calls.add(ImmutableList.copyOf(digests));
+              callStarted.countDown();
+              finishCall.await();
+              return ImmutableSet.of(a);
+            },
+            /* windowMillis= */ 0,
+            /* maxBatchSize= */ 10);
+
+    Future<ImmutableSet<Digest>> first =
+        executor.submit(() -> batcher.getMissingDigests(ImmutableList.of(a)));
+    callStarted.await();
+    Future<ImmutableSet<Digest>> second =
+        executor.submit(() -> batcher.getMissingDigests(ImmutableList.of(a)));
+    while (batcher.getSharedDigestCount() == 0) {
+      Thread.sleep(1);
+    }
+    finishCall.countDown();
+
+    assertThat(first.get()).containsExactly(a);
+    assertThat(second.get()).containsExactly(a);
+    assertThat(calls).hasSize(1);
+
+    // Finished lookups are not remembered.
+    assertThat(batcher.getMissingDigests(ImmutableList.of(a))).containsExactly(a);
+    assertThat(calls).hasSize(2);
+  }
+
+  @Test(timeout = 10000)
+  public void testWaitersRetryWhenSenderIsInterrupted() throws Exception {
+    CountDownLatch callStarted = new CountDownLatch(1);
+    FindMissingBlobsBatcher batcher =
+        new FindMissingBlobsBatcher(
+            digests -> {
+              calls.add(ImmutableList.copyOf(digests));
+              if (calls.size() == 1) {
+                callStarted.countDown();
+                // Blocks until the sending thread is interrupted.
+                new CountDownLatch(1).await();
+              }
+              return ImmutableSet.of(a);
+            },
+            /* windowMillis= */ 0,
+            /* maxBatchSize= */ 10);
+
+    Future<ImmutableSet<Digest>> first =
+        executor.submit(() -> batcher.getMissingDigests(ImmutableList.of(a)));
+    callStarted.await();
+    Future<ImmutableSet<Digest>> second =
+        executor.submit(() -> batcher.getMissingDigests(ImmutableList.of(a, b)));
+    while (batcher.getSharedDigestCount() == 0) {
+      Thread.sleep(1);
+    }
+    first.cancel(/* mayInterruptIfRunning= */ true);
+
+    // The second query was not interrupted, so it sends the digest again instead of failing.
+    assertThat(second.get()).containsExactly(a);
+    assertThat(calls).hasSize(3);
+    assertThat(calls.get(1)).containsExactly(b);
+    assertThat(calls.get(2)).containsExactly(a);
+  }
+
+  @Test
+  public void testLargeQueriesAreSplit() throws Exception {
+    FindMissingBlobsBatcher batcher =
+        new FindMissingBlobsBatcher(
+            digests -> {
+              calls.add(ImmutableList.copyOf(digests));
+              return ImmutableSet.copyOf(digests);
+            },
+            /* windowMillis= */ 0,
+            /* maxBatchSize= */ 2);
+
+    assertThat(batcher.getMissingDigests(ImmutableList.of(a, b, c, a))).containsExactly(a, b, c);
+    assertThat(calls).containsExactly(ImmutableList.of(a, b), ImmutableList.of(c)).inOrder();
+    assertThat(batcher.getCallCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testFailuresAreRethrown() throws Exception {
+    IOException error = new IOException("unavailable");
+    FindMissingBlobsBatcher batcher =
+        new FindMissingBlobsBatcher(
+            digests -> {
+              throw error;
+            },
+            /* windowMillis= */ 0,
+            /* maxBatchSize= */ 10);
+
+    try {
+      batcher.getMissingDigests(ImmutableList.of(a));
+      fail("Expected IOException");
+    } catch (IOException e) {
+      assertThat(e).isSameAs(error);
+    }
+  }
+}
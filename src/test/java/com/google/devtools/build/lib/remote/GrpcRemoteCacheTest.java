@@ -25,24 +25,29 @@ import com.google.bytestream.ByteStreamProto.ReadRequest;
 import com.google.bytestream.ByteStreamProto.ReadResponse;
 import com.google.bytestream.ByteStreamProto.WriteRequest;
 import com.google.bytestream.ByteStreamProto.WriteResponse;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputHelper;
 import com.google.devtools.build.lib.authandtls.AuthAndTLSOptions;
 import com.google.devtools.build.lib.authandtls.GoogleAuthUtils;
 import com.google.devtools.build.lib.clock.JavaClock;
 import com.google.devtools.build.lib.remote.DigestUtil.ActionKey;
+import com.google.devtools.build.lib.remote.TreeNodeRepository.TreeNode;
 import com.google.devtools.build.lib.testutil.Scratch;
 import com.google.devtools.build.lib.util.io.FileOutErr;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.FileSystem.HashFunction;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
 import com.google.devtools.common.options.Options;
 import com.google.devtools.remoteexecution.v1test.Action;
 import com.google.devtools.remoteexecution.v1test.ActionCacheGrpc.ActionCacheImplBase;
 import com.google.devtools.remoteexecution.v1test.ActionResult;
+import com.google.devtools.remoteexecution.v1test.Command;
 import com.google.devtools.remoteexecution.v1test.ContentAddressableStorageGrpc.ContentAddressableStorageImplBase;
 import com.google.devtools.remoteexecution.v1test.Digest;
 import com.google.devtools.remoteexecution.v1test.Directory;
@@ -69,6 +74,17 @@ import io.grpc.inprocess.InProcessServerBuilder;
 import io.grpc.stub.StreamObserver;
 import io.grpc.util.MutableHandlerRegistry;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -140,6 +156,11 @@ public class GrpcRemoteCacheTest {
   }
 
   private GrpcRemoteCache newClient() throws IOException {
+    return newClient(null);
+  }
+
+  private GrpcRemoteCache newClient(@Nullable PresentDigestsCache presentDigests)
+      throws IOException {
     AuthAndTLSOptions authTlsOptions = Options.getDefaults(AuthAndTLSOptions.class);
     authTlsOptions.useGoogleDefaultCredentials = true;
     authTlsOptions.googleCredentials = "/exec/root/creds.json";
@@ -168,7 +189,8 @@ public class GrpcRemoteCacheTest {
         creds,
         remoteOptions,
         retrier,
-        DIGEST_UTIL);
+        DIGEST_UTIL,
+        presentDigests);
   }
 
   @Test
@@ -611,6 +633,85 @@ public class GrpcRemoteCacheTest {
     assertThat(result.build()).isEqualTo(expectedResult.build());
   }
 
+  @Test
+  public void testEnsureInputsPresentSkipsKnownSubtrees() throws Exception {
+    FakeTicker ticker = new FakeTicker();
+    GrpcRemoteCache client = newClient(new PresentDigestsCache("cache", 60, ticker));
+    ActionInput foo = ActionInputHelper.fromPath("a/foo");
+    ActionInput bar = ActionInputHelper.fromPath("b/bar");
+    ActionInput baz = ActionInputHelper.fromPath("c/baz");
+    Digest fooDigest = fakeFileCache.createScratchInput(foo, "xyz");
+    Digest barDigest = fakeFileCache.createScratchInput(bar, "abc");
+    Digest bazDigest = fakeFileCache.createScratchInput(baz, "def");
+    Command command = Command.newBuilder().addArguments("/bin/true").build();
+    Digest commandDigest = DIGEST_UTIL.compute(command);
+    List<List<Digest>> requests = new ArrayList<>();
+    serviceRegistry.addService(
+        new ContentAddressableStorageImplBase() {
+          @Override
+          public void findMissingBlobs(
+              FindMissingBlobsRequest request,
+              StreamObserver<FindMissingBlobsResponse> responseObserver) {
+            requests.add(request.getBlobDigestsList());
+            // Nothing is missing.
+            responseObserver.onNext(FindMissingBlobsResponse.getDefaultInstance());
+            responseObserver.onCompleted();
+          }
+        });
+
+    TreeNodeRepository repository = new TreeNodeRepository(execRoot, fakeFileCache, DIGEST_UTIL);
+    TreeNode first = buildTree(repository, foo, bar);
+    client.ensureInputsPresent(repository, execRoot, first, command);
+    assertThat(requests.get(0))
+        .containsExactly(
+            commandDigest,
+            repository.getMerkleDigest(first),
+            repository.getMerkleDigest(first.getChildEntries().get(0).getChild()),
+            fooDigest,
+            repository.getMerkleDigest(first.getChildEntries().get(1).getChild()),
+            barDigest);
+
+    // Only the new subtree is looked up.
+    TreeNode second = buildTree(repository, foo, baz);
+    client.ensureInputsPresent(repository, execRoot, second, command);
+    assertThat(requests.get(1))
+        .containsExactly(
+            repository.getMerkleDigest(second),
+            repository.getMerkleDigest(second.getChildEntries().get(1).getChild()),
+            bazDigest);
+
+    // Nothing is looked up for a known tree.
+    client.ensureInputsPresent(repository, execRoot, second, command);
+    assertThat(requests).hasSize(2);
+
+    // Until the entries expire.
+    ticker.advance(TimeUnit.SECONDS.toNanos(61));
+    client.ensureInputsPresent(repository, execRoot, second, command);
+    assertThat(requests.get(2)).hasSize(6);
+  }
+
+  private static TreeNode buildTree(TreeNodeRepository repository, ActionInput... inputs)
+      throws IOException {
+    SortedMap<PathFragment, ActionInput> inputMap = new TreeMap<>();
+    for (ActionInput input : inputs) {
+      inputMap.put(input.getExecPath(), input);
+    }
+    return repository.buildFromActionInputs(inputMap);
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(long nanos) {
+      this.nanos += nanos;
+    }
+  }
+
   @Test
   public void testUploadCacheHits() throws Exception {
     final GrpcRemoteCache client = newClient();
@@ -801,6 +902,48 @@ public class GrpcRemoteCacheTest {
         .write(Mockito.<StreamObserver<WriteResponse>>anyObject());
   }
 
+  @Test
+  public void testGetCachedActionResultRetriedWhenSharedCallIsInterrupted() throws Exception {
+    final GrpcRemoteCache client = newClient();
+    ActionKey actionKey = DIGEST_UTIL.asActionKey(DIGEST_UTIL.computeAsUtf8("key"));
+    ActionResult result = ActionResult.newBuilder().setExitCode(42).build();
+    CountDownLatch firstCallStarted = new CountDownLatch(1);
+    AtomicInteger numCalls = new AtomicInteger();
+    serviceRegistry.addService(
+        new ActionCacheImplBase() {
+          @Override
+          public void getActionResult(
+              GetActionResultRequest request, StreamObserver<ActionResult> responseObserver) {
+            if (numCalls.incrementAndGet() == 1) {
+              // Never answers, until the calling thread is interrupted.
+              firstCallStarted.countDown();
+              return;
+            }
+            responseObserver.onNext(result);
+            responseObserver.onCompleted();
+          }
+        });
+
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      Future<ActionResult> first =
+          executor.submit(Context.current().wrap(() -> client.getCachedActionResult(actionKey)));
+      firstCallStarted.await();
+      Future<ActionResult> second =
+          executor.submit(Context.current().wrap(() -> client.getCachedActionResult(actionKey)));
+      while (client.getSharedActionResultLookupCount() == 0) {
+        Thread.sleep(1);
+      }
+      first.cancel(/* mayInterruptIfRunning= */ true);
+
+      // The second lookup was not interrupted, so it makes the call again instead of failing.
+      assertThat(second.get()).isEqualTo(result);
+      assertThat(numCalls.get()).isEqualTo(2);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
   @Test
   public void testGetCachedActionResultWithRetries() throws Exception {
     final GrpcRemoteCache client = newClient();
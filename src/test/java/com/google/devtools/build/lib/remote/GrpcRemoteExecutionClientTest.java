@@ -35,6 +35,7 @@ import com.google.devtools.build.lib.actions.ExecException;
 import com.google.devtools.build.lib.actions.ResourceSet;
 import com.google.devtools.build.lib.actions.SimpleSpawn;
 import com.google.devtools.build.lib.actions.SpawnResult;
+import com.google.devtools.build.lib.actions.cache.MetadataHandler;
 import com.google.devtools.build.lib.analysis.BlazeVersionInfo;
 import com.google.devtools.build.lib.authandtls.AuthAndTLSOptions;
 import com.google.devtools.build.lib.authandtls.GoogleAuthUtils;
@@ -137,9 +138,7 @@ public class GrpcRemoteExecutionClientTest {
         }
 
         @Override
-        public void lockOutputFiles() throws InterruptedException {
-          throw new UnsupportedOperationException();
-        }
+        public void lockOutputFiles() throws InterruptedException {}
 
         @Override
         public boolean speculating() {
@@ -152,10 +151,15 @@ public class GrpcRemoteExecutionClientTest {
         }
 
         @Override
-        public ArtifactExpander getArtifactExpander() {
+        public MetadataHandler getMetadataHandler() {
           throw new UnsupportedOperationException();
         }
 
+        @Override
+        public ArtifactExpander getArtifactExpander() {
+          return null;
+        }
+
         @Override
         public Duration getTimeout() {
           return Duration.ZERO;
@@ -0,0 +1,125 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.ActionInputHelper;
+import com.google.devtools.build.lib.actions.MetadataProvider;
+import com.google.devtools.build.lib.actions.cache.Metadata;
+import com.google.devtools.build.lib.clock.JavaClock;
+import com.google.devtools.build.lib.remote.blobstore.ConcurrentMapBlobStore;
+import com.google.devtools.build.lib.skyframe.FileArtifactValue;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystem.HashFunction;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.remoteexecution.v1test.Digest;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link RemoteActionInputFetcher}. */
+@RunWith(JUnit4.class)
+public class RemoteActionInputFetcherTest {
+  private static final DigestUtil DIGEST_UTIL = new DigestUtil(HashFunction.SHA256);
+
+  private Path execRoot;
+  private final ConcurrentMap<String, byte[]> blobs = new ConcurrentHashMap<>();
+  private final Map<ActionInput, Metadata> metadata = new HashMap<>();
+  private final MetadataProvider metadataProvider = metadata::get;
+  private RemoteActionInputFetcher fetcher;
+
+  @Before
+  public final void setUp() throws Exception {
+    FileSystem fs = new InMemoryFileSystem(new JavaClock(), HashFunction.SHA256);
+    execRoot = fs.getPath("/exec/root");
+    FileSystemUtils.createDirectoryAndParents(execRoot);
+    SimpleBlobStoreActionCache remoteCache =
+        new SimpleBlobStoreActionCache(new ConcurrentMapBlobStore(blobs), DIGEST_UTIL);
+    fetcher = new RemoteActionInputFetcher(remoteCache, execRoot, "none", "none");
+  }
+
+  @Test
+  public void testFetchesRemoteFiles() throws Exception {
+    ActionInput remote = remoteFile("out/remote", "remote-contents");
+    ActionInput local = ActionInputHelper.fromPath("out/local");
+    FileSystemUtils.createDirectoryAndParents(execRoot.getRelative("out"));
+    FileSystemUtils.writeContentAsLatin1(execRoot.getRelative("out/local"), "local-contents");
+    metadata.put(local, FileArtifactValue.create(execRoot.getRelative("out/local")));
+
+    fetcher.prefetchFiles(ImmutableList.of(remote, local), metadataProvider);
+
+    Path path = execRoot.getRelative("out/remote");
+    assertThat(FileSystemUtils.readContent(path, UTF_8)).isEqualTo("remote-contents");
+    assertThat(path.isWritable()).isFalse();
+    assertThat(path.isExecutable()).isTrue();
+    // Fetching again is a no-op.
+    blobs.clear();
+    fetcher.prefetchFiles(ImmutableList.of(remote), metadataProvider);
+    assertThat(FileSystemUtils.readContent(path, UTF_8)).isEqualTo("remote-contents");
+  }
+
+  @Test
+  public void testReplacesStaleFiles() throws Exception {
+    ActionInput remote = remoteFile("out/remote", "new-contents");
+    Path path = execRoot.getRelative("out/remote");
+    FileSystemUtils.createDirectoryAndParents(path.getParentDirectory());
+    FileSystemUtils.writeContentAsLatin1(path, "old-contents");
+    path.setWritable(false);
+
+    fetcher.prefetchFiles(ImmutableList.of(remote), metadataProvider);
+    assertThat(FileSystemUtils.readContent(path, UTF_8)).isEqualTo("new-contents");
+  }
+
+  @Test
+  public void testRetriesFailedFetches() throws Exception {
+    ActionInput remote = remoteFile("out/remote", "remote-contents");
+    Map<String, byte[]> saved = new HashMap<>(blobs);
+    blobs.clear();
+    try {
+      fetcher.prefetchFiles(ImmutableList.of(remote), metadataProvider);
+      fail("Expected IOException");
+    } catch (IOException expected) {
+    }
+
+    blobs.putAll(saved);
+    fetcher.prefetchFiles(ImmutableList.of(remote), metadataProvider);
+    assertThat(FileSystemUtils.readContent(execRoot.getRelative("out/remote"), UTF_8))
+        .isEqualTo("remote-contents");
+  }
+
+  private ActionInput remoteFile(String execPath, String contents) {
+    Digest digest = DIGEST_UTIL.computeAsUtf8(contents);
+    blobs.put(digest.getHash(), contents.getBytes(UTF_8));
+    ActionInput input = ActionInputHelper.fromPath(execPath);
+    metadata.put(
+        input,
+        FileArtifactValue.createRemote(
+            HashCode.fromString(digest.getHash()).asBytes(), digest.getSizeBytes()));
+    return input;
+  }
+}
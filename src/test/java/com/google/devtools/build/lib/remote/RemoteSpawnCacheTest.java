@@ -34,6 +34,7 @@ import com.google.devtools.build.lib.actions.ResourceSet;
 import com.google.devtools.build.lib.actions.SimpleSpawn;
 import com.google.devtools.build.lib.actions.SpawnResult;
 import com.google.devtools.build.lib.actions.SpawnResult.Status;
+import com.google.devtools.build.lib.actions.cache.MetadataHandler;
 import com.google.devtools.build.lib.clock.JavaClock;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventKind;
@@ -107,9 +108,7 @@ public class RemoteSpawnCacheTest {
         }
 
         @Override
-        public void lockOutputFiles() throws InterruptedException {
-          throw new UnsupportedOperationException();
-        }
+        public void lockOutputFiles() throws InterruptedException {}
 
         @Override
         public boolean speculating() {
@@ -122,10 +121,15 @@ public class RemoteSpawnCacheTest {
         }
 
         @Override
-        public ArtifactExpander getArtifactExpander() {
+        public MetadataHandler getMetadataHandler() {
           throw new UnsupportedOperationException();
         }
 
+        @Override
+        public ArtifactExpander getArtifactExpander() {
+          return null;
+        }
+
         @Override
         public Duration getTimeout() {
           return Duration.ZERO;
@@ -38,6 +38,7 @@ import com.google.devtools.build.lib.actions.SimpleSpawn;
 import com.google.devtools.build.lib.actions.Spawn;
 import com.google.devtools.build.lib.actions.SpawnResult;
 import com.google.devtools.build.lib.actions.SpawnResult.Status;
+import com.google.devtools.build.lib.actions.cache.MetadataHandler;
 import com.google.devtools.build.lib.clock.JavaClock;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventKind;
@@ -727,9 +728,7 @@ public class RemoteSpawnRunnerTest {
     }
 
     @Override
-    public void lockOutputFiles() throws InterruptedException {
-      throw new UnsupportedOperationException();
-    }
+    public void lockOutputFiles() throws InterruptedException {}
 
     @Override
     public boolean speculating() {
@@ -742,10 +741,15 @@ public class RemoteSpawnRunnerTest {
     }
 
     @Override
-    public ArtifactExpander getArtifactExpander() {
+    public MetadataHandler getMetadataHandler() {
       throw new UnsupportedOperationException();
     }
 
+    @Override
+    public ArtifactExpander getArtifactExpander() {
+      return null;
+    }
+
     @Override
     public Duration getTimeout() {
       return Duration.ZERO;
@@ -15,12 +15,20 @@ package com.google.devtools.build.lib.remote;
 
 import static com.google.common.truth.Truth.assertThat;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
 
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.devtools.build.lib.actions.ActionInputHelper;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.ArtifactRoot;
+import com.google.devtools.build.lib.actions.cache.MetadataHandler;
 import com.google.devtools.build.lib.clock.JavaClock;
 import com.google.devtools.build.lib.remote.blobstore.ConcurrentMapBlobStore;
+import com.google.devtools.build.lib.remote.blobstore.OnDiskBlobStore;
+import com.google.devtools.build.lib.remote.blobstore.SimpleBlobStore;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.FileSystem.HashFunction;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
@@ -32,13 +40,22 @@ import com.google.devtools.remoteexecution.v1test.Directory;
 import com.google.devtools.remoteexecution.v1test.DirectoryNode;
 import com.google.devtools.remoteexecution.v1test.FileNode;
 import com.google.devtools.remoteexecution.v1test.Tree;
+import com.google.protobuf.ByteString;
 import io.grpc.Context;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
 
 /** Tests for {@link SimpleBlobStoreActionCache}. */
 @RunWith(JUnit4.class)
@@ -114,6 +131,220 @@ public class SimpleBlobStoreActionCacheTest {
     assertThat(execRoot.getRelative("a/bar").isExecutable()).isTrue();
   }
 
+  @Test
+  public void testDownloadConcurrently() throws Exception {
+    ConcurrentMap<String, byte[]> map = new ConcurrentHashMap<>();
+    ActionResult.Builder result = ActionResult.newBuilder();
+    for (int i = 0; i < 100; i++) {
+      Digest digest = DIGEST_UTIL.computeAsUtf8("contents" + i);
+      map.put(digest.getHash(), ("contents" + i).getBytes(UTF_8));
+      result.addOutputFilesBuilder().setPath("a/file" + i).setDigest(digest);
+    }
+    SimpleBlobStoreActionCache client =
+        new SimpleBlobStoreActionCache(
+            new ConcurrentMapBlobStore(map), DIGEST_UTIL, 8, /* linkFromDiskCache= */ false);
+    client.download(result.build(), execRoot, null);
+    for (int i = 0; i < 100; i++) {
+      assertThat(FileSystemUtils.readContent(execRoot.getRelative("a/file" + i), UTF_8))
+          .isEqualTo("contents" + i);
+    }
+  }
+
+  @Test
+  public void testDownloadConcurrentlyDeletesOutputsOnFailure() throws Exception {
+    ConcurrentMap<String, byte[]> map = new ConcurrentHashMap<>();
+    ActionResult.Builder result = ActionResult.newBuilder();
+    for (int i = 0; i < 100; i++) {
+      Digest digest = DIGEST_UTIL.computeAsUtf8("contents" + i);
+      if (i != 50) {
+        map.put(digest.getHash(), ("contents" + i).getBytes(UTF_8));
+      }
+      result.addOutputFilesBuilder().setPath("a/file" + i).setDigest(digest);
+    }
+    SimpleBlobStoreActionCache client =
+        new SimpleBlobStoreActionCache(
+            new ConcurrentMapBlobStore(map), DIGEST_UTIL, 8, /* linkFromDiskCache= */ false);
+    try {
+      client.download(result.build(), execRoot, null);
+      fail("Expected CacheNotFoundException");
+    } catch (CacheNotFoundException expected) {
+      assertThat(expected.getMissingDigest()).isEqualTo(DIGEST_UTIL.computeAsUtf8("contents50"));
+    }
+    for (int i = 0; i < 100; i++) {
+      assertThat(execRoot.getRelative("a/file" + i).exists()).isFalse();
+    }
+  }
+
+  @Test
+  public void testDownloadConcurrentlyWaitsForCancelledDownloadsOnInterrupt() throws Exception {
+    ConcurrentMap<String, byte[]> map = new ConcurrentHashMap<>();
+    ActionResult.Builder result = ActionResult.newBuilder();
+    for (int i = 0; i < 10; i++) {
+      Digest digest = DIGEST_UTIL.computeAsUtf8("contents" + i);
+      map.put(digest.getHash(), ("contents" + i).getBytes(UTF_8));
+      result.addOutputFilesBuilder().setPath("a/file" + i).setDigest(digest);
+    }
+    String slowKey = DIGEST_UTIL.computeAsUtf8("contents0").getHash();
+    CountDownLatch slowDownloadStarted = new CountDownLatch(1);
+    CountDownLatch releaseSlowDownload = new CountDownLatch(1);
+    AtomicBoolean slowDownloadFinished = new AtomicBoolean();
+    ConcurrentMapBlobStore delegate = new ConcurrentMapBlobStore(map);
+    SimpleBlobStore blobStore =
+        new SimpleBlobStore() {
+          @Override
+          public boolean containsKey(String key) {
+            return delegate.containsKey(key);
+          }
+
+          @Override
+          public boolean get(String key, OutputStream out) throws IOException {
+            if (!key.equals(slowKey)) {
+              return delegate.get(key, out);
+            }
+            out.write('c');
+            slowDownloadStarted.countDown();
+            // Like a download that does not notice the interrupt right away.
+            Uninterruptibles.awaitUninterruptibly(releaseSlowDownload);
+            out.write(map.get(key), 1, map.get(key).length - 1);
+            slowDownloadFinished.set(true);
+            return true;
+          }
+
+          @Override
+          public boolean getActionResult(String key, OutputStream out)
+              throws IOException, InterruptedException {
+            return delegate.getActionResult(key, out);
+          }
+
+          @Override
+          public void put(String key, long length, InputStream in) throws IOException {
+            delegate.put(key, length, in);
+          }
+
+          @Override
+          public void putActionResult(String key, byte[] in)
+              throws IOException, InterruptedException {
+            delegate.putActionResult(key, in);
+          }
+
+          @Override
+          public void close() {}
+        };
+    SimpleBlobStoreActionCache client =
+        new SimpleBlobStoreActionCache(blobStore, DIGEST_UTIL, 8, /* linkFromDiskCache= */ false);
+    Thread testThread = Thread.currentThread();
+    Thread interrupter =
+        new Thread(
+            () -> {
+              Uninterruptibles.awaitUninterruptibly(slowDownloadStarted);
+              testThread.interrupt();
+              Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
+              releaseSlowDownload.countDown();
+            });
+    interrupter.start();
+    try {
+      client.download(result.build(), execRoot, null);
+      fail("Expected InterruptedException");
+    } catch (InterruptedException expected) {
+      assertThat(slowDownloadFinished.get()).isTrue();
+    } finally {
+      releaseSlowDownload.countDown();
+      interrupter.join();
+      Thread.interrupted();
+    }
+    for (int i = 0; i < 10; i++) {
+      assertThat(execRoot.getRelative("a/file" + i).exists()).isFalse();
+    }
+  }
+
+  @Test
+  public void testDownloadMinimal() throws Exception {
+    Digest fooDigest = DIGEST_UTIL.computeAsUtf8("foo-contents");
+    Digest barDigest = DIGEST_UTIL.computeAsUtf8("bar-contents");
+    Digest quxDigest = DIGEST_UTIL.computeAsUtf8("qux-contents");
+    ConcurrentMap<String, byte[]> map = new ConcurrentHashMap<>();
+    map.put(fooDigest.getHash(), "foo-contents".getBytes(UTF_8));
+    map.put(quxDigest.getHash(), "qux-contents".getBytes(UTF_8));
+    SimpleBlobStoreActionCache client = newClient(map);
+
+    ArtifactRoot outputRoot =
+        ArtifactRoot.asDerivedRoot(execRoot, execRoot.getRelative("out"));
+    Artifact foo = new Artifact(execRoot.getRelative("out/foo"), outputRoot);
+    Artifact bar = new Artifact(execRoot.getRelative("out/bar"), outputRoot);
+    ActionResult.Builder result = ActionResult.newBuilder();
+    result.addOutputFilesBuilder().setPath("out/foo").setDigest(fooDigest);
+    result
+        .addOutputFilesBuilder()
+        .setPath("out/bar")
+        .setDigest(barDigest)
+        .setContent(ByteString.copyFromUtf8("bar-contents"));
+    // Not declared as an output artifact.
+    result.addOutputFilesBuilder().setPath("out/qux").setDigest(quxDigest);
+    MetadataHandler metadataHandler = Mockito.mock(MetadataHandler.class);
+    client.downloadMinimal(
+        result.build(), ImmutableList.of(foo, bar), execRoot, null, metadataHandler);
+
+    // Only the contents of foo are not part of the result.
+    assertThat(foo.getPath().exists()).isFalse();
+    assertThat(DIGEST_UTIL.compute(bar.getPath())).isEqualTo(barDigest);
+    assertThat(DIGEST_UTIL.compute(execRoot.getRelative("out/qux"))).isEqualTo(quxDigest);
+    Mockito.verify(metadataHandler)
+        .injectRemoteFile(
+            foo, HashCode.fromString(fooDigest.getHash()).asBytes(), fooDigest.getSizeBytes());
+    Mockito.verifyNoMoreInteractions(metadataHandler);
+  }
+
+  @Test
+  public void testDownloadFromDiskCacheLinksFiles() throws Exception {
+    Digest fooDigest = DIGEST_UTIL.computeAsUtf8("foo-contents");
+    byte[] fooContents = "foo-contents".getBytes(UTF_8);
+    OnDiskBlobStore blobStore = new OnDiskBlobStore(fs.getPath("/cache"));
+    blobStore.put(fooDigest.getHash(), fooContents.length, new ByteArrayInputStream(fooContents));
+    SimpleBlobStoreActionCache client =
+        new SimpleBlobStoreActionCache(blobStore, DIGEST_UTIL, 1, /* linkFromDiskCache= */ true);
+
+    ActionResult.Builder result = ActionResult.newBuilder();
+    result.addOutputFilesBuilder().setPath("a/foo").setDigest(fooDigest);
+    client.download(result.build(), execRoot, null);
+    Path foo = execRoot.getRelative("a/foo");
+    assertThat(DIGEST_UTIL.compute(foo)).isEqualTo(fooDigest);
+    String hash = fooDigest.getHash();
+    Path blob = fs.getPath("/cache").getChild(hash.substring(0, 2)).getChild(hash);
+    assertThat(foo.stat().getNodeId()).isEqualTo(blob.stat().getNodeId());
+    assertThat(foo.isWritable()).isFalse();
+    client.close();
+  }
+
+  @Test
+  public void testDownloadFromDiskCacheDeletesModifiedBlobs() throws Exception {
+    Digest fooDigest = DIGEST_UTIL.computeAsUtf8("foo-contents");
+    byte[] fooContents = "foo-contents".getBytes(UTF_8);
+    OnDiskBlobStore blobStore = new OnDiskBlobStore(fs.getPath("/cache"));
+    blobStore.put(fooDigest.getHash(), fooContents.length, new ByteArrayInputStream(fooContents));
+    SimpleBlobStoreActionCache client =
+        new SimpleBlobStoreActionCache(blobStore, DIGEST_UTIL, 1, /* linkFromDiskCache= */ true);
+    ActionResult.Builder result = ActionResult.newBuilder();
+    result.addOutputFilesBuilder().setPath("a/foo").setDigest(fooDigest);
+    client.download(result.build(), execRoot, null);
+
+    // Writing to the output in place modifies the blob too.
+    Path foo = execRoot.getRelative("a/foo");
+    foo.setWritable(true);
+    FileSystemUtils.writeContentAsLatin1(foo, "modified");
+
+    // The modified blob is neither linked nor copied again.
+    result.clear().addOutputFilesBuilder().setPath("a/bar").setDigest(fooDigest);
+    try {
+      client.download(result.build(), execRoot, null);
+      fail("Expected CacheNotFoundException");
+    } catch (CacheNotFoundException expected) {
+      // Intended.
+    }
+    assertThat(execRoot.getRelative("a/bar").exists()).isFalse();
+    assertThat(blobStore.containsKey(fooDigest.getHash())).isFalse();
+    client.close();
+  }
+
   @Test
   public void testDownloadDirectory() throws Exception {
     Digest fooDigest = DIGEST_UTIL.computeAsUtf8("foo-contents");
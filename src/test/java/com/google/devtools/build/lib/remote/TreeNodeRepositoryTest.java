@@ -16,12 +16,19 @@ package com.google.devtools.build.lib.remote;
 import static com.google.common.truth.Truth.assertThat;
 
 import com.google.common.collect.ImmutableCollection;
+import com.google.common.testing.GcFinalization;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputFileCache;
 import com.google.devtools.build.lib.actions.ActionInputHelper;
 import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.Artifact.ArtifactExpander;
 import com.google.devtools.build.lib.actions.ArtifactRoot;
+import com.google.devtools.build.lib.actions.cache.VirtualActionInput;
+import com.google.devtools.build.lib.actions.cache.VirtualActionInput.EmptyActionInput;
 import com.google.devtools.build.lib.clock.BlazeClock;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.collect.nestedset.Order;
 import com.google.devtools.build.lib.exec.SingleBuildFileCache;
 import com.google.devtools.build.lib.remote.TreeNodeRepository.TreeNode;
 import com.google.devtools.build.lib.testutil.Scratch;
@@ -33,6 +40,7 @@ import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
 import com.google.devtools.remoteexecution.v1test.Digest;
 import com.google.devtools.remoteexecution.v1test.Directory;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.SortedMap;
 import java.util.TreeMap;
@@ -121,6 +129,78 @@ public class TreeNodeRepositoryTest {
     assertThat(aDirectory.getFiles(1).getDigest()).isEqualTo(fooDigest);
   }
 
+  @Test
+  @SuppressWarnings("ReferenceEquality")
+  public void testSharedDigests() throws Exception {
+    Artifact foo = new Artifact(scratch.file("/exec/root/a/foo", "1"), rootDir);
+    Artifact bar = new Artifact(scratch.file("/exec/root/b/bar", "2"), rootDir);
+    TreeNodeRepository shared = new TreeNodeRepository(execRoot, digestUtil);
+    TreeNodeRepository first =
+        shared.withInputFileCache(
+            new SingleBuildFileCache(execRoot.getPathString(), scratch.getFileSystem()));
+    TreeNode root1 = buildFromActionInputs(first, foo, bar);
+    first.computeMerkleDigests(root1);
+
+    // The digests computed for the first action are reused, without reading any files.
+    TreeNodeRepository second = shared.withInputFileCache(new FakeActionInputFileCache(execRoot));
+    TreeNode root2 = buildFromActionInputs(second, foo, bar);
+    assertThat(root2 == root1).isTrue();
+    second.computeMerkleDigests(root2);
+    assertThat(second.getMerkleDigest(root2)).isEqualTo(first.getMerkleDigest(root1));
+  }
+
+  @Test
+  @SuppressWarnings("ReferenceEquality")
+  public void testBuildFromNestedSet() throws Exception {
+    Artifact foo = new Artifact(scratch.file("/exec/root/a/foo", "1"), rootDir);
+    Artifact bar = new Artifact(scratch.file("/exec/root/b/bar", "2"), rootDir);
+    Artifact one = new Artifact(scratch.file("/exec/root/a/one", "3"), rootDir);
+    Artifact two = new Artifact(scratch.file("/exec/root/c/two", "4"), rootDir);
+    NestedSet<Artifact> shared = NestedSetBuilder.create(Order.STABLE_ORDER, foo, bar);
+    NestedSet<Artifact> inputs1 =
+        NestedSetBuilder.<Artifact>stableOrder().addTransitive(shared).add(one).build();
+    NestedSet<Artifact> inputs2 =
+        NestedSetBuilder.<Artifact>stableOrder().addTransitive(shared).add(two).build();
+    ArtifactExpander expander = (artifact, output) -> {};
+    TreeNodeRepository repo = createTestTreeNodeRepository();
+
+    SortedMap<PathFragment, ActionInput> inputMap1 = new TreeMap<>();
+    for (Artifact input : inputs1) {
+      inputMap1.put(input.getExecPath(), input);
+    }
+    // As for a runfile.
+    inputMap1.put(PathFragment.create("d/foo"), foo);
+    TreeNode root1 = repo.buildFromSpawnInputs(inputs1, expander, inputMap1);
+    assertThat(root1 == repo.buildFromActionInputs(inputMap1)).isTrue();
+
+    SortedMap<PathFragment, ActionInput> inputMap2 = new TreeMap<>();
+    for (Artifact input : inputs2) {
+      inputMap2.put(input.getExecPath(), input);
+    }
+    TreeNode root2 = repo.buildFromSpawnInputs(inputs2, expander, inputMap2);
+    assertThat(root2 == repo.buildFromActionInputs(inputMap2)).isTrue();
+    // The "b" subtree of the shared inputs is reused.
+    assertThat(root1.getChildEntries().get(1).getChild())
+        .isSameAs(root2.getChildEntries().get(1).getChild());
+
+    // An input that is mapped to its own path, but is not in the nested set, is not lost.
+    Artifact three = new Artifact(scratch.file("/exec/root/c/three", "5"), rootDir);
+    inputMap2.put(three.getExecPath(), three);
+    TreeNode root3 = repo.buildFromSpawnInputs(inputs2, expander, inputMap2);
+    assertThat(root3 == repo.buildFromActionInputs(inputMap2)).isTrue();
+
+    ArrayList<ActionInput> leaves = new ArrayList<>();
+    for (TreeNode leaf : repo.leaves(root3)) {
+      leaves.add(leaf.getActionInput());
+    }
+    assertThat(leaves).containsExactly(foo, bar, three, two).inOrder();
+
+    // The tree is not used if it has as many inputs as the mapping, but not the same ones.
+    inputMap2.remove(two.getExecPath());
+    TreeNode root4 = repo.buildFromSpawnInputs(inputs2, expander, inputMap2);
+    assertThat(root4 == repo.buildFromActionInputs(inputMap2)).isTrue();
+  }
+
   @Test
   public void testGetAllDigests() throws Exception {
     Artifact foo1 = new Artifact(scratch.file("/exec/root/a/foo", "1"), rootDir);
@@ -192,4 +272,25 @@ public class TreeNodeRepositoryTest {
     assertThat(fooDirectory.getFiles(1).getName()).isEqualTo("foo.h");
     assertThat(fooDirectory.getFiles(1).getDigest()).isEqualTo(fooHDigest);
   }
+
+  @Test
+  public void testVirtualInputsAreNotKeptAlive() throws Exception {
+    Artifact foo = new Artifact(scratch.file("/exec/root/a/foo", "1"), rootDir);
+    VirtualActionInput empty = new EmptyActionInput("a/empty");
+    TreeNodeRepository repo = createTestTreeNodeRepository();
+    TreeNode root = buildFromActionInputs(repo, foo, empty);
+    repo.computeMerkleDigests(root);
+    ImmutableCollection<Digest> digests = repo.getAllDigests(root);
+
+    ArrayList<Directory> directories = new ArrayList<>();
+    ArrayList<ActionInput> actionInputs = new ArrayList<>();
+    repo.getDataFromDigests(digests, actionInputs, directories);
+    assertThat(actionInputs).containsExactly(foo, empty);
+
+    WeakReference<VirtualActionInput> ref = new WeakReference<>(empty);
+    empty = null;
+    root = null;
+    actionInputs = null;
+    GcFinalization.awaitClear(ref);
+  }
 }
@@ -0,0 +1,222 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.blobstore;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link OnDiskBlobStore}. */
+@RunWith(JUnit4.class)
+public class OnDiskBlobStoreTest {
+  private final ManualClock clock = new ManualClock();
+  private Path root;
+
+  @Before
+  public final void setUp() throws Exception {
+    root = new InMemoryFileSystem(clock).getPath("/cache");
+  }
+
+  @Test
+  public void testPutAndGet() throws Exception {
+    OnDiskBlobStore store = new OnDiskBlobStore(root, 0, clock);
+    put(store, "aabbcc", "contents");
+    assertThat(store.containsKey("aabbcc")).isTrue();
+    assertThat(get(store, "aabbcc")).isEqualTo("contents");
+    assertThat(root.getRelative("aa/aabbcc").exists()).isTrue();
+    assertThat(store.containsKey("ddeeff")).isFalse();
+    assertThat(store.get("ddeeff", new ByteArrayOutputStream())).isFalse();
+    store.close();
+  }
+
+  @Test
+  public void testLinkTo() throws Exception {
+    OnDiskBlobStore store = new OnDiskBlobStore(root, 0, clock);
+    put(store, "aabbcc", "contents");
+    Path dest = root.getRelative("../out/file");
+    dest.getParentDirectory().createDirectoryAndParents();
+    assertThat(store.linkTo("aabbcc", dest, blob -> true)).isTrue();
+    assertThat(FileSystemUtils.readContent(dest, UTF_8)).isEqualTo("contents");
+    assertThat(dest.isWritable()).isFalse();
+    assertThat(dest.isExecutable()).isTrue();
+
+    // Existing files are not replaced.
+    assertThat(store.linkTo("aabbcc", dest, blob -> true)).isFalse();
+    assertThat(store.linkTo("ddeeff", root.getRelative("../out/other"), blob -> true)).isFalse();
+    Path otherFileSystem = new InMemoryFileSystem(clock).getPath("/out/file");
+    assertThat(store.linkTo("aabbcc", otherFileSystem, blob -> true)).isFalse();
+
+    // Blobs that fail verification are deleted.
+    assertThat(store.linkTo("aabbcc", root.getRelative("../out/other"), blob -> false)).isFalse();
+    assertThat(root.getRelative("../out/other").exists()).isFalse();
+    assertThat(store.containsKey("aabbcc")).isFalse();
+    store.close();
+  }
+
+  @Test
+  public void testPutActionResultOverwrites() throws Exception {
+    OnDiskBlobStore store = new OnDiskBlobStore(root, 0, clock);
+    store.putActionResult("aabbcc", "old".getBytes(UTF_8));
+    store.putActionResult("aabbcc", "new".getBytes(UTF_8));
+    assertThat(get(store, "aabbcc")).isEqualTo("new");
+    assertThat(store.getTotalSizeBytes()).isEqualTo(3);
+    store.close();
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    // Evicts down to 90% of the maximum size, which takes a single blob here.
+    OnDiskBlobStore store = new OnDiskBlobStore(root, 12, clock);
+    put(store, "aa0000", "12345");
+    clock.advanceMillis(1);
+    put(store, "bb0000", "12345");
+    clock.advanceMillis(1);
+    get(store, "aa0000");
+    clock.advanceMillis(1);
+    put(store, "cc0000", "12345");
+    store.awaitMaintenance();
+
+    assertThat(store.containsKey("aa0000")).isTrue();
+    assertThat(store.containsKey("bb0000")).isFalse();
+    assertThat(store.containsKey("cc0000")).isTrue();
+    assertThat(store.getTotalSizeBytes()).isEqualTo(10);
+    store.close();
+  }
+
+  @Test
+  public void testIndexIsPersisted() throws Exception {
+    OnDiskBlobStore store = new OnDiskBlobStore(root, 12, clock);
+    put(store, "aa0000", "12345");
+    clock.advanceMillis(1);
+    put(store, "bb0000", "12345");
+    clock.advanceMillis(1);
+    get(store, "aa0000");
+    store.close();
+
+    store = new OnDiskBlobStore(root, 12, clock);
+    assertThat(store.getTotalSizeBytes()).isEqualTo(10);
+    put(store, "cc0000", "12345");
+    store.awaitMaintenance();
+    assertThat(store.containsKey("aa0000")).isTrue();
+    assertThat(store.containsKey("bb0000")).isFalse();
+    store.close();
+  }
+
+  @Test
+  public void testIndexIsDeletedOnceLoaded() throws Exception {
+    OnDiskBlobStore store = new OnDiskBlobStore(root, 0, clock);
+    put(store, "aa0000", "12345");
+    store.close();
+    assertThat(root.getRelative("index").exists()).isTrue();
+
+    store = new OnDiskBlobStore(root, 0, clock);
+    assertThat(store.getTotalSizeBytes()).isEqualTo(5);
+    // A store that is not closed leaves no stale index for the next one.
+    assertThat(root.getRelative("index").exists()).isFalse();
+    put(store, "bb0000", "12345");
+    store.awaitMaintenance();
+
+    store = new OnDiskBlobStore(root, 0, clock);
+    store.awaitMaintenance();
+    assertThat(store.getTotalSizeBytes()).isEqualTo(10);
+    store.close();
+  }
+
+  @Test
+  public void testCanBeReusedFor() throws Exception {
+    OnDiskBlobStore store = new OnDiskBlobStore(root, 10, clock);
+    assertThat(store.canBeReusedFor(root, 10)).isTrue();
+    assertThat(store.canBeReusedFor(root, 20)).isFalse();
+    assertThat(store.canBeReusedFor(root.getRelative("other"), 10)).isFalse();
+    store.close();
+  }
+
+  @Test
+  public void testScanFindsBlobsMissingFromIndex() throws Exception {
+    root.getRelative("aa").createDirectoryAndParents();
+    root.getRelative("bb").createDirectoryAndParents();
+    FileSystemUtils.writeContent(root.getRelative("aa/aa0000"), UTF_8, "12345");
+    clock.advanceMillis(1);
+    FileSystemUtils.writeContent(root.getRelative("bb/bb0000"), UTF_8, "12345");
+    clock.advanceMillis(1);
+
+    OnDiskBlobStore store = new OnDiskBlobStore(root, 12, clock);
+    store.awaitMaintenance();
+    assertThat(store.getTotalSizeBytes()).isEqualTo(10);
+    put(store, "cc0000", "12345");
+    store.awaitMaintenance();
+    // The oldest blob by modification time goes first.
+    assertThat(store.containsKey("aa0000")).isFalse();
+    assertThat(store.containsKey("bb0000")).isTrue();
+    store.close();
+  }
+
+  @Test
+  public void testScanDropsDeletedBlobs() throws Exception {
+    OnDiskBlobStore store = new OnDiskBlobStore(root, 0, clock);
+    put(store, "aa0000", "12345");
+    store.close();
+    root.getRelative("aa/aa0000").delete();
+
+    clock.advanceMillis(OnDiskBlobStore.RESCAN_INTERVAL_MILLIS + 1);
+    store = new OnDiskBlobStore(root, 0, clock);
+    store.awaitMaintenance();
+    assertThat(store.getTotalSizeBytes()).isEqualTo(0);
+    store.close();
+  }
+
+  @Test
+  public void testLegacyBlobsAreMigrated() throws Exception {
+    root.createDirectoryAndParents();
+    FileSystemUtils.writeContent(root.getRelative("aa0000"), UTF_8, "legacy");
+    FileSystemUtils.writeContent(root.getRelative("bb0000"), UTF_8, "legacy");
+    root.getRelative("bb").createDirectoryAndParents();
+    FileSystemUtils.writeContent(root.getRelative("bb/bb0000"), UTF_8, "current");
+    FileSystemUtils.writeContent(
+        root.getRelative("0f8fad5b-d9cb-469f-a165-70867728950e"), UTF_8, "temporary");
+    FileSystemUtils.writeContent(root.getRelative("README"), UTF_8, "not ours");
+
+    OnDiskBlobStore store = new OnDiskBlobStore(root, 0, clock);
+    store.awaitMaintenance();
+    assertThat(get(store, "aa0000")).isEqualTo("legacy");
+    assertThat(get(store, "bb0000")).isEqualTo("current");
+    assertThat(store.getTotalSizeBytes()).isEqualTo(13);
+    assertThat(root.getRelative("aa0000").exists()).isFalse();
+    assertThat(root.getRelative("bb0000").exists()).isFalse();
+    assertThat(root.getRelative("0f8fad5b-d9cb-469f-a165-70867728950e").exists()).isFalse();
+    assertThat(root.getRelative("README").exists()).isTrue();
+    store.close();
+  }
+
+  private static void put(OnDiskBlobStore store, String key, String content) throws Exception {
+    byte[] bytes = content.getBytes(UTF_8);
+    store.put(key, bytes.length, new ByteArrayInputStream(bytes));
+  }
+
+  private static String get(OnDiskBlobStore store, String key) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertThat(store.get(key, out)).isTrue();
+    return new String(out.toByteArray(), UTF_8);
+  }
+}
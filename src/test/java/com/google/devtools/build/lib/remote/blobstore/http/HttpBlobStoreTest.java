@@ -0,0 +1,116 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.blobstore.http;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link HttpBlobStore} against a local {@link HttpCacheServer}. */
+@RunWith(JUnit4.class)
+public class HttpBlobStoreTest {
+
+  @Test(timeout = 30000)
+  public void testPutAndGetOverHttp1() throws Exception {
+    testPutAndGet(/* http2= */ false);
+  }
+
+  @Test(timeout = 30000)
+  public void testPutAndGetOverHttp2() throws Exception {
+    testPutAndGet(/* http2= */ true);
+  }
+
+  private void testPutAndGet(boolean http2) throws Exception {
+    try (HttpCacheServer server = new HttpCacheServer(http2, 100)) {
+      HttpBlobStore store = newBlobStore(server, http2);
+      try {
+        // Larger than the initial HTTP/2 flow control window.
+        byte[] large = new byte[1024 * 1024];
+        new Random().nextBytes(large);
+        put(store, "aabbcc", large);
+        put(store, "ddeeff", new byte[0]);
+        store.putActionResult("aabbcc", new byte[] {1, 2, 3});
+
+        assertThat(get(store, "aabbcc")).isEqualTo(large);
+        assertThat(get(store, "ddeeff")).isEmpty();
+        ByteArrayOutputStream actionResult = new ByteArrayOutputStream();
+        assertThat(store.getActionResult("aabbcc", actionResult)).isTrue();
+        assertThat(actionResult.toByteArray()).isEqualTo(new byte[] {1, 2, 3});
+        assertThat(store.get("112233", new ByteArrayOutputStream())).isFalse();
+        assertThat(server.getBlobs().keySet())
+            .containsExactly("/cache/cas/aabbcc", "/cache/cas/ddeeff", "/cache/ac/aabbcc");
+      } finally {
+        store.close();
+      }
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void testConcurrentRequestsShareOneHttp2Connection() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(16);
+    // Requests in excess of the stream limit have to wait for earlier ones.
+    try (HttpCacheServer server = new HttpCacheServer(/* http2= */ true, 2)) {
+      HttpBlobStore store = newBlobStore(server, /* http2= */ true);
+      try {
+        List<Future<byte[]>> results = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+          String key = String.format("%06x", i);
+          byte[] blob = key.getBytes(UTF_8);
+          results.add(
+              executor.submit(
+                  () -> {
+                    put(store, key, blob);
+                    return get(store, key);
+                  }));
+        }
+        for (int i = 0; i < results.size(); i++) {
+          assertThat(new String(results.get(i).get(), UTF_8))
+              .isEqualTo(String.format("%06x", i));
+        }
+        assertThat(server.getConnectionCount()).isEqualTo(1);
+      } finally {
+        store.close();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static HttpBlobStore newBlobStore(HttpCacheServer server, boolean http2)
+      throws Exception {
+    return new HttpBlobStore(
+        server.getUri(), 10000, /* creds= */ null, /* compressedDownloads= */ false, http2);
+  }
+
+  private static void put(HttpBlobStore store, String key, byte[] blob) throws Exception {
+    store.put(key, blob.length, new ByteArrayInputStream(blob));
+  }
+
+  private static byte[] get(HttpBlobStore store, String key) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertThat(store.get(key, out)).isTrue();
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,153 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.blobstore.http;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.Http2MultiplexCodecBuilder;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory HTTP cache on a local port, which speaks either HTTP/1.1 or HTTP/2 without an
+ * upgrade. It stores blobs by request path, and serves them until it is closed.
+ */
+final class HttpCacheServer implements AutoCloseable {
+  private static final int MAX_BLOB_SIZE = 256 * 1024 * 1024;
+
+  private final EventLoopGroup eventLoop = new NioEventLoopGroup(2);
+  private final ConcurrentMap<String, byte[]> blobs = new ConcurrentHashMap<>();
+  private final AtomicInteger connections = new AtomicInteger();
+  private final Channel serverChannel;
+
+  /**
+   * @param http2 whether to speak HTTP/2 instead of HTTP/1.1
+   * @param maxConcurrentStreams the maximum number of concurrent streams per HTTP/2 connection
+   */
+  HttpCacheServer(boolean http2, int maxConcurrentStreams) throws InterruptedException {
+    RequestHandler handler = new RequestHandler();
+    serverChannel =
+        new ServerBootstrap()
+            .group(eventLoop)
+            .channel(NioServerSocketChannel.class)
+            .childHandler(
+                new ChannelInitializer<Channel>() {
+                  @Override
+                  protected void initChannel(Channel ch) {
+                    connections.incrementAndGet();
+                    if (!http2) {
+                      ch.pipeline().addLast(new HttpServerCodec());
+                      ch.pipeline().addLast(new HttpObjectAggregator(MAX_BLOB_SIZE));
+                      ch.pipeline().addLast(handler);
+                      return;
+                    }
+                    ch.pipeline()
+                        .addLast(
+                            Http2MultiplexCodecBuilder.forServer(
+                                    new ChannelInitializer<Channel>() {
+                                      @Override
+                                      protected void initChannel(Channel stream) {
+                                        stream
+                                            .pipeline()
+                                            .addLast(
+                                                new Http2StreamFrameToHttpObjectCodec(
+                                                    /* isServer= */ true));
+                                        stream
+                                            .pipeline()
+                                            .addLast(new HttpObjectAggregator(MAX_BLOB_SIZE));
+                                        stream.pipeline().addLast(handler);
+                                      }
+                                    })
+                                .initialSettings(
+                                    Http2Settings.defaultSettings()
+                                        .maxConcurrentStreams(maxConcurrentStreams))
+                                .build());
+                  }
+                })
+            .bind(InetAddress.getLoopbackAddress(), 0)
+            .sync()
+            .channel();
+  }
+
+  /** Returns the URI of the cache, for {@link HttpBlobStore}. */
+  URI getUri() {
+    int port = ((InetSocketAddress) serverChannel.localAddress()).getPort();
+    return URI.create("http://localhost:" + port + "/cache");
+  }
+
+  /** Returns the number of connections that clients have opened so far. */
+  int getConnectionCount() {
+    return connections.get();
+  }
+
+  ConcurrentMap<String, byte[]> getBlobs() {
+    return blobs;
+  }
+
+  @Override
+  public void close() throws InterruptedException {
+    serverChannel.close().sync();
+    eventLoop.shutdownGracefully().sync();
+  }
+
+  @Sharable
+  private class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+    @SuppressWarnings("FutureReturnValueIgnored")
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+      FullHttpResponse response;
+      if (request.method().equals(HttpMethod.GET)) {
+        byte[] blob = blobs.get(request.uri());
+        response =
+            blob == null
+                ? new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND)
+                : new DefaultFullHttpResponse(
+                    HttpVersion.HTTP_1_1, HttpResponseStatus.OK, Unpooled.wrappedBuffer(blob));
+      } else if (request.method().equals(HttpMethod.PUT)) {
+        blobs.put(request.uri(), ByteBufUtil.getBytes(request.content()));
+        response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+      } else {
+        response =
+            new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1, HttpResponseStatus.METHOD_NOT_ALLOWED);
+      }
+      HttpUtil.setContentLength(response, response.content().readableBytes());
+      ctx.writeAndFlush(response);
+    }
+  }
+}
@@ -23,6 +23,7 @@ import io.netty.channel.ChannelPromise;
 import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpContentDecompressor;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpMethod;
@@ -33,6 +34,7 @@ import io.netty.handler.codec.http.HttpVersion;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URI;
+import java.util.zip.GZIPOutputStream;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -87,6 +89,36 @@ public class HttpDownloadHandlerTest extends AbstractHttpHandlerTest {
     assertThat(ch.isActive()).isTrue();
   }
 
+  /** Test that compressed responses are decoded if the handler accepts them. */
+  @Test
+  public void compressedDownloadShouldWork() throws IOException {
+    EmbeddedChannel ch =
+        new EmbeddedChannel(
+            new HttpContentDecompressor(),
+            new HttpDownloadHandler(null, /* acceptCompressed= */ true));
+    ByteArrayOutputStream out = Mockito.spy(new ByteArrayOutputStream());
+    DownloadCommand cmd = new DownloadCommand(CACHE_URI, true, "abcdef", out);
+    ChannelPromise writePromise = ch.newPromise();
+    ch.writeOneOutbound(cmd, writePromise);
+
+    HttpRequest request = ch.readOutbound();
+    assertThat(request.headers().get(HttpHeaderNames.ACCEPT_ENCODING)).contains("gzip");
+
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+      gzip.write(new byte[] {1, 2, 3, 4, 5});
+    }
+    HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.headers().set(HttpHeaders.CONTENT_LENGTH, compressed.size());
+    response.headers().set(HttpHeaders.CONTENT_ENCODING, HttpHeaderValues.GZIP);
+    ch.writeInbound(response);
+    ch.writeInbound(new DefaultLastHttpContent(Unpooled.wrappedBuffer(compressed.toByteArray())));
+
+    assertThat(writePromise.isDone()).isTrue();
+    assertThat(writePromise.isSuccess()).isTrue();
+    assertThat(out.toByteArray()).isEqualTo(new byte[] {1, 2, 3, 4, 5});
+  }
+
   /** Test that the handler correctly supports http error codes i.e. 404 (NOT FOUND). */
   @Test
   public void httpErrorsAreSupported() throws IOException {
@@ -19,6 +19,7 @@ import static org.junit.Assert.fail;
 
 import com.google.common.io.BaseEncoding;
 import com.google.common.testing.EqualsTester;
+import com.google.devtools.build.lib.actions.FileStateType;
 import com.google.devtools.build.lib.testutil.ManualClock;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
@@ -130,6 +131,20 @@ public class FileArtifactValueTest {
     }
   }
 
+  @Test
+  public void testRemote() throws Exception {
+    byte[] digest = new byte[] {1, 2, 3};
+    FileArtifactValue value = FileArtifactValue.createRemote(digest, 10L);
+    assertThat(value.isRemote()).isTrue();
+    assertThat(value.getType()).isEqualTo(FileStateType.REGULAR_FILE);
+    assertThat(value.getDigest()).isEqualTo(digest);
+    assertThat(value.getSize()).isEqualTo(10L);
+    // There is no local file that could have been modified.
+    assertThat(value.wasModifiedSinceDigest(fs.getPath("/does/not/exist"))).isFalse();
+    assertThat(value).isNotEqualTo(FileArtifactValue.createNormalFile(digest, 10L));
+    assertThat(FileArtifactValue.createNormalFile(digest, 10L).isRemote()).isFalse();
+  }
+
   @Test
   public void testDirectory() throws Exception {
     Path path = scratchDir("/dir", /*mtime=*/ 1L);
@@ -188,6 +188,40 @@ public class FilesystemValueCheckerTest {
     assertEmptyDiff(getDirtyFilesystemKeys(evaluator, checker));
   }
 
+  @Test
+  public void testBatchByDirectory() throws Exception {
+    FilesystemValueChecker checker =
+        new FilesystemValueChecker(null, null, /*batchByDirectory=*/ true);
+    FileSystemUtils.createDirectoryAndParents(fs.getPath("/dir"));
+    List<SkyKey> keys = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      FileSystemUtils.createEmptyFile(fs.getPath("/dir/existing" + i));
+      keys.add(fileStateKey("/dir/existing" + i));
+      keys.add(fileStateKey("/dir/missing" + i));
+      keys.add(fileStateKey("/missing_dir/missing" + i));
+    }
+    EvaluationResult<SkyValue> result =
+        driver.evaluate(
+            keys, false, SkyframeExecutor.DEFAULT_THREAD_COUNT, NullEventHandler.INSTANCE);
+    assertThat(result.hasError()).isFalse();
+    assertEmptyDiff(getDirtyFilesystemKeys(evaluator, checker));
+
+    FileSystemUtils.writeContentAsLatin1(fs.getPath("/dir/existing3"), "hello");
+    FileSystemUtils.createEmptyFile(fs.getPath("/dir/missing5"));
+    FileSystemUtils.createDirectoryAndParents(fs.getPath("/missing_dir"));
+    FileSystemUtils.createEmptyFile(fs.getPath("/missing_dir/missing7"));
+    assertDiffWithNewValues(
+        getDirtyFilesystemKeys(evaluator, checker),
+        fileStateKey("/dir/existing3"),
+        fileStateKey("/dir/missing5"),
+        fileStateKey("/missing_dir/missing7"));
+  }
+
+  private SkyKey fileStateKey(String path) {
+    return FileStateValue.key(
+        RootedPath.toRootedPath(Root.absoluteRoot(fs), PathFragment.create(path)));
+  }
+
   /**
    * Tests that an already-invalidated value can still be marked changed: symlink points at sym1.
    * Invalidate symlink by changing sym1 from pointing at path to point to sym2. This only dirties
@@ -709,6 +743,102 @@ public class FilesystemValueCheckerTest {
         });
   }
 
+  @Test
+  public void testDirtyMaterializedRemoteOutputs() throws Exception {
+    checkDirtyMaterializedRemoteOutputs(null);
+  }
+
+  @Test
+  public void testDirtyMaterializedRemoteOutputsBatchStat() throws Exception {
+    checkDirtyMaterializedRemoteOutputs(
+        new BatchStat() {
+          @Override
+          public List<FileStatusWithDigest> batchStat(
+              boolean useDigest, boolean includeLinks, Iterable<PathFragment> paths)
+              throws IOException {
+            List<FileStatusWithDigest> stats = new ArrayList<>();
+            for (PathFragment pathFrag : paths) {
+              stats.add(
+                  FileStatusWithDigestAdapter.adapt(
+                      fs.getPath("/").getRelative(pathFrag).statIfFound(Symlinks.NOFOLLOW)));
+            }
+            return stats;
+          }
+        });
+  }
+
+  private void checkDirtyMaterializedRemoteOutputs(BatchStat batchStatter) throws Exception {
+    Artifact fetched = createDerivedArtifact("fetched");
+    Artifact remote = createDerivedArtifact("remote");
+    FileSystemUtils.writeContentAsLatin1(fetched.getPath(), "hello");
+
+    SkyKey actionLookupKey =
+        new ActionLookupKey() {
+          @Override
+          public SkyFunctionName functionName() {
+            return SkyFunctionName.FOR_TESTING;
+          }
+        };
+    SkyKey actionKey = ActionExecutionValue.key(actionLookupKey, 0);
+    differencer.inject(
+        ImmutableMap.<SkyKey, SkyValue>of(
+            actionKey,
+            new ActionExecutionValue(
+                ImmutableMap.<Artifact, FileValue>of(),
+                ImmutableMap.<Artifact, TreeArtifactValue>of(),
+                ImmutableMap.of(
+                    fetched, FileArtifactValue.createRemote(new byte[] {1}, 5),
+                    remote, FileArtifactValue.createRemote(new byte[] {2}, 7)))));
+    assertThat(
+            driver
+                .evaluate(ImmutableList.<SkyKey>of(), false, 1, NullEventHandler.INSTANCE)
+                .hasError())
+        .isFalse();
+    ImmutableSet<Artifact> materialized = ImmutableSet.of(fetched);
+    assertThat(
+            new FilesystemValueChecker(null, null)
+                .getDirtyActionValues(
+                    evaluator.getValues(),
+                    batchStatter,
+                    ModifiedFileSet.EVERYTHING_MODIFIED,
+                    materialized))
+        .isEmpty();
+
+    // Remote outputs that were never fetched are not expected in the output tree.
+    fetched.getPath().delete();
+    assertThat(
+            new FilesystemValueChecker(null, null)
+                .getDirtyActionValues(
+                    evaluator.getValues(), batchStatter, ModifiedFileSet.EVERYTHING_MODIFIED))
+        .isEmpty();
+    assertThat(
+            new FilesystemValueChecker(null, null)
+                .getDirtyActionValues(
+                    evaluator.getValues(),
+                    batchStatter,
+                    ModifiedFileSet.EVERYTHING_MODIFIED,
+                    materialized))
+        .containsExactly(actionKey);
+    assertThat(
+            new FilesystemValueChecker(null, null)
+                .getDirtyActionValues(
+                    evaluator.getValues(),
+                    batchStatter,
+                    new ModifiedFileSet.Builder().modify(remote.getExecPath()).build(),
+                    materialized))
+        .isEmpty();
+
+    FileSystemUtils.writeContentAsLatin1(fetched.getPath(), "goodbye");
+    assertThat(
+            new FilesystemValueChecker(null, null)
+                .getDirtyActionValues(
+                    evaluator.getValues(),
+                    batchStatter,
+                    new ModifiedFileSet.Builder().modify(fetched.getExecPath()).build(),
+                    materialized))
+        .containsExactly(actionKey);
+  }
+
   // TODO(bazel-team): Add some tests for FileSystemValueChecker#changedKeys*() methods.
   // Presently these appear to be untested.
 
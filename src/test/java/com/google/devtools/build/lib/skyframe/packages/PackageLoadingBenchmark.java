@@ -0,0 +1,98 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.skyframe.packages;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.base.Joiner;
+import com.google.common.eventbus.EventBus;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.events.Reporter;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+/**
+ * Benchmarks for loading a package whose BUILD file calls a Skylark macro many times, in which case
+ * evaluating the Skylark functions takes most of the loading time.
+ */
+public class PackageLoadingBenchmark {
+
+  @Param({"100", "1000", "10000"})
+  int macroCalls;
+
+  private Path pkgRoot;
+  private PackageIdentifier pkgId;
+
+  @BeforeExperiment
+  void setUp() throws Exception {
+    pkgRoot = new InMemoryFileSystem().getPath("/pkgRoot");
+    FileSystemUtils.createDirectoryAndParents(pkgRoot);
+    file("defs/BUILD");
+    file(
+        "defs/macros.bzl",
+        "def _names(name, count):",
+        "  result = []",
+        "  for i in range(count):",
+        "    result.append('%s_%d' % (name, i))",
+        "  return result",
+        "",
+        "def library(name, srcs = [], deps = []):",
+        "  shell_srcs = [src for src in srcs if src.endswith('.sh')]",
+        "  tags = {}",
+        "  for tag in _names(name, 5):",
+        "    tags[tag] = len(tag)",
+        "  native.sh_library(",
+        "      name = name,",
+        "      srcs = shell_srcs,",
+        "      deps = deps,",
+        "      tags = sorted(tags.keys()),",
+        "  )");
+    StringBuilder build = new StringBuilder("load('//defs:macros.bzl', 'library')\n");
+    for (int i = 0; i < macroCalls; i++) {
+      build.append(
+          String.format(
+              "library(name = 'lib%d', srcs = ['lib%d.sh', 'lib%d.txt'], deps = [%s])\n",
+              i, i, i, i == 0 ? "" : "':lib" + (i - 1) + "'"));
+    }
+    file("pkg/BUILD", build.toString());
+    pkgId = PackageIdentifier.createInMainRepo(PathFragment.create("pkg"));
+  }
+
+  private void file(String fileName, String... contents) throws Exception {
+    Path path = pkgRoot.getRelative(fileName);
+    FileSystemUtils.createDirectoryAndParents(path.getParentDirectory());
+    FileSystemUtils.writeContentAsLatin1(path, Joiner.on("\n").join(contents));
+  }
+
+  @Benchmark
+  int loadPackage(int reps) throws Exception {
+    int result = 0;
+    for (int rep = 0; rep < reps; rep++) {
+      // A fresh loader, so that neither the package nor the .bzl file are cached.
+      PackageLoader pkgLoader =
+          BazelPackageLoader.builder(pkgRoot)
+              .useDefaultSkylarkSemantics()
+              .setReporter(new Reporter(new EventBus()))
+              .build();
+      Package pkg = pkgLoader.loadPackage(pkgId);
+      result += pkg.getTargets().size();
+    }
+    return result;
+  }
+}
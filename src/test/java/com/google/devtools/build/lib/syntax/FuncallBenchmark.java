@@ -0,0 +1,113 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.syntax;
+
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.skylarkinterface.SkylarkCallable;
+import com.google.devtools.build.lib.skylarkinterface.SkylarkModule;
+
+/**
+ * Benchmarks for calling builtins from Skylark: methods of strings, the {@code depset} function,
+ * and a Java method with named parameters that is shaped like {@code ctx.actions.run}.
+ */
+public class FuncallBenchmark {
+
+  /** The calls to benchmark, each of which is evaluated in a loop by a Skylark function. */
+  enum Call {
+    STRING_METHOD("'a,b,c'.split(',')"),
+    DEPSET("depset([i])"),
+    JAVA_METHOD("actions.run(outputs = [i], executable = 'tool', arguments = ['-v'])");
+
+    private final String expression;
+
+    Call(String expression) {
+      this.expression = expression;
+    }
+  }
+
+  /** A stand-in for {@code ctx.actions}, whose method does no work of its own. */
+  @SkylarkModule(name = "actions", doc = "")
+  public static final class Actions {
+    @SkylarkCallable(
+      name = "run",
+      doc = "",
+      parameters = {
+        @com.google.devtools.build.lib.skylarkinterface.Param(
+          name = "outputs",
+          type = SkylarkList.class,
+          named = true
+        ),
+        @com.google.devtools.build.lib.skylarkinterface.Param(
+          name = "executable",
+          type = String.class,
+          named = true
+        ),
+        @com.google.devtools.build.lib.skylarkinterface.Param(
+          name = "arguments",
+          type = SkylarkList.class,
+          defaultValue = "[]",
+          named = true
+        ),
+        @com.google.devtools.build.lib.skylarkinterface.Param(
+          name = "mnemonic",
+          type = String.class,
+          noneable = true,
+          defaultValue = "None",
+          named = true
+        )
+      }
+    )
+    public Runtime.NoneType run(
+        SkylarkList<?> outputs, String executable, SkylarkList<?> arguments, Object mnemonic) {
+      return Runtime.NONE;
+    }
+  }
+
+  @Param({"STRING_METHOD", "DEPSET", "JAVA_METHOD"})
+  Call call;
+
+  private Mutability mutability;
+  private Environment env;
+  private BaseFunction loop;
+
+  @BeforeExperiment
+  void setUp() throws Exception {
+    mutability = Mutability.create("benchmark");
+    env =
+        Environment.builder(mutability)
+            .useDefaultSemantics()
+            .setGlobals(BazelLibrary.GLOBALS)
+            .setEventHandler(Environment.FAIL_FAST_HANDLER)
+            .build()
+            .update("actions", new Actions());
+    BuildFileAST.eval(env, "def loop(n):", "  for i in range(n):", "    " + call.expression);
+    loop = (BaseFunction) env.lookup("loop");
+  }
+
+  @AfterExperiment
+  void tearDown() {
+    mutability.close();
+  }
+
+  @Benchmark
+  Object calls(int reps) throws Exception {
+    return loop.call(ImmutableList.<Object>of(reps), ImmutableMap.<String, Object>of(), null, env);
+  }
+}
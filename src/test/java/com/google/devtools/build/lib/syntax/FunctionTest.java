@@ -138,6 +138,104 @@ public class FunctionTest extends EvaluationTestCase {
     assertThat(lookup("c")).isEqualTo(2);
   }
 
+  @Test
+  public void testFunctionScopeSlots() throws Exception {
+    eval("e = 1",
+        "def func(a, b):",
+        "  c = a.field + b",
+        "  for d in c:",
+        "    pass",
+        "  return len(c) + len(d) + e\n");
+    UserDefinedFunction func = (UserDefinedFunction) lookup("func");
+    FunctionScope scope =
+        FunctionScope.resolve(func.getSignature().getSignature().getNames(), func.getStatements());
+    assertThat(scope.getLocalSlot("a")).isEqualTo(0);
+    assertThat(scope.getLocalSlot("b")).isEqualTo(1);
+    assertThat(scope.getLocalSlot("c")).isEqualTo(2);
+    assertThat(scope.getLocalSlot("d")).isEqualTo(3);
+    assertThat(scope.getLocalSlot("field")).isEqualTo(-1);
+    assertThat(scope.getLocalSlot("len")).isEqualTo(-1);
+    assertThat(scope.getLocalCount()).isEqualTo(4);
+    // len and e.
+    assertThat(scope.getGlobalCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testFunctionDefGlobalVariableUpdatedBetweenCalls() throws Exception {
+    // The global frame is not frozen, so the function sees the new value.
+    update("a", 1);
+    eval("def func():",
+        "  return a",
+        "b = func()\n");
+    update("a", 2);
+    eval("c = func()\n");
+    assertThat(lookup("b")).isEqualTo(1);
+    assertThat(lookup("c")).isEqualTo(2);
+  }
+
+  private Object callHotFunction(String... skylarkOptions) throws Exception {
+    env = newEnvironmentWithSkylarkOptions(skylarkOptions);
+    eval(
+        "def helper(x):",
+        "  return x * 2",
+        "def func(n):",
+        "  result = []",
+        "  total = 0",
+        "  for i in range(n % 7):",
+        "    if i == 1:",
+        "      continue",
+        "    elif i == 5:",
+        "      break",
+        "    else:",
+        "      pass",
+        "    for j in [i, i + 1]:",
+        "      if j > 4:",
+        "        return [result, total, 'early']",
+        "      total += helper(j)",
+        "    result.append(i)",
+        "  if total:",
+        "    return [result, total]",
+        "  return None",
+        "results = [func(n) for n in range(" + (2 * UserDefinedFunction.COMPILE_THRESHOLD) + ")]");
+    return lookup("results");
+  }
+
+  @Test
+  public void testCompiledHotFunctionHasSameResults() throws Exception {
+    Object interpreted = callHotFunction("--experimental_compile_hot_functions=false");
+    Object compiled = callHotFunction("--experimental_compile_hot_functions=true");
+    assertThat(compiled).isEqualTo(interpreted);
+    assertThat(((SkylarkList<?>) compiled).get(6))
+        .isEqualTo(
+            SkylarkList.MutableList.of(
+                env, SkylarkList.MutableList.of(env, 0, 2, 3), 34, "early"));
+  }
+
+  private String callFailingHotFunction(String... skylarkOptions) throws Exception {
+    env = newEnvironmentWithSkylarkOptions(skylarkOptions);
+    eval(
+        "def func(x):",
+        "  for i in range(3):",
+        "    if x > i:",
+        "      return 1 // (x - " + UserDefinedFunction.COMPILE_THRESHOLD + ")",
+        "  return 0",
+        "results = [func(n) for n in range(" + UserDefinedFunction.COMPILE_THRESHOLD + ")]");
+    try {
+      eval("func(" + UserDefinedFunction.COMPILE_THRESHOLD + ")");
+      throw new AssertionError("func() should have failed");
+    } catch (EvalException e) {
+      return e.print();
+    }
+  }
+
+  @Test
+  public void testCompiledHotFunctionHasSameError() throws Exception {
+    String interpreted = callFailingHotFunction("--experimental_compile_hot_functions=false");
+    String compiled = callFailingHotFunction("--experimental_compile_hot_functions=true");
+    assertThat(compiled).isEqualTo(interpreted);
+    assertThat(compiled).contains("integer division by zero");
+  }
+
   @SuppressWarnings("unchecked")
   @Test
   public void testSkylarkGlobalComprehensionIsAllowed() throws Exception {
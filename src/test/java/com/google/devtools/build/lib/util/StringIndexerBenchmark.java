@@ -0,0 +1,107 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.util;
+
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Microbenchmarks for {@link ConcurrentStringIndexer} against {@link CanonicalStringIndexer} under
+ * a mix of lookups and insertions, similar to what the action cache does during execution.
+ */
+public class StringIndexerBenchmark {
+
+  /** The indexer implementations to compare. */
+  public enum Implementation {
+    CANONICAL {
+      @Override
+      StringIndexer create() {
+        return new CanonicalStringIndexer(
+            new ConcurrentHashMap<String, Integer>(), new ConcurrentHashMap<Integer, String>());
+      }
+    },
+    CONCURRENT {
+      @Override
+      StringIndexer create() {
+        return new ConcurrentStringIndexer();
+      }
+    };
+
+    abstract StringIndexer create();
+  }
+
+  private static final int NUM_STRINGS = 1 << 16;
+
+  @Param Implementation implementation;
+
+  @Param({"1", "4", "16", "64", "256"})
+  int threads;
+
+  /** Percentage of operations that look up a string that was already indexed. */
+  @Param({"50", "95"})
+  int hitPercentage;
+
+  private final String[] strings = new String[NUM_STRINGS];
+  private ExecutorService executor;
+
+  @BeforeExperiment
+  void setUp() {
+    for (int i = 0; i < NUM_STRINGS; i++) {
+      strings[i] = "bazel-out/k8-fastbuild/bin/package" + (i % 1000) + "/file" + i + ".o";
+    }
+    executor = Executors.newFixedThreadPool(threads);
+  }
+
+  @AfterExperiment
+  void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Benchmark
+  int getOrCreateIndex(int reps) throws Exception {
+    int numPreIndexed = NUM_STRINGS * hitPercentage / 100;
+    int result = 0;
+    for (int rep = 0; rep < reps; rep++) {
+      StringIndexer indexer = implementation.create();
+      for (int i = 0; i < numPreIndexed; i++) {
+        indexer.getOrCreateIndex(strings[i]);
+      }
+      List<Future<Integer>> futures = new ArrayList<>(threads);
+      for (int t = 0; t < threads; t++) {
+        int firstString = t;
+        futures.add(
+            executor.submit(
+                () -> {
+                  int sum = 0;
+                  for (int i = firstString; i < NUM_STRINGS; i += threads) {
+                    sum += indexer.getOrCreateIndex(strings[i]);
+                  }
+                  return sum;
+                }));
+      }
+      for (Future<Integer> future : futures) {
+        result += future.get();
+      }
+    }
+    return result;
+  }
+}
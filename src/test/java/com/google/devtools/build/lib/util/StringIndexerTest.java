@@ -295,4 +295,36 @@ public abstract class StringIndexerTest {
     }
   }
 
+  @RunWith(JUnit4.class)
+  public static class ConcurrentStringIndexerTest extends CanonicalStringIndexerTest {
+    @Override
+    protected StringIndexer newIndexer() {
+      return new ConcurrentStringIndexer();
+    }
+
+    @Test
+    public void preInitializedMappings() {
+      ConcurrentHashMap<String, Integer> stringToInt = new ConcurrentHashMap<>();
+      stringToInt.put("abc", 1);
+      stringToInt.put("def", 0);
+      indexer = new ConcurrentStringIndexer(stringToInt);
+      assertSize(2);
+      assertThat(indexer.getStringForIndex(0)).isEqualTo("def");
+      assertThat(indexer.getStringForIndex(1)).isEqualTo("abc");
+      assertIndex(2, "ghi");
+    }
+
+    @Test
+    public void preInitializedMappingsWithGaps() {
+      ConcurrentHashMap<String, Integer> stringToInt = new ConcurrentHashMap<>();
+      stringToInt.put("abc", 3);
+      stringToInt.put("def", 0);
+      indexer = new ConcurrentStringIndexer(stringToInt);
+      assertSize(4);
+      assertThat(indexer.getStringForIndex(1)).isNull();
+      assertThat(indexer.getStringForIndex(3)).isEqualTo("abc");
+      assertIndex(4, "ghi");
+    }
+  }
+
 }
@@ -0,0 +1,65 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link CompactInMemoryGraphImpl}. */
+@RunWith(JUnit4.class)
+public class CompactInMemoryGraphTest extends GraphTest {
+  private ProcessableGraph graph;
+
+  @Override
+  protected Version getStartingVersion() {
+    return IntVersion.of(0);
+  }
+
+  @Override
+  protected Version getNextVersion(Version v) {
+    Preconditions.checkState(v instanceof IntVersion);
+    return ((IntVersion) v).next();
+  }
+
+  @Override
+  protected void makeGraph() {
+    graph = new CompactInMemoryGraphImpl(/*keepEdges=*/ true);
+  }
+
+  @Override
+  protected ProcessableGraph getGraph(Version version) {
+    return graph;
+  }
+
+  @Test
+  public void idsOfRemovedNodesAreRecycled() throws Exception {
+    CompactInMemoryGraphImpl compactGraph = new CompactInMemoryGraphImpl(/*keepEdges=*/ true);
+    SkyKey cat = key("cat");
+    SkyKey dog = key("dog");
+    compactGraph.createIfAbsentBatch(null, Reason.OTHER, ImmutableList.of(cat));
+    int catId = compactGraph.getId(cat);
+    compactGraph.remove(cat);
+    // Nodes that are deleted along with cat may still look up its id.
+    assertThat(compactGraph.getKey(catId)).isEqualTo(cat);
+    compactGraph.createIfAbsentBatch(null, Reason.OTHER, ImmutableList.of(dog));
+    assertThat(compactGraph.getId(dog)).isEqualTo(catId);
+    assertThat(compactGraph.getKey(catId)).isEqualTo(dog);
+  }
+}
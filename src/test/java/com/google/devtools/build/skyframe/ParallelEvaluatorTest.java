@@ -45,6 +45,7 @@ import com.google.devtools.build.skyframe.NotifyingHelper.Listener;
 import com.google.devtools.build.skyframe.NotifyingHelper.Order;
 import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -146,6 +147,53 @@ public class ParallelEvaluatorTest {
     assertThat(storedEventHandler.getPosts()).isEmpty();
   }
 
+  @Test
+  public void priorityFunctionOrdersEvaluationsAndIsInheritedByDeps() throws Exception {
+    graph = new InMemoryGraphImpl();
+    List<String> computed = Collections.synchronizedList(new ArrayList<>());
+    GraphTester.TestFunction top = tester.getOrCreate("top").addDependency("mid");
+    for (int i = 0; i < 3; i++) {
+      top.addDependency("leaf" + i);
+      tester.getOrCreate("leaf" + i).setComputedValue(recordingComputer("leaf" + i, computed));
+    }
+    top.setComputedValue(recordingComputer("top", computed));
+    tester
+        .getOrCreate("mid")
+        .addDependency("deep")
+        .setComputedValue(recordingComputer("mid", computed));
+    tester.getOrCreate("deep").setComputedValue(recordingComputer("deep", computed));
+
+    SkyKey midKey = GraphTester.toSkyKey("mid");
+    ParallelEvaluator evaluator =
+        new ParallelEvaluator(
+            graph,
+            graphVersion,
+            tester.getSkyFunctionMap(),
+            storedEventHandler,
+            new MemoizingEvaluator.EmittedEventState(),
+            InMemoryMemoizingEvaluator.DEFAULT_STORED_EVENT_FILTER,
+            ErrorInfoManager.UseChildErrorInfoIfNecessary.INSTANCE,
+            /*keepGoing=*/ false,
+            /*threadCount=*/ 1,
+            revalidationReceiver,
+            key -> key.equals(midKey) ? 10 : 0);
+    SkyKey topKey = GraphTester.toSkyKey("top");
+    assertThat(evaluator.eval(ImmutableList.of(topKey)).hasError()).isFalse();
+
+    // Without priorities, the most recently requested leaves would have been evaluated first.
+    // "deep" is evaluated before them because it inherits the priority of "mid".
+    assertThat(computed)
+        .containsExactly("deep", "mid", "leaf2", "leaf1", "leaf0", "top")
+        .inOrder();
+  }
+
+  private static GraphTester.ValueComputer recordingComputer(String name, List<String> computed) {
+    return (deps, env) -> {
+      computed.add(name);
+      return new StringValue(name);
+    };
+  }
+
   /**
    * Test interruption handling when a long-running SkyFunction gets interrupted.
    */
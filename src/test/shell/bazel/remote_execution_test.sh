@@ -507,6 +507,67 @@ EOF
   expect_log "Remote connection/protocol failed"
 }
 
+function test_remote_download_outputs_flipped_between_builds() {
+  mkdir -p a
+  cat > a/BUILD <<'EOF'
+genrule(
+  name = "intermediate",
+  outs = ["intermediate.txt"],
+  cmd = "echo intermediate > $@",
+)
+
+genrule(
+  name = "final",
+  srcs = [":intermediate"],
+  outs = ["final.txt"],
+  cmd = "cat $(location :intermediate) > $@",
+)
+EOF
+
+  bazel build \
+      --spawn_strategy=remote \
+      --remote_executor=localhost:${worker_port} \
+      --remote_cache=localhost:${worker_port} \
+      --experimental_remote_download_outputs=minimal \
+      //a:final >& $TEST_log \
+      || fail "Failed to build //a:final with minimal downloads"
+  [[ -f bazel-genfiles/a/final.txt ]] || fail "Expected top-level output to be downloaded"
+  [[ ! -f bazel-genfiles/a/intermediate.txt ]] \
+      || fail "Expected intermediate output not to be downloaded"
+
+  # All outputs must be downloaded once the flag is flipped, although nothing changed.
+  bazel build \
+      --spawn_strategy=remote \
+      --remote_executor=localhost:${worker_port} \
+      --remote_cache=localhost:${worker_port} \
+      --experimental_remote_download_outputs=all \
+      //a:final >& $TEST_log \
+      || fail "Failed to build //a:final with all downloads"
+  [[ -f bazel-genfiles/a/intermediate.txt ]] \
+      || fail "Expected intermediate output to be downloaded"
+
+  # Without a remote cache, the intermediate output cannot be fetched when the final action runs
+  # again, so it must be rebuilt locally.
+  bazel clean >& $TEST_log
+  bazel build \
+      --spawn_strategy=remote \
+      --remote_executor=localhost:${worker_port} \
+      --remote_cache=localhost:${worker_port} \
+      --experimental_remote_download_outputs=minimal \
+      //a:final >& $TEST_log \
+      || fail "Failed to build //a:final with minimal downloads"
+  [[ ! -f bazel-genfiles/a/intermediate.txt ]] \
+      || fail "Expected intermediate output not to be downloaded"
+  sed -i.bak 's/cat $(location :intermediate) > $@/cat $(location :intermediate) > $@; echo local >> $@/' \
+      a/BUILD
+  bazel build --spawn_strategy=local //a:final >& $TEST_log \
+      || fail "Failed to build //a:final without a remote cache"
+  grep -q intermediate bazel-genfiles/a/final.txt \
+      || fail "Expected final output to contain the intermediate output"
+  grep -q local bazel-genfiles/a/final.txt \
+      || fail "Expected final output to be rebuilt locally"
+}
+
 # TODO(alpha): Add a test that fails remote execution when remote worker
 # supports sandbox.
 
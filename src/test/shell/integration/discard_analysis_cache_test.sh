@@ -56,6 +56,61 @@ function test_compile_helloworld() {
   expect_log 'hello!'
 }
 
+function test_discard_actions_after_execution_incremental() {
+  write_hello_world_files
+  bazel run --experimental_discard_actions_after_execution hello:hello \
+      >&$TEST_log || fail "Build failed"
+  expect_log 'hello!'
+
+  # The actions of the first build were discarded, so they must be recreated
+  # to rebuild the changed source.
+  sed -i.bak -e 's/hello!/hello again!/' hello/Hello.java \
+      || fail "Couldn't edit Hello.java"
+  bazel run --experimental_discard_actions_after_execution hello:hello \
+      >&$TEST_log || fail "Build failed"
+  expect_log 'hello again!'
+
+  # Check that builds that keep actions work fine after ones that did not.
+  bazel run hello:hello >&$TEST_log || fail "Build failed"
+  expect_log 'hello again!'
+}
+
+function test_discard_actions_after_execution_exclusive_test() {
+  mkdir -p foo || fail "mkdir foo failed"
+  cat >foo/BUILD <<EOF
+sh_test(
+    name = "exclusive",
+    srcs = ["test.sh"],
+    tags = ["exclusive"],
+)
+
+sh_test(
+    name = "parallel",
+    srcs = ["test.sh"],
+)
+EOF
+  cat >foo/test.sh <<EOF
+#!/bin/sh
+echo "passing test"
+EOF
+  chmod +x foo/test.sh
+
+  # Exclusive tests run in an evaluation of their own after the other targets
+  # are built. It must not re-analyze the targets whose actions were discarded
+  # by the first one.
+  bazel test --experimental_discard_actions_after_execution \
+      --nocache_test_results //foo:all >&$TEST_log || fail "Tests failed"
+  expect_log "//foo:exclusive *PASSED"
+  expect_log "//foo:parallel *PASSED"
+
+  # The discarded actions are recreated by the next build.
+  echo 'echo "still passing"' >> foo/test.sh
+  bazel test --experimental_discard_actions_after_execution \
+      --nocache_test_results //foo:all >&$TEST_log || fail "Tests failed"
+  expect_log "//foo:exclusive *PASSED"
+  expect_log "//foo:parallel *PASSED"
+}
+
 function extract_histogram_count() {
   local histofile="$1"
   local item="$2"
@@ -22,6 +22,7 @@ import com.google.bytestream.ByteStreamProto.ReadRequest;
 import com.google.bytestream.ByteStreamProto.ReadResponse;
 import com.google.bytestream.ByteStreamProto.WriteRequest;
 import com.google.bytestream.ByteStreamProto.WriteResponse;
+import com.google.devtools.build.lib.remote.BlobCompression;
 import com.google.devtools.build.lib.remote.CacheNotFoundException;
 import com.google.devtools.build.lib.remote.Chunker;
 import com.google.devtools.build.lib.remote.DigestUtil;
@@ -31,6 +32,7 @@ import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.remoteexecution.v1test.Digest;
 import io.grpc.Status;
 import io.grpc.protobuf.StatusProto;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import java.io.IOException;
 import java.io.InputStream;
@@ -45,6 +47,7 @@ final class ByteStreamServer extends ByteStreamImplBase {
   private final SimpleBlobStoreActionCache cache;
   private final Path workPath;
   private final DigestUtil digestUtil;
+  private final boolean compress;
 
   static @Nullable Digest parseDigestFromResourceName(String resourceName) {
     try {
@@ -60,10 +63,12 @@ final class ByteStreamServer extends ByteStreamImplBase {
     }
   }
 
-  public ByteStreamServer(SimpleBlobStoreActionCache cache, Path workPath, DigestUtil digestUtil) {
+  public ByteStreamServer(
+      SimpleBlobStoreActionCache cache, Path workPath, DigestUtil digestUtil, boolean compress) {
     this.cache = cache;
     this.workPath = workPath;
     this.digestUtil = digestUtil;
+    this.compress = compress;
   }
 
   @Override
@@ -82,8 +87,16 @@ final class ByteStreamServer extends ByteStreamImplBase {
       // TODO(olaola): refactor to fix this if the need arises.
       Chunker c = new Chunker(cache.downloadBlob(digest), digestUtil);
       while (c.hasNext()) {
-        responseObserver.onNext(
-            ReadResponse.newBuilder().setData(c.next().getData()).build());
+        Chunker.Chunk chunk = c.next();
+        if (compress && chunk.getOffset() == 0) {
+          // Only takes effect if the client accepts gzip.
+          ServerCallStreamObserver<ReadResponse> serverObserver =
+              (ServerCallStreamObserver<ReadResponse>) responseObserver;
+          serverObserver.setCompression(BlobCompression.GRPC_ENCODING);
+          serverObserver.setMessageCompression(
+              BlobCompression.isCompressible(digest.getSizeBytes(), chunk.getData()));
+        }
+        responseObserver.onNext(ReadResponse.newBuilder().setData(chunk.getData()).build());
       }
       responseObserver.onCompleted();
     } catch (CacheNotFoundException e) {
@@ -21,8 +21,6 @@ import static java.util.logging.Level.WARNING;
 
 import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
-import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.remote.CacheNotFoundException;
 import com.google.devtools.build.lib.remote.DigestUtil;
@@ -63,9 +61,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -81,6 +80,8 @@ final class ExecutionServer extends ExecutionImplBase {
   // src/main/java/com/google/devtools/build/lib/remote/RemoteOptions.java)
   private static final String CONTAINER_IMAGE_ENTRY_NAME = "container-image";
   private static final String DOCKER_IMAGE_PREFIX = "docker://";
+  // The name of the entry in the Platform proto that says how many CPUs an action needs.
+  private static final String CPUS_ENTRY_NAME = "cpus";
 
   // How long to wait for the uid command.
   private static final Duration uidTimeout = Duration.ofMillis(30);
@@ -92,45 +93,73 @@ final class ExecutionServer extends ExecutionImplBase {
   private final RemoteWorkerOptions workerOptions;
   private final SimpleBlobStoreActionCache cache;
   private final ConcurrentHashMap<String, ListenableFuture<ActionResult>> operationsCache;
-  private final ListeningExecutorService executorService;
+  private final JobScheduler scheduler;
   private final DigestUtil digestUtil;
 
+  private final AtomicLong succeededActions = new AtomicLong();
+  private final AtomicLong failedActions = new AtomicLong();
+  private final AtomicLong erroredActions = new AtomicLong();
+
   public ExecutionServer(
       Path workPath,
       Path sandboxPath,
       RemoteWorkerOptions workerOptions,
       SimpleBlobStoreActionCache cache,
       ConcurrentHashMap<String, ListenableFuture<ActionResult>> operationsCache,
-      DigestUtil digestUtil) {
+      DigestUtil digestUtil,
+      WorkerMetrics metrics) {
     this.workPath = workPath;
     this.sandboxPath = sandboxPath;
     this.workerOptions = workerOptions;
     this.cache = cache;
     this.operationsCache = operationsCache;
     this.digestUtil = digestUtil;
-    ThreadPoolExecutor realExecutor = new ThreadPoolExecutor(
-        // This is actually the max number of concurrent jobs.
-        workerOptions.jobs,
-        // Since we use an unbounded queue, the executor ignores this value, but it still checks
-        // that it is greater or equal to the value above.
-        workerOptions.jobs,
-        // Shut down idle threads after one minute. Threads aren't all that expensive, but we also
-        // don't need to keep them around if we don't need them.
-        1, TimeUnit.MINUTES,
-        // We use an unbounded queue for now.
-        // TODO(ulfjack): We need to reject work eventually.
-        new LinkedBlockingQueue<>(),
-        new ThreadFactoryBuilder().setNameFormat("subprocess-handler-%d").build());
-    // Allow the core threads to die.
-    realExecutor.allowCoreThreadTimeOut(true);
-    this.executorService = MoreExecutors.listeningDecorator(realExecutor);
+    // The scheduler limits the number of concurrent jobs to the number of CPUs, so the executor
+    // does not need to. Idle threads die after a minute.
+    ExecutorService realExecutor =
+        Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("subprocess-handler-%d").build());
+    // TODO(ulfjack): We need to reject work eventually, as the queue is unbounded.
+    this.scheduler = new JobScheduler(workerOptions.jobs, realExecutor);
+
+    metrics.addGauge(
+        "remote_worker_cpus", "CPUs that actions may use.", scheduler::getTotalCpus);
+    metrics.addGauge(
+        "remote_worker_cpus_used", "CPUs used by running actions.", scheduler::getUsedCpus);
+    metrics.addGauge(
+        "remote_worker_actions_queued",
+        "Actions waiting for CPUs to become free.",
+        scheduler::getQueuedJobs);
+    metrics.addGauge(
+        "remote_worker_actions_running", "Actions that are running.", scheduler::getRunningJobs);
+    metrics.addCounter(
+        "remote_worker_action_queue_seconds_total",
+        "Time that actions waited for CPUs.",
+        () -> scheduler.getQueuedNanosTotal() / 1e9);
+    metrics.addCounter(
+        "remote_worker_action_seconds_total",
+        "Time that actions ran, including fetching inputs and storing outputs.",
+        () -> scheduler.getRunningNanosTotal() / 1e9);
+    String help = "Finished actions, by whether they exited with 0, another code, or an error.";
+    metrics.addCounter(
+        "remote_worker_actions_total", help, "result", "success", succeededActions::get);
+    metrics.addCounter(
+        "remote_worker_actions_total", help, "result", "failure", failedActions::get);
+    metrics.addCounter("remote_worker_actions_total", help, "result", "error", erroredActions::get);
   }
 
   @Override
   public void execute(ExecuteRequest request, StreamObserver<Operation> responseObserver) {
+    final int cpus;
+    try {
+      cpus = requiredCpus(request.getAction());
+    } catch (StatusException e) {
+      responseObserver.onError(e);
+      return;
+    }
     final String opName = UUID.randomUUID().toString();
     ListenableFuture<ActionResult> future =
-        executorService.submit(Context.current().wrap(() -> execute(request, opName)));
+        scheduler.submit(cpus, Context.current().wrap(() -> execute(request, opName)));
     operationsCache.put(opName, future);
     responseObserver.onNext(Operation.newBuilder().setName(opName).build());
     responseObserver.onCompleted();
@@ -150,8 +179,10 @@ final class ExecutionServer extends ExecutionImplBase {
       logger.log(FINE, "Received work for: {0}", workDetails);
       ActionResult result = execute(request.getAction(), tempRoot);
       logger.log(FINE, "Completed {0}.", workDetails);
+      (result.getExitCode() == 0 ? succeededActions : failedActions).incrementAndGet();
       return result;
     } catch (Exception e) {
+      erroredActions.incrementAndGet();
       logger.log(Level.SEVERE, "Work failed: {0} {1}.", new Object[] {workDetails, e});
       throw e;
     } finally {
@@ -347,6 +378,29 @@ final class ExecutionServer extends ExecutionImplBase {
     return result;
   }
 
+  // Returns the number of CPUs that the action needs while it runs, as given by the cpus entry in
+  // the Platform proto. Actions need one CPU if there is no entry.
+  private static int requiredCpus(Action action) throws StatusException {
+    for (Platform.Property property : action.getPlatform().getPropertiesList()) {
+      if (property.getName().equals(CPUS_ENTRY_NAME)) {
+        try {
+          int cpus = Integer.parseInt(property.getValue());
+          if (cpus > 0) {
+            return cpus;
+          }
+        } catch (NumberFormatException e) {
+          // Handled below.
+        }
+        throw StatusUtils.invalidArgumentError(
+            "platform", // Field name.
+            String.format(
+                "%s must be a positive number of CPUs, but is '%s'",
+                CPUS_ENTRY_NAME, property.getValue()));
+      }
+    }
+    return 1;
+  }
+
   // Takes an Action and parameters that can be used to create a Command. Returns the Command.
   // If no docker container is specified inside Action, creates a Command straight from the
   // arguments. Otherwise, returns a Command that would run the specified command inside the
@@ -0,0 +1,155 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.remote.worker;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A queue of jobs that each need a number of CPUs while they run.
+ *
+ * <p>Jobs start in the order in which they were submitted, as soon as enough of the worker's CPUs
+ * are free. A job at the head of the queue that needs more CPUs than are free holds back the jobs
+ * behind it, so that large jobs are not starved by a stream of small ones. A job never needs more
+ * than all CPUs of the worker.
+ */
+final class JobScheduler {
+  private static final class Job {
+    final int cpus;
+    final ListenableFutureTask<?> task;
+    final long queuedNanos = System.nanoTime();
+
+    Job(int cpus, ListenableFutureTask<?> task) {
+      this.cpus = cpus;
+      this.task = task;
+    }
+  }
+
+  private final int totalCpus;
+  private final Executor executor;
+
+  /** Guarded by {@code this}. */
+  private final Deque<Job> queue = new ArrayDeque<>();
+  /** Guarded by {@code this}. */
+  private int freeCpus;
+  /** Guarded by {@code this}. */
+  private int runningJobs;
+
+  private final AtomicLong queuedNanosTotal = new AtomicLong();
+  private final AtomicLong runningNanosTotal = new AtomicLong();
+
+  /**
+   * @param totalCpus the number of CPUs the jobs may use at the same time
+   * @param executor the executor to run the jobs on. It must start a job right away, so it should
+   *     not limit the number of threads
+   */
+  JobScheduler(int totalCpus, Executor executor) {
+    Preconditions.checkArgument(totalCpus > 0, "No CPUs to run jobs on");
+    this.totalCpus = totalCpus;
+    this.freeCpus = totalCpus;
+    this.executor = executor;
+  }
+
+  /**
+   * Queues {@code job}, which needs {@code cpus} CPUs while it runs. Cancelling the returned future
+   * removes the job from the queue if it has not started yet.
+   */
+  <T> ListenableFuture<T> submit(int cpus, Callable<T> job) {
+    ListenableFutureTask<T> task = ListenableFutureTask.create(job);
+    synchronized (this) {
+      queue.addLast(new Job(Math.max(1, Math.min(cpus, totalCpus)), task));
+    }
+    startJobs();
+    return task;
+  }
+
+  private void startJobs() {
+    while (true) {
+      Job job;
+      synchronized (this) {
+        job = queue.peekFirst();
+        if (job == null) {
+          return;
+        }
+        if (job.task.isCancelled()) {
+          queue.removeFirst();
+          continue;
+        }
+        if (job.cpus > freeCpus) {
+          return;
+        }
+        queue.removeFirst();
+        freeCpus -= job.cpus;
+        runningJobs++;
+      }
+      start(job);
+    }
+  }
+
+  private void start(Job job) {
+    long startNanos = System.nanoTime();
+    queuedNanosTotal.addAndGet(startNanos - job.queuedNanos);
+    job.task.addListener(
+        () -> {
+          runningNanosTotal.addAndGet(System.nanoTime() - startNanos);
+          synchronized (this) {
+            freeCpus += job.cpus;
+            runningJobs--;
+          }
+          startJobs();
+        },
+        MoreExecutors.directExecutor());
+    try {
+      executor.execute(job.task);
+    } catch (RejectedExecutionException e) {
+      // Releases the CPUs through the listener.
+      job.task.cancel(false);
+    }
+  }
+
+  int getTotalCpus() {
+    return totalCpus;
+  }
+
+  synchronized int getUsedCpus() {
+    return totalCpus - freeCpus;
+  }
+
+  synchronized int getQueuedJobs() {
+    return queue.size();
+  }
+
+  synchronized int getRunningJobs() {
+    return runningJobs;
+  }
+
+  /** Returns the total time that jobs waited in the queue, in nanoseconds. */
+  long getQueuedNanosTotal() {
+    return queuedNanosTotal.get();
+  }
+
+  /** Returns the total time that jobs ran, in nanoseconds. */
+  long getRunningNanosTotal() {
+    return runningNanosTotal.get();
+  }
+}
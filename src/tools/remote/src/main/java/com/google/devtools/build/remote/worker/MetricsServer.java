@@ -0,0 +1,109 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.remote.worker;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+/** Serves the {@link WorkerMetrics} of the worker over HTTP at {@code /metrics}. */
+final class MetricsServer {
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private MetricsServer() {}
+
+  /** Starts serving {@code metrics} on {@code port}, and returns the channel that listens. */
+  static Channel start(int port, WorkerMetrics metrics) throws InterruptedException {
+    return new ServerBootstrap()
+        .group(new NioEventLoopGroup(1))
+        .channel(NioServerSocketChannel.class)
+        .childHandler(
+            new ChannelInitializer<SocketChannel>() {
+              @Override
+              protected void initChannel(SocketChannel ch) {
+                ch.pipeline()
+                    .addLast(new HttpServerCodec())
+                    .addLast(new HttpObjectAggregator(64 * 1024))
+                    .addLast(new MetricsHandler(metrics));
+              }
+            })
+        .bind(port)
+        .sync()
+        .channel();
+  }
+
+  private static final class MetricsHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+    private final WorkerMetrics metrics;
+
+    MetricsHandler(WorkerMetrics metrics) {
+      this.metrics = metrics;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+      FullHttpResponse response;
+      if (!request.decoderResult().isSuccess()) {
+        response = response(HttpResponseStatus.BAD_REQUEST, "");
+      } else if (!request.method().equals(HttpMethod.GET)) {
+        response = response(HttpResponseStatus.METHOD_NOT_ALLOWED, "");
+      } else if (!new QueryStringDecoder(request.uri()).path().equals("/metrics")) {
+        response = response(HttpResponseStatus.NOT_FOUND, "");
+      } else {
+        response = response(HttpResponseStatus.OK, metrics.format());
+      }
+      boolean keepAlive = HttpUtil.isKeepAlive(request) && request.decoderResult().isSuccess();
+      HttpUtil.setKeepAlive(response, keepAlive);
+      if (keepAlive) {
+        ctx.writeAndFlush(response);
+      } else {
+        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+      }
+    }
+
+    private static FullHttpResponse response(HttpResponseStatus status, String body) {
+      FullHttpResponse response =
+          new DefaultFullHttpResponse(
+              HttpVersion.HTTP_1_1, status, Unpooled.copiedBuffer(body, UTF_8));
+      response.headers().set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE);
+      HttpUtil.setContentLength(response, response.content().readableBytes());
+      return response;
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+      ctx.close();
+    }
+  }
+}
@@ -21,9 +21,12 @@ import static java.util.logging.Level.SEVERE;
 
 import com.google.bytestream.ByteStreamGrpc.ByteStreamImplBase;
 import com.google.common.collect.ImmutableList;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.devtools.build.lib.clock.JavaClock;
 import com.google.devtools.build.lib.remote.DigestUtil;
 import com.google.devtools.build.lib.remote.RemoteOptions;
 import com.google.devtools.build.lib.remote.SimpleBlobStoreActionCache;
@@ -86,6 +89,7 @@ public final class RemoteWorker {
   private final ContentAddressableStorageImplBase casServer;
   private final WatcherImplBase watchServer;
   private final ExecutionImplBase execServer;
+  private final WorkerMetrics metrics;
 
   static FileSystem getFileSystem() {
     final HashFunction hashFunction;
@@ -104,9 +108,11 @@ public final class RemoteWorker {
       RemoteWorkerOptions workerOptions,
       SimpleBlobStoreActionCache cache,
       Path sandboxPath,
-      DigestUtil digestUtil)
+      DigestUtil digestUtil,
+      WorkerMetrics metrics)
       throws IOException {
     this.workerOptions = workerOptions;
+    this.metrics = metrics;
     this.actionCacheServer = new ActionCacheServer(cache, digestUtil);
     Path workPath;
     if (workerOptions.workPath != null) {
@@ -124,7 +130,7 @@ public final class RemoteWorker {
       // For now, we use a temporary path if no work path was provided.
       workPath = fs.getPath("/tmp/remote-worker");
     }
-    this.bsServer = new ByteStreamServer(cache, workPath, digestUtil);
+    this.bsServer = new ByteStreamServer(cache, workPath, digestUtil, workerOptions.enableCompression);
     this.casServer = new CasServer(cache);
 
     if (workerOptions.workPath != null) {
@@ -134,7 +140,7 @@ public final class RemoteWorker {
       watchServer = new WatcherServer(operationsCache);
       execServer =
           new ExecutionServer(
-              workPath, sandboxPath, workerOptions, cache, operationsCache, digestUtil);
+              workPath, sandboxPath, workerOptions, cache, operationsCache, digestUtil, metrics);
     } else {
       watchServer = null;
       execServer = null;
@@ -163,6 +169,15 @@ public final class RemoteWorker {
     return server;
   }
 
+  private void startMetricsServer() throws InterruptedException {
+    if (workerOptions.metricsPort == 0) {
+      return;
+    }
+    MetricsServer.start(workerOptions.metricsPort, metrics);
+    logger.log(
+        INFO, "Serving metrics on http://localhost:{0,number,#}/metrics.", workerOptions.metricsPort);
+  }
+
   private void createPidFile() throws IOException {
     if (workerOptions.pidFile == null) {
       return;
@@ -256,15 +271,46 @@ public final class RemoteWorker {
     // 2. Otherwise start a standalone Hazelcast instance and use it as the blob store. This also
     //    creates a REST server for testing.
     // 3. Finally use a ConcurrentMap to back the blob store.
+    WorkerMetrics metrics = new WorkerMetrics();
+    long casMaxSizeBytes = remoteWorkerOptions.casMaxSizeMb * 1024 * 1024;
     final SimpleBlobStore blobStore;
     if (usingRemoteCache) {
       blobStore = SimpleBlobStoreFactory.create(remoteOptions, null, null);
     } else if (remoteWorkerOptions.casPath != null) {
-      blobStore = new OnDiskBlobStore(fs.getPath(remoteWorkerOptions.casPath));
+      OnDiskBlobStore onDiskBlobStore =
+          new OnDiskBlobStore(
+              fs.getPath(remoteWorkerOptions.casPath), casMaxSizeBytes, new JavaClock());
+      metrics.addGauge(
+          "remote_worker_cas_bytes",
+          "Size of the blobs in the store.",
+          onDiskBlobStore::getTotalSizeBytes);
+      metrics.addGauge(
+          "remote_worker_cas_blobs", "Blobs in the store.", onDiskBlobStore::getBlobCount);
+      metrics.addCounter(
+          "remote_worker_cas_evictions_total",
+          "Blobs deleted to stay within --cas_max_size_mb.",
+          onDiskBlobStore::getEvictedBlobCount);
+      blobStore = onDiskBlobStore;
     } else if (remoteWorkerOptions.hazelcastStandaloneListenPort != 0) {
       blobStore = createHazelcast(remoteWorkerOptions);
+    } else if (casMaxSizeBytes > 0) {
+      // Blobs are weighed by their size, but Guava caps single weights at Integer.MAX_VALUE.
+      Cache<String, byte[]> cache =
+          CacheBuilder.newBuilder()
+              .maximumWeight(casMaxSizeBytes)
+              .<String, byte[]>weigher((key, value) -> value.length)
+              .recordStats()
+              .build();
+      metrics.addGauge("remote_worker_cas_blobs", "Blobs in the store.", cache::size);
+      metrics.addCounter(
+          "remote_worker_cas_evictions_total",
+          "Blobs deleted to stay within --cas_max_size_mb.",
+          () -> cache.stats().evictionCount());
+      blobStore = new ConcurrentMapBlobStore(cache.asMap());
     } else {
-      blobStore = new ConcurrentMapBlobStore(new ConcurrentHashMap<String, byte[]>());
+      ConcurrentHashMap<String, byte[]> map = new ConcurrentHashMap<>();
+      metrics.addGauge("remote_worker_cas_blobs", "Blobs in the store.", map::size);
+      blobStore = new ConcurrentMapBlobStore(map);
     }
 
     DigestUtil digestUtil = new DigestUtil(fs.getDigestFunction());
@@ -274,9 +320,11 @@ public final class RemoteWorker {
             remoteWorkerOptions,
             new SimpleBlobStoreActionCache(blobStore, digestUtil),
             sandboxPath,
-            digestUtil);
+            digestUtil,
+            metrics);
 
     final Server server = worker.startServer();
+    worker.startMetricsServer();
     worker.createPidFile();
     server.awaitTermination();
   }
@@ -56,6 +56,19 @@ public class RemoteWorkerOptions extends OptionsBase {
   )
   public String casPath;
 
+  @Option(
+    name = "cas_max_size_mb",
+    defaultValue = "0",
+    category = "build_worker",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "The maximum size of the worker's own store in megabytes, i.e. of --cas_path or of the "
+            + "in-memory store. When it is exceeded, the least recently used blobs are deleted. "
+            + "0 means unlimited."
+  )
+  public long casMaxSizeMb;
+
   @Option(
     name = "debug",
     defaultValue = "false",
@@ -68,6 +81,19 @@ public class RemoteWorkerOptions extends OptionsBase {
   )
   public boolean debug;
 
+  @Option(
+    name = "enable_compression",
+    defaultValue = "false",
+    category = "build_worker",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "If enabled, blobs are gzip-compressed when they are read from the ByteStream service by "
+            + "clients that accept it, unless they are small or already compressed. Compressed "
+            + "uploads are accepted regardless of this flag."
+  )
+  public boolean enableCompression;
+
   @Option(
     name = "pid_file",
     defaultValue = "null",
@@ -134,6 +160,18 @@ public class RemoteWorkerOptions extends OptionsBase {
   )
   public int jobs;
 
+  @Option(
+    name = "metrics_port",
+    defaultValue = "0",
+    category = "build_worker",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "If set, serves the worker's metrics over HTTP on this port at /metrics, in the text "
+            + "format that Prometheus scrapes."
+  )
+  public int metricsPort;
+
   @Option(
     name = "hazelcast_standalone_listen_port",
     defaultValue = "0",
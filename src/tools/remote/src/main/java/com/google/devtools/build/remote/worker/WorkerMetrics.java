@@ -0,0 +1,101 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.remote.worker;
+
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+
+/**
+ * The metrics of a remote worker, in the text format that Prometheus scrapes.
+ *
+ * <p>Metrics are not recorded here. Instead, each one reads its current value from the component
+ * that keeps it, whenever the metrics are formatted.
+ */
+final class WorkerMetrics {
+  private static final class Sample {
+    final String labels;
+    final DoubleSupplier value;
+
+    Sample(String labels, DoubleSupplier value) {
+      this.labels = labels;
+      this.value = value;
+    }
+  }
+
+  private static final class Family {
+    final String type;
+    final String help;
+    final List<Sample> samples = new ArrayList<>();
+
+    Family(String type, String help) {
+      this.type = type;
+      this.help = help;
+    }
+  }
+
+  /** Guarded by {@code this}. */
+  private final Map<String, Family> families = new LinkedHashMap<>();
+
+  /** Adds a value that can go up and down, e.g. the number of running actions. */
+  void addGauge(String name, String help, DoubleSupplier value) {
+    add("gauge", name, help, "", value);
+  }
+
+  /** Adds a value that only goes up, e.g. the number of executed actions. */
+  void addCounter(String name, String help, DoubleSupplier value) {
+    add("counter", name, help, "", value);
+  }
+
+  /**
+   * Adds a value that only goes up to the counter {@code name}, with the label {@code label} set to
+   * {@code labelValue}.
+   */
+  void addCounter(
+      String name, String help, String label, String labelValue, DoubleSupplier value) {
+    add("counter", name, help, "{" + label + "=\"" + labelValue + "\"}", value);
+  }
+
+  private synchronized void add(
+      String type, String name, String help, String labels, DoubleSupplier value) {
+    Family family = families.computeIfAbsent(name, k -> new Family(type, help));
+    Preconditions.checkArgument(family.type.equals(type), "%s is a %s", name, family.type);
+    family.samples.add(new Sample(labels, value));
+  }
+
+  /** Returns the current values of all metrics. */
+  synchronized String format() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Family> e : families.entrySet()) {
+      Family family = e.getValue();
+      sb.append("# HELP ").append(e.getKey()).append(' ').append(family.help).append('\n');
+      sb.append("# TYPE ").append(e.getKey()).append(' ').append(family.type).append('\n');
+      for (Sample sample : family.samples) {
+        double value = sample.value.getAsDouble();
+        sb.append(e.getKey()).append(sample.labels).append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+          sb.append((long) value);
+        } else {
+          sb.append(value);
+        }
+        sb.append('\n');
+      }
+    }
+    return sb.toString();
+  }
+}